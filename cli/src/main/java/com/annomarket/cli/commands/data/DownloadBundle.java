@@ -17,23 +17,22 @@
 package com.annomarket.cli.commands.data;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.List;
-
-import org.apache.commons.io.FileUtils;
 
 import com.annomarket.cli.commands.AbstractCommand;
 import com.annomarket.client.RestClient;
-import com.annomarket.client.RestClientException;
-import com.annomarket.data.BundleEntry;
 import com.annomarket.data.DataBundle;
 import com.annomarket.data.DataManager;
+import com.annomarket.data.ParallelDownloader;
 
 public class DownloadBundle extends AbstractCommand {
 
   public void run(RestClient client, String... args) throws Exception {
-    if(args.length < 1) {
-      System.err.println("Usage: download-bundle <bundleid or url>");
+    int threads = ParallelDownloader.DEFAULT_THREADS;
+    if(args.length == 3 && "-threads".equals(args[1])) {
+      threads = Integer.parseInt(args[2]);
+    } else if(args.length != 1) {
+      System.err
+              .println("Usage: download-bundle <bundleid or url> [-threads <n>]");
       System.exit(1);
     }
     DataManager mgr = new DataManager(client);
@@ -49,20 +48,15 @@ public class DownloadBundle extends AbstractCommand {
               .println("Please specify either a numeric bundle ID or a valid bundle URL.");
     }
 
-    List<BundleEntry> entries = b.files;
-    int i = 1;
-    for(BundleEntry ent : entries) {
-      String path = ent.url.getPath();
-      String filename = path.substring(path.lastIndexOf("/") + 1);
-      System.out.println(filename + " (file " + i++ + " of " + entries.size()
-              + ")");
-      File f = new File(filename);
-      try {
-        FileUtils.copyURLToFile(ent.urlToDownload(), f);
-      } catch(IOException e) {
-        throw new RestClientException("Error downloading " + ent.url);
-      }
-    }
+    System.out.println("Downloading " + (b.files == null ? 0 : b.files.size())
+            + " files using " + threads + " threads");
+    ParallelDownloader downloader = new ParallelDownloader(threads);
+    long start = System.currentTimeMillis();
+    b.download(new File("."), downloader);
+    System.out.println("Downloaded " + formatBytes(downloader.getBytesDownloaded())
+            + " in " + formatMs(System.currentTimeMillis() - start)
+            + (downloader.getBytesResumed() > 0 ? " (resumed after "
+                    + formatBytes(downloader.getBytesResumed()) + ")" : ""));
   }
 
 }
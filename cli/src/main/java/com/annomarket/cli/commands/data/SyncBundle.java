@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.cli.commands.data;
+
+import java.io.File;
+
+import com.annomarket.cli.commands.AbstractCommand;
+import com.annomarket.client.RestClient;
+import com.annomarket.data.DataBundle;
+import com.annomarket.data.DataManager;
+import com.annomarket.data.PartUploader;
+import com.annomarket.data.SyncResult;
+
+public class SyncBundle extends AbstractCommand {
+
+  public void run(RestClient client, String... args) throws Exception {
+    if(args.length < 2) {
+      usage();
+    }
+    DataManager mgr = new DataManager(client);
+    DataBundle b = null;
+    try {
+      b = mgr.getBundle(Long.parseLong(args[0]));
+    } catch(NumberFormatException e) {
+      // assume it's a URL
+      b = mgr.getBundle(args[0]);
+    }
+
+    File manifestDir =
+            new File(System.getProperty("user.home"), ".annomarket-manifests");
+    int threads = PartUploader.DEFAULT_THREADS;
+    boolean close = false;
+    boolean allowDuplicates = false;
+
+    int i;
+    for(i = 1; i + 1 < args.length && args[i].startsWith("-"); i++) {
+      if("-manifestDir".equals(args[i])) {
+        manifestDir = new File(args[++i]);
+      } else if("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if("-close".equals(args[i])) {
+        close = true;
+      } else if("-allowDuplicates".equals(args[i])) {
+        allowDuplicates = true;
+      } else {
+        usage();
+      }
+    }
+    if(i != args.length - 1) {
+      usage();
+    }
+
+    PartUploader uploader = new PartUploader(Long.MAX_VALUE, threads);
+    long start = System.currentTimeMillis();
+    SyncResult result =
+            b.sync(new File(args[i]), manifestDir, uploader, allowDuplicates);
+    System.out.println("Uploaded " + result.getUploadedFiles().size()
+            + " new or changed files ("
+            + formatBytes(result.getBytesUploaded()) + ") in "
+            + formatMs(System.currentTimeMillis() - start));
+    System.out.println("Skipped " + result.getUnchangedFiles().size()
+            + " unchanged files (" + formatBytes(result.getBytesSaved())
+            + " saved)");
+    if(close) {
+      System.out.println("Closing bundle...");
+      b.close();
+    }
+  }
+
+  private void usage() {
+    System.err
+            .println("Usage: sync-bundle <bundleid or url> [options] directory");
+    System.err.println();
+    System.err
+            .println("Uploads the files in the directory that are not already in the");
+    System.err
+            .println("(open) bundle, or have changed since they were last synced.");
+    System.err.println();
+    System.err.println("Optional switches:");
+    System.err
+            .println("  -manifestDir <dir>: where to keep the record of uploaded files");
+    System.err.println("              (default ~/.annomarket-manifests)");
+    System.err
+            .println("  -threads <n>: number of files to upload at the same time");
+    System.err.println("              (default " + PartUploader.DEFAULT_THREADS
+            + ")");
+    System.err.println("  -close: close the bundle once it is up to date");
+    System.err
+            .println("  -allowDuplicates: upload changed files even though the bundle");
+    System.err
+            .println("              still holds their earlier version");
+
+    System.exit(1);
+  }
+
+}
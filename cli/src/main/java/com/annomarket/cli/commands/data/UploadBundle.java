@@ -17,11 +17,14 @@
 package com.annomarket.cli.commands.data;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.annomarket.cli.commands.AbstractCommand;
 import com.annomarket.client.RestClient;
 import com.annomarket.data.DataBundle;
 import com.annomarket.data.DataManager;
+import com.annomarket.data.PartUploader;
 import com.annomarket.common.InputType;
 
 public class UploadBundle extends AbstractCommand {
@@ -40,6 +43,10 @@ public class UploadBundle extends AbstractCommand {
     String mimeTypeOverride = null;
     String fileExtensions = null;
     String mimeTypes = null;
+    int threads = PartUploader.DEFAULT_THREADS;
+    long maxBytesPerSecond = 0;
+    long partSize = Long.MAX_VALUE;
+    int maxPartEntries = 0;
 
     int i;
     for(i = 1; i + 1 < args.length && args[i].startsWith("-"); i++) {
@@ -58,6 +65,14 @@ public class UploadBundle extends AbstractCommand {
         fileExtensions = args[++i];
       } else if("-mimeTypes".equals(args[i])) {
         mimeTypes = args[++i];
+      } else if("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if("-maxBytesPerSecond".equals(args[i])) {
+        maxBytesPerSecond = parseSize(args[++i]);
+      } else if("-partSize".equals(args[i])) {
+        partSize = parseSize(args[++i]);
+      } else if("-maxPartEntries".equals(args[i])) {
+        maxPartEntries = Integer.parseInt(args[++i]);
       } else {
         usage();
       }
@@ -80,15 +95,57 @@ public class UploadBundle extends AbstractCommand {
     }
     System.out.println("Created bundle " + newBundle.id);
 
+    List<File> files = new ArrayList<File>();
+    List<File> directories = new ArrayList<File>();
     for(; i < args.length; i++) {
-      System.out.println("Uploading " + args[i]);
-      newBundle.addFile(new File(args[i]));
+      File f = new File(args[i]);
+      if(f.isDirectory()) {
+        directories.add(f);
+      } else {
+        files.add(f);
+      }
+    }
+    PartUploader uploader = new PartUploader(partSize, threads);
+    uploader.setMaxBytesPerSecond(maxBytesPerSecond);
+    System.out.println("Uploading " + files.size() + " files using "
+            + threads + " threads");
+    long start = System.currentTimeMillis();
+    List<String> entries = newBundle.addFiles(files, uploader);
+    System.out.println("Uploaded " + entries.size() + " entries ("
+            + formatBytes(uploader.getBytesUploaded()) + ") in "
+            + formatMs(System.currentTimeMillis() - start));
+    for(File dir : directories) {
+      System.out.println("Uploading directory " + dir);
+      start = System.currentTimeMillis();
+      List<String> parts =
+              newBundle.addDirectory(dir, partSize, maxPartEntries, uploader);
+      System.out.println("  Uploaded " + parts.size() + " archives in "
+              + formatMs(System.currentTimeMillis() - start));
     }
     System.out.println("Closing bundle...");
     newBundle.close();
     System.out.println("Bundle " + newBundle.id + " uploaded");
   }
 
+  /**
+   * Parse a byte count with an optional K, M or G suffix.
+   */
+  private long parseSize(String size) {
+    long multiplier = 1;
+    char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+    if(unit == 'K') {
+      multiplier = 1024L;
+    } else if(unit == 'M') {
+      multiplier = 1024L * 1024;
+    } else if(unit == 'G') {
+      multiplier = 1024L * 1024 * 1024;
+    }
+    if(multiplier > 1) {
+      size = size.substring(0, size.length() - 1);
+    }
+    return Long.parseLong(size) * multiplier;
+  }
+
   private void usage() {
     System.err
             .println("Usage: upload-bundle \"bundle name\" -type <type> [options] file1 file2 ...");
@@ -123,6 +180,30 @@ public class UploadBundle extends AbstractCommand {
             .println("              of file extensions - ZIP/TAR entries that do not have");
     System.err
             .println("              one of these extensions will be ignored.");
+    System.err
+            .println("  -threads <n>: number of files to upload at the same time");
+    System.err.println("              (default " + PartUploader.DEFAULT_THREADS
+            + ")");
+    System.err
+            .println("  -maxBytesPerSecond <n>: limit the total upload rate, e.g. 10M");
+    System.err
+            .println("  -partSize <n>: split WARC and Twitter/DataSift stream files");
+    System.err
+            .println("              larger than this into parts of at most this");
+    System.err
+            .println("              size, each uploaded as a separate file, e.g. 1G");
+    System.err
+            .println("              Directories are split into archives holding at");
+    System.err
+            .println("              most this many bytes of files.");
+    System.err
+            .println("  -maxPartEntries <n>: split directories into archives of at");
+    System.err.println("              most this many files");
+    System.err.println();
+    System.err
+            .println("For ZIP and TAR bundles, a directory can be given in place of a file,");
+    System.err
+            .println("and its contents will be uploaded as archives built on the fly.");
 
     System.exit(1);
   }
@@ -17,17 +17,27 @@
 package com.annomarket.cli.commands.job;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.List;
 
-import org.apache.commons.io.FileUtils;
-
-import com.annomarket.client.RestClientException;
+import com.annomarket.client.RestClient;
+import com.annomarket.data.ParallelDownloader;
 import com.annomarket.job.Job;
-import com.annomarket.job.JobResult;
 
 public class DownloadAllResults extends JobControlCommand {
 
+  private int threads = ParallelDownloader.DEFAULT_THREADS;
+
+  @Override
+  public void run(RestClient client, String... args) throws Exception {
+    if(args.length == 3 && "-threads".equals(args[1])) {
+      threads = Integer.parseInt(args[2]);
+    } else if(args.length > 1) {
+      System.err.println("Usage: " + commandName() + " <jobid> [-threads <n>]");
+      System.exit(1);
+    }
+    super.run(client, args);
+  }
+
   @Override
   protected String commandName() {
     return "download-all-results";
@@ -35,19 +45,16 @@ public class DownloadAllResults extends JobControlCommand {
 
   @Override
   protected void controlJob(Job j) {
-    List<JobResult> results = j.results();
-    int i = 1;
-    for(JobResult res : results) {
-      String path = res.url.getPath();
-      String filename = path.substring(path.lastIndexOf("/") + 1);
-      System.out.println(filename + " (file " + i++ + " of " + results.size() + ")");
-      File f = new File(filename);
-      try {
-        FileUtils.copyURLToFile(res.urlToDownload(), f);
-      } catch(IOException e) {
-        throw new RestClientException("Error downloading " + res.url);
-      }
-    }
+    System.out.println("Downloading results using " + threads
+            + " threads");
+    ParallelDownloader downloader = new ParallelDownloader(threads);
+    long start = System.currentTimeMillis();
+    List<File> files = j.downloadResults(new File("."), downloader);
+    System.out.println("Downloaded " + files.size() + " files, "
+            + formatBytes(downloader.getBytesDownloaded())
+            + " in " + formatMs(System.currentTimeMillis() - start)
+            + (downloader.getBytesResumed() > 0 ? " (resumed after "
+                    + formatBytes(downloader.getBytesResumed()) + ")" : ""));
   }
 
 }
@@ -78,10 +78,13 @@ public class UploadInputs extends AbstractCommand {
     for(; i < args.length; i++) {
       System.out.println("Processing " + args[i]);
       InputDetails input = null;
-      if(inputType == InputType.ARC || inputType == InputType.WARC) {
-        input = job.addARCInput(new File(args[i]), inputType, encoding, mimeTypeOverride, mimeTypes);
+      File inputFile = new File(args[i]);
+      if(inputFile.isDirectory()) {
+        input = job.addDirectoryInput(inputFile, inputType, encoding, mimeTypeOverride, fileExtensions);
+      } else if(inputType == InputType.ARC || inputType == InputType.WARC) {
+        input = job.addARCInput(inputFile, inputType, encoding, mimeTypeOverride, mimeTypes);
       } else {
-        input = job.addArchiveInput(new File(args[i]), inputType, encoding, mimeTypeOverride, fileExtensions);
+        input = job.addArchiveInput(inputFile, inputType, encoding, mimeTypeOverride, fileExtensions);
       }
       System.out.println("  Created " + input.url);
     }
@@ -108,6 +111,9 @@ public class UploadInputs extends AbstractCommand {
     System.err.println("  -fileExtensions: (ZIP and TAR inputs only) comma-separated list");
     System.err.println("              of file extensions - ZIP/TAR entries that do not have");
     System.err.println("              one of these extensions will be ignored.");
+    System.err.println();
+    System.err.println("For ZIP and TAR inputs, a directory can be given in place of a file, and");
+    System.err.println("its contents will be uploaded as a single archive built on the fly.");
     
     System.exit(1);
   }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+/**
+ * Concurrency limiter whose limit adapts to the server's behaviour
+ * using an additive-increase/multiplicative-decrease (AIMD) scheme,
+ * similar to TCP congestion control.
+ * <p>
+ * Callers {@link #acquire() acquire} a slot before each request,
+ * waiting while the number of requests in flight is at the current
+ * limit, and report the outcome when the request finishes:
+ * <ul>
+ * <li>{@link #onSuccess} - if the response latency is healthy (no more
+ * than {@link #setLatencyTolerance tolerance} times the best latency
+ * seen recently) and the recent error rate is below the
+ * {@link #setMaxErrorRate threshold}, the limit grows by roughly one
+ * for every "limit" successful requests.</li>
+ * <li>{@link #onOverload} - the server said it was overloaded (429 or
+ * 503), so the limit is cut by the {@link #setBackoffRatio backoff
+ * ratio}. Only one cut is made per round of requests - overload reports
+ * for requests that started before the last cut are ignored, as they
+ * reflect the old limit.</li>
+ * <li>{@link #onError} - any other failure. This does not change the
+ * limit directly but counts towards the error rate.</li>
+ * </ul>
+ * The result is that the number of requests in flight settles just
+ * below the point at which the server starts to push back, without the
+ * caller having to tune a thread count by hand.
+ *
+ * @author Ian Roberts
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  /**
+   * Weight given to each new sample in the moving averages of error
+   * rate and latency.
+   */
+  private static final double SMOOTHING = 0.1;
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private double limit;
+
+  private int inFlight;
+
+  private double errorRate;
+
+  /**
+   * Smoothed estimate of the best achievable latency, in nanoseconds.
+   * Zero until the first successful request.
+   */
+  private double baselineLatency;
+
+  private long lastDecrease = System.nanoTime();
+
+  private double latencyTolerance = 2.0;
+
+  private double maxErrorRate = 0.1;
+
+  private double backoffRatio = 0.5;
+
+  /**
+   * Handed out by {@link #acquire()} for each request, and passed back
+   * to the limiter when reporting the request's outcome.
+   */
+  public static final class Ticket {
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    private final long startNanos;
+
+    private Ticket(AdaptiveConcurrencyLimiter limiter) {
+      this.limiter = limiter;
+      this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the limiter that issued this ticket, to which the outcome
+     *         of the request must be reported.
+     */
+    public AdaptiveConcurrencyLimiter getLimiter() {
+      return limiter;
+    }
+  }
+
+  /**
+   * Create a limiter with the given initial limit and bounds.
+   *
+   * @param initialLimit the number of requests allowed in flight at
+   *          the start
+   * @param minLimit the limit will never fall below this
+   * @param maxLimit the limit will never grow beyond this
+   */
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+          int maxLimit) {
+    if(minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Invalid limits " + minLimit
+              + " to " + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Set how much slower than the best recent latency a response can be
+   * while still counting as healthy. Default 2.0.
+   */
+  public synchronized void setLatencyTolerance(double latencyTolerance) {
+    this.latencyTolerance = latencyTolerance;
+  }
+
+  /**
+   * Set the error rate (between 0 and 1) above which the limit will not
+   * be increased. Default 0.1.
+   */
+  public synchronized void setMaxErrorRate(double maxErrorRate) {
+    this.maxErrorRate = maxErrorRate;
+  }
+
+  /**
+   * Set the factor by which the limit is multiplied when the server
+   * reports overload. Default 0.5.
+   */
+  public synchronized void setBackoffRatio(double backoffRatio) {
+    this.backoffRatio = backoffRatio;
+  }
+
+  /**
+   * @return the current limit on requests in flight.
+   */
+  public synchronized int getLimit() {
+    return (int)limit;
+  }
+
+  /**
+   * @return the number of requests currently in flight.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * @return the smoothed recent error rate, between 0 and 1.
+   */
+  public synchronized double getErrorRate() {
+    return errorRate;
+  }
+
+  /**
+   * Wait until the number of requests in flight is below the current
+   * limit, then claim a slot. Every successful call must be matched by
+   * exactly one call to {@link #onSuccess}, {@link #onOverload} or
+   * {@link #onError}.
+   *
+   * @return a ticket identifying this request, to be passed back when
+   *         reporting its outcome.
+   */
+  public synchronized Ticket acquire() throws InterruptedException {
+    while(inFlight >= (int)limit) {
+      wait();
+    }
+    inFlight++;
+    return new Ticket(this);
+  }
+
+  /**
+   * Report that the request identified by the given ticket succeeded.
+   */
+  public synchronized void onSuccess(Ticket ticket) {
+    check(ticket);
+    long latency = System.nanoTime() - ticket.startNanos;
+    errorRate *= (1 - SMOOTHING);
+    if(baselineLatency == 0 || latency < baselineLatency) {
+      baselineLatency = latency;
+    } else {
+      // drift slowly upwards so that a baseline measured when the
+      // server was unusually quiet does not stop growth for ever
+      baselineLatency += (latency - baselineLatency) * SMOOTHING * 0.1;
+    }
+    if(errorRate < maxErrorRate
+            && latency <= baselineLatency * latencyTolerance
+            && inFlight >= (int)limit) {
+      // only grow when the current limit is actually being used
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+    release();
+  }
+
+  /**
+   * Report that the server rejected the request identified by the
+   * given ticket because it was overloaded (e.g. HTTP 429 or 503).
+   */
+  public synchronized void onOverload(Ticket ticket) {
+    check(ticket);
+    errorRate = errorRate * (1 - SMOOTHING) + SMOOTHING;
+    if(ticket.startNanos - lastDecrease > 0) {
+      limit = Math.max(minLimit, limit * backoffRatio);
+      lastDecrease = System.nanoTime();
+    }
+    release();
+  }
+
+  /**
+   * Report that the request identified by the given ticket failed for
+   * some reason other than overload.
+   */
+  public synchronized void onError(Ticket ticket) {
+    check(ticket);
+    errorRate = errorRate * (1 - SMOOTHING) + SMOOTHING;
+    release();
+  }
+
+  private void check(Ticket ticket) {
+    if(ticket.limiter != this) {
+      throw new IllegalArgumentException(
+              "Ticket was issued by a different limiter");
+    }
+  }
+
+  private void release() {
+    inFlight--;
+    notifyAll();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+
+/**
+ * Strategy used by {@link RestClient} to send HTTP requests without
+ * blocking the calling thread. The default implementation is a
+ * {@link NioHttpTransport}.
+ *
+ * @author Ian Roberts
+ */
+public interface AsyncHttpTransport {
+
+  /**
+   * Start executing a single HTTP request, returning immediately. As
+   * for {@link HttpTransport#execute}, redirects must not be followed
+   * automatically.
+   *
+   * @param request the request to send
+   * @param callback callback to be notified when the response has been
+   *          received in full (or the request fails). May be
+   *          <code>null</code>. Callbacks are typically run on the
+   *          transport's I/O threads, so they must not block.
+   * @return a {@link Future} representing the response. The response
+   *         content is buffered in memory, so there is no need to
+   *         release the response once it has been received.
+   */
+  public Future<HttpResponse> execute(HttpUriRequest request,
+          FutureCallback<HttpResponse> callback);
+
+  /**
+   * Start executing a request whose body and response are handled by
+   * the given producer and consumer, e.g. to stream a large request
+   * body from a file with a {@link FileRangeProducer}.
+   *
+   * @param producer generates the request and its content
+   * @param consumer processes the response
+   * @param callback callback to be notified with the consumer's result,
+   *          may be <code>null</code>
+   * @return a {@link Future} for the consumer's result
+   */
+  public <T> Future<T> execute(HttpAsyncRequestProducer producer,
+          HttpAsyncResponseConsumer<T> consumer, FutureCallback<T> callback);
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating named daemon threads, so that the background
+ * threads used by the client never prevent the JVM from exiting.
+ *
+ * @author Ian Roberts
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+  /**
+   * Number of pools created so far by {@link #forRun}, per prefix.
+   */
+  private static final ConcurrentMap<String, AtomicInteger> runs =
+          new ConcurrentHashMap<String, AtomicInteger>();
+
+  private final String prefix;
+
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Create a factory whose threads are named
+   * <code><i>prefix</i>-<i>n</i></code>.
+   */
+  public DaemonThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+   * Create a factory for one of many short-lived pools of the same
+   * kind, whose threads are named
+   * <code><i>prefix</i>-<i>run</i>-<i>n</i></code>, where
+   * <i>run</i> counts the pools created with this prefix, so the
+   * threads of different pools can be told apart.
+   */
+  public static DaemonThreadFactory forRun(String prefix) {
+    AtomicInteger counter = runs.get(prefix);
+    if(counter == null) {
+      AtomicInteger existing =
+              runs.putIfAbsent(prefix, counter = new AtomicInteger());
+      if(existing != null) counter = existing;
+    }
+    return new DaemonThreadFactory(prefix + "-" + counter.incrementAndGet());
+  }
+
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Request producer for a {@link NioHttpTransport} that PUTs a range of
+ * bytes from a file without copying them through the Java heap. Over a
+ * plain HTTP connection the data goes straight from the file to the
+ * socket with {@link FileChannel#transferTo}; where that is not
+ * possible (e.g. over TLS) it is read through a large direct buffer.
+ *
+ * @author Ian Roberts
+ */
+public class FileRangeProducer implements HttpAsyncRequestProducer {
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private final URI uri;
+
+  private final File file;
+
+  private final long start;
+
+  private final long length;
+
+  private final String contentType;
+
+  private volatile RequestConfig config;
+
+  private RandomAccessFile raf;
+
+  private FileChannel channel;
+
+  private ByteBuffer buffer;
+
+  /**
+   * Bytes handed to the connection so far.
+   */
+  private long sent;
+
+  /**
+   * Bytes read into the buffer so far (when not using transferTo).
+   */
+  private long read;
+
+  /**
+   * @param uri the URI to PUT to
+   * @param file the file holding the data
+   * @param start offset of the first byte to send
+   * @param length number of bytes to send
+   * @param contentType the Content-Type of the request
+   */
+  public FileRangeProducer(URI uri, File file, long start, long length,
+          String contentType) {
+    this.uri = uri;
+    this.file = file;
+    this.start = start;
+    this.length = length;
+    this.contentType = contentType;
+  }
+
+  /**
+   * Set the configuration of the request, such as its timeouts, in
+   * place of the transport's defaults.
+   */
+  public void setRequestConfig(RequestConfig config) {
+    this.config = config;
+  }
+
+  public HttpHost getTarget() {
+    return URIUtils.extractHost(uri);
+  }
+
+  public HttpRequest generateRequest() {
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setChunked(false);
+    entity.setContentLength(length);
+    entity.setContentType(contentType);
+    HttpPut put = new HttpPut(uri);
+    put.setEntity(entity);
+    if(config != null) {
+      put.setConfig(config);
+    }
+    return put;
+  }
+
+  public synchronized void produceContent(ContentEncoder encoder,
+          IOControl ioctrl) throws IOException {
+    if(channel == null) {
+      raf = new RandomAccessFile(file, "r");
+      channel = raf.getChannel();
+    }
+    if(encoder instanceof FileContentEncoder) {
+      sent +=
+              ((FileContentEncoder)encoder).transfer(channel, start + sent,
+                      length - sent);
+    } else {
+      if(buffer == null) {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.limit(0);
+      }
+      if(!buffer.hasRemaining() && read < length) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), length - read));
+        int n = channel.read(buffer, start + read);
+        if(n < 0) {
+          throw new EOFException(file + " is shorter than expected");
+        }
+        read += n;
+        buffer.flip();
+      }
+      sent += encoder.write(buffer);
+    }
+    if(sent >= length) {
+      encoder.complete();
+      closeChannel();
+    }
+  }
+
+  public void requestCompleted(HttpContext context) {
+  }
+
+  public void failed(Exception ex) {
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public synchronized void resetRequest() throws IOException {
+    closeChannel();
+  }
+
+  public synchronized void close() throws IOException {
+    closeChannel();
+  }
+
+  private void closeChannel() throws IOException {
+    sent = 0;
+    read = 0;
+    if(buffer != null) {
+      buffer.limit(0);
+    }
+    if(raf != null) {
+      channel = null;
+      try {
+        raf.close();
+      } finally {
+        raf = null;
+      }
+    }
+  }
+}
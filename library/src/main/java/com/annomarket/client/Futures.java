@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for waiting on a batch of tasks that were started together.
+ *
+ * @author Ian Roberts
+ */
+public final class Futures {
+
+  private Futures() {
+  }
+
+  /**
+   * Wait for every one of the given futures to complete, even if some
+   * of them fail, and return their results in the same order.
+   * 
+   * @param futures the futures to wait for
+   * @param failed description of a failure, completing the message
+   *          "<i>n</i> of <i>m</i> ...", for example
+   *          <code>"files failed to download"</code>
+   * @return the results of the futures
+   * @throws RestClientException if any of the futures failed, once all
+   *           the others have completed, with the first failure as its
+   *           cause
+   * @throws InterruptedException if the calling thread is interrupted
+   *           while waiting. The futures are left as they are.
+   */
+  public static <T> List<T> getAll(List<? extends Future<? extends T>> futures,
+          String failed) throws InterruptedException {
+    List<T> results = new ArrayList<T>(futures.size());
+    int failures = 0;
+    Throwable firstFailure = null;
+    for(Future<? extends T> f : futures) {
+      try {
+        results.add(f.get());
+      } catch(ExecutionException e) {
+        failures++;
+        if(firstFailure == null) {
+          firstFailure = e.getCause();
+        }
+        results.add(null);
+      }
+    }
+    if(firstFailure != null) {
+      throw new RestClientException(failures + " of " + futures.size()
+              + " " + failed, firstFailure);
+    }
+    return results;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentOutputStream;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.util.SharedOutputBuffer;
+
+/**
+ * Entity that gzip-compresses another entity as it is written, so the
+ * compressed body is never held in memory. The length is not known in
+ * advance, so the body is sent with chunked transfer encoding.
+ * <p>
+ * The blocking transport simply calls {@link #writeTo writeTo}. For
+ * the asynchronous transport, which cannot block its I/O threads, this
+ * entity is its own {@link HttpAsyncContentProducer}: the body is
+ * compressed on a separate thread into a small buffer, which the I/O
+ * thread drains as the connection accepts more data.
+ *
+ * @author Ian Roberts
+ */
+class GzipEntity extends HttpEntityWrapper implements
+                                          HttpAsyncContentProducer {
+
+  private static final Header CONTENT_ENCODING = new BasicHeader(
+          "Content-Encoding", "gzip");
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Size of the buffer between the compressing thread and the I/O
+   * thread for asynchronous requests.
+   */
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  /**
+   * Header of a gzip stream with no optional fields (RFC 1952).
+   */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b,
+      Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+
+  /**
+   * Holder for the threads that compress asynchronous request bodies,
+   * created on first use. Each thread blocks while its buffer is full,
+   * so the pool grows with the number of compressed requests in flight.
+   * Compression only starts once a request has a connection, so that
+   * is bounded by the async transport's connection limit, and idle
+   * threads exit after a minute.
+   */
+  private static class CompressorHolder {
+    static final ExecutorService INSTANCE = Executors
+            .newCachedThreadPool(new DaemonThreadFactory("annomarket-gzip"));
+  }
+
+  /**
+   * The compression in progress for the current asynchronous attempt,
+   * if any.
+   */
+  private Compression compression;
+
+  GzipEntity(HttpEntity wrapped) {
+    super(wrapped);
+  }
+
+  /**
+   * Create a new entity compressing the same content, for another
+   * attempt at an asynchronous request. HttpAsyncClient closes an
+   * attempt's producer only after passing the response to its callback,
+   * by which time the retry may already have started, so the two
+   * attempts must not share the compression in progress.
+   */
+  GzipEntity copy() {
+    return new GzipEntity(wrappedEntity);
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return CONTENT_ENCODING;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean isChunked() {
+    return true;
+  }
+
+  /**
+   * Returns the compressed body as a stream, compressing the wrapped
+   * entity's content as it is read.
+   */
+  @Override
+  public InputStream getContent() throws IOException {
+    final CRC32 crc = new CRC32();
+    final CountingInputStream source =
+            new CountingInputStream(new CheckedInputStream(
+                    wrappedEntity.getContent(), crc));
+    final Deflater deflater =
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    InputStream body = new DeflaterInputStream(source, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+    InputStream trailer = new InputStream() {
+      private InputStream bytes;
+
+      private InputStream bytes() {
+        if(bytes == null) {
+          // only known once the body has been read
+          long crcValue = crc.getValue();
+          long size = source.getByteCount();
+          byte[] b = new byte[8];
+          for(int i = 0; i < 4; i++) {
+            b[i] = (byte)(crcValue >>> (8 * i));
+            b[i + 4] = (byte)(size >>> (8 * i));
+          }
+          bytes = new ByteArrayInputStream(b);
+        }
+        return bytes;
+      }
+
+      @Override
+      public int read() throws IOException {
+        return bytes().read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return bytes().read(b, off, len);
+      }
+    };
+    return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+            new ByteArrayInputStream(GZIP_HEADER), body, trailer)));
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+    wrappedEntity.writeTo(gzip);
+    // closing finishes the gzip stream, and closes the underlying
+    // entity stream as HttpClient expects
+    gzip.close();
+  }
+
+  public synchronized void produceContent(ContentEncoder encoder,
+          IOControl ioctrl) throws IOException {
+    if(compression == null) {
+      compression = new Compression(ioctrl);
+      CompressorHolder.INSTANCE.execute(compression);
+    }
+    compression.produceContent(encoder, ioctrl);
+  }
+
+  /**
+   * Abandon the current asynchronous attempt, if any, so that a retry
+   * starts compressing from the beginning again.
+   */
+  public synchronized void close() {
+    if(compression != null) {
+      compression.pipe.shutdown();
+      compression = null;
+    }
+  }
+
+  /**
+   * One run of the compressor for an asynchronous request, writing
+   * into a buffer shared with the I/O thread.
+   */
+  private class Compression implements Runnable {
+    final SharedOutputBuffer pipe;
+
+    private final IOControl ioctrl;
+
+    private volatile IOException failure;
+
+    Compression(IOControl ioctrl) {
+      this.ioctrl = ioctrl;
+      // the I/O control is passed to the buffer on each call to
+      // produceContent, starting with the one that created this
+      this.pipe = new SharedOutputBuffer(PIPE_SIZE);
+    }
+
+    public void run() {
+      try {
+        // closing the gzip stream closes the content stream, which
+        // marks the end of the body
+        writeTo(new ContentOutputStream(pipe));
+      } catch(IOException e) {
+        fail(e);
+      } catch(RuntimeException e) {
+        fail(new IOException("Could not compress request body", e));
+      }
+    }
+
+    private void fail(IOException e) {
+      failure = e;
+      // wake the I/O thread so it sees the failure
+      ioctrl.requestOutput();
+    }
+
+    void produceContent(ContentEncoder encoder, IOControl ioctrl)
+            throws IOException {
+      IOException e = failure;
+      if(e != null) {
+        throw e;
+      }
+      pipe.produceContent(encoder, ioctrl);
+    }
+  }
+}
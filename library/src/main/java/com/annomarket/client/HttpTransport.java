@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Strategy used by {@link RestClient} to actually send HTTP requests
+ * over the network. The default implementation is a
+ * {@link PooledHttpTransport}, which keeps connections alive and
+ * re-uses them across requests, but alternative implementations can be
+ * supplied to the <code>RestClient</code> constructor (e.g. to route
+ * requests through a custom proxy or to stub out the network in
+ * tests).
+ *
+ * @author Ian Roberts
+ */
+public interface HttpTransport {
+
+  /**
+   * Execute a single HTTP request and return the response. Redirects
+   * must <em>not</em> be followed automatically - the
+   * <code>RestClient</code> handles these itself so that the
+   * authentication headers are treated correctly.
+   *
+   * @param request the request to send
+   * @return the response. The caller is responsible for consuming the
+   *         response entity (if any) and closing the response, so
+   *         that the underlying connection can be released.
+   * @throws IOException if a communication error occurs
+   */
+  public CloseableHttpResponse execute(HttpUriRequest request)
+          throws IOException;
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Entity that serializes an object to JSON directly into the request
+ * stream each time it is written, rather than building the body in
+ * memory first. Used, wrapped in a {@link GzipEntity}, for request
+ * bodies large enough to be compressed.
+ *
+ * @author Ian Roberts
+ */
+class JsonEntity extends AbstractHttpEntity {
+
+  private final ObjectWriter writer;
+
+  private final Object value;
+
+  JsonEntity(ObjectWriter writer, Object value) {
+    this.writer = writer;
+    this.value = value;
+    setContentType("application/json");
+    setChunked(true);
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Returns the serialized object, built in memory.
+   */
+  public InputStream getContent() throws IOException {
+    return new ByteArrayInputStream(writer.writeValueAsBytes(value));
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    JsonGenerator gen = writer.getFactory().createGenerator(out);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    writer.writeValue(gen, value);
+    gen.flush();
+  }
+}
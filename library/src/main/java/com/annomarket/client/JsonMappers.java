@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * The Jackson configuration used by {@link RestClient} to read and
+ * write JSON (and XML error responses), together with a cache of
+ * pre-built {@link ObjectReader}s for each response type.
+ * <p>
+ * Building a mapper and resolving a generic type such as
+ * <code>List&lt;JobSummary&gt;</code> are relatively expensive, and
+ * Jackson caches the serializers and deserializers it builds per
+ * mapper, so an instance of this class is intended to be shared by
+ * many clients. By default all clients share the
+ * {@link #getDefault() default instance}; each client adds its own
+ * injectable values (the client itself, for
+ * {@link com.annomarket.common.ApiObject}s) to the shared readers, which
+ * is cheap.
+ * <p>
+ * Instances are thread-safe. The mappers must not be reconfigured once
+ * the instance is in use, as the cached readers and writer would not
+ * see the changes.
+ *
+ * @author Ian Roberts
+ */
+public class JsonMappers {
+
+  private static class DefaultHolder {
+    static final JsonMappers INSTANCE = new JsonMappers();
+  }
+
+  /**
+   * @return the instance shared by all clients that do not specify
+   *         their own.
+   */
+  public static JsonMappers getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  private final ObjectMapper mapper;
+
+  private final XmlMapper xmlMapper;
+
+  private final ObjectWriter writer;
+
+  private final ConcurrentMap<Type, ObjectReader> readers =
+          new ConcurrentHashMap<Type, ObjectReader>();
+
+  /**
+   * Create an instance with the standard configuration, which ignores
+   * unknown properties in responses.
+   */
+  public JsonMappers() {
+    this(new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES),
+            (XmlMapper)new XmlMapper()
+                    .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES));
+  }
+
+  /**
+   * Create an instance using custom mappers.
+   *
+   * @param mapper the mapper for JSON request and response bodies
+   * @param xmlMapper the mapper for XML error responses
+   */
+  public JsonMappers(ObjectMapper mapper, XmlMapper xmlMapper) {
+    this.mapper = mapper;
+    this.xmlMapper = xmlMapper;
+    this.writer = mapper.writer();
+  }
+
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  public XmlMapper getXmlMapper() {
+    return xmlMapper;
+  }
+
+  /**
+   * @return the writer used to serialize request bodies.
+   */
+  public ObjectWriter getWriter() {
+    return writer;
+  }
+
+  /**
+   * Get the reader for the given type, building and caching it on first
+   * use. Anonymous <code>TypeReference</code> subclasses for the same
+   * type share the same reader.
+   */
+  public ObjectReader readerFor(TypeReference<?> type) {
+    return readerFor(type.getType());
+  }
+
+  /**
+   * Get the reader for the given type, building and caching it on first
+   * use.
+   */
+  public ObjectReader readerFor(Type type) {
+    ObjectReader reader = readers.get(type);
+    if(reader == null) {
+      reader = mapper.reader(mapper.getTypeFactory().constructType(type));
+      ObjectReader existing = readers.putIfAbsent(type, reader);
+      if(existing != null) {
+        reader = existing;
+      }
+    }
+    return reader;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * {@link AsyncHttpTransport} based on non-blocking I/O. A small, fixed
+ * number of I/O threads multiplex all the connections, so hundreds of
+ * requests can be in flight at once without a thread per request.
+ * Connections are pooled and kept alive between requests in the same
+ * way as for {@link PooledHttpTransport}; requests beyond the
+ * per-host connection limit are queued until a connection becomes
+ * free. Requests are subject to the same three timeouts as those of
+ * {@link PooledHttpTransport}, with the same defaults.
+ * <p>
+ * The I/O threads are daemon threads, so an unclosed transport will
+ * not prevent the JVM from exiting.
+ *
+ * @author Ian Roberts
+ */
+public class NioHttpTransport implements AsyncHttpTransport, Closeable {
+
+  private final PoolingNHttpClientConnectionManager connectionManager;
+
+  private final CloseableHttpAsyncClient httpClient;
+
+  private final RequestConfig requestConfig;
+
+  /**
+   * Create a transport with the default pool settings, using one I/O
+   * thread per available processor.
+   */
+  public NioHttpTransport() {
+    this(PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+            PooledHttpTransport.DEFAULT_MAX_CONNECTIONS, Runtime
+                    .getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a transport with specific pool settings.
+   *
+   * @param maxConnectionsPerHost the maximum number of concurrent
+   *          connections to any one host
+   * @param maxConnections the maximum number of connections across all
+   *          hosts
+   * @param ioThreads the number of I/O dispatch threads
+   */
+  public NioHttpTransport(int maxConnectionsPerHost, int maxConnections,
+          int ioThreads) {
+    this(maxConnectionsPerHost, maxConnections, ioThreads,
+            PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            PooledHttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS,
+            PooledHttpTransport.DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Create a transport with specific pool settings and timeouts.
+   *
+   * @param maxConnectionsPerHost the maximum number of concurrent
+   *          connections to any one host
+   * @param maxConnections the maximum number of connections across all
+   *          hosts
+   * @param ioThreads the number of I/O dispatch threads
+   * @param connectTimeoutMillis how long to wait for a new connection
+   *          to be established
+   * @param socketTimeoutMillis how long to wait for more data on an
+   *          open connection
+   * @param connectionRequestTimeoutMillis how long a request waits for
+   *          a connection when all those to its host are in use
+   */
+  public NioHttpTransport(int maxConnectionsPerHost, int maxConnections,
+          int ioThreads, int connectTimeoutMillis, int socketTimeoutMillis,
+          int connectionRequestTimeoutMillis) {
+    requestConfig =
+            PooledHttpTransport.timeouts(connectTimeoutMillis,
+                    socketTimeoutMillis, connectionRequestTimeoutMillis);
+    try {
+      DefaultConnectingIOReactor ioReactor =
+              new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                      .setIoThreadCount(ioThreads).build(),
+                      new DaemonThreadFactory("annomarket-nio-dispatch"));
+      connectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+    } catch(IOReactorException e) {
+      throw new RestClientException("Could not start I/O reactor", e);
+    }
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    connectionManager.setMaxTotal(maxConnections);
+    httpClient =
+            HttpAsyncClients.custom().useSystemProperties()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setThreadFactory(
+                            new DaemonThreadFactory("annomarket-nio-reactor"))
+                    .setRedirectStrategy(new NoRedirectStrategy())
+                    .disableCookieManagement().disableAuthCaching()
+                    .build();
+    httpClient.start();
+  }
+
+  public Future<HttpResponse> execute(HttpUriRequest request,
+          FutureCallback<HttpResponse> callback) {
+    return httpClient.execute(request, callback);
+  }
+
+  /**
+   * Start executing a request whose body and response are handled by
+   * the given producer and consumer, e.g. to stream a large request
+   * body from a file with a {@link FileRangeProducer}.
+   *
+   * @param producer generates the request and its content
+   * @param consumer processes the response
+   * @param callback callback to be notified with the consumer's result,
+   *          may be <code>null</code>
+   * @return a {@link Future} for the consumer's result
+   */
+  public <T> Future<T> execute(HttpAsyncRequestProducer producer,
+          HttpAsyncResponseConsumer<T> consumer, FutureCallback<T> callback) {
+    return httpClient.execute(producer, consumer, callback);
+  }
+
+  public int getConnectTimeoutMillis() {
+    return requestConfig.getConnectTimeout();
+  }
+
+  public int getSocketTimeoutMillis() {
+    return requestConfig.getSocketTimeout();
+  }
+
+  public int getConnectionRequestTimeoutMillis() {
+    return requestConfig.getConnectionRequestTimeout();
+  }
+
+  /**
+   * @return the number of connections currently in use.
+   */
+  public int getLeasedConnections() {
+    return connectionManager.getTotalStats().getLeased();
+  }
+
+  /**
+   * @return the number of requests waiting for a connection to become
+   *         available.
+   */
+  public int getPendingRequests() {
+    return connectionManager.getTotalStats().getPending();
+  }
+
+  /**
+   * Shut down this transport, closing all connections and stopping the
+   * I/O threads. Requests that are still in progress will fail.
+   */
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  /**
+   * Redirects are handled by the {@link RestClient}, not the
+   * transport.
+   */
+  private static class NoRedirectStrategy implements RedirectStrategy {
+    public boolean isRedirected(HttpRequest request, HttpResponse response,
+            HttpContext context) {
+      return false;
+    }
+
+    public HttpUriRequest getRedirect(HttpRequest request,
+            HttpResponse response, HttpContext context) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * {@link HttpTransport} that keeps a bounded pool of persistent
+ * (keep-alive) connections per host, so that a sequence of API calls
+ * to the same server pays the cost of the TCP and TLS handshakes only
+ * once. Pooled connections are closed once they have been idle for
+ * longer than {@link #getMaxIdleMillis() maxIdleMillis} or are older
+ * than the configured time-to-live, whichever comes first.
+ * <p>
+ * Every request is subject to three timeouts: for opening a
+ * connection, for each wait for more data once connected, and for
+ * getting a connection from the pool when the per-host limit has been
+ * reached. A request that exceeds any of them fails with an
+ * {@link IOException} rather than blocking its thread indefinitely.
+ * <p>
+ * A connection can only be returned to the pool once its response has
+ * been read to the end, so callers must always consume or close the
+ * response entity - {@link RestClient} takes care of this for all its
+ * methods except {@link RestClient#requestForStream requestForStream},
+ * where the caller must close the returned stream.
+ * <p>
+ * Instances are thread-safe and are intended to be shared between
+ * many clients - by default all {@link RestClient} instances share a
+ * single transport.
+ *
+ * @author Ian Roberts
+ */
+public class PooledHttpTransport implements HttpTransport, Closeable {
+
+  /**
+   * Default maximum number of connections to keep per host.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+  /**
+   * Default maximum number of connections across all hosts.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+  /**
+   * Default time a connection may sit idle in the pool before it is
+   * closed (30 seconds).
+   */
+  public static final long DEFAULT_MAX_IDLE_MILLIS = 30000L;
+
+  /**
+   * Default maximum lifetime of a pooled connection (5 minutes).
+   */
+  public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 300000L;
+
+  /**
+   * Default time to wait for a connection to be established (30
+   * seconds).
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * Default time to wait for more data on an open connection, including
+   * for the server to start its response (5 minutes, as the online
+   * services can take a while to process a large document).
+   */
+  public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 300000;
+
+  /**
+   * Default time to wait for a connection from the pool when all the
+   * connections to a host are in use (1 minute).
+   */
+  public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 60000;
+
+  /**
+   * Minimum interval between sweeps of the pool for idle and expired
+   * connections.
+   */
+  private static final long EVICTION_INTERVAL_MILLIS = 1000L;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+
+  private final CloseableHttpClient httpClient;
+
+  private final long maxIdleMillis;
+
+  private final RequestConfig requestConfig;
+
+  private final AtomicLong lastEviction = new AtomicLong();
+
+  private final AtomicLong poolHits = new AtomicLong();
+
+  private final AtomicLong poolMisses = new AtomicLong();
+
+  /**
+   * Create a transport with the default pool settings.
+   */
+  public PooledHttpTransport() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS,
+            DEFAULT_MAX_IDLE_MILLIS, DEFAULT_TIME_TO_LIVE_MILLIS);
+  }
+
+  /**
+   * Create a transport with specific pool settings.
+   *
+   * @param maxConnectionsPerHost the maximum number of connections
+   *          (both in use and idle) to any one host. Requests beyond
+   *          this limit will block until a connection is released.
+   * @param maxConnections the maximum number of connections across all
+   *          hosts
+   * @param maxIdleMillis idle connections older than this will be
+   *          closed rather than re-used
+   * @param timeToLiveMillis connections will not be re-used once they
+   *          are older than this, no matter how recently they were
+   *          last used. Zero or negative means no limit.
+   */
+  public PooledHttpTransport(int maxConnectionsPerHost, int maxConnections,
+          long maxIdleMillis, long timeToLiveMillis) {
+    this(maxConnectionsPerHost, maxConnections, maxIdleMillis,
+            timeToLiveMillis, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            DEFAULT_SOCKET_TIMEOUT_MILLIS,
+            DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Create a transport with specific pool settings and timeouts.
+   *
+   * @param maxConnectionsPerHost the maximum number of connections
+   *          (both in use and idle) to any one host
+   * @param maxConnections the maximum number of connections across all
+   *          hosts
+   * @param maxIdleMillis idle connections older than this will be
+   *          closed rather than re-used
+   * @param timeToLiveMillis connections will not be re-used once they
+   *          are older than this. Zero or negative means no limit.
+   * @param connectTimeoutMillis how long to wait for a new connection
+   *          to be established
+   * @param socketTimeoutMillis how long to wait for more data on an
+   *          open connection
+   * @param connectionRequestTimeoutMillis how long a request waits for
+   *          a connection when all those to its host are in use
+   */
+  public PooledHttpTransport(int maxConnectionsPerHost, int maxConnections,
+          long maxIdleMillis, long timeToLiveMillis,
+          int connectTimeoutMillis, int socketTimeoutMillis,
+          int connectionRequestTimeoutMillis) {
+    this.maxIdleMillis = maxIdleMillis;
+    this.requestConfig =
+            timeouts(connectTimeoutMillis, socketTimeoutMillis,
+                    connectionRequestTimeoutMillis);
+    connectionManager =
+            new PoolingHttpClientConnectionManager(timeToLiveMillis,
+                    TimeUnit.MILLISECONDS);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    connectionManager.setMaxTotal(maxConnections);
+    httpClient =
+            HttpClients.custom().useSystemProperties()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setRequestExecutor(new CountingRequestExecutor())
+                    .disableRedirectHandling().disableContentCompression()
+                    .disableCookieManagement().disableAuthCaching()
+                    .disableAutomaticRetries().build();
+  }
+
+  /**
+   * Build the default configuration for requests with the given
+   * timeouts, in milliseconds. Zero means wait indefinitely.
+   */
+  static RequestConfig timeouts(int connectTimeoutMillis,
+          int socketTimeoutMillis, int connectionRequestTimeoutMillis) {
+    return RequestConfig.custom().setConnectTimeout(connectTimeoutMillis)
+            .setSocketTimeout(socketTimeoutMillis)
+            .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+            .build();
+  }
+
+  public CloseableHttpResponse execute(HttpUriRequest request)
+          throws IOException {
+    evictIdleConnections();
+    return httpClient.execute(request);
+  }
+
+  /**
+   * Close any connections that have been idle for longer than the
+   * configured limit or have passed their time-to-live. This is done
+   * lazily as requests are made rather than by a background thread,
+   * and at most once per second.
+   */
+  private void evictIdleConnections() {
+    long now = System.currentTimeMillis();
+    long last = lastEviction.get();
+    if(now - last >= EVICTION_INTERVAL_MILLIS
+            && lastEviction.compareAndSet(last, now)) {
+      connectionManager.closeExpiredConnections();
+      connectionManager.closeIdleConnections(maxIdleMillis,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return the number of requests that were sent over a connection
+   *         re-used from the pool.
+   */
+  public long getPoolHits() {
+    return poolHits.get();
+  }
+
+  /**
+   * @return the number of requests that required a new connection to
+   *         be opened.
+   */
+  public long getPoolMisses() {
+    return poolMisses.get();
+  }
+
+  /**
+   * @return the proportion of requests that were able to re-use a
+   *         pooled connection (between 0 and 1).
+   */
+  public double getPoolHitRatio() {
+    long hits = poolHits.get();
+    long total = hits + poolMisses.get();
+    return total == 0 ? 0.0 : ((double)hits) / total;
+  }
+
+  public long getMaxIdleMillis() {
+    return maxIdleMillis;
+  }
+
+  public int getConnectTimeoutMillis() {
+    return requestConfig.getConnectTimeout();
+  }
+
+  public int getSocketTimeoutMillis() {
+    return requestConfig.getSocketTimeout();
+  }
+
+  public int getConnectionRequestTimeoutMillis() {
+    return requestConfig.getConnectionRequestTimeout();
+  }
+
+  public int getMaxConnectionsPerHost() {
+    return connectionManager.getDefaultMaxPerRoute();
+  }
+
+  public int getMaxConnections() {
+    return connectionManager.getMaxTotal();
+  }
+
+  /**
+   * Shut down this transport, closing all pooled connections.
+   */
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  /**
+   * Request executor that records whether each request is the first to
+   * be sent over its connection (a pool miss) or whether the
+   * connection had already been used for an earlier request (a hit).
+   */
+  private class CountingRequestExecutor extends HttpRequestExecutor {
+    @Override
+    public HttpResponse execute(HttpRequest request,
+            HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+      if(conn.getMetrics().getRequestCount() == 0) {
+        poolMisses.incrementAndGet();
+      } else {
+        poolHits.incrementAndGet();
+      }
+      return super.execute(request, conn, context);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Permits accumulate at a fixed rate up to
+ * a maximum burst size, and each operation must acquire one or more
+ * permits before it proceeds, waiting if necessary until enough have
+ * accumulated. This can be used to limit requests per second (one
+ * permit per request) or bytes per second (one permit per byte).
+ * <p>
+ * A request for more permits than are currently available is granted
+ * immediately once any earlier waiters have been served, but puts the
+ * bucket into debt, so the <em>next</em> caller waits for the debt to
+ * be repaid. This keeps the long-run rate correct even when single
+ * requests are larger than the burst size.
+ * <p>
+ * Instances are thread-safe, and callers are served in roughly the
+ * order in which they arrive.
+ *
+ * @author Ian Roberts
+ */
+public class RateLimiter {
+
+  private final double permitsPerNano;
+
+  private final double maxPermits;
+
+  /**
+   * Permits currently available - negative when callers have reserved
+   * permits that have not yet accumulated.
+   */
+  private double permits;
+
+  private long lastRefill;
+
+  /**
+   * Create a limiter that allows a burst of up to one second's worth of
+   * permits.
+   *
+   * @param permitsPerSecond the sustained rate
+   */
+  public RateLimiter(double permitsPerSecond) {
+    this(permitsPerSecond, permitsPerSecond);
+  }
+
+  /**
+   * Create a limiter.
+   *
+   * @param permitsPerSecond the sustained rate
+   * @param burst the maximum number of permits that may accumulate
+   *          while the limiter is idle, i.e. the largest burst that can
+   *          go through without waiting
+   */
+  public RateLimiter(double permitsPerSecond, double burst) {
+    if(permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("Rate must be positive");
+    }
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.maxPermits = Math.max(1.0, burst);
+    this.permits = maxPermits;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * @return the sustained rate in permits per second.
+   */
+  public double getRate() {
+    return permitsPerNano * TimeUnit.SECONDS.toNanos(1);
+  }
+
+  /**
+   * Acquire a single permit, waiting if necessary.
+   */
+  public void acquire() throws InterruptedException {
+    acquire(1);
+  }
+
+  /**
+   * Acquire the given number of permits, waiting if necessary until
+   * they are available.
+   *
+   * @param count the number of permits required
+   * @throws InterruptedException if interrupted while waiting. The
+   *           permits are still considered to have been used.
+   */
+  public void acquire(long count) throws InterruptedException {
+    long waitNanos = reserve(count);
+    if(waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Acquire the given number of permits only if they are available
+   * immediately.
+   *
+   * @return <code>true</code> if the permits were acquired,
+   *         <code>false</code> otherwise.
+   */
+  public synchronized boolean tryAcquire(long count) {
+    refill(System.nanoTime());
+    if(permits >= count) {
+      permits -= count;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Take the given number of permits from the bucket, returning how
+   * long the caller must wait before they are actually available.
+   */
+  private synchronized long reserve(long count) {
+    refill(System.nanoTime());
+    long waitNanos = (permits >= 0) ? 0 : (long)(-permits / permitsPerNano);
+    permits -= count;
+    return waitNanos;
+  }
+
+  private void refill(long now) {
+    permits =
+            Math.min(maxPermits, permits + (now - lastRefill) * permitsPerNano);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves API URLs that redirect to time-limited download locations,
+ * such as those of job results and bundle files, remembering each
+ * signed target URL until it is close to expiring. The expiry time is
+ * read from the query string of the signed URL ("Expires", or
+ * "X-Amz-Date" plus "X-Amz-Expires"); a URL whose expiry cannot be
+ * determined is only re-used for a short
+ * {@link #setDefaultLifetimeMillis default lifetime}.
+ * <p>
+ * {@link #resolveAll resolveAll} resolves many URLs at once, sending
+ * the requests for those not already cached concurrently over the
+ * client's asynchronous transport rather than making one blocking
+ * round trip per URL. Each {@link RestClient} has its own resolver,
+ * available from {@link RestClient#getRedirectResolver()}.
+ * 
+ * @author Ian Roberts
+ */
+public class RedirectResolver {
+
+  /**
+   * Default for {@link #setExpiryMarginMillis expiryMarginMillis} - a
+   * cached URL is not handed out once it has less than a minute left.
+   */
+  public static final long DEFAULT_EXPIRY_MARGIN_MILLIS = 60000L;
+
+  /**
+   * Default for {@link #setDefaultLifetimeMillis defaultLifetimeMillis}.
+   */
+  public static final long DEFAULT_LIFETIME_MILLIS = 30000L;
+
+  /**
+   * The cache is swept for expired entries whenever it grows past this
+   * size.
+   */
+  private static final int PURGE_THRESHOLD = 1024;
+
+  private final RestClient client;
+
+  private final ConcurrentHashMap<URL, Target> cache =
+          new ConcurrentHashMap<URL, Target>();
+
+  private volatile long expiryMarginMillis = DEFAULT_EXPIRY_MARGIN_MILLIS;
+
+  private volatile long defaultLifetimeMillis = DEFAULT_LIFETIME_MILLIS;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * A resolved target URL and the time after which it should no longer
+   * be used.
+   */
+  private static class Target {
+    final URL url;
+
+    final long usableUntil;
+
+    Target(URL url, long usableUntil) {
+      this.url = url;
+      this.usableUntil = usableUntil;
+    }
+  }
+
+  RedirectResolver(RestClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Set how long before its expiry time a cached URL stops being
+   * handed out, to allow for the time taken to start using it and for
+   * clock differences between this machine and the server.
+   */
+  public void setExpiryMarginMillis(long expiryMarginMillis) {
+    this.expiryMarginMillis = expiryMarginMillis;
+  }
+
+  public long getExpiryMarginMillis() {
+    return expiryMarginMillis;
+  }
+
+  /**
+   * Set how long a target URL whose expiry time cannot be read from the
+   * URL itself may be re-used after it was obtained. The
+   * {@link #setExpiryMarginMillis expiry margin} does not apply to this
+   * lifetime, which should therefore be well within the real validity
+   * of the URLs the server hands out. Zero means such URLs are not
+   * cached at all.
+   */
+  public void setDefaultLifetimeMillis(long defaultLifetimeMillis) {
+    this.defaultLifetimeMillis = defaultLifetimeMillis;
+  }
+
+  public long getDefaultLifetimeMillis() {
+    return defaultLifetimeMillis;
+  }
+
+  /**
+   * @return the number of URLs that were answered from the cache.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of URLs that required a request to the server.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Get the redirect target of a single URL, from the cache if it holds
+   * a target that is not close to expiring, otherwise by
+   * {@link RestClient#getRedirect requesting} a fresh one.
+   * 
+   * @param source the URL to resolve
+   * @return the target URL
+   * @throws RestClientException if the request fails or the response
+   *           is not a redirect
+   */
+  public URL resolve(URL source) {
+    URL target = cached(source);
+    if(target != null) {
+      hits.incrementAndGet();
+      return target;
+    }
+    misses.incrementAndGet();
+    target = client.getRedirect(source);
+    store(source, target);
+    return target;
+  }
+
+  /**
+   * Get the redirect targets of several URLs. Targets that are cached
+   * are returned directly, and the requests for the rest are all sent
+   * at once over the client's asynchronous transport, which runs as
+   * many of them in parallel as its connection pool allows. This method
+   * blocks until every request has completed.
+   * 
+   * @param sources the URLs to resolve
+   * @return a map from each source URL to its target, in the iteration
+   *         order of <code>sources</code>
+   * @throws RestClientException if any of the URLs could not be
+   *           resolved, once all the others have been tried. The
+   *           targets of the others are still cached.
+   */
+  public Map<URL, URL> resolveAll(Collection<URL> sources) {
+    // placeholders keep the targets in the order of the sources
+    Map<URL, URL> targets = new LinkedHashMap<URL, URL>();
+    List<URL> pending = new ArrayList<URL>();
+    for(URL source : sources) {
+      if(targets.containsKey(source)) {
+        continue;
+      }
+      URL target = cached(source);
+      if(target != null) {
+        hits.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
+        pending.add(source);
+      }
+      targets.put(source, target);
+    }
+    if(pending.isEmpty()) {
+      return targets;
+    }
+    List<Future<URL>> futures = new ArrayList<Future<URL>>(pending.size());
+    for(URL source : pending) {
+      futures.add(client.getRedirectAsync(source, null));
+    }
+    List<URL> resolved;
+    try {
+      try {
+        resolved = Futures.getAll(futures, "URLs could not be resolved");
+      } catch(RestClientException e) {
+        // keep the URLs that did resolve for the next attempt
+        for(int i = 0; i < pending.size(); i++) {
+          try {
+            store(pending.get(i), futures.get(i).get());
+          } catch(ExecutionException e2) {
+            // this one failed
+          }
+        }
+        throw e;
+      }
+    } catch(InterruptedException e) {
+      for(Future<URL> f : futures) {
+        f.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new RestClientException("Interrupted while resolving URLs", e);
+    }
+    for(int i = 0; i < pending.size(); i++) {
+      store(pending.get(i), resolved.get(i));
+      targets.put(pending.get(i), resolved.get(i));
+    }
+    return targets;
+  }
+
+  /**
+   * Forget the cached target of a URL, for example because the server
+   * rejected it, so the next request for it fetches a fresh one.
+   */
+  public void invalidate(URL source) {
+    cache.remove(source);
+  }
+
+  /**
+   * Forget all cached targets.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  private URL cached(URL source) {
+    Target t = cache.get(source);
+    if(t == null) {
+      return null;
+    }
+    if(System.currentTimeMillis() >= t.usableUntil) {
+      cache.remove(source, t);
+      return null;
+    }
+    return t.url;
+  }
+
+  private void store(URL source, URL target) {
+    long now = System.currentTimeMillis();
+    long expires = expiryOf(target);
+    long usableUntil =
+            (expires < 0)
+                    ? now + defaultLifetimeMillis
+                    : expires - expiryMarginMillis;
+    if(usableUntil <= now) {
+      return;
+    }
+    cache.put(source, new Target(target, usableUntil));
+    if(cache.size() > PURGE_THRESHOLD) {
+      Iterator<Target> it = cache.values().iterator();
+      while(it.hasNext()) {
+        if(now >= it.next().usableUntil) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Work out when a signed URL expires from its query parameters.
+   * 
+   * @return the expiry time in milliseconds since the epoch, or -1 if
+   *         it cannot be determined.
+   */
+  static long expiryOf(URL url) {
+    String query = url.getQuery();
+    if(query == null) {
+      return -1;
+    }
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    for(String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if(eq > 0) {
+        try {
+          params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                  URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        } catch(UnsupportedEncodingException e) {
+          // can't happen
+        } catch(IllegalArgumentException e) {
+          // badly encoded parameter, ignore it
+        }
+      }
+    }
+    try {
+      String amzDate = params.get("X-Amz-Date");
+      String amzExpires = params.get("X-Amz-Expires");
+      if(amzDate != null && amzExpires != null) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(amzDate).getTime()
+                + Long.parseLong(amzExpires) * 1000L;
+      }
+      String expires = params.get("Expires");
+      if(expires != null) {
+        return Long.parseLong(expires) * 1000L;
+      }
+    } catch(NumberFormatException e) {
+      // fall through
+    } catch(ParseException e) {
+      // fall through
+    }
+    return -1;
+  }
+}
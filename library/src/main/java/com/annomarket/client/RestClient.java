@@ -16,27 +16,47 @@
  */
 package com.annomarket.client;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.lang.reflect.Type;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.bind.DatatypeConverter;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Client responsible for communication with the AnnoMarket API. Handles
@@ -48,16 +68,6 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
  */
 public class RestClient {
 
-  private final ObjectMapper MAPPER = new ObjectMapper().disable(
-          DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
-          .setInjectableValues(
-                  new InjectableValues.Std().addValue(RestClient.class, this));
-
-  private final XmlMapper XML_MAPPER = (XmlMapper)new XmlMapper().disable(
-          DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
-          .setInjectableValues(
-                  new InjectableValues.Std().addValue(RestClient.class, this));
-
   /**
    * The standard base URI for the AnnoMarket API.
    */
@@ -83,6 +93,91 @@ public class RestClient {
    */
   private URL baseUrl;
 
+  /**
+   * The transport used to send requests over the network.
+   */
+  private HttpTransport transport;
+
+  /**
+   * The transport used to send asynchronous requests, or
+   * <code>null</code> to use the shared default.
+   */
+  private AsyncHttpTransport asyncTransport;
+
+  /**
+   * The policy that decides which failed requests are retried.
+   */
+  private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+  private volatile int requestCompressionThreshold = -1;
+
+  private volatile boolean responseCompression = true;
+
+  /**
+   * The Jackson configuration, usually shared with other clients.
+   */
+  private final JsonMappers mappers;
+
+  /**
+   * Values injected into objects parsed by this client - in particular
+   * the client itself, for {@link com.annomarket.common.ApiObject}s.
+   */
+  private final InjectableValues injectables =
+          new InjectableValues.Std().addValue(RestClient.class, this);
+
+  /**
+   * Cache of the time-limited URLs that download links redirect to.
+   */
+  private final RedirectResolver redirectResolver = new RedirectResolver(
+          this);
+
+  /**
+   * Holder for the transport shared by all clients that do not specify
+   * their own, created on first use.
+   */
+  private static class DefaultTransportHolder {
+    static final PooledHttpTransport INSTANCE = new PooledHttpTransport();
+  }
+
+  /**
+   * @return the {@link PooledHttpTransport} that is shared by all
+   *         clients that were not given an explicit transport. Its
+   *         pool statistics reflect the combined traffic of all these
+   *         clients.
+   */
+  public static PooledHttpTransport getDefaultTransport() {
+    return DefaultTransportHolder.INSTANCE;
+  }
+
+  /**
+   * Holder for the asynchronous transport shared by all clients that do
+   * not specify their own. This is separate from
+   * {@link DefaultTransportHolder} so that the I/O threads are only
+   * started if the asynchronous API is actually used.
+   */
+  private static class DefaultAsyncTransportHolder {
+    static final NioHttpTransport INSTANCE = new NioHttpTransport();
+  }
+
+  /**
+   * @return the {@link NioHttpTransport} that is shared by all clients
+   *         that were not given an explicit asynchronous transport.
+   */
+  public static NioHttpTransport getDefaultAsyncTransport() {
+    return DefaultAsyncTransportHolder.INSTANCE;
+  }
+
+  /**
+   * Holder for the timer used to schedule retries of asynchronous
+   * requests, created on first use. The timer thread only re-submits
+   * requests to the transport, it never blocks.
+   */
+  private static class RetrySchedulerHolder {
+    static final ScheduledExecutorService INSTANCE =
+            new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+                    "annomarket-retry"));
+  }
+
   /**
    * Create a client that uses the {@link #DEFAULT_BASE_URL default base
    * URL}.
@@ -103,7 +198,74 @@ public class RestClient {
    * @param apiPassword API key password
    */
   public RestClient(URL url, String apiKeyId, String apiPassword) {
+    this(url, apiKeyId, apiPassword, null);
+  }
+
+  /**
+   * Create a client using a specified base URL and a specific
+   * {@link HttpTransport} (for advanced use only - the default
+   * transport will work for all normal cases).
+   * 
+   * @param url API base URL
+   * @param apiKeyId API key identifier for authentication
+   * @param apiPassword API key password
+   * @param transport the transport used to send requests. If
+   *          <code>null</code>, the {@link #getDefaultTransport() shared
+   *          default transport} will be used.
+   */
+  public RestClient(URL url, String apiKeyId, String apiPassword,
+          HttpTransport transport) {
+    this(url, apiKeyId, apiPassword, transport, null);
+  }
+
+  /**
+   * Create a client using a specified base URL and specific transports
+   * for synchronous and asynchronous requests (for advanced use only -
+   * the default transports will work for all normal cases).
+   * 
+   * @param url API base URL
+   * @param apiKeyId API key identifier for authentication
+   * @param apiPassword API key password
+   * @param transport the transport used to send requests. If
+   *          <code>null</code>, the {@link #getDefaultTransport() shared
+   *          default transport} will be used.
+   * @param asyncTransport the transport used to send asynchronous
+   *          requests. If <code>null</code>, the
+   *          {@link #getDefaultAsyncTransport() shared default} will be
+   *          used.
+   */
+  public RestClient(URL url, String apiKeyId, String apiPassword,
+          HttpTransport transport, AsyncHttpTransport asyncTransport) {
+    this(url, apiKeyId, apiPassword, transport, asyncTransport, null);
+  }
+
+  /**
+   * Create a client using a specified base URL, transports and Jackson
+   * configuration (for advanced use only - the defaults will work for
+   * all normal cases).
+   * 
+   * @param url API base URL
+   * @param apiKeyId API key identifier for authentication
+   * @param apiPassword API key password
+   * @param transport the transport used to send requests. If
+   *          <code>null</code>, the {@link #getDefaultTransport() shared
+   *          default transport} will be used.
+   * @param asyncTransport the transport used to send asynchronous
+   *          requests. If <code>null</code>, the
+   *          {@link #getDefaultAsyncTransport() shared default} will be
+   *          used.
+   * @param mappers the Jackson configuration used to read and write
+   *          message bodies, which may be shared with other clients. If
+   *          <code>null</code>, the {@link JsonMappers#getDefault()
+   *          shared default} will be used.
+   */
+  public RestClient(URL url, String apiKeyId, String apiPassword,
+          HttpTransport transport, AsyncHttpTransport asyncTransport,
+          JsonMappers mappers) {
     baseUrl = url;
+    this.mappers = (mappers == null) ? JsonMappers.getDefault() : mappers;
+    this.asyncTransport = asyncTransport;
+    this.transport = (transport == null) ? getDefaultTransport() : transport;
     try {
       // HTTP header is "Basic base64(username:password)"
       authorizationHeader =
@@ -122,6 +284,103 @@ public class RestClient {
     return baseUrl;
   }
 
+  public HttpTransport getTransport() {
+    return transport;
+  }
+
+  public AsyncHttpTransport getAsyncTransport() {
+    return (asyncTransport == null)
+            ? getDefaultAsyncTransport()
+            : asyncTransport;
+  }
+
+  public JsonMappers getMappers() {
+    return mappers;
+  }
+
+  /**
+   * @return the {@link RedirectResolver} that caches the download URLs
+   *         obtained through this client.
+   */
+  public RedirectResolver getRedirectResolver() {
+    return redirectResolver;
+  }
+
+  /**
+   * Get a reader for the given type that injects this client into any
+   * {@link com.annomarket.common.ApiObject}s it creates, for parsing
+   * JSON obtained by other means than the request methods of this
+   * class (e.g. from a cache or a raw stream).
+   */
+  public ObjectReader readerFor(Type type) {
+    return mappers.readerFor(type).with(injectables);
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Set the policy that determines which failed requests are retried,
+   * and how long to wait between attempts. By default each client has
+   * its own {@link RetryPolicy} with the default settings, which
+   * retries GET, HEAD and DELETE requests but not POSTs.
+   * 
+   * @param retryPolicy the new policy, or <code>null</code> to disable
+   *          retries altogether.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = (retryPolicy == null) ? RetryPolicy.NONE : retryPolicy;
+  }
+
+  /**
+   * Compress request bodies larger than the given size with gzip
+   * (<code>Content-Encoding: gzip</code>). JSON bodies over the
+   * threshold are serialized straight into the compressed stream as
+   * the request is sent, so neither the uncompressed nor the
+   * compressed body is held in memory. Streaming bodies (an
+   * {@link HttpEntity} passed as the request body) are compressed if
+   * their length is unknown or over the threshold.
+   * <p>
+   * Asynchronous requests cannot compress on the transport's I/O
+   * threads, so each compressed asynchronous request holds a background
+   * thread, and a 64KB buffer, while its body is being sent. There can
+   * be as many of these as the asynchronous transport has connections
+   * (50 by default).
+   * <p>
+   * Only enable this for servers that accept compressed requests.
+   * 
+   * @param thresholdBytes bodies of more than this many bytes are
+   *          compressed. Negative (the default) disables compression.
+   */
+  public void setRequestCompressionThreshold(int thresholdBytes) {
+    this.requestCompressionThreshold = thresholdBytes;
+  }
+
+  public int getRequestCompressionThreshold() {
+    return requestCompressionThreshold;
+  }
+
+  /**
+   * Whether to ask the server to compress its responses, by sending
+   * <code>Accept-Encoding: gzip, deflate</code> with every request
+   * that does not specify its own <code>Accept-Encoding</code>. This
+   * is on by default. Compressed responses are decompressed
+   * transparently whichever way they are read, including error
+   * responses and the streams returned by {@link #requestForStream
+   * requestForStream}.
+   * 
+   * @param responseCompression <code>false</code> to request
+   *          uncompressed responses.
+   */
+  public void setResponseCompression(boolean responseCompression) {
+    this.responseCompression = responseCompression;
+  }
+
+  public boolean isResponseCompression() {
+    return responseCompression;
+  }
+
   /**
    * Make an API request and parse the JSON response into a new object.
    * 
@@ -132,7 +391,8 @@ public class RestClient {
    *          response message for this URL
    * @param requestBody the object that should be serialized to JSON as
    *          the request body. If <code>null</code> no request body is
-   *          sent
+   *          sent. An {@link HttpEntity} is sent as it is, so large
+   *          bodies can be streamed rather than built in memory
    * @param extraHeaders any additional HTTP headers, specified as an
    *          alternating sequence of header names and values
    * @return for a successful response, the deserialized response body,
@@ -146,24 +406,28 @@ public class RestClient {
           TypeReference<T> responseType, Object requestBody,
           String... extraHeaders) throws RestClientException {
     try {
-      HttpURLConnection connection =
+      CloseableHttpResponse response =
               sendRequest(target, method, requestBody, extraHeaders);
-      return readResponseOrError(connection, responseType);
+      return readResponseOrError(response, responseType);
     } catch(IOException e) {
       throw new RestClientException(e);
     }
   }
 
   /**
-   * Make an API request and return the raw data from the response as an
-   * InputStream.
+   * Make an API request and return the data from the response as an
+   * InputStream, decompressed if the server compressed it. The caller
+   * <strong>must</strong> close the returned stream when finished with
+   * it, so that the underlying connection can be released back to the
+   * pool.
    * 
    * @param target the URL to request (relative URLs will resolve
    *          against the {@link #getBaseUrl() base URL}).
    * @param method the request method (GET, POST, DELETE, etc.)
    * @param requestBody the object that should be serialized to JSON as
    *          the request body. If <code>null</code> no request body is
-   *          sent
+   *          sent. An {@link HttpEntity} is sent as it is, so large
+   *          bodies can be streamed rather than built in memory
    * @param extraHeaders any additional HTTP headers, specified as an
    *          alternating sequence of header names and values
    * @return for a successful response, the response stream, or
@@ -177,28 +441,35 @@ public class RestClient {
           Object requestBody, String... extraHeaders)
           throws RestClientException {
     try {
-      HttpURLConnection connection =
+      CloseableHttpResponse response =
               sendRequest(target, method, requestBody, extraHeaders);
-      int responseCode = connection.getResponseCode();
-      if(responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+      int responseCode = response.getStatusLine().getStatusCode();
+      if(responseCode == HttpStatus.SC_NO_CONTENT
+              || response.getEntity() == null) {
         // successful response with no content
+        release(response);
         return null;
       } else if(responseCode >= 400) {
-        readError(connection);
+        readError(response);
         return null; // not reachable, readError always throws exception
       } else if(responseCode >= 300) {
         // redirect - all redirects we care about from the AnnoMarket
         // APIs are 303. We have to follow them manually to make
         // authentication work properly.
-        String location = connection.getHeaderField("Location");
+        String location = locationOf(response);
         // consume body
-        InputStream stream = connection.getInputStream();
-        IOUtils.copy(stream, new NullOutputStream());
-        IOUtils.closeQuietly(stream);
+        release(response);
         // follow the redirect
         return requestForStream(location, method, requestBody, extraHeaders);
       } else {
-        return connection.getInputStream();
+        // closing this stream reads any remaining content and releases
+        // the connection
+        try {
+          return openContent(response);
+        } catch(IOException e) {
+          release(response);
+          throw e;
+        }
       }
     } catch(IOException e) {
       throw new RestClientException(e);
@@ -217,7 +488,8 @@ public class RestClient {
    *          response message for this URL
    * @param requestBody the object that should be serialized to JSON as
    *          the request body. If <code>null</code> no request body is
-   *          sent
+   *          sent. An {@link HttpEntity} is sent as it is, so large
+   *          bodies can be streamed rather than built in memory
    * @param extraHeaders any additional HTTP headers, specified as an
    *          alternating sequence of header names and values
    * @throws RestClientException if an exception occurs during
@@ -229,161 +501,405 @@ public class RestClient {
           Object responseObject, Object requestBody, String... extraHeaders)
           throws RestClientException {
     try {
-      HttpURLConnection connection =
+      CloseableHttpResponse response =
               sendRequest(target, method, requestBody, extraHeaders);
-      readResponseOrErrorForUpdate(connection, responseObject);
+      readResponseOrErrorForUpdate(response, responseObject);
     } catch(IOException e) {
       throw new RestClientException(e);
     }
   }
 
   /**
-   * Handles the sending side of an HTTP request, returning a connection
-   * from which the response (or error) can be read.
+   * Handles the sending side of an HTTP request, returning the response
+   * from which the content (or error) can be read.
+   */
+  private CloseableHttpResponse sendRequest(String target, String method,
+          Object requestBody, String... extraHeaders) throws IOException {
+    return execute(buildRequest(target, method, requestBody, extraHeaders));
+  }
+
+  /**
+   * Send a request using the transport, retrying according to the
+   * {@link RetryPolicy} if it fails with an I/O error or a retryable
+   * status code. Responses to failed attempts are released before
+   * retrying; the response to the final attempt is returned to the
+   * caller whatever its status.
+   */
+  private CloseableHttpResponse execute(HttpUriRequest request)
+          throws IOException {
+    RetryPolicy policy = retryPolicy;
+    String method = request.getMethod();
+    String uri = request.getURI().toString();
+    for(int attempt = 1;; attempt++) {
+      policy.attemptStarted();
+      CloseableHttpResponse response;
+      try {
+        response = transport.execute(request);
+      } catch(IOException e) {
+        long delay = policy.retryDelay(method, uri, attempt, 0, null, e);
+        if(delay < 0) {
+          throw e;
+        }
+        pause(delay);
+        continue;
+      }
+      long delay =
+              policy.retryDelay(method, uri, attempt, response
+                      .getStatusLine().getStatusCode(),
+                      retryAfterOf(response), null);
+      if(delay < 0) {
+        return response;
+      }
+      release(response);
+      pause(delay);
+    }
+  }
+
+  /**
+   * Sleep between attempts, converting an interruption into an
+   * <code>InterruptedIOException</code> (and preserving the thread's
+   * interrupted status).
+   */
+  private static void pause(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+
+  /**
+   * Build the HTTP request for the given target, method, body and
+   * headers, adding the authentication header.
    */
-  private HttpURLConnection sendRequest(String target, String method,
+  private HttpUriRequest buildRequest(String target, String method,
           Object requestBody, String... extraHeaders) throws IOException {
     URL requestUrl = new URL(baseUrl, target);
-    HttpURLConnection connection =
-            (HttpURLConnection)requestUrl.openConnection();
-    connection.setRequestMethod(method);
-    connection.setInstanceFollowRedirects(false);
-    connection.setRequestProperty("Authorization", authorizationHeader);
+    RequestBuilder builder = RequestBuilder.create(method);
+    try {
+      builder.setUri(requestUrl.toURI());
+    } catch(URISyntaxException e) {
+      throw new IOException("Invalid request URL " + requestUrl, e);
+    }
+    builder.setHeader("Authorization", authorizationHeader);
     boolean sentAccept = false;
+    boolean sentAcceptEncoding = false;
     if(extraHeaders != null) {
       for(int i = 0; i < extraHeaders.length; i++) {
         if("Accept".equals(extraHeaders[i])) sentAccept = true;
-        connection.setRequestProperty(extraHeaders[i], extraHeaders[++i]);
+        if("Accept-Encoding".equals(extraHeaders[i])) {
+          sentAcceptEncoding = true;
+        }
+        builder.setHeader(extraHeaders[i], extraHeaders[++i]);
       }
     }
-    if(!sentAccept)
-      connection.setRequestProperty("Accept", "application/json");
-    if(requestBody != null) {
-      connection.setDoOutput(true);
-      connection.setRequestProperty("Content-Type", "application/json");
-      OutputStream out = connection.getOutputStream();
-      try {
-        MAPPER.writeValue(out, requestBody);
-      } finally {
-        out.close();
+    if(!sentAccept) builder.setHeader("Accept", "application/json");
+    if(!sentAcceptEncoding && responseCompression) {
+      builder.setHeader("Accept-Encoding", "gzip, deflate");
+    }
+    int threshold = requestCompressionThreshold;
+    if(requestBody instanceof HttpEntity) {
+      HttpEntity entity = (HttpEntity)requestBody;
+      builder.setHeader("Content-Type", entity.getContentType() == null
+              ? "application/json"
+              : entity.getContentType().getValue());
+      if(threshold >= 0 && entity.getContentEncoding() == null
+              && entity.isRepeatable()
+              && (entity.getContentLength() < 0
+                      || entity.getContentLength() > threshold)) {
+        entity = new GzipEntity(entity);
+      }
+      builder.setEntity(entity);
+    } else if(requestBody != null) {
+      builder.setHeader("Content-Type", "application/json");
+      builder.setEntity(jsonEntity(requestBody, threshold));
+    }
+    if(builder.getEntity() != null
+            && builder.getEntity().getContentEncoding() != null) {
+      builder.setHeader(builder.getEntity().getContentEncoding());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Create the entity for a JSON request body, compressed if it is over
+   * the threshold.
+   */
+  private HttpEntity jsonEntity(Object requestBody, int threshold)
+          throws IOException {
+    if(threshold < 0) {
+      return new ByteArrayEntity(mappers.getWriter().writeValueAsBytes(
+              requestBody));
+    }
+    // serialize up to the threshold to find out if the body is small
+    BoundedBuffer buf = new BoundedBuffer(threshold);
+    try {
+      mappers.getWriter().writeValue(buf, requestBody);
+      return new ByteArrayEntity(buf.toByteArray());
+    } catch(BoundedBuffer.Overflow e) {
+      return new GzipEntity(new JsonEntity(mappers.getWriter(), requestBody));
+    }
+  }
+
+  /**
+   * Output stream that collects at most a fixed number of bytes, and
+   * fails with {@link Overflow} if more are written.
+   */
+  private static class BoundedBuffer extends OutputStream {
+    private final int limit;
+
+    private byte[] buf;
+
+    private int count = 0;
+
+    BoundedBuffer(int limit) {
+      this.limit = limit;
+      buf = new byte[Math.min(limit, 8192)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if(count + len > limit) {
+        throw new Overflow();
+      }
+      if(count + len > buf.length) {
+        buf = Arrays.copyOf(buf, Math.min(limit, Math.max(count + len,
+                2 * buf.length)));
       }
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * An <code>IOException</code>, so that Jackson passes it through
+     * rather than wrapping it.
+     */
+    static class Overflow extends IOException {
+      private static final long serialVersionUID = 1L;
     }
-    return connection;
   }
 
   /**
-   * Read a response or error message from the given connection,
+   * Read a response or error message from the given response,
    * handling any 303 redirect responses.
    */
-  private <T> T readResponseOrError(HttpURLConnection connection,
+  private <T> T readResponseOrError(HttpResponse response,
           TypeReference<T> responseType) throws RestClientException {
-    return readResponseOrError(connection, responseType, true);
+    String location = redirectLocation(response);
+    if(location != null) {
+      // redirect - all redirects we care about from the AnnoMarket
+      // APIs are 303. We have to follow them manually to make
+      // authentication work properly. Consume the body before
+      // following the redirect, so the connection can be re-used.
+      release(response);
+      return get(location, responseType);
+    }
+    return readResponse(response, responseType);
   }
 
   /**
-   * Read a response or error message from the given connection,
-   * handling any 303 redirect responses if <code>followRedirects</code>
-   * is true.
+   * Read a response or error message from the given response, without
+   * following redirects. The response is always fully consumed and
+   * released by this method.
    */
-  private <T> T readResponseOrError(HttpURLConnection connection,
-          TypeReference<T> responseType, boolean followRedirects)
-          throws RestClientException {
-    InputStream stream = null;
+  private <T> T readResponse(HttpResponse response,
+          TypeReference<T> responseType) throws RestClientException {
+    int responseCode = response.getStatusLine().getStatusCode();
+    if(responseCode >= 400) {
+      readError(response);
+      return null; // unreachable, as readError always throws exception
+    }
     try {
-      int responseCode = connection.getResponseCode();
-      if(responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+      if(responseCode == HttpStatus.SC_NO_CONTENT
+              || response.getEntity() == null) {
         // successful response with no content
         return null;
       }
-      String encoding = connection.getContentEncoding();
-      if("gzip".equalsIgnoreCase(encoding)) {
-        stream = new GZIPInputStream(connection.getInputStream());
-      } else {
-        stream = connection.getInputStream();
-      }
-
-      if(responseCode < 300 || responseCode >= 400 || !followRedirects) {
-        try {
-          return MAPPER.readValue(stream, responseType);
-        } finally {
-          stream.close();
-        }
-      } else {
-        // redirect - all redirects we care about from the AnnoMarket
-        // APIs are 303. We have to follow them manually to make
-        // authentication work properly.
-        String location = connection.getHeaderField("Location");
-        // consume body
-        IOUtils.copy(stream, new NullOutputStream());
-        IOUtils.closeQuietly(stream);
-        // follow the redirect
-        return get(location, responseType);
+      InputStream stream = openContent(response);
+      try {
+        return mappers.readerFor(responseType).with(injectables)
+                .readValue(stream);
+      } finally {
+        stream.close();
       }
     } catch(Exception e) {
-      readError(connection);
-      return null; // unreachable, as readError always throws exception
+      throw new RestClientException("Error communicating with server", e);
+    } finally {
+      release(response);
     }
   }
 
   /**
-   * Read a response or error message from the given connection, and
+   * Read a response or error message from the given response, and
    * update the state of the given object.
    */
-  private void readResponseOrErrorForUpdate(HttpURLConnection connection,
+  private void readResponseOrErrorForUpdate(HttpResponse response,
           Object responseObject) throws RestClientException {
-    InputStream stream = null;
+    int responseCode = response.getStatusLine().getStatusCode();
+    if(responseCode >= 400) {
+      readError(response);
+      return; // unreachable, as readError always throws exception
+    }
     try {
-      if(connection.getResponseCode() == HttpURLConnection.HTTP_NO_CONTENT) {
+      if(responseCode == HttpStatus.SC_NO_CONTENT
+              || response.getEntity() == null) {
         // successful response with no content
         return;
       }
-      stream = connection.getInputStream();
+      InputStream stream = openContent(response);
       try {
-        MAPPER.readerForUpdating(responseObject).readValue(stream);
+        mappers.readerFor(responseObject.getClass())
+                .withValueToUpdate(responseObject).with(injectables)
+                .readValue(stream);
       } finally {
         stream.close();
       }
     } catch(Exception e) {
-      readError(connection);
+      throw new RestClientException("Error communicating with server", e);
+    } finally {
+      release(response);
     }
   }
 
   /**
-   * Read an error response from the given connection and throw a
-   * suitable {@link RestClientException}. This method always throws an
+   * Read an error response and throw a suitable
+   * {@link RestClientException}. This method always throws an
    * exception, it will never return normally.
    */
-  private void readError(HttpURLConnection connection)
+  private void readError(HttpResponse response)
           throws RestClientException {
-    InputStream stream;
     try {
-      String encoding = connection.getContentEncoding();
-      if("gzip".equalsIgnoreCase(encoding)) {
-        stream = new GZIPInputStream(connection.getInputStream());
-      } else {
-        stream = connection.getInputStream();
+      int responseCode = response.getStatusLine().getStatusCode();
+      JsonNode errorNode = null;
+      HttpEntity entity = response.getEntity();
+      if(entity != null && entity.getContentType() != null) {
+        String contentType = entity.getContentType().getValue();
+        InputStream stream = openContent(response);
+        try {
+          if(contentType.contains("json")) {
+            errorNode = mappers.getMapper().readTree(stream);
+          } else if(contentType.contains("xml")) {
+            errorNode = mappers.getXmlMapper().readTree(stream);
+          }
+        } finally {
+          stream.close();
+        }
       }
 
-      InputStreamReader reader = new InputStreamReader(stream, "UTF-8");
+      throw new RestClientException("Server returned response code "
+              + responseCode, responseCode, errorNode);
+    } catch(RestClientException e2) {
+      throw e2;
+    } catch(Exception e2) {
+      throw new RestClientException("Error communicating with server", e2);
+    } finally {
+      release(response);
+    }
+  }
 
-      try {
-        JsonNode errorNode = null;
-        if(connection.getContentType().contains("json")) {
-          errorNode = MAPPER.readTree(stream);
-        } else if(connection.getContentType().contains("xml")) {
-          errorNode = XML_MAPPER.readTree(stream);
+  /**
+   * Open the content stream of the given response, decompressing it if
+   * the server sent it gzip or deflate compressed.
+   */
+  private InputStream openContent(HttpResponse response) throws IOException {
+    HttpEntity entity = response.getEntity();
+    Header encoding = entity.getContentEncoding();
+    String coding = (encoding == null) ? "" : encoding.getValue().trim();
+    if(entity.getContentLength() == 0) {
+      // nothing to decompress
+      return entity.getContent();
+    } else if("gzip".equalsIgnoreCase(coding)
+            || "x-gzip".equalsIgnoreCase(coding)) {
+      return new GZIPInputStream(entity.getContent());
+    } else if("deflate".equalsIgnoreCase(coding)) {
+      return inflate(entity.getContent());
+    } else {
+      return entity.getContent();
+    }
+  }
+
+  /**
+   * Decompress a deflate-encoded stream. The HTTP spec says this should
+   * be a zlib stream but some servers send raw deflate data, so we
+   * check for a zlib header to decide which it is.
+   */
+  private static InputStream inflate(InputStream in) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(in);
+    buffered.mark(2);
+    int cmf = buffered.read();
+    int flg = buffered.read();
+    buffered.reset();
+    boolean zlib =
+            cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8
+                    && ((cmf << 8) | flg) % 31 == 0;
+    final Inflater inflater = new Inflater(!zlib);
+    return new InflaterInputStream(buffered, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
         }
+      }
+    };
+  }
 
-        throw new RestClientException("Server returned response code "
-                + connection.getResponseCode(), errorNode);
+  /**
+   * If the given response is a redirect, return the target location,
+   * otherwise return <code>null</code>.
+   */
+  private String redirectLocation(HttpResponse response) {
+    int responseCode = response.getStatusLine().getStatusCode();
+    if(responseCode >= 300 && responseCode < 400) {
+      return locationOf(response);
+    } else {
+      return null;
+    }
+  }
 
-      } finally {
-        reader.close();
+  /**
+   * Extract the value of the "Location" header from a redirect
+   * response.
+   */
+  private String locationOf(HttpResponse response) {
+    Header location = response.getFirstHeader("Location");
+    return (location == null) ? null : location.getValue();
+  }
+
+  /**
+   * Extract the value of the "Retry-After" header, if any.
+   */
+  private String retryAfterOf(HttpResponse response) {
+    Header retryAfter = response.getFirstHeader("Retry-After");
+    return (retryAfter == null) ? null : retryAfter.getValue();
+  }
+
+  /**
+   * Release the given response, reading any remaining content so that
+   * the connection can be returned to the pool and re-used. It is safe
+   * to call this method more than once for the same response.
+   */
+  private void release(HttpResponse response) {
+    try {
+      EntityUtils.consume(response.getEntity());
+    } catch(IOException e) {
+      // connection can't be re-used, closing the response below will
+      // discard it
+    } finally {
+      if(response instanceof Closeable) {
+        IOUtils.closeQuietly((Closeable)response);
       }
-    } catch(RestClientException e2) {
-      throw e2;
-    } catch(Exception e2) {
-      throw new RestClientException("Error communicating with server", e2);
     }
   }
 
@@ -500,25 +1016,409 @@ public class RestClient {
    */
   public URL getRedirect(URL source) throws RestClientException {
     try {
-      HttpURLConnection connection = (HttpURLConnection)source.openConnection();
-      connection.setRequestMethod("GET");
-      connection.setRequestProperty("Authorization", authorizationHeader);
-      connection.setRequestProperty("Accept", "application/json");
-      connection.setInstanceFollowRedirects(false);
-      int responseCode = connection.getResponseCode();
-      // make sure we read any response content
-      readResponseOrError(connection, new TypeReference<JsonNode>() {
-      }, false);
-      if(responseCode >= 300 && responseCode < 400) {
-        // it was a redirect
-        String redirectUrl = connection.getHeaderField("Location");
-        return new URL(redirectUrl);
-      } else {
-        throw new RestClientException("Expected redirect but got "
-                + responseCode);
+      HttpGet request = new HttpGet(source.toURI());
+      request.setHeader("Authorization", authorizationHeader);
+      request.setHeader("Accept", "application/json");
+      CloseableHttpResponse response = execute(request);
+      try {
+        int responseCode = response.getStatusLine().getStatusCode();
+        if(responseCode >= 400) {
+          readError(response);
+        }
+        if(responseCode >= 300 && responseCode < 400) {
+          // it was a redirect
+          return new URL(source, locationOf(response));
+        } else {
+          throw new RestClientException("Expected redirect but got "
+                  + responseCode);
+        }
+      } finally {
+        // make sure we read any response content
+        release(response);
       }
     } catch(IOException e) {
       throw new RestClientException(e);
+    } catch(URISyntaxException e) {
+      throw new RestClientException(e);
+    }
+  }
+
+  /**
+   * Perform an HTTP GET request on a URL whose response is expected to
+   * be a 3xx redirection without blocking the calling thread. This is
+   * the asynchronous equivalent of {@link #getRedirect getRedirect}.
+   * 
+   * @param source the URL to request (relative URLs will resolve
+   *          against the {@link #getBaseUrl() base URL}).
+   * @param callback callback to be notified with the target URL, or
+   *          with a {@link RestClientException} if the request fails or
+   *          the response was not a redirect. May be <code>null</code>.
+   *          Callbacks are run on the transport's I/O threads and must
+   *          not block.
+   * @return a {@link Future} for the target URL.
+   */
+  public Future<URL> getRedirectAsync(final URL source,
+          FutureCallback<URL> callback) {
+    AsyncCall<URL> call = new AsyncCall<URL>(callback);
+    HttpGet request;
+    try {
+      request = new HttpGet(source.toURI());
+    } catch(URISyntaxException e) {
+      call.failed(new RestClientException(e));
+      return call;
+    }
+    request.setHeader("Authorization", authorizationHeader);
+    request.setHeader("Accept", "application/json");
+    executeAsync(request, call, new AsyncResponseHandler<URL>(call) {
+      @Override
+      protected URL handle(HttpResponse response) {
+        try {
+          int responseCode = response.getStatusLine().getStatusCode();
+          if(responseCode >= 400) {
+            readError(response);
+          }
+          String location = redirectLocation(response);
+          if(location == null) {
+            throw new RestClientException("Expected redirect but got "
+                    + responseCode);
+          }
+          return new URL(source, location);
+        } catch(MalformedURLException e) {
+          throw new RestClientException(e);
+        } finally {
+          release(response);
+        }
+      }
+    });
+    return call;
+  }
+
+  /**
+   * Make an API request without blocking the calling thread, parsing
+   * the JSON response into a new object when it arrives. This is the
+   * asynchronous equivalent of {@link #request request}.
+   * 
+   * @param target the URL to request (relative URLs will resolve
+   *          against the {@link #getBaseUrl() base URL}).
+   * @param method the request method (GET, POST, DELETE, etc.)
+   * @param responseType the Java type corresponding to a successful
+   *          response message for this URL
+   * @param requestBody the object that should be serialized to JSON as
+   *          the request body. If <code>null</code> no request body is
+   *          sent. An {@link HttpEntity} is sent as it is, so large
+   *          bodies can be streamed rather than built in memory
+   * @param callback callback to be notified with the deserialized
+   *          response body, or with a {@link RestClientException} if
+   *          the request fails. May be <code>null</code>. Callbacks are
+   *          run on the transport's I/O threads and must not block.
+   * @param extraHeaders any additional HTTP headers, specified as an
+   *          alternating sequence of header names and values
+   * @return a {@link Future} for the deserialized response body. If the
+   *         request fails, <code>get</code> will throw an
+   *         <code>ExecutionException</code> whose cause is a
+   *         {@link RestClientException}.
+   */
+  public <T> Future<T> requestAsync(String target, String method,
+          final TypeReference<T> responseType, Object requestBody,
+          FutureCallback<T> callback, String... extraHeaders) {
+    final AsyncCall<T> call = new AsyncCall<T>(callback);
+    HttpUriRequest request;
+    try {
+      request = buildRequest(target, method, requestBody, extraHeaders);
+    } catch(IOException e) {
+      call.failed(new RestClientException(e));
+      return call;
+    }
+    executeAsync(request, call, new AsyncResponseHandler<T>(call) {
+      @Override
+      protected T handle(HttpResponse response) {
+        String location = redirectLocation(response);
+        if(location == null) {
+          return readResponse(response, responseType);
+        }
+        // follow the redirect manually, as for the synchronous case
+        release(response);
+        call.inner =
+                getAsync(location, responseType, new FutureCompleter<T>(call));
+        return null;
+      }
+    });
+    return call;
+  }
+
+  /**
+   * Make an API request without blocking the calling thread, using the
+   * JSON response to update the state of an existing object when it
+   * arrives. This is the asynchronous equivalent of
+   * {@link #requestForUpdate requestForUpdate}.
+   * 
+   * @param target the URL to request (relative URLs will resolve
+   *          against the {@link #getBaseUrl() base URL}).
+   * @param method the request method (GET, POST, DELETE, etc.)
+   * @param responseObject the Java object to update from a successful
+   *          response message for this URL
+   * @param requestBody the object that should be serialized to JSON as
+   *          the request body. If <code>null</code> no request body is
+   *          sent. An {@link HttpEntity} is sent as it is, so large
+   *          bodies can be streamed rather than built in memory
+   * @param callback callback to be notified with the updated object
+   *          once the response has been processed. May be
+   *          <code>null</code>.
+   * @param extraHeaders any additional HTTP headers, specified as an
+   *          alternating sequence of header names and values
+   * @return a {@link Future} that completes with
+   *         <code>responseObject</code> once it has been updated.
+   */
+  public <T> Future<T> requestForUpdateAsync(String target, String method,
+          final T responseObject, Object requestBody,
+          FutureCallback<T> callback, String... extraHeaders) {
+    AsyncCall<T> call = new AsyncCall<T>(callback);
+    HttpUriRequest request;
+    try {
+      request = buildRequest(target, method, requestBody, extraHeaders);
+    } catch(IOException e) {
+      call.failed(new RestClientException(e));
+      return call;
+    }
+    executeAsync(request, call, new AsyncResponseHandler<T>(call) {
+      @Override
+      protected T handle(HttpResponse response) {
+        readResponseOrErrorForUpdate(response, responseObject);
+        return responseObject;
+      }
+    });
+    return call;
+  }
+
+  /**
+   * Perform an HTTP GET request without blocking, parsing the JSON
+   * response to create a new object.
+   * 
+   * @see #requestAsync
+   */
+  public <T> Future<T> getAsync(String target, TypeReference<T> responseType,
+          FutureCallback<T> callback) {
+    return requestAsync(target, "GET", responseType, null, callback);
+  }
+
+  /**
+   * Perform an HTTP GET request without blocking, parsing the JSON
+   * response to update the state of an existing object.
+   * 
+   * @see #requestForUpdateAsync
+   */
+  public <T> Future<T> getForUpdateAsync(String target, T responseObject,
+          FutureCallback<T> callback) {
+    return requestForUpdateAsync(target, "GET", responseObject, null,
+            callback);
+  }
+
+  /**
+   * Perform an HTTP POST request without blocking, parsing the JSON
+   * response to create a new object.
+   * 
+   * @see #requestAsync
+   */
+  public <T> Future<T> postAsync(String target,
+          TypeReference<T> responseType, Object requestBody,
+          FutureCallback<T> callback) {
+    return requestAsync(target, "POST", responseType, requestBody, callback);
+  }
+
+  /**
+   * Send a request using the asynchronous transport, retrying according
+   * to the {@link RetryPolicy} in the same way as the synchronous
+   * {@link #execute execute}. Retries are scheduled on a timer rather
+   * than blocking an I/O thread.
+   */
+  private void executeAsync(HttpUriRequest request, AsyncCall<?> call,
+          FutureCallback<HttpResponse> handler) {
+    RetryPolicy policy = retryPolicy;
+    policy.attemptStarted();
+    call.inner =
+            getAsyncTransport().execute(request,
+                    new RetryingCallback(request, call, handler, policy, 1));
+  }
+
+  /**
+   * Give a request that is about to be retried asynchronously its own
+   * copy of the entity if the body is compressed, see
+   * {@link GzipEntity#copy}.
+   */
+  private static void renewEntity(HttpUriRequest request) {
+    if(request instanceof HttpEntityEnclosingRequest) {
+      HttpEntityEnclosingRequest r = (HttpEntityEnclosingRequest)request;
+      if(r.getEntity() instanceof GzipEntity) {
+        r.setEntity(((GzipEntity)r.getEntity()).copy());
+      }
+    }
+  }
+
+  /**
+   * Callback for one attempt of an asynchronous request, which either
+   * passes the outcome on to the real handler or schedules another
+   * attempt.
+   */
+  private class RetryingCallback implements FutureCallback<HttpResponse> {
+    private final HttpUriRequest request;
+
+    private final AsyncCall<?> call;
+
+    private final FutureCallback<HttpResponse> handler;
+
+    private final RetryPolicy policy;
+
+    private final int attempt;
+
+    RetryingCallback(HttpUriRequest request, AsyncCall<?> call,
+            FutureCallback<HttpResponse> handler, RetryPolicy policy,
+            int attempt) {
+      this.request = request;
+      this.call = call;
+      this.handler = handler;
+      this.policy = policy;
+      this.attempt = attempt;
+    }
+
+    public void completed(HttpResponse response) {
+      long delay =
+              policy.retryDelay(request.getMethod(), request.getURI()
+                      .toString(), attempt, response.getStatusLine()
+                      .getStatusCode(), retryAfterOf(response), null);
+      if(delay < 0) {
+        handler.completed(response);
+      } else {
+        release(response);
+        scheduleRetry(delay);
+      }
+    }
+
+    public void failed(Exception ex) {
+      long delay =
+              policy.retryDelay(request.getMethod(), request.getURI()
+                      .toString(), attempt, 0, null, ex);
+      if(delay < 0) {
+        handler.failed(ex);
+      } else {
+        scheduleRetry(delay);
+      }
+    }
+
+    public void cancelled() {
+      handler.cancelled();
+    }
+
+    private void scheduleRetry(long delay) {
+      try {
+        RetrySchedulerHolder.INSTANCE.schedule(new Runnable() {
+          public void run() {
+            if(call.isDone()) {
+              // cancelled while we were waiting
+              return;
+            }
+            policy.attemptStarted();
+            renewEntity(request);
+            call.inner =
+                    getAsyncTransport().execute(request,
+                            new RetryingCallback(request, call, handler,
+                                    policy, attempt + 1));
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      } catch(RuntimeException e) {
+        handler.failed(e);
+      }
+    }
+  }
+
+  /**
+   * Future for an asynchronous call. Cancelling it cancels the HTTP
+   * exchange that is currently in progress.
+   */
+  private static class AsyncCall<T> extends BasicFuture<T> {
+    volatile Future<?> inner;
+
+    AsyncCall(FutureCallback<T> callback) {
+      super(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      Future<?> f = inner;
+      if(f != null) {
+        f.cancel(mayInterruptIfRunning);
+      }
+      return super.cancel(mayInterruptIfRunning);
+    }
+  }
+
+  /**
+   * Callback that converts the raw HTTP response into the result of an
+   * {@link AsyncCall}. If {@link #handle} returns <code>null</code>
+   * for a redirect, it is responsible for arranging for the call to be
+   * completed later.
+   */
+  private abstract class AsyncResponseHandler<T> implements
+                                                 FutureCallback<HttpResponse> {
+    private final AsyncCall<T> call;
+
+    AsyncResponseHandler(AsyncCall<T> call) {
+      this.call = call;
+    }
+
+    protected abstract T handle(HttpResponse response);
+
+    public void completed(HttpResponse response) {
+      boolean redirect = (redirectLocation(response) != null);
+      T result;
+      try {
+        result = handle(response);
+      } catch(RestClientException e) {
+        call.failed(e);
+        return;
+      } catch(RuntimeException e) {
+        // anything else must still complete the call, and must not
+        // escape onto the I/O reactor thread
+        release(response);
+        call.failed(new RestClientException(e));
+        return;
+      }
+      if(!redirect || result != null) {
+        call.completed(result);
+      }
+    }
+
+    public void failed(Exception ex) {
+      call.failed(ex instanceof RestClientException
+              ? ex
+              : new RestClientException(ex));
+    }
+
+    public void cancelled() {
+      call.cancel(true);
+    }
+  }
+
+  /**
+   * Callback that passes the outcome of a follow-on request (after a
+   * redirect) through to the original call.
+   */
+  private static class FutureCompleter<T> implements FutureCallback<T> {
+    private final BasicFuture<T> target;
+
+    FutureCompleter(BasicFuture<T> target) {
+      this.target = target;
+    }
+
+    public void completed(T result) {
+      target.completed(result);
+    }
+
+    public void failed(Exception ex) {
+      target.failed(ex);
+    }
+
+    public void cancelled() {
+      target.cancel(true);
     }
   }
 }
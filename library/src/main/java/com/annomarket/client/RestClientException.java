@@ -36,6 +36,11 @@ public class RestClientException extends RuntimeException {
    */
   private JsonNode response;
 
+  /**
+   * The HTTP status code of the error response, if applicable.
+   */
+  private int statusCode;
+
   public RestClientException() {
   }
 
@@ -56,6 +61,12 @@ public class RestClientException extends RuntimeException {
     this.response = response;
   }
 
+  public RestClientException(String message, int statusCode,
+          JsonNode response) {
+    this(message, response);
+    this.statusCode = statusCode;
+  }
+
   /**
    * If this exception resulted from a 4xx or 5xx error response from
    * the server, this method provides access to the response body.
@@ -69,4 +80,15 @@ public class RestClientException extends RuntimeException {
     return response;
   }
 
+  /**
+   * If this exception resulted from a 4xx or 5xx error response from
+   * the server, this method returns the HTTP status code.
+   * 
+   * @return the status code, or 0 if this exception does not represent
+   *         an error response from the server.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+/**
+ * Listener notified by a {@link RetryPolicy} each time a failed
+ * request is about to be retried, e.g. to log or record metrics about
+ * transient failures.
+ *
+ * @author Ian Roberts
+ */
+public interface RetryListener {
+
+  /**
+   * Called when a request has failed with a retryable error and is
+   * about to be retried. This may be called on an I/O thread, so
+   * implementations must not block.
+   *
+   * @param method the request method
+   * @param uri the request URI
+   * @param attempt the number of the attempt that failed (1 for the
+   *          first)
+   * @param statusCode the HTTP status code of the failed attempt, or 0
+   *          if it failed with an exception
+   * @param failure the exception that caused the failure, or
+   *          <code>null</code> if the server returned an error status
+   * @param delayMillis how long the client will wait before the next
+   *          attempt
+   */
+  public void retrying(String method, String uri, int attempt,
+          int statusCode, Exception failure, long delayMillis);
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Policy controlling how {@link RestClient} retries requests that fail
+ * with a transient error - an <code>IOException</code> or one of the
+ * {@link #setRetryableStatusCodes retryable status codes} (by default
+ * 429, 502, 503 and 504).
+ * <p>
+ * The delay before each retry grows exponentially with the number of
+ * attempts so far, up to a maximum, and is randomized ("full jitter")
+ * so that many clients that failed at the same moment do not all retry
+ * at the same moment too. If the server sends a
+ * <code>Retry-After</code> header, the client waits at least that long
+ * before retrying, or gives up if the requested delay is longer than
+ * the maximum.
+ * <p>
+ * Only GET, HEAD and DELETE requests are retried by default, as they
+ * are safe to repeat. Retries for POST requests must be enabled
+ * explicitly with {@link #setRetryPost(boolean)}, and should only be
+ * used where repeating the request is harmless (e.g. online annotation
+ * requests).
+ * <p>
+ * A policy keeps counters of the attempts made by all the clients that
+ * use it, and can notify a {@link RetryListener} about each retry.
+ *
+ * @author Ian Roberts
+ */
+public class RetryPolicy {
+
+  /**
+   * Policy that never retries anything.
+   */
+  public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+  /**
+   * Default maximum number of attempts (including the first).
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+  /**
+   * Default base delay before the first retry.
+   */
+  public static final long DEFAULT_BASE_DELAY_MILLIS = 500L;
+
+  /**
+   * Default upper limit on the delay between attempts.
+   */
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 30000L;
+
+  private final int maxAttempts;
+
+  private final long baseDelayMillis;
+
+  private final long maxDelayMillis;
+
+  private volatile boolean retryPost = false;
+
+  private volatile Set<Integer> retryableStatusCodes;
+
+  private volatile RetryListener listener;
+
+  private final AtomicLong attempts = new AtomicLong();
+
+  private final AtomicLong retries = new AtomicLong();
+
+  private final AtomicLong exhausted = new AtomicLong();
+
+  /**
+   * Create a policy with the default settings.
+   */
+  public RetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+            DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  /**
+   * Create a policy with specific settings.
+   *
+   * @param maxAttempts the maximum number of times a request will be
+   *          attempted, including the first attempt. 1 means never
+   *          retry.
+   * @param baseDelayMillis the base delay - the maximum delay before
+   *          the <em>n</em>th retry is
+   *          <code>baseDelayMillis * 2<sup>n-1</sup></code>, and the
+   *          actual delay is chosen at random between zero and this
+   *          maximum.
+   * @param maxDelayMillis upper limit on the delay before any retry
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis,
+          long maxDelayMillis) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    setRetryableStatusCodes(429, 502, 503, 504);
+  }
+
+  /**
+   * Should POST requests be retried as well as GET, HEAD and DELETE?
+   * Default is <code>false</code>.
+   */
+  public void setRetryPost(boolean retryPost) {
+    this.retryPost = retryPost;
+  }
+
+  public boolean isRetryPost() {
+    return retryPost;
+  }
+
+  /**
+   * Set the HTTP status codes that indicate a transient failure that
+   * is worth retrying.
+   */
+  public void setRetryableStatusCodes(int... codes) {
+    Set<Integer> codeSet = new HashSet<Integer>();
+    for(int c : codes) {
+      codeSet.add(c);
+    }
+    this.retryableStatusCodes = codeSet;
+  }
+
+  /**
+   * Set a listener to be notified about every retry. May be
+   * <code>null</code>.
+   */
+  public void setListener(RetryListener listener) {
+    this.listener = listener;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getBaseDelayMillis() {
+    return baseDelayMillis;
+  }
+
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  /**
+   * @return total number of requests attempted under this policy,
+   *         including retries.
+   */
+  public long getAttempts() {
+    return attempts.get();
+  }
+
+  /**
+   * @return number of attempts that were retries of an earlier failed
+   *         attempt.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return number of requests that still failed with a retryable
+   *         error after the maximum number of attempts.
+   */
+  public long getRetriesExhausted() {
+    return exhausted.get();
+  }
+
+  /**
+   * Does this policy apply to requests with the given method?
+   */
+  public boolean appliesTo(String method) {
+    return maxAttempts > 1
+            && ("GET".equals(method) || "HEAD".equals(method)
+                    || "DELETE".equals(method) || (retryPost && "POST"
+                    .equals(method)));
+  }
+
+  /**
+   * Is the given status code one that should be retried?
+   */
+  public boolean isRetryableStatus(int statusCode) {
+    return retryableStatusCodes.contains(statusCode);
+  }
+
+  /**
+   * Is the given exception one that should be retried? Unknown hosts
+   * and SSL failures are assumed to be permanent, other I/O errors are
+   * assumed to be transient.
+   */
+  public boolean isRetryableException(Exception e) {
+    return e instanceof IOException && !(e instanceof UnknownHostException)
+            && !(e instanceof SSLException);
+  }
+
+  /**
+   * Record that an attempt is about to be made.
+   */
+  void attemptStarted() {
+    attempts.incrementAndGet();
+  }
+
+  /**
+   * Decide whether to retry after a failed attempt, and if so how long
+   * to wait first.
+   *
+   * @param method the request method
+   * @param uri the request URI (for the listener)
+   * @param attempt the number of the attempt that failed (1 for the
+   *          first)
+   * @param statusCode the response status code, or 0 if the attempt
+   *          failed with an exception
+   * @param retryAfter the value of the <code>Retry-After</code> response
+   *          header, if any
+   * @param failure the exception, if the attempt failed with an
+   *          exception
+   * @return the delay in milliseconds before the next attempt, or -1 if
+   *         the request should not be retried
+   */
+  long retryDelay(String method, String uri, int attempt, int statusCode,
+          String retryAfter, Exception failure) {
+    boolean retryable =
+            appliesTo(method)
+                    && (failure == null
+                            ? isRetryableStatus(statusCode)
+                            : isRetryableException(failure));
+    if(!retryable) {
+      return -1;
+    }
+    if(attempt >= maxAttempts) {
+      exhausted.incrementAndGet();
+      return -1;
+    }
+    long delay = backoff(attempt);
+    long serverDelay = parseRetryAfter(retryAfter);
+    if(serverDelay > maxDelayMillis) {
+      // the server wants us to wait longer than we are prepared to
+      exhausted.incrementAndGet();
+      return -1;
+    }
+    delay = Math.max(delay, serverDelay);
+    retries.incrementAndGet();
+    RetryListener l = listener;
+    if(l != null) {
+      l.retrying(method, uri, attempt, statusCode, failure, delay);
+    }
+    return delay;
+  }
+
+  private long backoff(int attempt) {
+    return backoff(attempt, baseDelayMillis, maxDelayMillis);
+  }
+
+  /**
+   * Exponential backoff with full jitter - a random delay between zero
+   * and <code>min(maxDelay, baseDelay * 2^(attempt-1))</code>. This is
+   * the delay used by the policy itself, and is available for code
+   * that retries operations outside {@link RestClient}, such as file
+   * transfers.
+   *
+   * @param attempt the number of the attempt that failed (1 for the
+   *          first)
+   * @param baseDelayMillis the ceiling for the delay after the first
+   *          attempt
+   * @param maxDelayMillis upper limit on the delay
+   * @return the delay in milliseconds before the next attempt
+   */
+  public static long backoff(int attempt, long baseDelayMillis,
+          long maxDelayMillis) {
+    long ceiling = baseDelayMillis << Math.min(Math.max(attempt - 1, 0), 30);
+    if(ceiling <= 0 || ceiling > maxDelayMillis) {
+      ceiling = maxDelayMillis;
+    }
+    if(ceiling <= 0) {
+      return 0;
+    }
+    return (long)(ThreadLocalRandom.current().nextDouble() * ceiling);
+  }
+
+  /**
+   * Parse a <code>Retry-After</code> header, which may be either a
+   * number of seconds or an HTTP date.
+   *
+   * @return the requested delay in milliseconds, or 0 if there is no
+   *         (valid) header.
+   */
+  static long parseRetryAfter(String retryAfter) {
+    if(retryAfter == null) {
+      return 0;
+    }
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000L);
+    } catch(NumberFormatException e) {
+      Date date = DateUtils.parseDate(retryAfter);
+      if(date == null) {
+        return 0;
+      }
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.client;
+
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Callback that receives the result of one asynchronous operation and
+ * uses it to complete a second {@link BasicFuture}, converting the
+ * result (and optionally any failure) along the way. This is how the
+ * asynchronous API methods post-process the objects parsed by
+ * {@link RestClient}. Once the source operation has been started, pass
+ * its future to {@link #setSource} so that cancelling the converted
+ * future also cancels the source operation.
+ *
+ * @param <S> the type of the source operation's result
+ * @param <T> the type of the converted result
+ * @author Ian Roberts
+ */
+public abstract class TransformingCallback<S, T> implements
+                                                  FutureCallback<S> {
+
+  private final BasicFuture<T> future;
+
+  private volatile Future<?> source;
+
+  /**
+   * @param callback the caller's callback, to be notified with the
+   *          converted result. May be <code>null</code>.
+   */
+  public TransformingCallback(FutureCallback<T> callback) {
+    this.future = new BasicFuture<T>(callback) {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        if(!super.cancel(mayInterruptIfRunning)) {
+          return false;
+        }
+        Future<?> f = source;
+        if(f != null) {
+          f.cancel(mayInterruptIfRunning);
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Set the future of the source operation, which is cancelled when
+   * the converted future is.
+   */
+  public void setSource(Future<?> source) {
+    this.source = source;
+  }
+
+  /**
+   * @return the future that will be completed with the converted
+   *         result.
+   */
+  public BasicFuture<T> getFuture() {
+    return future;
+  }
+
+  /**
+   * Convert the result of the source operation.
+   *
+   * @param source the source result
+   * @return the converted result
+   * @throws Exception if the conversion fails, in which case the
+   *           exception is passed to {@link #transformFailure}
+   */
+  protected abstract T transform(S source) throws Exception;
+
+  /**
+   * Convert an exception from the source operation (or from
+   * {@link #transform}) before it is passed on. The default
+   * implementation returns the exception unchanged.
+   */
+  protected Exception transformFailure(Exception e) {
+    return e;
+  }
+
+  public void completed(S result) {
+    T converted;
+    try {
+      converted = transform(result);
+    } catch(Exception e) {
+      future.failed(transformFailure(e));
+      return;
+    }
+    future.completed(converted);
+  }
+
+  public void failed(Exception ex) {
+    future.failed(transformFailure(ex));
+  }
+
+  public void cancelled() {
+    future.cancel(true);
+  }
+}
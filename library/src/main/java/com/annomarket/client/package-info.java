@@ -1,5 +1,6 @@
 /**
- * Generic REST client implementation based on <code>HttpURLConnection</code>.
+ * Generic REST client implementation based on Apache HttpClient, with
+ * pooled keep-alive connections.
  */
 package com.annomarket.client;
 
@@ -18,6 +18,7 @@ package com.annomarket.common;
 
 import com.annomarket.client.RestClient;
 import com.fasterxml.jackson.annotation.JacksonInject;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -35,9 +36,11 @@ public class ApiObject {
   /**
    * Called by Jackson at parse time - you should only need to call this
    * method explicitly if you construct an API object manually rather
-   * than by parsing JSON.
+   * than by parsing JSON. The client is only ever injected, never read
+   * from the JSON itself.
    */
   @JacksonInject
+  @JsonIgnore
   public void setClient(RestClient client) {
     this.client = client;
   }
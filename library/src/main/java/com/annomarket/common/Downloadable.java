@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.common;
+
+import java.net.URL;
+
+/**
+ * A file held by the API that can be downloaded, such as a job result
+ * or a file in a data bundle.
+ * 
+ * @author Ian Roberts
+ */
+public interface Downloadable {
+
+  /**
+   * @return the name of the file, suitable for use as a local file
+   *         name.
+   */
+  public String fileName();
+
+  /**
+   * Get a time-limited URL from which the file can be downloaded. The
+   * URL may be one handed out earlier that is not yet close to
+   * expiring.
+   * 
+   * @return downloadable URL.
+   */
+  public URL urlToDownload();
+
+  /**
+   * Forget any URL handed out earlier by {@link #urlToDownload()}, for
+   * example because a transfer from it failed, so that the next call
+   * generates a fresh one.
+   */
+  public void invalidate();
+
+}
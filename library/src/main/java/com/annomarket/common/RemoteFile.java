@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.common;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * Common superclass for files held by the API, such as job results and
+ * bundle files, whose URL redirects to a time-limited download
+ * location.
+ * 
+ * @author Ian Roberts
+ */
+public abstract class RemoteFile extends ApiObject implements Downloadable {
+
+  public URL url;
+
+  protected RemoteFile(URL url) {
+    this.url = url;
+  }
+
+  /**
+   * @return the file name, which is the last segment of the URL path.
+   */
+  public String fileName() {
+    String path;
+    try {
+      path = url.toURI().getPath();
+    } catch(URISyntaxException e) {
+      path = url.getPath();
+    }
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * Get a URL from which the file can be downloaded. This URL is
+   * time-limited and should be used promptly. A URL obtained recently is
+   * re-used from the client's
+   * {@link com.annomarket.client.RedirectResolver RedirectResolver} as
+   * long as it is not close to expiring, otherwise a fresh one is
+   * generated.
+   * 
+   * @return downloadable URL.
+   */
+  public URL urlToDownload() {
+    return client.getRedirectResolver().resolve(url);
+  }
+
+  public void invalidate() {
+    client.getRedirectResolver().invalidate(url);
+  }
+}
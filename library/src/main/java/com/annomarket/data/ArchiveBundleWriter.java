@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import com.annomarket.client.RestClientException;
+import com.annomarket.common.InputType;
+
+/**
+ * Writes a stream of documents into a {@link DataBundle} as a sequence
+ * of ZIP or TAR archives, each holding no more than a set number of
+ * documents or bytes of document data. Each archive is written to a
+ * temporary file and handed to a {@link PartUploader} as soon as it is
+ * full, so parts are uploaded in parallel while later documents are
+ * still being added, and the server can spread the parts across
+ * workers. No more than twice as many finished parts as the uploader
+ * has threads are waiting for upload or in progress at once, so there
+ * are at most that many temporary files plus the one being written -
+ * if documents are added faster than they can be uploaded,
+ * {@link #addDocument addDocument} blocks.
+ * <p>
+ * Instances are not thread-safe. The writer must be closed to upload
+ * the final part and wait for all the uploads to complete.
+ * 
+ * @author Ian Roberts
+ */
+public class ArchiveBundleWriter implements Closeable {
+
+  private final DataBundle bundle;
+
+  private final InputType type;
+
+  private final String fileName;
+
+  private final String[] extensions;
+
+  private final long maxPartBytes;
+
+  private final int maxPartEntries;
+
+  private final boolean closeBundle;
+
+  private final PartUploader uploader;
+
+  private final PartUploader.Batch batch;
+
+  private final PartUploader.Target target;
+
+  private final List<String> partNames = new ArrayList<String>();
+
+  private File partFile;
+
+  private ArchiveOutputStream partArchive;
+
+  private long partBytes;
+
+  private int partEntries;
+
+  private boolean failed;
+
+  private boolean closed;
+
+  /**
+   * Create a writer for the given bundle.
+   * 
+   * @param bundle the bundle to write to, which must be open
+   * @param fileName the file name for the parts, which will have a part
+   *          number inserted
+   * @param maxPartBytes the maximum total size of the documents in each
+   *          part
+   * @param maxPartEntries the maximum number of documents in each part,
+   *          or zero for no limit
+   * @param uploader the uploader for the parts
+   * @param closeBundle whether to close the bundle when this writer is
+   *          closed
+   */
+  ArchiveBundleWriter(final DataBundle bundle, String fileName,
+          long maxPartBytes, int maxPartEntries, PartUploader uploader,
+          boolean closeBundle) {
+    this.bundle = bundle;
+    this.type = bundle.archiveType();
+    this.fileName = fileName;
+    this.extensions = DirectoryArchive.parseExtensions(bundle.fileExtensions);
+    this.maxPartBytes = maxPartBytes;
+    this.maxPartEntries = maxPartEntries;
+    this.uploader = uploader;
+    this.closeBundle = closeBundle;
+    this.batch = uploader.batch(Integer.MAX_VALUE);
+    this.target = bundle.entryTarget();
+  }
+
+  /**
+   * Add a document to the bundle.
+   * 
+   * @param name the entry name for the document, which may include "/"
+   *          separated directories
+   * @param content the document content
+   * @return <code>true</code> if the document was added, or
+   *         <code>false</code> if it was skipped because its name does
+   *         not match the bundle's <code>fileExtensions</code>.
+   * @throws IOException if the document could not be written to the
+   *           current part's temporary file
+   */
+  public boolean addDocument(String name, byte[] content) throws IOException {
+    return addDocument(name, content.length, new ByteArrayInputStream(content));
+  }
+
+  /**
+   * Add a document to the bundle, reading its content from a stream.
+   * 
+   * @param name the entry name for the document, which may include "/"
+   *          separated directories
+   * @param length the length of the document in bytes
+   * @param content a stream from which exactly <code>length</code> bytes
+   *          of content can be read. The stream is not closed.
+   * @return <code>true</code> if the document was added, or
+   *         <code>false</code> if it was skipped because its name does
+   *         not match the bundle's <code>fileExtensions</code>.
+   * @throws IOException if the document could not be read or written
+   *           to the current part's temporary file. The current part
+   *           is then discarded and the writer cannot be used further.
+   */
+  public boolean addDocument(String name, long length, InputStream content)
+          throws IOException {
+    if(closed || failed) {
+      throw new IllegalStateException("Writer is "
+              + (closed ? "closed" : "failed"));
+    }
+    if(!DirectoryArchive.matches(name, extensions)) {
+      return false;
+    }
+    boolean succeeded = false;
+    try {
+      boolean full =
+              partBytes + length > maxPartBytes
+                      || (maxPartEntries > 0 && partEntries >= maxPartEntries);
+      if(partArchive != null && full) {
+        finishPart();
+      }
+      if(partArchive == null) {
+        partFile =
+                File.createTempFile("annomarket-part-", "."
+                        + type.name().toLowerCase(Locale.ENGLISH));
+        partArchive =
+                DirectoryArchive.newArchiveStream(type,
+                        new BufferedOutputStream(new FileOutputStream(
+                                partFile)));
+        partBytes = 0;
+        partEntries = 0;
+      }
+      partArchive.putArchiveEntry(DirectoryArchive.newArchiveEntry(type,
+              name, length, System.currentTimeMillis()));
+      if(IOUtils.copyLarge(content, partArchive, 0, length) < length) {
+        throw new EOFException("Document " + name + " is shorter than "
+                + length + " bytes");
+      }
+      partArchive.closeArchiveEntry();
+      partBytes += length;
+      partEntries++;
+      succeeded = true;
+      return true;
+    } finally {
+      if(!succeeded) {
+        failed = true;
+        discardPart();
+      }
+    }
+  }
+
+  /**
+   * Complete the current part and queue it for upload. The uploader
+   * deletes the temporary file once it is done with it.
+   */
+  private void finishPart() throws IOException {
+    partArchive.finish();
+    partArchive.close();
+    partArchive = null;
+    // the total is not known in advance, so parts are always numbered
+    // with at least three digits
+    String partName =
+            PartUploader.partName(fileName, partNames.size(), 999);
+    partNames.add(partName);
+    File file = partFile;
+    partFile = null;
+    batch.addTempFile(file, partName, target);
+  }
+
+  private void discardPart() {
+    IOUtils.closeQuietly(partArchive);
+    partArchive = null;
+    if(partFile != null) {
+      partFile.delete();
+      partFile = null;
+    }
+  }
+
+  /**
+   * Upload the final part, wait for all the parts to be uploaded and,
+   * if this writer was created by
+   * {@link DataManager#createArchiveBundleWriter DataManager}, close
+   * the bundle.
+   * 
+   * @throws IOException if the final part could not be completed, or
+   *           an earlier document could not be added
+   * @throws RestClientException if any part failed to upload. The
+   *           bundle is left open in this case.
+   */
+  public void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if(!failed && partArchive != null) {
+        finishPart();
+      }
+    } catch(IOException e) {
+      failed = true;
+      discardPart();
+      finishBatch(e);
+      throw e;
+    } catch(RuntimeException e) {
+      failed = true;
+      discardPart();
+      finishBatch(e);
+      throw e;
+    }
+    batch.finish();
+    if(failed) {
+      throw new IOException("Not all documents could be added to the bundle");
+    }
+    if(closeBundle) {
+      bundle.close();
+    }
+  }
+
+  /**
+   * Wait for the parts that were queued before the given failure,
+   * recording any upload failure as suppressed by it rather than
+   * letting it replace the original exception.
+   */
+  private void finishBatch(Exception failure) {
+    try {
+      batch.finish();
+    } catch(RuntimeException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  /**
+   * @return the bundle this writer writes to.
+   */
+  public DataBundle getBundle() {
+    return bundle;
+  }
+
+  /**
+   * @return the uploader used by this writer, e.g. to check how many
+   *         bytes it has uploaded.
+   */
+  public PartUploader getUploader() {
+    return uploader;
+  }
+
+  /**
+   * @return the file names of the parts that have been completed so far.
+   */
+  public List<String> getPartNames() {
+    return Collections.unmodifiableList(partNames);
+  }
+}
@@ -18,8 +18,7 @@ package com.annomarket.data;
 
 import java.net.URL;
 
-
-import com.annomarket.common.ApiObject;
+import com.annomarket.common.RemoteFile;
 import com.fasterxml.jackson.annotation.JsonCreator;
 
 /**
@@ -28,23 +27,9 @@ import com.fasterxml.jackson.annotation.JsonCreator;
  * 
  * @author Ian Roberts
  */
-public class BundleEntry extends ApiObject {
+public class BundleEntry extends RemoteFile {
   @JsonCreator
   public BundleEntry(URL url) {
-    this.url = url;
-  }
-
-  public URL url;
-
-  /**
-   * Generate a URL from which the file can be downloaded. This URL
-   * should be accessed immediately as it is time-limited and will
-   * expire if not used. If the URL has expired, simply call this method
-   * again as a fresh URL is generated every time.
-   * 
-   * @return downloadable URL.
-   */
-  public URL urlToDownload() {
-    return client.getRedirect(url);
+    super(url);
   }
 }
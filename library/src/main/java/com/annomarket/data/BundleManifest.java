@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Local record of the files that have been synchronised into a bundle
+ * by {@link DataBundle#sync DataBundle.sync}. For each local file name
+ * the manifest holds the size and modification time of the file as it
+ * was when last uploaded, the length and SHA-1 hash of each part it was
+ * uploaded in (hashed as the part was sent), and the names of the
+ * bundle entries it was uploaded as. There is one manifest file per
+ * bundle, rewritten after each file is uploaded so an interrupted sync
+ * loses no more than the files in progress.
+ * 
+ * @author Ian Roberts
+ */
+final class BundleManifest {
+
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The size and modification time of a local file at the time it was
+   * checked.
+   */
+  static final class FileState {
+    final long size;
+
+    final long modified;
+
+    FileState(File file) {
+      this.size = file.length();
+      this.modified = file.lastModified();
+    }
+  }
+
+  private final File file;
+
+  private final Properties props = new Properties();
+
+  private BundleManifest(File file) throws IOException {
+    this.file = file;
+    if(file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        props.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Open the manifest for a bundle, creating an empty one if the
+   * bundle has not been synchronised from this directory before.
+   * 
+   * @param directory the directory holding manifest files
+   * @param bundle the bundle
+   */
+  static BundleManifest open(File directory, DataBundle bundle)
+          throws IOException {
+    BundleManifest manifest =
+            new BundleManifest(new File(directory, "bundle-" + bundle.id
+                    + ".manifest"));
+    // a bundle ID may be reused on a different server
+    if(!bundle.url.equals(manifest.props.getProperty("bundle"))) {
+      manifest.props.clear();
+      manifest.props.setProperty("bundle", bundle.url);
+    }
+    return manifest;
+  }
+
+  /**
+   * Is the given file the same as when it was last uploaded, and are
+   * all the bundle entries it was uploaded as still in the bundle?
+   * Files whose size and modification time match the manifest are
+   * assumed unchanged. If only the modification time differs the file
+   * is hashed part by part and compared with the recorded hashes, and
+   * if they match the new modification time is recorded so the file
+   * need not be hashed next time. A file with no recorded hashes counts
+   * as changed.
+   * 
+   * @param f the local file
+   * @param state the file's current state
+   * @param entryNames the names of the entries currently in the bundle
+   */
+  synchronized boolean isUnchanged(File f, FileState state,
+          Set<String> entryNames) throws IOException {
+    String name = f.getName();
+    if(!String.valueOf(state.size).equals(props.getProperty("size." + name))
+            || !inBundle(name, entryNames)) {
+      return false;
+    }
+    String modified = String.valueOf(state.modified);
+    if(modified.equals(props.getProperty("modified." + name))) {
+      return true;
+    }
+    String recorded = props.getProperty("sha1." + name);
+    long[] lengths = partLengths(props.getProperty("parts." + name));
+    if(recorded != null && lengths != null && sum(lengths) == state.size
+            && recorded.equals(join(sha1(f, lengths)))) {
+      props.setProperty("modified." + name, modified);
+      UploadJournal.store(props, file);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Are all the bundle entries the given file was last uploaded as
+   * still in the bundle?
+   * 
+   * @param name the local file name
+   * @param entryNames the names of the entries currently in the bundle
+   * @return <code>true</code> if the file has been uploaded before and
+   *         every entry is still there
+   */
+  synchronized boolean inBundle(String name, Set<String> entryNames) {
+    String entries = props.getProperty("entries." + name);
+    if(entries == null) {
+      return false;
+    }
+    for(String entry : entries.split("/")) {
+      if(!entryNames.contains(entry)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Record that a file has been uploaded.
+   * 
+   * @param f the local file
+   * @param state the state of the file when it was checked, before the
+   *          upload started
+   * @param entryNames the names of the bundle entries the file was
+   *          uploaded as
+   * @param partLengths the length of each part
+   * @param partHashes the hash of each part as it was sent. Parts
+   *          uploaded by an earlier attempt, whose hash is
+   *          <code>null</code>, are hashed from the file.
+   */
+  synchronized void recordUpload(File f, FileState state,
+          List<String> entryNames, long[] partLengths, String[] partHashes)
+          throws IOException {
+    String name = f.getName();
+    String[] hashes = partHashes.clone();
+    long start = 0;
+    for(int i = 0; i < hashes.length; i++) {
+      if(hashes[i] == null) {
+        hashes[i] = sha1(f, start, partLengths[i]);
+      }
+      start += partLengths[i];
+    }
+    StringBuilder lengths = new StringBuilder();
+    for(long length : partLengths) {
+      if(lengths.length() > 0) lengths.append('/');
+      lengths.append(length);
+    }
+    props.setProperty("size." + name, String.valueOf(state.size));
+    props.setProperty("modified." + name, String.valueOf(state.modified));
+    props.setProperty("parts." + name, lengths.toString());
+    props.setProperty("sha1." + name, join(hashes));
+    props.setProperty("entries." + name,
+            join(entryNames.toArray(new String[entryNames.size()])));
+    UploadJournal.store(props, file);
+  }
+
+  /**
+   * Parse a list of part lengths recorded in the manifest, returning
+   * <code>null</code> if there is none or it cannot be read.
+   */
+  private static long[] partLengths(String recorded) {
+    if(recorded == null) {
+      return null;
+    }
+    String[] fields = recorded.split("/");
+    long[] lengths = new long[fields.length];
+    try {
+      for(int i = 0; i < fields.length; i++) {
+        lengths[i] = Long.parseLong(fields[i]);
+      }
+    } catch(NumberFormatException e) {
+      return null;
+    }
+    return lengths;
+  }
+
+  private static long sum(long[] values) {
+    long total = 0;
+    for(long value : values) {
+      total += value;
+    }
+    return total;
+  }
+
+  private static String join(String[] values) {
+    StringBuilder joined = new StringBuilder();
+    for(String value : values) {
+      if(joined.length() > 0) joined.append('/');
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+
+  /**
+   * Compute the SHA-1 hash of each consecutive range of a file's
+   * content with the given lengths.
+   */
+  static String[] sha1(File f, long[] lengths) throws IOException {
+    String[] hashes = new String[lengths.length];
+    long start = 0;
+    for(int i = 0; i < lengths.length; i++) {
+      hashes[i] = sha1(f, start, lengths[i]);
+      start += lengths[i];
+    }
+    return hashes;
+  }
+
+  /**
+   * Compute the SHA-1 hash of a range of a file's content, as a lower
+   * case hex string.
+   */
+  static String sha1(File f, long start, long length) throws IOException {
+    MessageDigest sha1 = PartUploader.sha1Digest();
+    byte[] buf = new byte[BUFFER_SIZE];
+    InputStream in = new FileInputStream(f);
+    try {
+      IOUtils.skipFully(in, start);
+      long remaining = length;
+      while(remaining > 0) {
+        int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+        if(n < 0) {
+          throw new EOFException(f + " is shorter than expected");
+        }
+        sha1.update(buf, 0, n);
+        remaining -= n;
+      }
+    } finally {
+      in.close();
+    }
+    return DatatypeConverter.printHexBinary(sha1.digest()).toLowerCase();
+  }
+}
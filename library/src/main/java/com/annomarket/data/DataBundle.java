@@ -17,16 +17,25 @@
 package com.annomarket.data;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 
+import com.annomarket.client.AsyncHttpTransport;
 import com.annomarket.client.RestClientException;
 import com.annomarket.common.InputType;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -127,17 +136,275 @@ public class DataBundle extends DataBundleSummary {
    *          bundle.
    */
   public void addFile(File inputFile) {
-    InputStream source = null;
     try {
-      source = new FileInputStream(inputFile);
-      addFile(inputFile.getName(), (int)inputFile.length(), source);
+      PartUploader.put(addEntry(inputFile.getName()), inputFile,
+              client.getAsyncTransport());
     } catch(IOException e) {
       throw new RestClientException(e);
-    } finally {
-      IOUtils.closeQuietly(source);
     }
   }
 
+  /**
+   * Upload a large file to an open bundle, split into several parts
+   * that are uploaded in parallel where the bundle's {@link #type}
+   * allows it. Each part becomes a separate file in the bundle. See
+   * {@link PartUploader} for details of how files are split, and how
+   * to resume an interrupted upload.
+   * 
+   * @param inputFile the file to upload
+   * @param uploader the uploader to use
+   * @return the names of the bundle entries created for the file
+   */
+  public List<String> addFile(File inputFile, PartUploader uploader) {
+    return uploader.upload(inputFile, type, url, entryTarget());
+  }
+
+  /**
+   * Upload several files to an open bundle in parallel, using the given
+   * uploader's threads and bandwidth limit. Large files may be split
+   * into several parts as described for
+   * {@link #addFile(File, PartUploader)}.
+   * 
+   * @param inputFiles the files to upload
+   * @param uploader the uploader to use
+   * @return the names of the bundle entries created for the files
+   * @throws RestClientException if any file could not be uploaded, once
+   *           all the others have been tried
+   */
+  public List<String> addFiles(List<File> inputFiles, PartUploader uploader) {
+    return uploader.upload(inputFiles, type, url, entryTarget());
+  }
+
+  /**
+   * Bring this bundle up to date with the files in a local directory,
+   * uploading only the files that are new or have changed since they
+   * were last synchronised. A local manifest, kept per bundle in the
+   * given manifest directory, records the size and modification time of
+   * each file as it was uploaded, along with the names of the bundle
+   * entries it became. A file is skipped if its manifest record matches
+   * and its entries are still listed in {@link #files}. Each file is
+   * hashed as it is uploaded, and the hash is kept in the manifest, so
+   * files whose modification time has changed but whose size has not
+   * can be hashed again to tell whether the content really changed.
+   * <p>
+   * Bundle entries cannot be deleted, so a changed file whose earlier
+   * upload is still in the bundle could only be added alongside it.
+   * This method refuses to do that, and fails before uploading
+   * anything; see {@link #sync(File, File, PartUploader, boolean)} to
+   * upload such files anyway.
+   * The manifest is updated as each file completes, so if the sync fails
+   * part way through, running it again picks up where it left off.
+   * Only the files directly inside the directory are considered, not
+   * subdirectories. New or changed files can only be uploaded while the
+   * bundle is open, but a closed bundle that is already up to date can
+   * be synchronised without error.
+   * 
+   * @param directory the local directory
+   * @param manifestDirectory the directory holding the manifest files.
+   *          This should not be the directory being synchronised.
+   * @param uploader the uploader to use for new and changed files
+   * @return which files were uploaded, and how many bytes were saved by
+   *         skipping the others
+   * @throws RestClientException if the bundle is closed and has
+   *           files to upload, if any changed file is already in the
+   *           bundle, or if any file could not be uploaded, once all the
+   *           others have been tried
+   */
+  public SyncResult sync(File directory, File manifestDirectory,
+          PartUploader uploader) {
+    return sync(directory, manifestDirectory, uploader, false);
+  }
+
+  /**
+   * Bring this bundle up to date with the files in a local directory,
+   * as {@link #sync(File, File, PartUploader)}, optionally uploading
+   * changed files even though the bundle already holds an earlier
+   * version of them. A changed file is uploaded again under the same
+   * name, so the bundle then holds both the earlier and the new upload,
+   * and the manifest records only the new entries.
+   * 
+   * @param directory the local directory
+   * @param manifestDirectory the directory holding the manifest files.
+   *          This should not be the directory being synchronised.
+   * @param uploader the uploader to use for new and changed files
+   * @param allowDuplicates <code>true</code> to upload changed files
+   *          alongside their earlier versions, <code>false</code> to
+   *          fail if there are any
+   * @return which files were uploaded, and how many bytes were saved by
+   *         skipping the others
+   */
+  public SyncResult sync(File directory, File manifestDirectory,
+          PartUploader uploader, boolean allowDuplicates) {
+    File[] listed = directory.listFiles();
+    if(listed == null) {
+      throw new RestClientException(directory + " is not a directory");
+    }
+    Arrays.sort(listed);
+    Set<String> entryNames = new HashSet<String>();
+    if(files != null) {
+      for(BundleEntry entry : files) {
+        entryNames.add(entry.fileName());
+      }
+    }
+    final SyncResult result = new SyncResult();
+    try {
+      final BundleManifest manifest =
+              BundleManifest.open(manifestDirectory, this);
+      List<File> changed = new ArrayList<File>();
+      List<String> duplicates = new ArrayList<String>();
+      final Map<File, BundleManifest.FileState> states =
+              new HashMap<File, BundleManifest.FileState>();
+      for(File f : listed) {
+        if(!f.isFile()) {
+          continue;
+        }
+        BundleManifest.FileState state = new BundleManifest.FileState(f);
+        if(manifest.isUnchanged(f, state, entryNames)) {
+          result.unchanged(f.getName(), state.size);
+        } else {
+          if(!allowDuplicates && manifest.inBundle(f.getName(), entryNames)) {
+            duplicates.add(f.getName());
+          }
+          changed.add(f);
+          states.put(f, state);
+        }
+      }
+      if(!duplicates.isEmpty()) {
+        throw new RestClientException(duplicates.size() + " changed files "
+                + "are already in bundle " + id + " and would be added "
+                + "again alongside the earlier version: " + duplicates);
+      }
+      if(!changed.isEmpty()) {
+        if(closed) {
+          throw new RestClientException("Bundle " + id + " is closed, so "
+                  + changed.size() + " new or changed files cannot be "
+                  + "uploaded");
+        }
+        uploader.upload(changed, type, url, entryTarget(),
+                new PartUploader.FileListener() {
+                  public void fileUploaded(File file, List<String> partNames,
+                          long[] partLengths, String[] partHashes) {
+                    BundleManifest.FileState state = states.get(file);
+                    try {
+                      manifest.recordUpload(file, state, partNames,
+                              partLengths, partHashes);
+                    } catch(IOException e) {
+                      throw new RestClientException(e);
+                    }
+                    result.uploaded(file.getName(), state.size);
+                  }
+                });
+      }
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+    return result;
+  }
+
+  /**
+   * Upload the files under a local directory to an open ZIP or TAR
+   * bundle as a single archive, built on the fly as it is uploaded so
+   * no temporary file is needed. Only files that match this bundle's
+   * {@link #fileExtensions} are included. Bundles of type ZIP are
+   * uploaded as an uncompressed ZIP archive, which must be under 4GB,
+   * all others as TAR. See {@link DirectoryArchive} for details.
+   * 
+   * @param directory the directory to upload. Its name, plus ".tar" or
+   *          ".zip", will be used as the name of the file in the
+   *          bundle.
+   * @return the name of the bundle entry created for the directory
+   */
+  public String addDirectory(File directory) {
+    InputType archiveType = archiveType();
+    try {
+      DirectoryArchive archive =
+              new DirectoryArchive(directory, archiveType, fileExtensions);
+      String fileName =
+              directory.getName() + "."
+                      + archiveType.name().toLowerCase(Locale.ENGLISH);
+      archive.put(addEntry(fileName));
+      return fileName;
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+  }
+
+  /**
+   * Upload the files under a local directory to an open ZIP or TAR
+   * bundle as a sequence of archives of bounded size, which are built
+   * on the fly and uploaded in parallel by the given uploader. Smaller
+   * archives let the server spread the bundle's contents across more
+   * workers, and make a failed upload cheaper to retry. Only files
+   * that match this bundle's {@link #fileExtensions} are included.
+   * 
+   * @param directory the directory to upload. Its name, plus ".tar" or
+   *          ".zip" and a part number if there is more than one
+   *          archive, will be used as the names of the files in the
+   *          bundle.
+   * @param maxPartBytes the maximum total size of the files in each
+   *          archive. A single file larger than this gets an archive to
+   *          itself.
+   * @param maxPartEntries the maximum number of files in each archive,
+   *          or zero for no limit
+   * @param uploader the uploader to use
+   * @return the names of the bundle entries created for the directory
+   * @throws RestClientException if any archive could not be uploaded,
+   *           once all the others have been tried
+   */
+  public List<String> addDirectory(File directory, long maxPartBytes,
+          int maxPartEntries, PartUploader uploader) {
+    InputType archiveType = archiveType();
+    List<DirectoryArchive> archives;
+    try {
+      archives =
+              DirectoryArchive.split(directory, archiveType, fileExtensions,
+                      maxPartBytes, maxPartEntries);
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+    return uploader.uploadArchives(archives, directory.getName() + "."
+            + archiveType.name().toLowerCase(Locale.ENGLISH),
+            entryTarget());
+  }
+
+  /**
+   * Open a writer that adds a stream of documents to this open ZIP or
+   * TAR bundle, as a sequence of archives of bounded size that are
+   * uploaded in parallel while later documents are still being added.
+   * Documents whose names do not match this bundle's
+   * {@link #fileExtensions} are skipped. The bundle is not closed when
+   * the writer is closed.
+   * 
+   * @param fileName the file name for the archives, which will have a
+   *          part number inserted, e.g. "documents.tar" gives
+   *          "documents-part001.tar", "documents-part002.tar", etc.
+   * @param maxPartBytes the maximum total size of the documents in each
+   *          archive
+   * @param maxPartEntries the maximum number of documents in each
+   *          archive, or zero for no limit
+   * @param uploader the uploader to use
+   * @return the writer, which must be closed to complete the upload
+   */
+  public ArchiveBundleWriter openArchiveWriter(String fileName,
+          long maxPartBytes, int maxPartEntries, PartUploader uploader) {
+    return new ArchiveBundleWriter(this, fileName, maxPartBytes,
+            maxPartEntries, uploader, false);
+  }
+
+  /**
+   * The archive type to use for uploads of local directories to this
+   * bundle - ZIP for ZIP bundles and TAR for all others.
+   */
+  InputType archiveType() {
+    InputType archiveType =
+            (type == InputType.ZIP) ? InputType.ZIP : InputType.TAR;
+    if(type != null && type != archiveType) {
+      throw new RestClientException("Only ZIP or TAR archives can be "
+              + "uploaded to a bundle of type " + type);
+    }
+    return archiveType;
+  }
+
   /**
    * Upload a file to an open bundle.
    * 
@@ -150,16 +417,27 @@ public class DataBundle extends DataBundleSummary {
    *          responsible for ensuring the stream is properly closed.
    */
   public void addFile(String fileName, int contentLength, InputStream source) {
-    ObjectNode request = JsonNodeFactory.instance.objectNode();
-    request.put("fileName", fileName);
-    // create the input
-    AddResult addRes =
-            client.post(url + "/add", new TypeReference<AddResult>() {
-            }, request);
+    addFile(fileName, (long)contentLength, source);
+  }
+
+  /**
+   * Upload a file to an open bundle. This variant supports files of
+   * 2GB or more.
+   * 
+   * @param fileName the name to use for the bundle entry
+   * @param contentLength the number of bytes to upload
+   * @param source an input stream from which the file's content can be
+   *          read. It must provide exactly <code>contentLength</code>
+   *          bytes up to end-of-file. The stream will be read to EOF
+   *          but will not be closed by this method, the caller is
+   *          responsible for ensuring the stream is properly closed.
+   */
+  public void addFile(String fileName, long contentLength, InputStream source) {
+    URL putUrl = addEntry(fileName);
     try {
       // upload the file
       HttpURLConnection putConnection =
-              (HttpURLConnection)addRes.putUrl.openConnection();
+              (HttpURLConnection)putUrl.openConnection();
       putConnection.setDoOutput(true);
       putConnection.setRequestMethod("PUT");
       putConnection.setRequestProperty("Content-Type",
@@ -167,7 +445,7 @@ public class DataBundle extends DataBundleSummary {
       putConnection.setFixedLengthStreamingMode(contentLength);
       OutputStream out = putConnection.getOutputStream();
       try {
-        IOUtils.copy(source, out);
+        IOUtils.copyLarge(source, out);
       } finally {
         IOUtils.closeQuietly(out);
       }
@@ -176,10 +454,105 @@ public class DataBundle extends DataBundleSummary {
     }
   }
 
+  /**
+   * @return a {@link PartUploader.Target} that uploads each part as a
+   *         new entry in this bundle. A part whose upload URL is
+   *         rejected is requested again under the same name, to get a
+   *         fresh URL for it; the rejected URL never received any
+   *         data.
+   */
+  PartUploader.Target entryTarget() {
+    return new PartUploader.Target() {
+      public PartUploader.Part createPart(String partName) {
+        return new PartUploader.Part(addEntry(partName), null);
+      }
+
+      public void partUploaded(PartUploader.Part part) {
+      }
+
+      public void discardPart(PartUploader.Part part) {
+        // createPart adds the same entry again with a fresh URL
+      }
+
+      public AsyncHttpTransport getTransport() {
+        return client.getAsyncTransport();
+      }
+    };
+  }
+
+  /**
+   * Create a new entry in this bundle and return the URL to which its
+   * content should be uploaded.
+   */
+  URL addEntry(String fileName) {
+    ObjectNode request = JsonNodeFactory.instance.objectNode();
+    request.put("fileName", fileName);
+    AddResult addRes =
+            client.post(url + "/add", new TypeReference<AddResult>() {
+            }, request);
+    return addRes.putUrl;
+  }
+
   private static class AddResult {
     public URL putUrl;
   }
 
+  /**
+   * Download all the files in this bundle into a local directory,
+   * several at a time, resuming any partial downloads left by an
+   * earlier attempt. See {@link ParallelDownloader} for details.
+   * 
+   * @param directory the directory to save the files in
+   * @param downloader the downloader to use
+   * @return the downloaded files
+   * @throws RestClientException if any file could not be downloaded,
+   *           once all the others have been tried
+   */
+  public List<File> download(File directory, ParallelDownloader downloader) {
+    if(files == null) {
+      return downloader.download(Collections.<BundleEntry> emptyList(),
+              directory);
+    }
+    // resolve all the download URLs in one go rather than one at a time
+    // in the download threads
+    try {
+      urlsToDownload();
+    } catch(RestClientException e) {
+      // best effort - URLs that did resolve are cached, and each
+      // download resolves its own URL if it is not
+    }
+    return downloader.download(files, directory);
+  }
+
+  /**
+   * Get download URLs for all the files in this bundle. The redirect
+   * requests for the URLs are sent concurrently rather than one after
+   * another, and the resulting URLs are cached so later calls to
+   * {@link BundleEntry#urlToDownload()} re-use them while they remain
+   * valid.
+   * 
+   * @return a map from each entry in {@link #files} to a (time-limited)
+   *         URL from which it can be downloaded
+   * @throws RestClientException if any of the URLs could not be
+   *           obtained
+   */
+  public Map<BundleEntry, URL> urlsToDownload() {
+    Map<BundleEntry, URL> urls = new LinkedHashMap<BundleEntry, URL>();
+    if(files == null) {
+      return urls;
+    }
+    List<URL> sources = new ArrayList<URL>(files.size());
+    for(BundleEntry e : files) {
+      sources.add(e.url);
+    }
+    Map<URL, URL> targets =
+            client.getRedirectResolver().resolveAll(sources);
+    for(BundleEntry e : files) {
+      urls.put(e, targets.get(e.url));
+    }
+    return urls;
+  }
+
   /**
    * Close a bundle that is open for uploads.
    */
@@ -1,5 +1,10 @@
 package com.annomarket.data;
 
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import com.annomarket.client.TransformingCallback;
 import com.annomarket.common.ApiObject;
 import com.fasterxml.jackson.core.type.TypeReference;
 
@@ -43,4 +48,26 @@ public class DataBundleSummary extends ApiObject {
     return details;
   }
 
+  /**
+   * Fetch the full details of this bundle without blocking the calling
+   * thread.
+   * 
+   * @param callback callback to be notified with the bundle details.
+   *          May be <code>null</code>.
+   * @return a {@link Future} for the full bundle details.
+   */
+  public Future<DataBundle> detailsAsync(FutureCallback<DataBundle> callback) {
+    TransformingCallback<DataBundle, DataBundle> setUrl =
+            new TransformingCallback<DataBundle, DataBundle>(callback) {
+              @Override
+              protected DataBundle transform(DataBundle details) {
+                details.url = url;
+                return details;
+              }
+            };
+    setUrl.setSource(client.getAsync(url, new TypeReference<DataBundle>() {
+    }, setUrl));
+    return setUrl.getFuture();
+  }
+
 }
@@ -17,7 +17,12 @@
 package com.annomarket.data;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import com.annomarket.client.RestClient;
 import com.annomarket.client.RestClientException;
@@ -95,6 +100,52 @@ public class DataManager {
     });
   }
 
+  /**
+   * List all the data bundles that are owned by the authenticating
+   * user, without blocking the calling thread.
+   * 
+   * @param callback callback to be notified with the list of bundles.
+   *          May be <code>null</code>.
+   * @return a {@link Future} for the list of the user's bundles.
+   */
+  public Future<List<DataBundleSummary>> listBundlesAsync(
+          FutureCallback<List<DataBundleSummary>> callback) {
+    return client.getAsync("data/bundle",
+            new TypeReference<List<DataBundleSummary>>() {
+            }, callback);
+  }
+
+  /**
+   * Get details of a particular bundle given its ID, without blocking
+   * the calling thread.
+   * 
+   * @param id the ID of the required bundle
+   * @param callback callback to be notified with the bundle details.
+   *          May be <code>null</code>.
+   * @return a {@link Future} for the bundle details
+   */
+  public Future<DataBundle> getBundleAsync(long id,
+          FutureCallback<DataBundle> callback) {
+    return client.getAsync("data/bundle/" + id,
+            new TypeReference<DataBundle>() {
+            }, callback);
+  }
+
+  /**
+   * Get details of a specific bundle given its detail URL, without
+   * blocking the calling thread.
+   * 
+   * @param url the detail URL for the required bundle
+   * @param callback callback to be notified with the bundle details.
+   *          May be <code>null</code>.
+   * @return a {@link Future} for the bundle details
+   */
+  public Future<DataBundle> getBundleAsync(String url,
+          FutureCallback<DataBundle> callback) {
+    return client.getAsync(url, new TypeReference<DataBundle>() {
+    }, callback);
+  }
+
   /**
    * Create a new data bundle from a list of
    * <code>s3://bucket/key</code> URLs that point to ZIP or TAR archives
@@ -269,6 +320,169 @@ public class DataManager {
             fileExtensions, null, localFiles);
   }
 
+  /**
+   * Create a new data bundle by uploading local ZIP or TAR archives or
+   * Twitter JSON files to AnnoMarket managed storage, several files at
+   * a time. This is the same as
+   * {@link #createArchiveBundleFromUploads(String, InputType, String, String, String, File...)}
+   * except that the files are uploaded in parallel by the given
+   * uploader, and the bundle is only closed if every file is uploaded
+   * successfully.
+   * 
+   * @param bundleName a name for the new bundle.
+   * @param inputType the type of the input
+   * @param encoding character encoding to use when reading entries from
+   *          the archive. If <code>null</code>, UTF-8 will be used.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archive. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension.
+   * @param fileExtensions comma-separated list of file extensions that
+   *          will be processed. If <code>null</code> all entries that
+   *          represent files will be processed.
+   * @param uploader the uploader that controls the number of threads,
+   *          bandwidth and part size
+   * @param localFiles the files to upload
+   * @return details of the newly created bundle.
+   */
+  public DataBundle createArchiveBundleFromUploads(String bundleName,
+          InputType inputType, String encoding, String mimeTypeOverride,
+          String fileExtensions, PartUploader uploader, File... localFiles) {
+    if(inputType == InputType.ARC || inputType == InputType.WARC) {
+      throw new RestClientException(
+              "For ARC and WARC files use createARCBundleFromS3");
+    }
+
+    return uploadBundle(bundleName, inputType, encoding, mimeTypeOverride,
+            fileExtensions, null, uploader, localFiles);
+  }
+
+  /**
+   * Create a new ZIP or TAR data bundle from the files under a local
+   * directory. The files are packed on the fly into a sequence of
+   * archives of bounded size, which are uploaded in parallel by the
+   * given uploader, so the server can spread the bundle across several
+   * workers and a failed archive is cheap to upload again. Only files
+   * that match the given extensions are uploaded. The bundle is only
+   * closed if every archive is uploaded successfully.
+   * 
+   * @param bundleName a name for the new bundle.
+   * @param inputType the type of the bundle, ZIP or TAR
+   * @param encoding character encoding to use when reading entries from
+   *          the archives. If <code>null</code>, UTF-8 will be used.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archives. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension.
+   * @param fileExtensions comma-separated list of file extensions that
+   *          will be uploaded and processed. If <code>null</code> all
+   *          files will be.
+   * @param directory the directory to upload
+   * @param maxPartBytes the maximum total size of the files in each
+   *          archive
+   * @param maxPartEntries the maximum number of files in each archive,
+   *          or zero for no limit
+   * @param uploader the uploader that controls the number of threads
+   *          and bandwidth
+   * @return details of the newly created bundle.
+   */
+  public DataBundle createArchiveBundleFromDirectory(String bundleName,
+          InputType inputType, String encoding, String mimeTypeOverride,
+          String fileExtensions, File directory, long maxPartBytes,
+          int maxPartEntries, PartUploader uploader) {
+    if(inputType != InputType.ZIP && inputType != InputType.TAR) {
+      throw new RestClientException(
+              "Directories can only be uploaded as ZIP or TAR bundles");
+    }
+    DataBundle bundle =
+            uploadBundle(bundleName, inputType, encoding, mimeTypeOverride,
+                    fileExtensions, null);
+    // throws an exception, leaving the bundle open, if any part fails
+    bundle.addDirectory(directory, maxPartBytes, maxPartEntries, uploader);
+    bundle.close();
+    return bundle;
+  }
+
+  /**
+   * Create a new ZIP or TAR data bundle to be filled from a stream of
+   * documents. The returned writer packs the documents into a sequence
+   * of archives of bounded size, each of which is uploaded (in parallel
+   * with the others) as soon as it is full. Closing the writer uploads
+   * the last archive and, if all the uploads succeeded, closes the
+   * bundle.
+   * 
+   * @param bundleName a name for the new bundle.
+   * @param inputType the type of the bundle, ZIP or TAR
+   * @param encoding character encoding to use when reading entries from
+   *          the archives. If <code>null</code>, UTF-8 will be used.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archives. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension.
+   * @param maxPartBytes the maximum total size of the documents in each
+   *          archive
+   * @param maxPartEntries the maximum number of documents in each
+   *          archive, or zero for no limit
+   * @param uploader the uploader that controls the number of threads
+   *          and bandwidth
+   * @return a writer for the documents, which must be closed to
+   *         complete the bundle.
+   */
+  public ArchiveBundleWriter createArchiveBundleWriter(String bundleName,
+          InputType inputType, String encoding, String mimeTypeOverride,
+          long maxPartBytes, int maxPartEntries, PartUploader uploader) {
+    if(inputType != InputType.ZIP && inputType != InputType.TAR) {
+      throw new RestClientException(
+              "Documents can only be uploaded as ZIP or TAR bundles");
+    }
+    DataBundle bundle =
+            uploadBundle(bundleName, inputType, encoding, mimeTypeOverride,
+                    null, null);
+    return new ArchiveBundleWriter(bundle, "documents."
+            + inputType.name().toLowerCase(Locale.ENGLISH), maxPartBytes,
+            maxPartEntries, uploader, true);
+  }
+
+  /**
+   * Bring an open bundle up to date with the files in a local
+   * directory, uploading only the files that are new or have changed
+   * since the last sync according to a local manifest. See
+   * {@link DataBundle#sync DataBundle.sync} for details.
+   * 
+   * @param bundleId the ID of the bundle
+   * @param directory the local directory
+   * @param manifestDirectory the directory holding the manifest files
+   * @param uploader the uploader to use for new and changed files
+   * @return which files were uploaded, and how many bytes were saved by
+   *         skipping the others
+   */
+  public SyncResult syncBundle(long bundleId, File directory,
+          File manifestDirectory, PartUploader uploader) {
+    return syncBundle(bundleId, directory, manifestDirectory, uploader,
+            false);
+  }
+
+  /**
+   * Bring an open bundle up to date with the files in a local
+   * directory, optionally uploading changed files alongside their
+   * earlier versions. See
+   * {@link DataBundle#sync(File, File, PartUploader, boolean)} for
+   * details.
+   * 
+   * @param bundleId the ID of the bundle
+   * @param directory the local directory
+   * @param manifestDirectory the directory holding the manifest files
+   * @param uploader the uploader to use for new and changed files
+   * @param allowDuplicates <code>true</code> to upload changed files
+   *          even though the bundle already holds an earlier version
+   * @return which files were uploaded, and how many bytes were saved by
+   *         skipping the others
+   */
+  public SyncResult syncBundle(long bundleId, File directory,
+          File manifestDirectory, PartUploader uploader,
+          boolean allowDuplicates) {
+    // fetch the current list of files in the bundle
+    return getBundle(bundleId).sync(directory, manifestDirectory, uploader,
+            allowDuplicates);
+  }
+
   /**
    * Create a new data bundle by uploading local ARC or WARC archives to
    * AnnoMarket managed storage. Note that all the files in a bundle
@@ -307,12 +521,59 @@ public class DataManager {
             null, mimeTypes, localFiles);
   }
 
+  /**
+   * Create a new data bundle by uploading local ARC or WARC archives to
+   * AnnoMarket managed storage, several files at a time. This is the
+   * same as
+   * {@link #createARCBundleFromUploads(String, InputType, String, String, String, File...)}
+   * except that the files are uploaded in parallel by the given
+   * uploader (which may also split large WARC files into parts), and
+   * the bundle is only closed if every file is uploaded successfully.
+   * 
+   * @param bundleName a name for the new bundle.
+   * @param inputType the type of the input
+   * @param encoding character encoding to use when reading entries from
+   *          the archive. If <code>null</code>, the (W)ARC entry
+   *          headers will be used.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archive. If <code>null</code> the appropriate
+   *          type will be guessed.
+   * @param mimeTypes space-separated list of MIME types used to filter
+   *          the entries of interest from the ARC file.
+   * @param uploader the uploader that controls the number of threads,
+   *          bandwidth and part size
+   * @param localFiles the files to upload
+   * @return details of the newly created bundle.
+   */
+  public DataBundle createARCBundleFromUploads(String bundleName,
+          InputType inputType, String encoding, String mimeTypeOverride,
+          String mimeTypes, PartUploader uploader, File... localFiles) {
+    if(inputType != InputType.ARC && inputType != InputType.WARC) {
+      throw new RestClientException(
+              "createARCBundleFromS3 only applicable to ARC and WARC types");
+    }
+
+    return uploadBundle(bundleName, inputType, encoding, mimeTypeOverride,
+            null, mimeTypes, uploader, localFiles);
+  }
+
   /**
    * Common logic for creating bundles from uploads.
    */
   protected DataBundle uploadBundle(String bundleName, InputType inputType,
           String encoding, String mimeTypeOverride, String fileExtensions,
           String mimeTypes, File... localFiles) {
+    return uploadBundle(bundleName, inputType, encoding, mimeTypeOverride,
+            fileExtensions, mimeTypes, null, localFiles);
+  }
+
+  /**
+   * Common logic for creating bundles from uploads, either one file at
+   * a time or in parallel if an uploader is given.
+   */
+  protected DataBundle uploadBundle(String bundleName, InputType inputType,
+          String encoding, String mimeTypeOverride, String fileExtensions,
+          String mimeTypes, PartUploader uploader, File... localFiles) {
     ObjectNode request = JsonNodeFactory.instance.objectNode();
 
     request.put("name", bundleName);
@@ -338,8 +599,13 @@ public class DataManager {
     // if files provided, upload them and close the bundle
     if(localFiles != null && localFiles.length > 0) {
       // upload the files
-      for(File file : localFiles) {
-        bundle.addFile(file);
+      if(uploader == null) {
+        for(File file : localFiles) {
+          bundle.addFile(file);
+        }
+      } else {
+        // throws an exception, leaving the bundle open, if any fail
+        bundle.addFiles(Arrays.asList(localFiles), uploader);
       }
 
       // close the bundle
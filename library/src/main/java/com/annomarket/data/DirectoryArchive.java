@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.annomarket.client.RateLimiter;
+import com.annomarket.common.InputType;
+
+/**
+ * A ZIP or TAR archive of the files under a local directory, which is
+ * built on the fly as it is uploaded, without a temporary file.
+ * <p>
+ * Files are selected with the same <code>fileExtensions</code> filter
+ * that the server applies to the entries of ZIP and TAR inputs, so
+ * files that would be ignored anyway are never sent. Entries are named
+ * by their path relative to the directory, using "/" as the separator,
+ * and are written in path order.
+ * <p>
+ * The upload URLs handed out by the server require the length of the
+ * content up front, so it is worked out exactly from the file names and
+ * sizes alone. For this to be possible ZIP entries are STORED rather
+ * than compressed, with their CRC-32 checksums written ahead of the
+ * data, which means each file is read twice when a ZIP archive is
+ * uploaded - once for the checksums and once for the upload itself. A
+ * TAR archive reads each file once, and is therefore the preferred type
+ * for large directories. A ZIP archive must also be small enough not to
+ * need any ZIP64 records (under 4GB in total, and fewer than 65535
+ * files), so use TAR or {@link #split split} the directory for anything
+ * bigger.
+ * <p>
+ * The files must not change between the creation of the archive and
+ * the end of the upload - if a file's size has changed when it is
+ * read the upload fails with an <code>IOException</code>.
+ * 
+ * @author Ian Roberts
+ */
+public class DirectoryArchive {
+
+  /**
+   * Size of the TAR records and blocks. Using the record size as the
+   * block size means the archive is not padded beyond the end-of-archive
+   * marker, which keeps the length calculation exact.
+   */
+  private static final int TAR_RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+
+  /**
+   * Size of the buffer used to copy file data into the archive.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Sizes and offsets from this value up need ZIP64 records.
+   */
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+  /**
+   * Size of a ZIP local file header, central directory header and end
+   * of central directory record, excluding names and extra fields.
+   */
+  private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+
+  private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+
+  private static final int ZIP_END_OF_DIRECTORY_SIZE = 22;
+
+  /**
+   * A single file to be written to the archive.
+   */
+  static class Entry {
+    final File file;
+
+    final String name;
+
+    final long size;
+
+    final long lastModified;
+
+    Entry(File file, String name, long size, long lastModified) {
+      this.file = file;
+      this.name = name;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final InputType type;
+
+  private final List<Entry> entries;
+
+  private final long length;
+
+  /**
+   * Create an archive of the files under the given directory (and its
+   * subdirectories) that match the given extensions. Symbolic links are
+   * followed.
+   * 
+   * @param directory the directory to archive
+   * @param type the archive type, {@link InputType#TAR TAR} or
+   *          {@link InputType#ZIP ZIP}
+   * @param fileExtensions comma-separated list of file extensions to
+   *          include, in the same format as the
+   *          <code>fileExtensions</code> of a bundle or job input. If
+   *          <code>null</code>, all files are included.
+   * @throws IOException if the directory cannot be read
+   */
+  public DirectoryArchive(File directory, InputType type,
+          String fileExtensions) throws IOException {
+    this(type, scan(directory, fileExtensions));
+  }
+
+  /**
+   * Create an archive of an explicit list of entries.
+   * 
+   * @throws IOException if a ZIP archive of the entries would be too
+   *           large
+   */
+  DirectoryArchive(InputType type, List<Entry> entries) throws IOException {
+    if(type != InputType.TAR && type != InputType.ZIP) {
+      throw new IllegalArgumentException(
+              "Directories can only be archived as TAR or ZIP, not " + type);
+    }
+    this.type = type;
+    this.entries = entries;
+    this.length =
+            (type == InputType.TAR) ? tarLength(entries) : zipLength(entries);
+  }
+
+  /**
+   * Divide the files under a directory into a sequence of archives, each
+   * holding no more than the given number of files or bytes of file
+   * data. Files are allocated in path order, and a file that is larger
+   * than the size limit on its own gets an archive to itself. The
+   * resulting parts can be uploaded in parallel by a
+   * {@link PartUploader}.
+   * 
+   * @param directory the directory to archive
+   * @param type the archive type, {@link InputType#TAR TAR} or
+   *          {@link InputType#ZIP ZIP}
+   * @param fileExtensions comma-separated list of file extensions to
+   *          include, or <code>null</code> to include all files
+   * @param maxPartBytes the maximum total size of the files in each
+   *          archive, before any archive overhead
+   * @param maxPartEntries the maximum number of files in each archive,
+   *          or zero for no limit
+   * @return the archives, which between them contain every matching
+   *         file. There is always at least one archive, even if no
+   *         files match.
+   * @throws IOException if the directory cannot be read
+   */
+  public static List<DirectoryArchive> split(File directory, InputType type,
+          String fileExtensions, long maxPartBytes, int maxPartEntries)
+          throws IOException {
+    List<DirectoryArchive> parts = new ArrayList<DirectoryArchive>();
+    List<Entry> current = new ArrayList<Entry>();
+    long currentBytes = 0;
+    for(Entry e : scan(directory, fileExtensions)) {
+      boolean full =
+              currentBytes + e.size > maxPartBytes
+                      || (maxPartEntries > 0
+                              && current.size() >= maxPartEntries);
+      if(full && !current.isEmpty()) {
+        parts.add(new DirectoryArchive(type, current));
+        current = new ArrayList<Entry>();
+        currentBytes = 0;
+      }
+      current.add(e);
+      currentBytes += e.size;
+    }
+    if(!current.isEmpty() || parts.isEmpty()) {
+      parts.add(new DirectoryArchive(type, current));
+    }
+    return parts;
+  }
+
+  /**
+   * List the files under a directory that match the given extensions,
+   * in order of their entry names.
+   */
+  static List<Entry> scan(final File directory, String fileExtensions)
+          throws IOException {
+    if(!directory.isDirectory()) {
+      throw new IOException(directory + " is not a directory");
+    }
+    final String[] extensions = parseExtensions(fileExtensions);
+    final Path root = directory.toPath();
+    final List<Entry> entries = new ArrayList<Entry>();
+    Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+            Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+              @Override
+              public FileVisitResult visitFile(Path file,
+                      BasicFileAttributes attrs) {
+                if(attrs.isRegularFile()) {
+                  StringBuilder name = new StringBuilder();
+                  for(Path p : root.relativize(file)) {
+                    if(name.length() > 0) {
+                      name.append('/');
+                    }
+                    name.append(p.toString());
+                  }
+                  if(matches(name.toString(), extensions)) {
+                    entries.add(new Entry(file.toFile(), name.toString(),
+                            attrs.size(), attrs.lastModifiedTime()
+                                    .toMillis()));
+                  }
+                }
+                return FileVisitResult.CONTINUE;
+              }
+            });
+    Collections.sort(entries, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.name.compareTo(b.name);
+      }
+    });
+    return entries;
+  }
+
+  /**
+   * Split a comma-separated extension list into lower case suffixes
+   * (including the leading dot), or <code>null</code> to match
+   * everything.
+   */
+  static String[] parseExtensions(String fileExtensions) {
+    if(fileExtensions == null) {
+      return null;
+    }
+    List<String> suffixes = new ArrayList<String>();
+    for(String ext : fileExtensions.split(",")) {
+      ext = ext.trim().toLowerCase(Locale.ENGLISH);
+      if(ext.startsWith(".")) {
+        ext = ext.substring(1);
+      }
+      if(ext.length() > 0) {
+        suffixes.add("." + ext);
+      }
+    }
+    return suffixes.isEmpty() ? null : suffixes.toArray(new String[suffixes
+            .size()]);
+  }
+
+  /**
+   * Does the given entry name match any of the given suffixes
+   * (ignoring case)?
+   */
+  static boolean matches(String name, String[] suffixes) {
+    if(suffixes == null) {
+      return true;
+    }
+    String lower = name.toLowerCase(Locale.ENGLISH);
+    for(String suffix : suffixes) {
+      if(lower.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Work out the exact length of the TAR archive of the given entries.
+   * The size of each header (which may include extended PAX headers for
+   * long or non-ASCII names and very large files) is found by writing
+   * it to a byte counter.
+   */
+  private static long tarLength(List<Entry> entries) throws IOException {
+    long total = 0;
+    for(Entry e : entries) {
+      CountingOutputStream counter =
+              new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+      newTarStream(counter).putArchiveEntry(
+              newArchiveEntry(InputType.TAR, e.name, e.size, e.lastModified));
+      total += counter.getByteCount();
+      total += (e.size + TAR_RECORD_SIZE - 1) / TAR_RECORD_SIZE
+              * TAR_RECORD_SIZE;
+    }
+    // two empty records mark the end of the archive
+    return total + 2 * TAR_RECORD_SIZE;
+  }
+
+  /**
+   * Work out the exact length of the ZIP archive of the given entries,
+   * written as STORED entries with their sizes and checksums in the
+   * local headers, so there are no data descriptors.
+   * 
+   * @throws IOException if the archive would need ZIP64 records
+   */
+  private static long zipLength(List<Entry> entries) throws IOException {
+    if(entries.size() >= 0xFFFF) {
+      throw new IOException("Too many files (" + entries.size()
+              + ") to stream as a ZIP archive");
+    }
+    long offset = 0;
+    long directory = 0;
+    for(Entry e : entries) {
+      int nameLength = e.name.getBytes("UTF-8").length;
+      offset += ZIP_LOCAL_HEADER_SIZE + nameLength + e.size;
+      directory += ZIP_CENTRAL_HEADER_SIZE + nameLength;
+      if(e.size >= ZIP64_LIMIT || offset >= ZIP64_LIMIT) {
+        throw new IOException("Too much data to stream as a ZIP archive "
+                + "(" + e.file + " goes past 4GB)");
+      }
+    }
+    if(offset + directory >= ZIP64_LIMIT) {
+      throw new IOException("Too many files to stream as a ZIP archive");
+    }
+    return offset + directory + ZIP_END_OF_DIRECTORY_SIZE;
+  }
+
+  /**
+   * Create an archive stream of the given type, configured to write
+   * entries that can be read by the server whatever their names and
+   * sizes. The stream's <code>finish</code> method must be called to
+   * complete the archive.
+   */
+  static ArchiveOutputStream newArchiveStream(InputType type,
+          OutputStream out) {
+    if(type == InputType.TAR) {
+      return newTarStream(out);
+    } else {
+      ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+      zip.setEncoding("UTF-8");
+      zip.setUseZip64(Zip64Mode.AsNeeded);
+      return zip;
+    }
+  }
+
+  /**
+   * Create an archive entry of the given type.
+   */
+  static ArchiveEntry newArchiveEntry(InputType type, String name,
+          long size, long lastModified) {
+    if(type == InputType.TAR) {
+      TarArchiveEntry entry = new TarArchiveEntry(name);
+      entry.setSize(size);
+      entry.setModTime(lastModified);
+      return entry;
+    } else {
+      ZipArchiveEntry entry = new ZipArchiveEntry(name);
+      entry.setSize(size);
+      entry.setTime(lastModified);
+      return entry;
+    }
+  }
+
+  private static TarArchiveOutputStream newTarStream(OutputStream out) {
+    TarArchiveOutputStream tar =
+            new TarArchiveOutputStream(out, TAR_RECORD_SIZE, TAR_RECORD_SIZE,
+                    "UTF-8");
+    tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+    tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    tar.setAddPaxHeadersForNonAsciiNames(true);
+    return tar;
+  }
+
+  /**
+   * @return the type of this archive, TAR or ZIP.
+   */
+  public InputType getType() {
+    return type;
+  }
+
+  /**
+   * @return the number of files in this archive.
+   */
+  public int getFileCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the total size of the files in this archive, before any
+   *         archive overhead or compression.
+   */
+  public long getContentLength() {
+    long total = 0;
+    for(Entry e : entries) {
+      total += e.size;
+    }
+    return total;
+  }
+
+  /**
+   * @return the exact length in bytes of the archive.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Write the archive to the given stream, which is not closed. For a
+   * ZIP archive the files are read once to work out their checksums
+   * before anything is written.
+   * 
+   * @param out the stream to write to
+   * @throws IOException if a file cannot be read or has changed size,
+   *           or the stream cannot be written
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    writeTo(out, null);
+  }
+
+  private void writeTo(OutputStream out, RateLimiter limiter)
+          throws IOException {
+    long[] checksums = (type == InputType.ZIP) ? checksums() : null;
+    ArchiveOutputStream archive = newArchiveStream(type, out);
+    byte[] buf = new byte[BUFFER_SIZE];
+    for(int i = 0; i < entries.size(); i++) {
+      Entry e = entries.get(i);
+      ArchiveEntry entry =
+              newArchiveEntry(type, e.name, e.size, e.lastModified);
+      if(checksums != null) {
+        // with the size and CRC known up front, the length of a STORED
+        // entry is exactly that of its header and data
+        ((ZipArchiveEntry)entry).setMethod(ZipArchiveEntry.STORED);
+        ((ZipArchiveEntry)entry).setCrc(checksums[i]);
+      }
+      archive.putArchiveEntry(entry);
+      InputStream in = new FileInputStream(e.file);
+      try {
+        long remaining = e.size;
+        while(remaining > 0) {
+          int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+          if(n < 0) {
+            throw new EOFException(e.file + " has shrunk since the archive "
+                    + "was created");
+          }
+          if(limiter != null) {
+            try {
+              limiter.acquire(n);
+            } catch(InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted during upload");
+            }
+          }
+          archive.write(buf, 0, n);
+          remaining -= n;
+        }
+        if(in.read() >= 0) {
+          throw new IOException(e.file + " has grown since the archive "
+                  + "was created");
+        }
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+      archive.closeArchiveEntry();
+    }
+    // writes the end-of-archive marker or central directory without
+    // closing the underlying stream
+    archive.finish();
+  }
+
+  /**
+   * Read every file to work out its CRC-32 checksum, for the headers of
+   * a ZIP archive.
+   */
+  private long[] checksums() throws IOException {
+    long[] checksums = new long[entries.size()];
+    byte[] buf = new byte[BUFFER_SIZE];
+    for(int i = 0; i < checksums.length; i++) {
+      CRC32 crc = new CRC32();
+      InputStream in = new FileInputStream(entries.get(i).file);
+      try {
+        int n;
+        while((n = in.read(buf)) >= 0) {
+          crc.update(buf, 0, n);
+        }
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+      checksums[i] = crc.getValue();
+    }
+    return checksums;
+  }
+
+  /**
+   * PUT this archive to an upload URL, such as the <code>putUrl</code>
+   * of a new job input or bundle entry.
+   * 
+   * @param putUrl the URL to upload to
+   * @throws IOException if the upload fails or the server rejects it
+   */
+  public void put(URL putUrl) throws IOException {
+    put(putUrl, null);
+  }
+
+  /**
+   * PUT this archive to an upload URL, waiting for the given rate
+   * limiter (if not <code>null</code>) before each write.
+   */
+  void put(URL putUrl, RateLimiter limiter) throws IOException {
+    HttpURLConnection putConnection = PartUploader.openPut(putUrl);
+    putConnection.setRequestProperty("Content-Type",
+            "application/octet-stream");
+    putConnection.setFixedLengthStreamingMode(length);
+    OutputStream out = putConnection.getOutputStream();
+    boolean written = false;
+    try {
+      writeTo(out, limiter);
+      written = true;
+    } finally {
+      if(written) {
+        out.close();
+      } else {
+        // closing a short fixed-length stream would throw an exception
+        // that hides the real cause of the failure
+        IOUtils.closeQuietly(out);
+        putConnection.disconnect();
+      }
+    }
+    PartUploader.checkStatus(PartUploader.responseCode(putConnection),
+            "Upload of archive of " + entries.size() + " files");
+  }
+}
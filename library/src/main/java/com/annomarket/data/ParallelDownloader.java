@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.annomarket.client.DaemonThreadFactory;
+import com.annomarket.client.Futures;
+import com.annomarket.client.RestClientException;
+import com.annomarket.client.RetryPolicy;
+import com.annomarket.common.Downloadable;
+
+/**
+ * Downloads job results or bundle files to a local directory, several
+ * at a time, resuming interrupted transfers rather than starting them
+ * again from the beginning.
+ * <p>
+ * Each file is first written to a temporary file with the suffix
+ * {@value #PARTIAL_SUFFIX} in the target directory, which is renamed
+ * (atomically where the file system allows) to the final name once the
+ * whole file has arrived and its size has been checked against the
+ * length reported by the server. If a transfer fails, the URL it used
+ * is {@link Downloadable#invalidate() invalidated}, and the next
+ * attempt asks for a fresh download URL and sends an HTTP
+ * <code>Range</code> request for just the bytes that are missing from
+ * the temporary file. The request also carries an
+ * <code>If-Range</code> header with the <code>ETag</code> (or failing
+ * that the <code>Last-Modified</code> date) that the server sent with
+ * the start of the file, kept in a second temporary file with the
+ * suffix {@value #VALIDATOR_SUFFIX}, so if the file has changed on the
+ * server since then it is downloaded again from the beginning rather
+ * than spliced onto the old partial content.
+ * The same applies to a temporary file left behind by an earlier run,
+ * so an interrupted download of many large files can be resumed simply
+ * by running it again. Servers that ignore the <code>Range</code>
+ * header are handled by starting that file again.
+ * <p>
+ * Instances may be shared and used for several downloads, including
+ * concurrently.
+ * 
+ * @author Ian Roberts
+ */
+public class ParallelDownloader {
+
+  /**
+   * Default number of files to download at the same time.
+   */
+  public static final int DEFAULT_THREADS = 4;
+
+  /**
+   * Default number of times to try downloading each file before giving
+   * up.
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /**
+   * Suffix added to the name of a file while it is being downloaded.
+   */
+  public static final String PARTIAL_SUFFIX = ".part";
+
+  /**
+   * Suffix added to the name of a file to hold the <code>ETag</code> or
+   * <code>Last-Modified</code> date of its partial download.
+   */
+  public static final String VALIDATOR_SUFFIX = ".part-validator";
+
+  /**
+   * Default time to wait for a connection to the download server, in
+   * milliseconds.
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * Default time to wait for more data from the download server before
+   * abandoning the attempt, in milliseconds.
+   */
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+
+  private static final long BASE_RETRY_DELAY_MILLIS = 1000L;
+
+  private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Matches a <code>Content-Range</code> header, capturing the first
+   * byte position and the total length (which may be "*").
+   */
+  private static final Pattern CONTENT_RANGE = Pattern
+          .compile("bytes\\s+(?:(\\d+)-\\d+|\\*)/(\\d+|\\*)");
+
+  private final int threads;
+
+  private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+  private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+  private volatile int readTimeout = DEFAULT_READ_TIMEOUT_MILLIS;
+
+  private final AtomicLong bytesDownloaded = new AtomicLong();
+
+  private final AtomicLong bytesResumed = new AtomicLong();
+
+  /**
+   * Create a downloader with the default number of threads.
+   */
+  public ParallelDownloader() {
+    this(DEFAULT_THREADS);
+  }
+
+  /**
+   * Create a downloader.
+   * 
+   * @param threads the maximum number of files to download at once
+   */
+  public ParallelDownloader(int threads) {
+    if(threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * Set the number of times to try downloading each file before giving
+   * up.
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Set the time to wait for a connection to the download server, in
+   * milliseconds. Zero means wait indefinitely.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Set the time to wait for more data from the download server, in
+   * milliseconds. An attempt that stalls for longer than this fails,
+   * and is retried from where it stopped. Zero means wait indefinitely.
+   */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return the total number of bytes downloaded by this downloader.
+   */
+  public long getBytesDownloaded() {
+    return bytesDownloaded.get();
+  }
+
+  /**
+   * @return the total number of bytes that did not need to be
+   *         downloaded again because they were already in a partially
+   *         downloaded file.
+   */
+  public long getBytesResumed() {
+    return bytesResumed.get();
+  }
+
+  /**
+   * Download several files into a local directory, in parallel. Each
+   * file is saved under its {@link Downloadable#fileName() file name},
+   * replacing any existing file of the same name.
+   * 
+   * @param sources the files to download, such as the results of a job
+   *          or the files of a bundle
+   * @param directory the directory to save the files in, which is
+   *          created if it does not exist
+   * @return the downloaded files, in the same order as the sources
+   * @throws RestClientException if any file could not be downloaded,
+   *           once all the others have been tried. Calling this method
+   *           again resumes the files that failed.
+   */
+  public List<File> download(List<? extends Downloadable> sources,
+          final File directory) {
+    directory.mkdirs();
+    List<Future<File>> futures = new ArrayList<Future<File>>();
+    ExecutorService executor =
+            Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(threads, sources.size())),
+                    DaemonThreadFactory.forRun("downloader"));
+    try {
+      for(final Downloadable source : sources) {
+        futures.add(executor.submit(new Callable<File>() {
+          public File call() {
+            return download(source, directory);
+          }
+        }));
+      }
+      return Futures.getAll(futures, "files failed to download");
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RestClientException("Interrupted while downloading", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Download a single file into a local directory, on the calling
+   * thread, retrying and resuming if the transfer fails.
+   * 
+   * @param source the file to download
+   * @param directory the directory to save the file in
+   * @return the downloaded file
+   * @throws RestClientException if the file could not be downloaded
+   */
+  public File download(Downloadable source, File directory) {
+    String name = source.fileName();
+    File target = new File(directory, name);
+    File partial = new File(directory, name + PARTIAL_SUFFIX);
+    File validator = new File(directory, name + VALIDATOR_SUFFIX);
+    // bytes left by an earlier run, which count as resumed only if
+    // the server lets us keep them
+    AtomicLong resumable = new AtomicLong(partial.length());
+    try {
+      for(int attempt = 1;; attempt++) {
+        try {
+          // re-uses a URL resolved earlier if it has not expired
+          fetch(source.urlToDownload(), partial, validator, resumable);
+          break;
+        } catch(IOException e) {
+          // the URL may have expired or been revoked, so don't re-use it
+          source.invalidate();
+          if(attempt >= maxAttempts) {
+            throw e;
+          }
+          Thread.sleep(RetryPolicy.backoff(attempt,
+                  BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS));
+        }
+      }
+      bytesResumed.addAndGet(resumable.get());
+      try {
+        Files.move(partial.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+      } catch(AtomicMoveNotSupportedException e) {
+        Files.move(partial.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+      }
+      validator.delete();
+      return target;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RestClientException("Interrupted while downloading " + name,
+              e);
+    } catch(IOException e) {
+      throw new RestClientException("Failed to download " + name, e);
+    }
+  }
+
+  /**
+   * Make one attempt to complete the given partial file from a download
+   * URL, carrying on from the end of whatever the file already holds.
+   * Returns normally only if the file is then complete. If any of the
+   * file's existing content has to be thrown away,
+   * <code>resumable</code> is set to zero.
+   */
+  private void fetch(URL url, File partial, File validator,
+          AtomicLong resumable) throws IOException {
+    long offset = partial.length();
+    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    if(offset > 0) {
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+      if(validator.isFile()) {
+        // if the file has changed the server sends all of it instead
+        connection.setRequestProperty("If-Range", new String(
+                Files.readAllBytes(validator.toPath()), "UTF-8"));
+      }
+    }
+    int code = connection.getResponseCode();
+    long total;
+    if(code == 206) {
+      Matcher m =
+              CONTENT_RANGE.matcher(String.valueOf(connection
+                      .getHeaderField("Content-Range")));
+      if(!m.matches() || m.group(1) == null
+              || Long.parseLong(m.group(1)) != offset) {
+        discard(connection);
+        restart(partial, validator, resumable);
+        throw new IOException("Unexpected Content-Range "
+                + connection.getHeaderField("Content-Range"));
+      }
+      total = "*".equals(m.group(2)) ? -1 : Long.parseLong(m.group(2));
+      if(!validator.isFile()) {
+        saveValidator(connection, validator);
+      }
+    } else if(code == 200) {
+      // the server sent the whole file, whether or not we asked for
+      // a range
+      offset = 0;
+      resumable.set(0);
+      total = connection.getContentLengthLong();
+      saveValidator(connection, validator);
+    } else if(code == 416 && offset > 0) {
+      // nothing left to send - the file is complete if its length
+      // matches the total reported by the server
+      Matcher m =
+              CONTENT_RANGE.matcher(String.valueOf(connection
+                      .getHeaderField("Content-Range")));
+      discard(connection);
+      if(m.matches() && String.valueOf(offset).equals(m.group(2))) {
+        return;
+      }
+      restart(partial, validator, resumable);
+      throw new IOException("Partial file " + partial
+              + " does not match the file on the server");
+    } else {
+      discard(connection);
+      throw new IOException("Download failed with response code " + code);
+    }
+
+    FileChannel out =
+            FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+    try {
+      out.truncate(offset);
+      out.position(offset);
+      ReadableByteChannel in = Channels.newChannel(connection.getInputStream());
+      try {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        while(in.read(buf) >= 0) {
+          buf.flip();
+          bytesDownloaded.addAndGet(buf.remaining());
+          while(buf.hasRemaining()) {
+            out.write(buf);
+          }
+          buf.clear();
+          if(Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted during download");
+          }
+        }
+      } finally {
+        in.close();
+      }
+      // make sure the data is on disk before the file is renamed
+      out.force(false);
+    } finally {
+      out.close();
+    }
+    long size = partial.length();
+    if(total >= 0 && size != total) {
+      if(size > total) {
+        restart(partial, validator, resumable);
+      }
+      throw new IOException("Expected " + total + " bytes but got " + size);
+    }
+  }
+
+  /**
+   * Throw away a partial file that cannot be resumed, so the next
+   * attempt starts from the beginning.
+   */
+  private static void restart(File partial, File validator,
+          AtomicLong resumable) {
+    partial.delete();
+    validator.delete();
+    resumable.set(0);
+  }
+
+  /**
+   * Save the value to send as <code>If-Range</code> when resuming the
+   * file from the given response: its <code>ETag</code> if that is a
+   * strong validator, otherwise its <code>Last-Modified</code> date. If
+   * the response has neither, any saved value is deleted.
+   */
+  private static void saveValidator(HttpURLConnection connection,
+          File validator) throws IOException {
+    String value = connection.getHeaderField("ETag");
+    if(value == null || value.startsWith("W/")) {
+      value = connection.getHeaderField("Last-Modified");
+    }
+    if(value == null) {
+      validator.delete();
+    } else {
+      Files.write(validator.toPath(), value.getBytes("UTF-8"));
+    }
+  }
+
+  /**
+   * Read and discard the body of an unwanted response, so the
+   * connection can be kept alive.
+   */
+  private static void discard(HttpURLConnection connection) {
+    InputStream body = connection.getErrorStream();
+    if(body == null) {
+      try {
+        body = connection.getInputStream();
+      } catch(IOException e) {
+        return;
+      }
+    }
+    try {
+      IOUtils.copy(body, NullOutputStream.NULL_OUTPUT_STREAM);
+    } catch(IOException e) {
+      // ignore, the connection will simply not be re-used
+    } finally {
+      IOUtils.closeQuietly(body);
+    }
+  }
+}
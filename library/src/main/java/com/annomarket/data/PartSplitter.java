@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import com.annomarket.common.InputType;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Finds the places where a large input file can be cut into parts that
+ * are each valid inputs of the same type. WARC files are cut between
+ * records (or between gzip members for compressed WARCs, which hold
+ * one record per member), and Twitter or DataSift streams between
+ * top-level JSON objects. Other types (ZIP, TAR, ARC and Twitter
+ * search results) cannot be cut and are always a single part.
+ * 
+ * @author Ian Roberts
+ */
+final class PartSplitter {
+
+  private PartSplitter() {
+  }
+
+  /**
+   * Work out the part boundaries for a file.
+   * 
+   * @param file the file to split
+   * @param type the type of data in the file
+   * @param partSize the target maximum part size. A part is only
+   *          larger than this if it holds a single record that is
+   *          larger by itself.
+   * @return the offsets of the part boundaries, starting with 0 and
+   *         ending with the file length, so part <code>i</code> runs
+   *         from <code>boundaries[i]</code> to
+   *         <code>boundaries[i + 1]</code>
+   * @throws IOException if the file cannot be read, or its contents
+   *           are not the expected format
+   */
+  static long[] boundaries(File file, InputType type, long partSize)
+          throws IOException {
+    long length = file.length();
+    Cutter cutter = new Cutter(partSize, length);
+    if(length > partSize) {
+      if(type == InputType.WARC) {
+        if(isGzip(file)) {
+          scanGzipMembers(file, cutter);
+        } else {
+          scanWarcRecords(file, cutter);
+        }
+      } else if(type == InputType.TWITTER_STREAM
+              || type == InputType.DATASIFT_STREAM) {
+        scanJsonObjects(file, cutter);
+      }
+    }
+    return cutter.finish();
+  }
+
+  private static boolean isGzip(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.length() >= 2 && raf.read() == 0x1f && raf.read() == 0x8b;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Report the end of each member of a (multi-member) gzip file. This
+   * has to inflate the whole file, as there is no other reliable way
+   * to find where each member ends.
+   */
+  private static void scanGzipMembers(File file, Cutter cutter)
+          throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    Inflater inflater = new Inflater(true);
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      byte[] buf = new byte[65536];
+      byte[] out = new byte[65536];
+      long pos = 0;
+      while(pos < length) {
+        channel.position(pos);
+        long header =
+                gzipHeaderLength(new BufferedInputStream(
+                        Channels.newInputStream(channel), 1024), pos);
+        inflater.reset();
+        long in = pos + header;
+        while(!inflater.finished()) {
+          if(inflater.needsInput()) {
+            int n = channel.read(ByteBuffer.wrap(buf), in);
+            if(n < 0) {
+              throw new EOFException("Truncated gzip member at offset "
+                      + pos);
+            }
+            inflater.setInput(buf, 0, n);
+            in += n;
+          }
+          try {
+            if(inflater.inflate(out) == 0 && inflater.needsDictionary()) {
+              throw new IOException("Invalid gzip member at offset " + pos);
+            }
+          } catch(DataFormatException e) {
+            throw new IOException("Invalid gzip member at offset " + pos, e);
+          }
+        }
+        // 8 byte trailer (CRC32 and size) follows the deflate data
+        pos += header + inflater.getBytesRead() + 8;
+        cutter.candidate(Math.min(pos, length));
+      }
+    } finally {
+      inflater.end();
+      raf.close();
+    }
+  }
+
+  private static final int FHCRC = 2;
+
+  private static final int FEXTRA = 4;
+
+  private static final int FNAME = 8;
+
+  private static final int FCOMMENT = 16;
+
+  /**
+   * Read a gzip member header and return its length in bytes.
+   */
+  private static long gzipHeaderLength(InputStream raw, long offset)
+          throws IOException {
+    CountingInputStream in = new CountingInputStream(raw);
+    if(readByte(in) != 0x1f || readByte(in) != 0x8b || readByte(in) != 8) {
+      throw new IOException("No gzip member at offset " + offset);
+    }
+    int flags = readByte(in);
+    // mtime, extra flags, OS
+    skip(in, 6);
+    if((flags & FEXTRA) != 0) {
+      skip(in, readByte(in) | (readByte(in) << 8));
+    }
+    if((flags & FNAME) != 0) {
+      while(readByte(in) != 0) {
+        // skip file name
+      }
+    }
+    if((flags & FCOMMENT) != 0) {
+      while(readByte(in) != 0) {
+        // skip comment
+      }
+    }
+    if((flags & FHCRC) != 0) {
+      skip(in, 2);
+    }
+    return in.getByteCount();
+  }
+
+  /**
+   * Report the start of each record in an uncompressed WARC file,
+   * using the Content-Length of each record to skip over its content.
+   */
+  private static void scanWarcRecords(File file, Cutter cutter)
+          throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long pos = 0;
+      while(true) {
+        channel.position(pos);
+        CountingInputStream in =
+                new CountingInputStream(new BufferedInputStream(
+                        Channels.newInputStream(channel), 4096));
+        // skip the blank lines that separate records
+        long recordStart;
+        String line;
+        do {
+          recordStart = pos + in.getByteCount();
+          line = readLine(in);
+        } while(line != null && line.length() == 0);
+        if(line == null) {
+          break;
+        }
+        if(!line.startsWith("WARC/")) {
+          throw new IOException("No WARC record at offset " + recordStart);
+        }
+        cutter.candidate(recordStart);
+        long contentLength = -1;
+        while((line = readLine(in)) != null && line.length() > 0) {
+          if(line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+            contentLength = Long.parseLong(line.substring(15).trim());
+          }
+        }
+        if(contentLength < 0) {
+          throw new IOException("WARC record at offset " + recordStart
+                  + " has no Content-Length");
+        }
+        pos += in.getByteCount() + contentLength;
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Report the end of each top-level JSON object in a stream of
+   * concatenated objects.
+   */
+  private static void scanJsonObjects(File file, Cutter cutter)
+          throws IOException {
+    JsonParser parser = new JsonFactory().createParser(file);
+    try {
+      while(parser.nextToken() != null) {
+        if(parser.getCurrentToken() == JsonToken.START_OBJECT
+                || parser.getCurrentToken() == JsonToken.START_ARRAY) {
+          parser.skipChildren();
+        }
+        long end = parser.getCurrentLocation().getByteOffset();
+        if(end < 0) {
+          throw new IOException("Cannot find byte offsets in " + file);
+        }
+        cutter.candidate(end);
+      }
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if(b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private static void skip(InputStream in, long n) throws IOException {
+    for(long i = 0; i < n; i++) {
+      readByte(in);
+    }
+  }
+
+  private static final int MAX_LINE_LENGTH = 65536;
+
+  /**
+   * Read an ISO-8859-1 line terminated by LF or CRLF, without the
+   * terminator, or <code>null</code> at end of file.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while((b = in.read()) >= 0 && b != '\n') {
+      if(line.length() == MAX_LINE_LENGTH) {
+        throw new IOException("Line too long for a WARC header");
+      }
+      line.append((char)b);
+    }
+    if(b < 0 && line.length() == 0) {
+      return null;
+    }
+    int len = line.length();
+    if(len > 0 && line.charAt(len - 1) == '\r') {
+      line.setLength(len - 1);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Chooses part boundaries from a sequence of candidate cut points in
+   * increasing order, making each part as large as possible without
+   * going over the part size.
+   */
+  private static class Cutter {
+    private final long partSize;
+
+    private final long length;
+
+    private final LongList cuts = new LongList();
+
+    private long partStart = 0;
+
+    private long lastCandidate = 0;
+
+    Cutter(long partSize, long length) {
+      this.partSize = partSize;
+      this.length = length;
+      cuts.add(0);
+    }
+
+    void candidate(long offset) {
+      if(offset - partStart > partSize && lastCandidate > partStart) {
+        cuts.add(lastCandidate);
+        partStart = lastCandidate;
+      }
+      lastCandidate = offset;
+    }
+
+    long[] finish() {
+      candidate(length);
+      if(partStart < length || cuts.size() == 1) {
+        cuts.add(length);
+      }
+      return cuts.toArray();
+    }
+  }
+
+  /**
+   * Minimal growable list of primitive longs.
+   */
+  private static class LongList {
+    private long[] values = new long[16];
+
+    private int size = 0;
+
+    void add(long value) {
+      if(size == values.length) {
+        long[] bigger = new long[size * 2];
+        System.arraycopy(values, 0, bigger, 0, size);
+        values = bigger;
+      }
+      values[size++] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long[] toArray() {
+      long[] result = new long[size];
+      System.arraycopy(values, 0, result, 0, size);
+      return result;
+    }
+  }
+}
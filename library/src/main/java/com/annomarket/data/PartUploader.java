@@ -0,0 +1,981 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+
+import com.annomarket.client.AsyncHttpTransport;
+import com.annomarket.client.DaemonThreadFactory;
+import com.annomarket.client.FileRangeProducer;
+import com.annomarket.client.Futures;
+import com.annomarket.client.PooledHttpTransport;
+import com.annomarket.client.RateLimiter;
+import com.annomarket.client.RestClientException;
+import com.annomarket.client.RetryPolicy;
+import com.annomarket.common.InputType;
+
+/**
+ * Uploads large local files as a number of separately uploaded parts,
+ * several at a time, optionally keeping a local journal so that an
+ * interrupted upload can be resumed without sending again the parts
+ * that were already accepted.
+ * <p>
+ * Each upload URL handed out by the server accepts a single PUT of a
+ * whole file, so parts are not byte ranges of one object but complete
+ * inputs in their own right - each part becomes a separate file in a
+ * {@link DataBundle} or a separate input of a job. Files are therefore
+ * only cut where the result is still a valid input: WARC files between
+ * records (or between gzip members for <code>.warc.gz</code> files,
+ * which normally hold one record per member), and Twitter and DataSift
+ * streams between JSON objects. Files of other types, and files no
+ * bigger than the part size, are uploaded as a single part (which can
+ * still be larger than 2GB), and are retried as a whole if the upload
+ * fails.
+ * <p>
+ * If the server rejects a part's upload URL with a 403 response (e.g.
+ * because it has expired since an earlier run recorded it in the
+ * journal), the empty part is {@link Target#discardPart discarded}
+ * and a new one is created in its place: a job input is removed
+ * before a new input is added, and a bundle entry is requested again
+ * under the same name for a fresh URL. Other error responses
+ * are retried with the same URL, like I/O errors.
+ * <p>
+ * Instances may be shared and used for several uploads, including
+ * concurrently.
+ * 
+ * @author Ian Roberts
+ */
+public class PartUploader {
+
+  /**
+   * Default target size of each part (512MB).
+   */
+  public static final long DEFAULT_PART_SIZE = 512L * 1024 * 1024;
+
+  /**
+   * Default number of parts to upload at the same time.
+   */
+  public static final int DEFAULT_THREADS = 4;
+
+  /**
+   * Default number of times to try uploading each part before giving
+   * up.
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  private static final long BASE_RETRY_DELAY_MILLIS = 1000L;
+
+  private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+
+  private static final int COPY_BUFFER_SIZE = 65536;
+
+  /**
+   * Timeouts for each upload request, the same as the defaults for API
+   * requests. The socket timeout applies to each wait for the server
+   * to accept more data or to send its response, not to the upload as
+   * a whole.
+   */
+  static final int CONNECT_TIMEOUT_MILLIS =
+          PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+  static final int SOCKET_TIMEOUT_MILLIS =
+          PooledHttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+
+  private static final RequestConfig UPLOAD_CONFIG = RequestConfig.custom()
+          .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+          .setSocketTimeout(SOCKET_TIMEOUT_MILLIS).build();
+
+  /**
+   * Where the parts of a file are uploaded to.
+   */
+  public interface Target {
+    /**
+     * Create the server-side home for a new part (e.g. a bundle entry
+     * or job input).
+     * 
+     * @param partName the file name for the part
+     * @return the new part, with the URL to which its data should be
+     *         PUT
+     */
+    public Part createPart(String partName);
+
+    /**
+     * Called once the data for a part has been uploaded, to finish
+     * setting the part up (e.g. to configure a job input).
+     */
+    public void partUploaded(Part part);
+
+    /**
+     * Discard a part whose upload URL was rejected before any data was
+     * stored, so that it can be replaced by a new one without leaving an
+     * empty part behind. Targets that can simply ask for a fresh URL
+     * for the same name need do nothing here.
+     * 
+     * @throws RestClientException if the part cannot be removed, in
+     *           which case the upload of that part fails
+     */
+    public void discardPart(Part part);
+
+    /**
+     * @return the transport over which to PUT the data of each part,
+     *         normally the asynchronous transport of the client that
+     *         created the target (see
+     *         {@link com.annomarket.client.RestClient#getAsyncTransport()}).
+     */
+    public AsyncHttpTransport getTransport();
+  }
+
+  /**
+   * A part created by a {@link Target}.
+   */
+  public static class Part {
+    private final URL putUrl;
+
+    private final String id;
+
+    /**
+     * @param putUrl the URL to which the part's data should be PUT
+     * @param id identifies the part to its target (e.g. the URL of a job
+     *          input), may be <code>null</code> if the target does not
+     *          need it
+     */
+    public Part(URL putUrl, String id) {
+      this.putUrl = putUrl;
+      this.id = id;
+    }
+
+    public URL getPutUrl() {
+      return putUrl;
+    }
+
+    public String getId() {
+      return id;
+    }
+  }
+
+  private final long partSize;
+
+  private final int threads;
+
+  private volatile File journalDirectory;
+
+  private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+  private volatile RateLimiter bandwidthLimiter;
+
+  private final AtomicLong bytesUploaded = new AtomicLong();
+
+  private final AtomicLong bytesSkipped = new AtomicLong();
+
+  /**
+   * Create an uploader with the default part size and number of
+   * threads.
+   */
+  public PartUploader() {
+    this(DEFAULT_PART_SIZE, DEFAULT_THREADS);
+  }
+
+  /**
+   * Create an uploader.
+   * 
+   * @param partSize target maximum size of each part, in bytes. A part
+   *          will only be bigger than this if it holds a single record
+   *          that is bigger by itself. Use {@link Long#MAX_VALUE} to
+   *          upload every file whole.
+   * @param threads the number of parts to upload at the same time
+   */
+  public PartUploader(long partSize, int threads) {
+    if(partSize <= 0 || threads <= 0) {
+      throw new IllegalArgumentException(
+              "partSize and threads must be positive");
+    }
+    this.partSize = partSize;
+    this.threads = threads;
+  }
+
+  /**
+   * Keep journals of upload progress in the given directory, so that if
+   * an upload is interrupted, uploading the same (unmodified) file to
+   * the same bundle or job again will only send the parts that were not
+   * finished. Journals are deleted once their upload completes.
+   * 
+   * @param journalDirectory directory to hold the journal files, or
+   *          <code>null</code> (the default) to keep no journal.
+   */
+  public void setJournalDirectory(File journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  public File getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * Set the number of times each part is tried before the upload is
+   * treated as failed.
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Limit the combined rate at which this uploader sends data, across
+   * all the parts it is uploading at the same time.
+   * 
+   * @param bytesPerSecond the maximum rate, or zero or negative (the
+   *          default) for no limit
+   */
+  public void setMaxBytesPerSecond(double bytesPerSecond) {
+    this.bandwidthLimiter =
+            (bytesPerSecond > 0) ? new RateLimiter(bytesPerSecond) : null;
+  }
+
+  public double getMaxBytesPerSecond() {
+    RateLimiter limiter = bandwidthLimiter;
+    return (limiter == null) ? 0 : limiter.getRate();
+  }
+
+  public long getPartSize() {
+    return partSize;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return the total number of bytes successfully uploaded by this
+   *         uploader.
+   */
+  public long getBytesUploaded() {
+    return bytesUploaded.get();
+  }
+
+  /**
+   * @return the total number of bytes that did not need to be uploaded
+   *         because the journal showed they had been uploaded before.
+   */
+  public long getBytesSkipped() {
+    return bytesSkipped.get();
+  }
+
+  /**
+   * Work out the part file names for a file split into the given
+   * number of parts. A single part keeps the original name, otherwise
+   * a part number is inserted before the extension so that the
+   * server still recognises the file type, e.g.
+   * <code>crawl.warc.gz</code> becomes
+   * <code>crawl-part001.warc.gz</code>.
+   */
+  static String partName(String fileName, int part, int parts) {
+    if(parts == 1) {
+      return fileName;
+    }
+    int digits = Math.max(3, String.valueOf(parts).length());
+    String number = String.valueOf(part + 1);
+    while(number.length() < digits) {
+      number = "0" + number;
+    }
+    int dot = fileName.indexOf('.', 1);
+    if(dot < 0) {
+      return fileName + "-part" + number;
+    } else {
+      return fileName.substring(0, dot) + "-part" + number
+              + fileName.substring(dot);
+    }
+  }
+
+  /**
+   * Upload a file, split into parts where possible.
+   * 
+   * @param file the file to upload
+   * @param type the type of data in the file, which determines whether
+   *          and where it can be split
+   * @param targetId a string identifying the target, such as the
+   *          bundle or job URL, used to match up an interrupted upload
+   *          with its journal
+   * @param target creates the server-side home of each part
+   * @return the names of all the parts of the file, including any that
+   *         had been uploaded before according to the journal
+   * @throws RestClientException if any part could not be uploaded. If
+   *           a journal directory has been set, the upload can be
+   *           resumed by calling this method again with the same
+   *           arguments.
+   */
+  public List<String> upload(File file, InputType type, String targetId,
+          Target target) {
+    return upload(Collections.singletonList(file), type, targetId, target);
+  }
+
+  /**
+   * Upload several files, split into parts where possible. The parts
+   * of all the files share the same pool of threads, so the creation
+   * of each part on the server overlaps with the upload of others, and
+   * small files are uploaded in parallel just like the parts of large
+   * ones.
+   * 
+   * @param files the files to upload
+   * @param type the type of data in the files
+   * @param targetId a string identifying the target, such as the
+   *          bundle or job URL, used to match up an interrupted upload
+   *          with its journal
+   * @param target creates the server-side home of each part
+   * @return the names of all the parts of all the files, in order
+   * @throws RestClientException if any part could not be uploaded. All
+   *           the other parts are still attempted.
+   */
+  public List<String> upload(List<File> files, InputType type,
+          String targetId, Target target) {
+    return upload(files, type, targetId, target, null);
+  }
+
+  /**
+   * Upload several files as above, notifying the given listener (if
+   * not <code>null</code>) as each file is completely uploaded, so the
+   * caller can keep track of which files succeeded even if others
+   * fail. When there is a listener, each part is hashed as it is sent,
+   * which means it is copied through a buffer rather than sent with
+   * <code>transferTo</code>.
+   */
+  List<String> upload(List<File> files, InputType type, String targetId,
+          Target target, FileListener listener) {
+    try {
+      File dir = journalDirectory;
+      List<String> names = new ArrayList<String>();
+      List<PartTask> tasks = new ArrayList<PartTask>();
+      List<UploadJournal> journals = new ArrayList<UploadJournal>();
+      for(File file : files) {
+        UploadJournal journal =
+                (dir == null) ? null : UploadJournal.open(dir, targetId,
+                        file, partSize);
+        long[] boundaries =
+                (journal == null) ? null : journal.getBoundaries();
+        if(boundaries == null) {
+          boundaries = splitPoints(file, type);
+          if(journal != null) {
+            journal.setBoundaries(boundaries);
+          }
+        }
+        if(journal != null) {
+          journals.add(journal);
+        }
+        int parts = boundaries.length - 1;
+        List<String> fileNames = new ArrayList<String>();
+        FileProgress progress =
+                (listener == null) ? null : new FileProgress(file, fileNames,
+                        parts, listener);
+        for(int i = 0; i < parts; i++) {
+          String name = partName(file.getName(), i, parts);
+          fileNames.add(name);
+          long length = boundaries[i + 1] - boundaries[i];
+          if(progress != null) {
+            progress.partLengths[i] = length;
+          }
+          if(journal != null && journal.isDone(i)) {
+            bytesSkipped.addAndGet(length);
+          } else {
+            tasks.add(new PartTask(file, i, name, boundaries[i], length,
+                    target, journal, progress));
+            if(progress != null) {
+              progress.remaining.incrementAndGet();
+            }
+          }
+        }
+        names.addAll(fileNames);
+        if(progress != null && progress.remaining.get() == 0) {
+          // every part was uploaded by an earlier attempt
+          progress.fileDone();
+        }
+      }
+
+      Batch batch = batch(tasks.size());
+      try {
+        for(PartTask task : tasks) {
+          batch.add(task);
+        }
+        batch.finish();
+      } finally {
+        // journals of files that are now complete are no longer needed
+        for(UploadJournal journal : journals) {
+          if(journal.isComplete()) {
+            journal.delete();
+          }
+        }
+      }
+      return names;
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+  }
+
+  /**
+   * Upload a sequence of archives, such as the parts produced by
+   * {@link DirectoryArchive#split DirectoryArchive.split}, each as a
+   * separate part. Each archive is built from its source files as it is
+   * uploaded, and is built again from scratch if the upload has to be
+   * retried.
+   * 
+   * @param archives the archives to upload
+   * @param fileName the file name to use for the archive, which has a
+   *          part number inserted if there is more than one archive
+   * @param target creates the server-side home of each part
+   * @return the names of the parts, in order
+   * @throws RestClientException if any part could not be uploaded. All
+   *           the other parts are still attempted.
+   */
+  public List<String> uploadArchives(List<DirectoryArchive> archives,
+          String fileName, Target target) {
+    List<String> names = new ArrayList<String>();
+    Batch batch = batch(archives.size());
+    for(int i = 0; i < archives.size(); i++) {
+      String name = partName(fileName, i, archives.size());
+      names.add(name);
+      batch.add(new PartTask(archives.get(i), name, target));
+    }
+    batch.finish();
+    return names;
+  }
+
+  /**
+   * Find the part boundaries for a file, falling back to a single part
+   * if the file does not have the structure its type would suggest.
+   */
+  private long[] splitPoints(File file, InputType type) {
+    try {
+      return PartSplitter.boundaries(file, type, partSize);
+    } catch(IOException e) {
+      return new long[] {0, file.length()};
+    }
+  }
+
+  /**
+   * Notified when all the parts of a file have been uploaded.
+   */
+  interface FileListener {
+    /**
+     * Called (on an upload thread) once every part of a file has been
+     * uploaded.
+     * 
+     * @param file the file
+     * @param partNames the names of the file's parts
+     * @param partLengths the length of each part
+     * @param partHashes the SHA-1 hash of each part as it was sent, as
+     *          a lower case hex string, or <code>null</code> for a part
+     *          that the journal showed had been uploaded by an earlier
+     *          attempt
+     */
+    void fileUploaded(File file, List<String> partNames, long[] partLengths,
+            String[] partHashes);
+  }
+
+  /**
+   * Counts down the parts of a file still to be uploaded, collecting
+   * their hashes, and notifies the listener when the last one
+   * completes.
+   */
+  private static class FileProgress {
+    final AtomicInteger remaining = new AtomicInteger();
+
+    final long[] partLengths;
+
+    private final String[] partHashes;
+
+    private final File file;
+
+    private final List<String> partNames;
+
+    private final FileListener listener;
+
+    FileProgress(File file, List<String> partNames, int parts,
+            FileListener listener) {
+      this.file = file;
+      this.partNames = partNames;
+      this.partLengths = new long[parts];
+      this.partHashes = new String[parts];
+      this.listener = listener;
+    }
+
+    void partDone(int part, String sha1) {
+      // the countdown publishes the hash to the thread that finishes
+      // the last part
+      partHashes[part] = sha1;
+      if(remaining.decrementAndGet() == 0) {
+        fileDone();
+      }
+    }
+
+    void fileDone() {
+      listener.fileUploaded(file, partNames, partLengths, partHashes);
+    }
+  }
+
+  /**
+   * Uploads one part, retrying with a backoff if it fails. A part is
+   * either a range of a file or a {@link DirectoryArchive}.
+   */
+  class PartTask implements Runnable {
+    private final File file;
+
+    private final DirectoryArchive archive;
+
+    private final int part;
+
+    private final String name;
+
+    private final long start;
+
+    private final long length;
+
+    private final Target target;
+
+    private final UploadJournal journal;
+
+    private final boolean deleteWhenDone;
+
+    private final FileProgress progress;
+
+    PartTask(File file, int part, String name, long start, long length,
+            Target target, UploadJournal journal, FileProgress progress) {
+      this(file, null, part, name, start, length, target, journal, false,
+              progress);
+    }
+
+    /**
+     * Upload the whole of a temporary file, deleting it once the upload
+     * has either succeeded or failed for the last time.
+     */
+    PartTask(File tempFile, String name, Target target) {
+      this(tempFile, null, 0, name, 0, tempFile.length(), target, null,
+              true, null);
+    }
+
+    /**
+     * Upload an archive, counting its exact length where known, or
+     * otherwise the size of the files it contains.
+     */
+    PartTask(DirectoryArchive archive, String name, Target target) {
+      this(null, archive, 0, name, 0, archive.getLength() >= 0 ? archive
+              .getLength() : archive.getContentLength(), target, null, false,
+              null);
+    }
+
+    private PartTask(File file, DirectoryArchive archive, int part,
+            String name, long start, long length, Target target,
+            UploadJournal journal, boolean deleteWhenDone,
+            FileProgress progress) {
+      this.file = file;
+      this.archive = archive;
+      this.part = part;
+      this.name = name;
+      this.start = start;
+      this.length = length;
+      this.target = target;
+      this.journal = journal;
+      this.deleteWhenDone = deleteWhenDone;
+      this.progress = progress;
+    }
+
+    public void run() {
+      try {
+        upload();
+      } finally {
+        if(deleteWhenDone) {
+          file.delete();
+        }
+      }
+    }
+
+    private void upload() {
+      try {
+        Part created = (journal == null) ? null : journal.getPart(part);
+        MessageDigest digest = (progress == null) ? null : sha1Digest();
+        for(int attempt = 1;; attempt++) {
+          try {
+            if(created == null) {
+              created = target.createPart(name);
+              if(journal != null) {
+                journal.setPart(part, created);
+              }
+            }
+            if(archive != null) {
+              archive.put(created.getPutUrl(), bandwidthLimiter);
+            } else {
+              put(created.getPutUrl(), file, start, length, bandwidthLimiter,
+                      target.getTransport(), digest);
+            }
+            break;
+          } catch(UploadRejectedException e) {
+            // most likely the upload URL has expired (e.g. one recorded
+            // by an earlier run), so the part has no data - let the
+            // target remove it before asking for a fresh one, or fail
+            // rather than leave an empty part behind
+            try {
+              target.discardPart(created);
+            } catch(RestClientException discardFailure) {
+              throw new IOException(e.getMessage() + ", and the empty part "
+                      + name + " could not be removed: "
+                      + discardFailure.getMessage(), e);
+            }
+            created = null;
+            if(journal != null) {
+              journal.setPart(part, null);
+            }
+            if(attempt >= maxAttempts) {
+              throw e;
+            }
+            Thread.sleep(RetryPolicy.backoff(attempt,
+                    BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS));
+          } catch(IOException e) {
+            if(attempt >= maxAttempts) {
+              throw e;
+            }
+            Thread.sleep(RetryPolicy.backoff(attempt,
+                    BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS));
+          }
+        }
+        target.partUploaded(created);
+        bytesUploaded.addAndGet(length);
+        if(journal != null) {
+          journal.setDone(part);
+        }
+        if(progress != null) {
+          progress.partDone(part, DatatypeConverter.printHexBinary(
+                  digest.digest()).toLowerCase());
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RestClientException("Interrupted while uploading " + name,
+                e);
+      } catch(IOException e) {
+        throw new RestClientException("Failed to upload " + name, e);
+      }
+    }
+  }
+
+  /**
+   * Start a new batch of uploads using this uploader's threads.
+   */
+  Batch batch(int expectedParts) {
+    return new Batch(expectedParts);
+  }
+
+  /**
+   * A set of part uploads sharing one pool of threads. Parts can be
+   * added while earlier ones are still uploading, but no more than
+   * twice as many parts as there are threads may be waiting or in
+   * progress at once - adding another blocks until one finishes, which
+   * bounds the temporary space used by callers that produce parts on
+   * the fly.
+   */
+  class Batch {
+    private final ExecutorService executor;
+
+    private final Semaphore pending;
+
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    /**
+     * @param expectedParts the number of parts expected, if known, so
+     *          that small batches do not start more threads than they
+     *          need.
+     */
+    Batch(int expectedParts) {
+      int poolSize = Math.max(1, Math.min(threads, expectedParts));
+      executor = Executors.newFixedThreadPool(poolSize,
+              DaemonThreadFactory.forRun("part-uploader"));
+      pending = new Semaphore(2 * poolSize);
+    }
+
+    /**
+     * Queue a part for upload, waiting if too many are already pending.
+     */
+    void add(final PartTask task) {
+      try {
+        pending.acquire();
+      } catch(InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new RestClientException("Interrupted while uploading", e);
+      }
+      futures.add(executor.submit(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            pending.release();
+          }
+        }
+      }));
+    }
+
+    /**
+     * Queue a temporary file for upload as a whole. The file is deleted
+     * once it has been uploaded, or once the last attempt has failed.
+     */
+    void addTempFile(File file, String name, Target target) {
+      add(new PartTask(file, name, target));
+    }
+
+    /**
+     * Wait for all the parts to finish and shut down the threads.
+     * 
+     * @throws RestClientException if any part failed
+     */
+    void finish() {
+      try {
+        Futures.getAll(futures, "parts failed to upload");
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RestClientException("Interrupted while uploading", e);
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * PUT a whole file to an upload URL, such as the <code>putUrl</code>
+   * of a new job input or bundle entry. Over plain HTTP the file is
+   * sent with zero-copy <code>transferTo</code> by the given transport.
+   * 
+   * @param putUrl the URL to upload to
+   * @param file the file to upload
+   * @param transport the transport to send the request over, normally
+   *          the asynchronous transport of the client that supplied the
+   *          URL
+   * @throws IOException if the upload fails or the server rejects it
+   */
+  public static void put(URL putUrl, File file, AsyncHttpTransport transport)
+          throws IOException {
+    put(putUrl, file, 0, file.length(), null, transport, null);
+  }
+
+  /**
+   * PUT a range of bytes from a file to the given URL. Plain uploads go
+   * through a {@link FileRangeProducer} on the given transport, so the
+   * data does not pass through the Java heap. Rate limited or hashed
+   * uploads are copied through a buffer, so the limiter can be
+   * consulted between writes without blocking an I/O thread, and the
+   * digest sees exactly the bytes that were sent.
+   * 
+   * @param limiter limits the upload rate, may be <code>null</code>
+   * @param digest reset and then updated with the bytes sent, may be
+   *          <code>null</code>
+   */
+  static void put(URL putUrl, File file, long start, long length,
+          RateLimiter limiter, AsyncHttpTransport transport,
+          MessageDigest digest) throws IOException {
+    int code =
+            (limiter == null && digest == null)
+                    ? transfer(putUrl, file, start, length, transport)
+                    : stream(putUrl, file, start, length, limiter, digest);
+    checkStatus(code, "Upload of " + file);
+  }
+
+  /**
+   * Throw an exception if the given response code from an upload does
+   * not indicate success. A 403 response, which is what an expired or
+   * otherwise invalid upload URL produces, throws an
+   * {@link UploadRejectedException}, which tells the part uploader that
+   * retrying with the same URL is pointless. Any other failure is an
+   * ordinary <code>IOException</code> and is retried with the same URL.
+   */
+  static void checkStatus(int code, String what) throws IOException {
+    if(code == HttpURLConnection.HTTP_FORBIDDEN) {
+      throw new UploadRejectedException(what + " rejected with response code "
+              + code);
+    } else if(code >= 300) {
+      throw new IOException(what + " failed with response code " + code);
+    }
+  }
+
+  /**
+   * PUT a range of a file using the non-blocking transport, and return
+   * the response code.
+   */
+  private static int transfer(URL putUrl, File file, long start,
+          long length, AsyncHttpTransport transport) throws IOException {
+    Future<HttpResponse> response;
+    try {
+      FileRangeProducer producer =
+              new FileRangeProducer(putUrl.toURI(), file, start, length,
+                      "application/octet-stream");
+      producer.setRequestConfig(UPLOAD_CONFIG);
+      response =
+              transport.execute(producer, new BasicAsyncResponseConsumer(),
+                      null);
+    } catch(URISyntaxException e) {
+      throw new IOException("Invalid upload URL " + putUrl, e);
+    }
+    try {
+      return response.get().getStatusLine().getStatusCode();
+    } catch(InterruptedException e) {
+      response.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during upload");
+    } catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException("Upload of " + file + " failed", e.getCause());
+    }
+  }
+
+  /**
+   * PUT a range of a file through an <code>HttpURLConnection</code>,
+   * and return the response code.
+   */
+  private static int stream(URL putUrl, File file, long start, long length,
+          RateLimiter limiter, MessageDigest digest) throws IOException {
+    HttpURLConnection putConnection = openPut(putUrl);
+    putConnection.setRequestProperty("Content-Type",
+            "application/octet-stream");
+    putConnection.setFixedLengthStreamingMode(length);
+    InputStream in = new FileInputStream(file);
+    try {
+      IOUtils.skipFully(in, start);
+      if(digest != null) {
+        // start afresh, as an earlier attempt may have been cut short
+        digest.reset();
+        in = new DigestInputStream(in, digest);
+      }
+      OutputStream out = putConnection.getOutputStream();
+      try {
+        copy(in, out, length, limiter);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    return responseCode(putConnection);
+  }
+
+  /**
+   * @return a new SHA-1 digest.
+   */
+  static MessageDigest sha1Digest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 not available", e);
+    }
+  }
+
+  /**
+   * Open a connection for a PUT request with the upload timeouts.
+   */
+  static HttpURLConnection openPut(URL putUrl) throws IOException {
+    HttpURLConnection putConnection =
+            (HttpURLConnection)putUrl.openConnection();
+    putConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    putConnection.setReadTimeout(SOCKET_TIMEOUT_MILLIS);
+    putConnection.setDoOutput(true);
+    putConnection.setRequestMethod("PUT");
+    return putConnection;
+  }
+
+  /**
+   * Get the response code of a completed upload, reading and discarding
+   * the response body so the connection can be kept alive.
+   */
+  static int responseCode(HttpURLConnection connection) throws IOException {
+    int code = connection.getResponseCode();
+    InputStream response =
+            (code >= 400) ? connection.getErrorStream() : connection
+                    .getInputStream();
+    if(response != null) {
+      try {
+        IOUtils.copy(response, NullOutputStream.NULL_OUTPUT_STREAM);
+      } finally {
+        IOUtils.closeQuietly(response);
+      }
+    }
+    return code;
+  }
+
+  /**
+   * Copy the given number of bytes, waiting for the rate limiter (if
+   * any) before each write.
+   */
+  private static void copy(InputStream in, OutputStream out, long length,
+          RateLimiter limiter) throws IOException {
+    byte[] buf = new byte[COPY_BUFFER_SIZE];
+    long remaining = length;
+    while(remaining > 0) {
+      int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+      if(n < 0) {
+        throw new EOFException("File is shorter than expected");
+      }
+      if(limiter != null) {
+        try {
+          limiter.acquire(n);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted during upload");
+        }
+      }
+      out.write(buf, 0, n);
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Thrown when the server refuses an upload URL with a 403 response.
+   */
+  private static class UploadRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    UploadRejectedException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of a {@link DataBundle#sync DataBundle.sync} operation - which
+ * local files were uploaded and which were skipped because the bundle
+ * already held an identical copy.
+ * 
+ * @author Ian Roberts
+ */
+public class SyncResult {
+
+  private final List<String> uploadedFiles = new ArrayList<String>();
+
+  private final List<String> unchangedFiles = new ArrayList<String>();
+
+  private long bytesUploaded;
+
+  private long bytesSaved;
+
+  synchronized void uploaded(String fileName, long size) {
+    uploadedFiles.add(fileName);
+    bytesUploaded += size;
+  }
+
+  synchronized void unchanged(String fileName, long size) {
+    unchangedFiles.add(fileName);
+    bytesSaved += size;
+  }
+
+  /**
+   * @return the names of the local files that were new or had changed,
+   *         and were uploaded.
+   */
+  public synchronized List<String> getUploadedFiles() {
+    return Collections.unmodifiableList(new ArrayList<String>(uploadedFiles));
+  }
+
+  /**
+   * @return the names of the local files that were already in the
+   *         bundle, and were not uploaded again.
+   */
+  public synchronized List<String> getUnchangedFiles() {
+    return Collections
+            .unmodifiableList(new ArrayList<String>(unchangedFiles));
+  }
+
+  /**
+   * @return the total size of the files that were uploaded.
+   */
+  public synchronized long getBytesUploaded() {
+    return bytesUploaded;
+  }
+
+  /**
+   * @return the total size of the unchanged files, which did not need
+   *         to be uploaded again.
+   */
+  public synchronized long getBytesSaved() {
+    return bytesSaved;
+  }
+}
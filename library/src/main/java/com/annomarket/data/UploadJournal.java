@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Local record of the progress of a {@link PartUploader} upload, so an
+ * interrupted upload can carry on from where it stopped. One journal
+ * file is kept per combination of source file (path, size and
+ * modification time), upload target and part size, so a journal is
+ * never applied to a file that has changed since it was written. The
+ * journal is rewritten (atomically where the file system allows) each
+ * time a part changes state.
+ * 
+ * @author Ian Roberts
+ */
+final class UploadJournal {
+
+  private final File file;
+
+  private final Properties props = new Properties();
+
+  private UploadJournal(File file) throws IOException {
+    this.file = file;
+    if(file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        props.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Open the journal for an upload, creating an empty one if this
+   * upload has not been started before.
+   * 
+   * @param directory the directory holding journal files
+   * @param target identifies where the parts are uploaded to, e.g. the
+   *          bundle URL
+   * @param source the file being uploaded
+   * @param partSize the target part size
+   */
+  static UploadJournal open(File directory, String target, File source,
+          long partSize) throws IOException {
+    String key =
+            target + "\n" + source.getCanonicalPath() + "\n"
+                    + source.length() + "\n" + source.lastModified() + "\n"
+                    + partSize;
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      String name =
+              DatatypeConverter.printHexBinary(
+                      sha1.digest(key.getBytes("UTF-8"))).toLowerCase();
+      return new UploadJournal(new File(directory, name + ".journal"));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 not available", e);
+    }
+  }
+
+  /**
+   * @return the part boundaries recorded for this upload, or
+   *         <code>null</code> if they have not been recorded yet.
+   */
+  synchronized long[] getBoundaries() {
+    String value = props.getProperty("boundaries");
+    if(value == null) {
+      return null;
+    }
+    String[] items = value.split(",");
+    long[] boundaries = new long[items.length];
+    for(int i = 0; i < items.length; i++) {
+      boundaries[i] = Long.parseLong(items[i]);
+    }
+    return boundaries;
+  }
+
+  synchronized void setBoundaries(long[] boundaries) throws IOException {
+    StringBuilder value = new StringBuilder();
+    for(long b : boundaries) {
+      if(value.length() > 0) value.append(',');
+      value.append(b);
+    }
+    props.setProperty("boundaries", value.toString());
+    save();
+  }
+
+  /**
+   * @return the part that was created for the given part number, or
+   *         <code>null</code> if it has not been created yet.
+   */
+  synchronized PartUploader.Part getPart(int part) throws IOException {
+    String url = props.getProperty("url." + part);
+    if(url == null) {
+      return null;
+    }
+    return new PartUploader.Part(new URL(url), props.getProperty("id."
+            + part));
+  }
+
+  synchronized void setPart(int part, PartUploader.Part created)
+          throws IOException {
+    props.remove("url." + part);
+    props.remove("id." + part);
+    if(created != null) {
+      props.setProperty("url." + part, created.getPutUrl().toString());
+      if(created.getId() != null) {
+        props.setProperty("id." + part, created.getId());
+      }
+    }
+    save();
+  }
+
+  synchronized boolean isDone(int part) {
+    return props.containsKey("done." + part);
+  }
+
+  synchronized void setDone(int part) throws IOException {
+    props.setProperty("done." + part, "true");
+    save();
+  }
+
+  /**
+   * @return <code>true</code> if every part of the file has been
+   *         uploaded.
+   */
+  synchronized boolean isComplete() {
+    long[] boundaries = getBoundaries();
+    if(boundaries == null) {
+      return false;
+    }
+    for(int i = 0; i < boundaries.length - 1; i++) {
+      if(!isDone(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove the journal once the upload is complete.
+   */
+  synchronized void delete() {
+    file.delete();
+  }
+
+  private void save() throws IOException {
+    store(props, file);
+  }
+
+  /**
+   * Write a properties file via a temporary file, which is moved into
+   * place atomically where the file system allows, so a crash part way
+   * through never leaves a truncated file.
+   */
+  static void store(Properties props, File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    dir.mkdirs();
+    File tmp = new File(dir, file.getName() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      props.store(out, null);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(),
+              StandardCopyOption.ATOMIC_MOVE);
+    } catch(AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(),
+              StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -17,24 +17,31 @@
 package com.annomarket.job;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.DatatypeConverter;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.http.concurrent.FutureCallback;
 
+import com.annomarket.client.AsyncHttpTransport;
 import com.annomarket.client.RestClientException;
 import com.annomarket.common.InputType;
 import com.annomarket.common.Prices;
 import com.annomarket.data.DataBundle;
+import com.annomarket.data.DirectoryArchive;
+import com.annomarket.data.ParallelDownloader;
+import com.annomarket.data.PartUploader;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -237,6 +244,97 @@ public class Job extends JobSummary {
             fileExtensions, null);
   }
 
+  /**
+   * Upload a large local stream of Tweets (or DataSift items) as input
+   * to this job, split into several parts that are uploaded in
+   * parallel. Each part becomes a separate input of the job. Other
+   * archive types are uploaded as a single part. See
+   * {@link PartUploader} for details of how files are split, and how
+   * to resume an interrupted upload.
+   * 
+   * @param inputFile the local file to upload
+   * @param inputType the type of the input
+   * @param encoding character encoding to use when reading entries from
+   *          the archive. If <code>null</code>, UTF-8 will be used.
+   *          Should be left as <code>null</code> for Twitter input
+   *          types.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archive. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension.
+   *          Should be left as <code>null</code> for Twitter input
+   *          types.
+   * @param fileExtensions comma-separated list of file extensions that
+   *          will be processed. Entries that do not match any of these
+   *          extensions will be ignored. If <code>null</code> all
+   *          entries that represent files (as opposed to directories)
+   *          will be processed. Should be left as <code>null</code> for
+   *          Twitter input types.
+   * @param uploader the uploader to use
+   * @return the file names of the inputs created for the file
+   */
+  public List<String> addArchiveInput(File inputFile, InputType inputType,
+          String encoding, String mimeTypeOverride, String fileExtensions,
+          PartUploader uploader) {
+    if(inputType == InputType.ARC || inputType == InputType.WARC) {
+      throw new RestClientException("For ARC and WARC files use addARCInput");
+    }
+    return addUploadInputs(inputFile, inputType, encoding,
+            mimeTypeOverride, fileExtensions, null, uploader);
+  }
+
+  /**
+   * Upload the files under a local directory as a ZIP or TAR input to
+   * this job. The archive is built on the fly as it is uploaded, so no
+   * temporary file is needed, and files that do not match the given
+   * extensions are left out of it. A ZIP archive is uncompressed and
+   * must be under 4GB, so TAR is the better choice for large
+   * directories. See {@link DirectoryArchive} for details.
+   * 
+   * @param directory the local directory to upload. Its name, plus
+   *          ".tar" or ".zip", will be used as the file name of the
+   *          input.
+   * @param inputType the type of the archive, TAR or ZIP
+   * @param encoding character encoding to use when reading entries from
+   *          the archive. If <code>null</code>, UTF-8 will be used.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archive. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension.
+   * @param fileExtensions comma-separated list of file extensions that
+   *          will be processed. Files that do not match any of these
+   *          extensions will not be uploaded. If <code>null</code> all
+   *          files will be uploaded and processed.
+   * @return details of the newly-created input specification.
+   */
+  public InputDetails addDirectoryInput(File directory, InputType inputType,
+          String encoding, String mimeTypeOverride, String fileExtensions) {
+    if(inputType != InputType.ZIP && inputType != InputType.TAR) {
+      throw new RestClientException(
+              "Directories can only be uploaded as ZIP or TAR inputs");
+    }
+    DirectoryArchive archive;
+    try {
+      archive = new DirectoryArchive(directory, inputType, fileExtensions);
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+    ObjectNode request = JsonNodeFactory.instance.objectNode();
+    request.put("fileName", directory.getName() + "."
+            + inputType.name().toLowerCase(Locale.ENGLISH));
+    // create the input
+    InputDetails input =
+            client.post(url + "/input", new TypeReference<InputDetails>() {
+            }, request);
+    try {
+      // upload the archive
+      archive.put(input.putUrl);
+    } catch(IOException e) {
+      throw new RestClientException(e);
+    }
+    // configure the input
+    return configureInput(input.url, inputType, encoding, mimeTypeOverride,
+            fileExtensions, null);
+  }
+
   /**
    * Point to an "archive" file (zip, tar{.gz|.bz2}, or a Twitter search
    * result or stream of Tweets) on Amazon S3 as input to this job.
@@ -304,6 +402,40 @@ public class Job extends JobSummary {
             null, mimeTypes);
   }
 
+  /**
+   * Upload a large local WARC file as input to this job, split into
+   * several parts that are uploaded in parallel. Each part becomes a
+   * separate input of the job. See {@link PartUploader} for details of
+   * how files are split, and how to resume an interrupted upload.
+   * 
+   * @param inputFile the local file to upload
+   * @param inputType the type of the input (must be ARC or WARC, but
+   *          ARC files are always uploaded as a single part)
+   * @param encoding character encoding to use when reading entries from
+   *          the archive. If <code>null</code>, the ARC entry headers
+   *          will be used to guess an appropriate encoding for each
+   *          entry.
+   * @param mimeTypeOverride the MIME type to use when parsing entries
+   *          from the archive. If <code>null</code> the appropriate
+   *          type will be guessed based on the file name extension and
+   *          HTTP headers from the ARC entry.
+   * @param mimeTypes space-separated list of MIME types used to filter
+   *          the entries of interest from the ARC file. Entries whose
+   *          MIME type does not match any of these will be ignored.
+   * @param uploader the uploader to use
+   * @return the file names of the inputs created for the file
+   */
+  public List<String> addARCInput(File inputFile, InputType inputType,
+          String encoding, String mimeTypeOverride, String mimeTypes,
+          PartUploader uploader) {
+    if(inputType != InputType.ARC && inputType != InputType.WARC) {
+      throw new RestClientException(
+              "addArcInput only applicable to ARC and WARC inputs");
+    }
+    return addUploadInputs(inputFile, inputType, encoding,
+            mimeTypeOverride, null, mimeTypes, uploader);
+  }
+
   /**
    * Point to an Internet Archive or WARC file on Amazon S3 as input to
    * this job.
@@ -354,21 +486,7 @@ public class Job extends JobSummary {
             }, request);
     try {
       // upload the file
-      HttpURLConnection putConnection =
-              (HttpURLConnection)input.putUrl.openConnection();
-      putConnection.setDoOutput(true);
-      putConnection.setRequestMethod("PUT");
-      putConnection.setRequestProperty("Content-Type",
-              "application/octet-stream");
-      putConnection.setFixedLengthStreamingMode((int)inputFile.length());
-      FileInputStream in = new FileInputStream(inputFile);
-      OutputStream out = putConnection.getOutputStream();
-      try {
-        IOUtils.copy(in, out);
-      } finally {
-        IOUtils.closeQuietly(in);
-        IOUtils.closeQuietly(out);
-      }
+      PartUploader.put(input.putUrl, inputFile, client.getAsyncTransport());
     } catch(IOException e) {
       throw new RestClientException(e);
     }
@@ -377,6 +495,43 @@ public class Job extends JobSummary {
             fileExtensions, mimeTypes);
   }
 
+  /**
+   * Common implementation for uploads split into parts, where each
+   * part is created and configured as a separate input.
+   */
+  protected List<String> addUploadInputs(File inputFile,
+          final InputType inputType, final String encoding,
+          final String mimeTypeOverride, final String fileExtensions,
+          final String mimeTypes, PartUploader uploader) {
+    return uploader.upload(inputFile, inputType, url,
+            new PartUploader.Target() {
+              public PartUploader.Part createPart(String partName) {
+                ObjectNode request = JsonNodeFactory.instance.objectNode();
+                request.put("fileName", partName);
+                InputDetails input =
+                        client.post(url + "/input",
+                                new TypeReference<InputDetails>() {
+                                }, request);
+                return new PartUploader.Part(input.putUrl, input.url);
+              }
+
+              public void partUploaded(PartUploader.Part part) {
+                // only configure the input once it has its data, as for
+                // addUploadInput
+                configureInput(part.getId(), inputType, encoding,
+                        mimeTypeOverride, fileExtensions, mimeTypes);
+              }
+
+              public void discardPart(PartUploader.Part part) {
+                client.delete(part.getId());
+              }
+
+              public AsyncHttpTransport getTransport() {
+                return client.getAsyncTransport();
+              }
+            });
+  }
+
   /**
    * Common implementation for all S3-based inputs.
    */
@@ -620,6 +775,61 @@ public class Job extends JobSummary {
     });
   }
 
+  /**
+   * Download all the results of this job into a local directory,
+   * several files at a time, resuming any partial downloads left by an
+   * earlier attempt. See {@link ParallelDownloader} for details.
+   * 
+   * @param directory the directory to save the results in
+   * @param downloader the downloader to use
+   * @return the downloaded files
+   * @throws RestClientException if any result could not be downloaded,
+   *           once all the others have been tried
+   */
+  public List<File> downloadResults(File directory,
+          ParallelDownloader downloader) {
+    List<JobResult> results = results();
+    // resolve all the download URLs in one go rather than one at a time
+    // in the download threads
+    try {
+      resultUrlsToDownload(results);
+    } catch(RestClientException e) {
+      // best effort - URLs that did resolve are cached, and each
+      // download resolves its own URL if it is not
+    }
+    return downloader.download(results, directory);
+  }
+
+  /**
+   * Get download URLs for all the report files of this job. The
+   * redirect requests for the URLs are sent concurrently rather than one
+   * after another, and the resulting URLs are cached so later calls to
+   * {@link JobResult#urlToDownload()} re-use them while they remain
+   * valid.
+   * 
+   * @return a map from each result to a (time-limited) URL from which
+   *         it can be downloaded, in the order of {@link #results()}
+   * @throws RestClientException if any of the URLs could not be
+   *           obtained
+   */
+  public Map<JobResult, URL> resultUrlsToDownload() {
+    return resultUrlsToDownload(results());
+  }
+
+  private Map<JobResult, URL> resultUrlsToDownload(List<JobResult> results) {
+    List<URL> sources = new ArrayList<URL>(results.size());
+    for(JobResult r : results) {
+      sources.add(r.url);
+    }
+    Map<URL, URL> targets =
+            client.getRedirectResolver().resolveAll(sources);
+    Map<JobResult, URL> urls = new LinkedHashMap<JobResult, URL>();
+    for(JobResult r : results) {
+      urls.put(r, targets.get(r.url));
+    }
+    return urls;
+  }
+
   /**
    * Retrieve the data bundle containing this job's results.
    * 
@@ -642,6 +852,20 @@ public class Job extends JobSummary {
     client.getForUpdate(url, this);
   }
 
+  /**
+   * Refresh this job's data from the server without blocking the
+   * calling thread. This is useful when polling the progress of many
+   * jobs at once.
+   * 
+   * @param callback callback to be notified with this job once it has
+   *          been updated. May be <code>null</code>.
+   * @return a {@link Future} that completes with this job once it has
+   *         been updated.
+   */
+  public Future<Job> refreshAsync(FutureCallback<Job> callback) {
+    return client.getForUpdateAsync(url, this, callback);
+  }
+
   /**
    * Delete this job, which also deletes any output files that are
    * stored in the default AnnoMarket-managed location.
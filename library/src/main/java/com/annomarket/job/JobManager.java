@@ -19,9 +19,13 @@ package com.annomarket.job;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import com.annomarket.client.RestClient;
 import com.annomarket.client.RestClientException;
+import com.annomarket.client.TransformingCallback;
 import com.fasterxml.jackson.core.type.TypeReference;
 
 /**
@@ -67,6 +71,31 @@ public class JobManager {
    */
   public List<JobSummary> listJobs(JobState... states)
           throws RestClientException {
+    return client.get(jobsUrl(states), new TypeReference<List<JobSummary>>() {
+    });
+  }
+
+  /**
+   * List all the jobs owned by the authenticated user that are in the
+   * specified states, without blocking the calling thread.
+   * 
+   * @param callback callback to be notified with the list of jobs. May
+   *          be <code>null</code>.
+   * @param states states of interest. If not specified, the default is
+   *          to return RESERVED, READY, ACTIVE and COMPLETED jobs.
+   * @return a {@link Future} for the list of matching jobs
+   */
+  public Future<List<JobSummary>> listJobsAsync(
+          FutureCallback<List<JobSummary>> callback, JobState... states) {
+    return client.getAsync(jobsUrl(states),
+            new TypeReference<List<JobSummary>>() {
+            }, callback);
+  }
+
+  /**
+   * Build the URL for listing jobs in the given states.
+   */
+  private String jobsUrl(JobState... states) {
     StringBuilder urlBuilder = new StringBuilder("job");
     if(states != null && states.length > 0) {
       try {
@@ -81,9 +110,7 @@ public class JobManager {
         throw new RuntimeException("JVM claims not to support UTF-8...", e);
       }
     }
-    return client.get(urlBuilder.toString(),
-            new TypeReference<List<JobSummary>>() {
-            });
+    return urlBuilder.toString();
   }
 
   /**
@@ -99,6 +126,29 @@ public class JobManager {
     return j;
   }
 
+  /**
+   * Get an individual job by ID, without blocking the calling thread.
+   * 
+   * @param id the ID of the job
+   * @param callback callback to be notified with the job details. May
+   *          be <code>null</code>.
+   * @return a {@link Future} for the details of the requested job.
+   */
+  public Future<Job> getJobAsync(long id, FutureCallback<Job> callback) {
+    final String url = client.getBaseUrl().toString() + "job/" + id;
+    TransformingCallback<Job, Job> setUrl =
+            new TransformingCallback<Job, Job>(callback) {
+              @Override
+              protected Job transform(Job j) {
+                j.url = url;
+                return j;
+              }
+            };
+    setUrl.setSource(client.getAsync("job/" + id, new TypeReference<Job>() {
+    }, setUrl));
+    return setUrl.getFuture();
+  }
+
   /**
    * Fetch details of a specific job input specification given its
    * detail URL.
@@ -16,6 +16,11 @@
  */
 package com.annomarket.job;
 
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import com.annomarket.client.TransformingCallback;
 import com.annomarket.common.ApiObject;
 import com.fasterxml.jackson.core.type.TypeReference;
 
@@ -48,4 +53,26 @@ public class JobSummary extends ApiObject {
     return details;
   }
 
+  /**
+   * Fetch the full details of this job without blocking the calling
+   * thread.
+   * 
+   * @param callback callback to be notified with the job details. May
+   *          be <code>null</code>.
+   * @return a {@link Future} for the full job details.
+   */
+  public Future<Job> detailsAsync(FutureCallback<Job> callback) {
+    TransformingCallback<Job, Job> setUrl =
+            new TransformingCallback<Job, Job>(callback) {
+              @Override
+              protected Job transform(Job details) {
+                details.url = url;
+                return details;
+              }
+            };
+    setUrl.setSource(client.getAsync(url, new TypeReference<Job>() {
+    }, setUrl));
+    return setUrl.getFuture();
+  }
+
 }
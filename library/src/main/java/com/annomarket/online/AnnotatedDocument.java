@@ -16,6 +16,8 @@
  */
 package com.annomarket.online;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +38,12 @@ import com.fasterxml.jackson.databind.JsonNode;
  * <li>possibly other features, if the original document was JSON</li>
  * </ul>
  * 
+ * To find the annotations of a given type that overlap, contain or
+ * cover a particular span, use the query methods such as
+ * {@link #getOverlapping getOverlapping}, which use an
+ * {@link OffsetIndex} built the first time each type is queried rather
+ * than scanning the whole list.
+ * 
  * @author Ian Roberts
  */
 public class AnnotatedDocument extends ApiObject {
@@ -71,4 +79,118 @@ public class AnnotatedDocument extends ApiObject {
     if(otherFeatures == null) otherFeatures = new HashMap<String, JsonNode>();
     otherFeatures.put(name, value);
   }
+
+  /**
+   * Offset indexes built so far, keyed by annotation type.
+   */
+  private transient Map<String, IndexEntry> indexes;
+
+  /**
+   * Get the offset index for the annotations of the given type,
+   * building it if necessary. Positions in the index refer to the list
+   * <code>entities.get(type)</code>. The index is rebuilt automatically
+   * if that list is replaced or changes size, but if you change the
+   * offsets of existing annotations you must call
+   * {@link #clearIndexes()}.
+   * 
+   * @return the index, or <code>null</code> if there are no annotations
+   *         of this type.
+   */
+  public synchronized OffsetIndex getIndex(String type) {
+    List<Annotation> annots = (entities == null) ? null : entities.get(type);
+    if(annots == null) {
+      return null;
+    }
+    if(indexes == null) {
+      indexes = new HashMap<String, IndexEntry>();
+    }
+    IndexEntry entry = indexes.get(type);
+    if(entry == null || entry.annotations != annots
+            || entry.size != annots.size()) {
+      long[] starts = new long[annots.size()];
+      long[] ends = new long[annots.size()];
+      for(int i = 0; i < starts.length; i++) {
+        Annotation a = annots.get(i);
+        starts[i] = a.startOffset;
+        ends[i] = a.endOffset;
+      }
+      entry = new IndexEntry(annots, new OffsetIndex(starts, ends));
+      indexes.put(type, entry);
+    }
+    return entry.index;
+  }
+
+  /**
+   * Discard all offset indexes, so they are rebuilt on next use.
+   */
+  public synchronized void clearIndexes() {
+    indexes = null;
+  }
+
+  /**
+   * Find the annotations of the given type that overlap the given span
+   * (see {@link OffsetIndex#overlapping}), in order of start offset.
+   */
+  public List<Annotation> getOverlapping(String type, long start, long end) {
+    OffsetIndex index = getIndex(type);
+    return (index == null) ? Collections.<Annotation> emptyList() : select(
+            type, index.overlapping(start, end));
+  }
+
+  /**
+   * Find the annotations of the given type that lie entirely within the
+   * given span (see {@link OffsetIndex#containedIn}), in order of start
+   * offset.
+   */
+  public List<Annotation> getContainedIn(String type, long start, long end) {
+    OffsetIndex index = getIndex(type);
+    return (index == null) ? Collections.<Annotation> emptyList() : select(
+            type, index.containedIn(start, end));
+  }
+
+  /**
+   * Find the annotations of the given type that cover the whole of the
+   * given span (see {@link OffsetIndex#covering}), in order of start
+   * offset.
+   */
+  public List<Annotation> getCovering(String type, long start, long end) {
+    OffsetIndex index = getIndex(type);
+    return (index == null) ? Collections.<Annotation> emptyList() : select(
+            type, index.covering(start, end));
+  }
+
+  /**
+   * Find the first annotation of the given type that starts at or after
+   * the given offset.
+   * 
+   * @return the annotation, or <code>null</code> if there is none.
+   */
+  public Annotation getNextAfter(String type, long offset) {
+    OffsetIndex index = getIndex(type);
+    int i = (index == null) ? -1 : index.nextAfter(offset);
+    return (i < 0) ? null : entities.get(type).get(i);
+  }
+
+  private List<Annotation> select(String type, int[] positions) {
+    List<Annotation> annots = entities.get(type);
+    List<Annotation> result = new ArrayList<Annotation>(positions.length);
+    for(int i : positions) {
+      result.add(annots.get(i));
+    }
+    return result;
+  }
+
+  private static class IndexEntry {
+    final List<Annotation> annotations;
+
+    final int size;
+
+    final OffsetIndex index;
+
+    IndexEntry(List<Annotation> annotations, OffsetIndex index) {
+      this.annotations = annotations;
+      this.size = annotations.size();
+      this.index = index;
+    }
+  }
 }
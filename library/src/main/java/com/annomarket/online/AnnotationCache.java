@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Cache of online API responses, keyed on a SHA-256 digest of
+ * everything that determines the response - the pipeline endpoint, the
+ * document text, its MIME type, the annotation selectors and the
+ * requested response format. Identical content sent to the same
+ * pipeline (boilerplate pages, retweets, re-crawled pages) is then only
+ * annotated once.
+ * <p>
+ * Responses are stored as the raw bytes returned by the service, so a
+ * cached response can be returned either as an
+ * {@link AnnotatedDocument} or as a stream. The in-memory tier holds up
+ * to a configured number of bytes, evicting the least recently used
+ * entries first. An optional on-disk tier keeps every response in a
+ * directory (one file per response) so that the cache survives
+ * restarts; entries evicted from memory are reloaded from disk when
+ * they are next needed. The disk tier is not size-limited, so the
+ * directory should be cleaned up by the application as required.
+ * <p>
+ * Only requests that include the document text are cached - requests
+ * for a document URL are not, as the content behind the URL may
+ * change.
+ * <p>
+ * Instances are thread-safe and may be shared by several
+ * {@link OnlineApi} objects.
+ * 
+ * @author Ian Roberts
+ */
+public class AnnotationCache {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Number of characters of document text digested at a time.
+   */
+  private static final int DIGEST_CHUNK = 8192;
+
+  private final long maxMemoryBytes;
+
+  private final File directory;
+
+  /**
+   * Access-ordered map, so iteration starts from the least recently
+   * used entry.
+   */
+  private final LinkedHashMap<String, byte[]> memory =
+          new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  private long memoryBytes;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+
+  private final AtomicLong diskHits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Create a cache held only in memory.
+   * 
+   * @param maxMemoryBytes the maximum total size of the responses to
+   *          keep in memory
+   */
+  public AnnotationCache(long maxMemoryBytes) {
+    this(maxMemoryBytes, null);
+  }
+
+  /**
+   * Create a cache with an on-disk tier.
+   * 
+   * @param maxMemoryBytes the maximum total size of the responses to
+   *          keep in memory
+   * @param directory directory in which to store responses, which will
+   *          be created if it does not exist. If <code>null</code>,
+   *          responses are only cached in memory.
+   */
+  public AnnotationCache(long maxMemoryBytes, File directory) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.directory = directory;
+    if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Could not create cache directory "
+              + directory);
+    }
+  }
+
+  /**
+   * Compute the cache key for a request.
+   * 
+   * @param endpoint the URL of the pipeline
+   * @param rq the request
+   * @param format the requested response format
+   * @return the key, or <code>null</code> if the request cannot be
+   *         cached (i.e. it does not include the document text).
+   */
+  public static String key(URL endpoint, OnlineServiceRequest rq,
+          ResponseFormat format) {
+    if(rq.getDocument() == null) {
+      return null;
+    }
+    return requestKey(endpoint, rq, format);
+  }
+
+  /**
+   * Compute a key identifying a request, as {@link #key} but also for
+   * requests that refer to a document URL. Such keys are used to
+   * recognise identical requests in flight at the same time, not for
+   * caching.
+   * 
+   * @return the key, or <code>null</code> if the request has neither
+   *         document text nor a URL.
+   */
+  static String requestKey(URL endpoint, OnlineServiceRequest rq,
+          ResponseFormat format) {
+    if(rq.getDocument() == null && rq.getDocumentUrl() == null) {
+      return null;
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      // every JVM is required to support SHA-256
+      throw new RuntimeException(e);
+    }
+    // fields are terminated by a zero byte, and the free text of the
+    // document comes last, so different requests cannot produce the
+    // same byte sequence
+    if(rq.getDocument() == null) {
+      // a leading zero byte (which no endpoint URL can start with)
+      // keeps URL requests distinct from text requests
+      digest.update((byte)0);
+    }
+    update(digest, endpoint.toString());
+    update(digest, rq.getMimeType());
+    if(rq.getAnnotationSelectors() != null) {
+      // distinguish "no selectors" from "default selectors"
+      digest.update((byte)2);
+      for(String selector : rq.getAnnotationSelectors()) {
+        digest.update((byte)1);
+        update(digest, selector);
+      }
+    }
+    update(digest, format.acceptHeader);
+    String text = rq.getDocument();
+    if(text == null) {
+      text = rq.getDocumentUrl();
+    }
+    for(int start = 0; start < text.length();) {
+      int end = Math.min(text.length(), start + DIGEST_CHUNK);
+      if(end < text.length()
+              && Character.isHighSurrogate(text.charAt(end - 1))) {
+        // don't split a surrogate pair
+        end--;
+      }
+      digest.update(text.substring(start, end).getBytes(UTF8));
+      start = end;
+    }
+    StringBuilder key = new StringBuilder(64);
+    for(byte b : digest.digest()) {
+      key.append(Character.forDigit((b >> 4) & 0xf, 16));
+      key.append(Character.forDigit(b & 0xf, 16));
+    }
+    return key.toString();
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(value.getBytes(UTF8));
+    digest.update((byte)0);
+  }
+
+  /**
+   * Look up a cached response.
+   * 
+   * @param key the cache key
+   * @return the response bytes, or <code>null</code> if there is no
+   *         cached response for this key.
+   */
+  public byte[] get(String key) {
+    byte[] value;
+    synchronized(memory) {
+      value = memory.get(key);
+    }
+    if(value != null) {
+      memoryHits.incrementAndGet();
+      return value;
+    }
+    if(directory != null) {
+      File file = fileFor(key);
+      if(file.isFile()) {
+        try {
+          value = FileUtils.readFileToByteArray(file);
+          diskHits.incrementAndGet();
+          putInMemory(key, value);
+          return value;
+        } catch(IOException e) {
+          // treat an unreadable file as a miss
+        }
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Store a response in the cache.
+   * 
+   * @param key the cache key
+   * @param value the response bytes
+   */
+  public void put(String key, byte[] value) {
+    putInMemory(key, value);
+    if(directory != null) {
+      File file = fileFor(key);
+      File parent = file.getParentFile();
+      parent.mkdirs();
+      // write to a temporary file and rename, so readers never see a
+      // partially-written entry
+      File temp = null;
+      OutputStream out = null;
+      try {
+        temp = File.createTempFile(key, ".tmp", parent);
+        out = new FileOutputStream(temp);
+        out.write(value);
+        out.close();
+        out = null;
+        if(!temp.renameTo(file)) {
+          // another thread got there first
+          temp.delete();
+        }
+        temp = null;
+      } catch(IOException e) {
+        // failing to write the disk tier is not fatal
+      } finally {
+        IOUtils.closeQuietly(out);
+        if(temp != null) {
+          temp.delete();
+        }
+      }
+    }
+  }
+
+  private void putInMemory(String key, byte[] value) {
+    if(value.length > maxMemoryBytes) {
+      return;
+    }
+    synchronized(memory) {
+      byte[] old = memory.put(key, value);
+      if(old != null) {
+        memoryBytes -= old.length;
+      }
+      memoryBytes += value.length;
+      Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+      while(memoryBytes > maxMemoryBytes && it.hasNext()) {
+        Map.Entry<String, byte[]> eldest = it.next();
+        memoryBytes -= eldest.getValue().length;
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private File fileFor(String key) {
+    // spread the files over 256 subdirectories
+    return new File(new File(directory, key.substring(0, 2)), key);
+  }
+
+  /**
+   * Remove all entries from the in-memory tier. The disk tier, if any,
+   * is left untouched.
+   */
+  public void clearMemory() {
+    synchronized(memory) {
+      memory.clear();
+      memoryBytes = 0;
+    }
+  }
+
+  /**
+   * @return the number of lookups answered from memory.
+   */
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  /**
+   * @return the number of lookups answered from the disk tier.
+   */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /**
+   * @return the number of lookups that found nothing in the cache.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries evicted from memory to stay within
+   *         the size limit.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the proportion of lookups that were answered from the
+   *         cache (between 0 and 1).
+   */
+  public double getHitRatio() {
+    long hits = memoryHits.get() + diskHits.get();
+    long total = hits + misses.get();
+    return total == 0 ? 0.0 : ((double)hits) / total;
+  }
+
+  /**
+   * @return the total size of the responses currently held in memory.
+   */
+  public long getMemoryBytes() {
+    synchronized(memory) {
+      return memoryBytes;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Pull-style reader that delivers the annotations in an annotated
+ * document response one at a time, without ever holding the whole
+ * document in memory. Typical usage:
+ * 
+ * <pre>
+ * AnnotationStreamReader reader = AnnotationStreamReader.forJson(stream);
+ * try {
+ *   while(reader.next()) {
+ *     String type = reader.getType();
+ *     long start = reader.getStartOffset();
+ *     ...
+ *   }
+ * } finally {
+ *   reader.close();
+ * }
+ * </pre>
+ * 
+ * Each call to {@link #next()} advances to the next annotation, after
+ * which its type, offsets and features are available until the
+ * following call. To stop early, simply close the reader. Note that
+ * closing a response stream from {@link OnlineApi} still reads (but
+ * does not parse) the rest of the response, so that the connection
+ * can be re-used.
+ * <p>
+ * Annotations are delivered in the order they appear in the response,
+ * which is grouped by type for GATE JSON and by annotation set for
+ * GATE XML. The document text and any other
+ * properties become available once the reader has passed them in the
+ * stream, which for responses from the online API is before the first
+ * annotation.
+ * 
+ * @author Ian Roberts
+ */
+public abstract class AnnotationStreamReader implements Closeable {
+
+  /**
+   * Type of the current annotation.
+   */
+  protected String type;
+
+  /**
+   * Start offset of the current annotation.
+   */
+  protected long startOffset;
+
+  /**
+   * End offset of the current annotation.
+   */
+  protected long endOffset;
+
+  /**
+   * Feature names of the current annotation, parallel to
+   * {@link #featureValues}.
+   */
+  protected final List<String> featureNames = new ArrayList<String>();
+
+  /**
+   * Feature values of the current annotation.
+   */
+  protected final List<Object> featureValues = new ArrayList<Object>();
+
+  /**
+   * The document text, once it has been read.
+   */
+  protected String text;
+
+  /**
+   * Annotation types seen so far, including any with no annotations.
+   */
+  protected final List<String> types = new ArrayList<String>();
+
+  /**
+   * Other document properties seen so far.
+   */
+  protected final Map<String, JsonNode> otherFeatures =
+          new LinkedHashMap<String, JsonNode>();
+
+  /**
+   * Create a reader for a response in GATE JSON format
+   * ({@link ResponseFormat#JSON}).
+   */
+  public static AnnotationStreamReader forJson(InputStream in)
+          throws IOException {
+    return new JsonAnnotationStreamReader(in);
+  }
+
+  /**
+   * Create a reader for a response in GATE XML format
+   * ({@link ResponseFormat#GATE_XML}). The document is read with a
+   * StAX parser, never as a DOM or tree.
+   */
+  public static AnnotationStreamReader forGateXml(InputStream in)
+          throws IOException {
+    return new GateXmlAnnotationStreamReader(in);
+  }
+
+  /**
+   * Create a reader for a response in the given format.
+   */
+  public static AnnotationStreamReader open(InputStream in,
+          ResponseFormat format) throws IOException {
+    switch(format) {
+      case GATE_XML:
+        return forGateXml(in);
+      default:
+        return forJson(in);
+    }
+  }
+
+  /**
+   * Advance to the next annotation.
+   * 
+   * @return <code>true</code> if there is another annotation, or
+   *         <code>false</code> if the end of the document has been
+   *         reached.
+   */
+  public abstract boolean next() throws IOException;
+
+  /**
+   * @return the type of the current annotation.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @return the name of the annotation set containing the current
+   *         annotation, for formats that group annotations into named
+   *         sets, or <code>null</code> for the default set or formats
+   *         that do not.
+   */
+  public String getAnnotationSetName() {
+    return null;
+  }
+
+  /**
+   * @return the start offset of the current annotation.
+   */
+  public long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return the end offset of the current annotation.
+   */
+  public long getEndOffset() {
+    return endOffset;
+  }
+
+  /**
+   * @return the number of features of the current annotation.
+   */
+  public int getFeatureCount() {
+    return featureNames.size();
+  }
+
+  /**
+   * @return the name of the <code>i</code>th feature of the current
+   *         annotation.
+   */
+  public String getFeatureName(int i) {
+    return featureNames.get(i);
+  }
+
+  /**
+   * @return the value of the <code>i</code>th feature of the current
+   *         annotation.
+   */
+  public Object getFeatureValue(int i) {
+    return featureValues.get(i);
+  }
+
+  /**
+   * @return the features of the current annotation, as a new map.
+   *         {@link #getFeatureName} and {@link #getFeatureValue} avoid
+   *         creating a map for every annotation.
+   */
+  public Map<String, Object> getFeatures() {
+    Map<String, Object> features = new HashMap<String, Object>();
+    for(int i = 0; i < featureNames.size(); i++) {
+      features.put(featureNames.get(i), featureValues.get(i));
+    }
+    return features;
+  }
+
+  /**
+   * Create a standalone {@link Annotation} equivalent to the current
+   * annotation.
+   */
+  public Annotation getAnnotation() {
+    Annotation a = new Annotation(new long[] {startOffset, endOffset});
+    a.features.putAll(getFeatures());
+    return a;
+  }
+
+  /**
+   * @return the document text, or <code>null</code> if it has not been
+   *         read yet.
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return the annotation types the reader has encountered so far,
+   *         including types that had no annotations.
+   */
+  public List<String> getTypes() {
+    return Collections.unmodifiableList(types);
+  }
+
+  /**
+   * @return any other document properties (see
+   *         {@link AnnotatedDocument#otherFeatures}) the reader has
+   *         passed so far.
+   */
+  public Map<String, JsonNode> getOtherFeatures() {
+    return Collections.unmodifiableMap(otherFeatures);
+  }
+
+  /**
+   * Clear the features of the previous annotation, ready to read the
+   * next.
+   */
+  protected void clearFeatures() {
+    featureNames.clear();
+    featureValues.clear();
+  }
+
+  /**
+   * Add a feature to the current annotation.
+   */
+  protected void addFeature(String name, Object value) {
+    featureNames.add(name);
+    featureValues.add(value);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+/**
+ * The outcome of annotating one document as part of a batch - either
+ * the annotated document or the exception that prevented it from
+ * being annotated.
+ * 
+ * @see OnlineApi#annotateBatch(java.util.List)
+ */
+public class BatchResult {
+
+  private final OnlineServiceRequest request;
+
+  private final AnnotatedDocument document;
+
+  private final OnlineApiException error;
+
+  BatchResult(OnlineServiceRequest request, AnnotatedDocument document,
+          OnlineApiException error) {
+    this.request = request;
+    this.document = document;
+    this.error = error;
+  }
+
+  /**
+   * @return the request that produced this result.
+   */
+  public OnlineServiceRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * @return <code>true</code> if the document was annotated
+   *         successfully, <code>false</code> if it failed.
+   */
+  public boolean isSuccess() {
+    return error == null;
+  }
+
+  /**
+   * @return the annotated document, or <code>null</code> if the request
+   *         failed.
+   */
+  public AnnotatedDocument getDocument() {
+    return document;
+  }
+
+  /**
+   * @return the exception that caused the request to fail, or
+   *         <code>null</code> if it succeeded.
+   */
+  public OnlineApiException getError() {
+    return error;
+  }
+}
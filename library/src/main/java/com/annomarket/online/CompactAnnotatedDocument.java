@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Memory-efficient alternative to {@link AnnotatedDocument} for
+ * applications that hold the results for many documents at once.
+ * Rather than one {@link Annotation} object (with its own feature map)
+ * per annotation, the annotations of each type are stored column-wise
+ * in a {@link CompactAnnotationSet}: primitive arrays of start and end
+ * offsets, interned feature names, and feature values encoded as
+ * indexes into a per-document dictionary, so a value that appears on
+ * many annotations (e.g. a class URI) is only stored once.
+ * <p>
+ * A compact document is populated directly from the JSON response
+ * stream, without building an intermediate tree or per-annotation
+ * objects. Use {@link OnlineApi#processRequestCompact} to obtain one
+ * from the online API, {@link #read(InputStream)} to parse a response
+ * obtained some other way, or {@link #read(AnnotationStreamReader)} to
+ * build one from any annotation reader.
+ * 
+ * @author Ian Roberts
+ */
+public class CompactAnnotatedDocument {
+
+  private final String text;
+
+  private final Map<String, CompactAnnotationSet> entities;
+
+  private final Map<String, JsonNode> otherFeatures;
+
+  private CompactAnnotatedDocument(String text,
+          Map<String, CompactAnnotationSet> entities,
+          Map<String, JsonNode> otherFeatures) {
+    this.text = text;
+    this.entities = entities;
+    this.otherFeatures = otherFeatures;
+  }
+
+  /**
+   * @return the plain text of the document (see
+   *         {@link AnnotatedDocument#text}).
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return the annotation types present in this document, in the
+   *         order they appeared in the response.
+   */
+  public List<String> getTypes() {
+    return new ArrayList<String>(entities.keySet());
+  }
+
+  /**
+   * Get the annotations of the given type.
+   * 
+   * @return the annotation set, or <code>null</code> if the response
+   *         included no annotations of this type.
+   */
+  public CompactAnnotationSet getAnnotations(String type) {
+    return entities.get(type);
+  }
+
+  /**
+   * @return all the annotation sets, keyed by type.
+   */
+  public Map<String, CompactAnnotationSet> getEntities() {
+    return Collections.unmodifiableMap(entities);
+  }
+
+  /**
+   * @return any other properties found in the response apart from the
+   *         text and entities (see
+   *         {@link AnnotatedDocument#otherFeatures}), never
+   *         <code>null</code>.
+   */
+  public Map<String, JsonNode> getOtherFeatures() {
+    return Collections.unmodifiableMap(otherFeatures);
+  }
+
+  /**
+   * Convert this document into an ordinary {@link AnnotatedDocument},
+   * e.g. to pass to code written for the object model.
+   */
+  public AnnotatedDocument toAnnotatedDocument() {
+    AnnotatedDocument doc = new AnnotatedDocument();
+    doc.text = text;
+    doc.entities = new LinkedHashMap<String, List<Annotation>>();
+    for(Map.Entry<String, CompactAnnotationSet> e : entities.entrySet()) {
+      doc.entities.put(e.getKey(),
+              new ArrayList<Annotation>(e.getValue().asList()));
+    }
+    for(Map.Entry<String, JsonNode> e : otherFeatures.entrySet()) {
+      doc.addFeature(e.getKey(), e.getValue());
+    }
+    return doc;
+  }
+
+  /**
+   * Parse a compact document from a stream containing an annotated
+   * document in GATE JSON format ({@link ResponseFormat#JSON}). The
+   * stream is closed when parsing is complete.
+   */
+  public static CompactAnnotatedDocument read(InputStream in)
+          throws IOException {
+    AnnotationStreamReader reader = AnnotationStreamReader.forJson(in);
+    try {
+      return read(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Build a compact document from all the remaining annotations in the
+   * given reader. The reader is not closed.
+   */
+  public static CompactAnnotatedDocument read(AnnotationStreamReader reader)
+          throws IOException {
+    Dictionary dictionary = new Dictionary();
+    Map<String, SetBuilder> builders = new HashMap<String, SetBuilder>();
+    SetBuilder builder = null;
+    while(reader.next()) {
+      String type = reader.getType();
+      if(builder == null || !builder.type.equals(type)) {
+        builder = builders.get(type);
+        if(builder == null) {
+          builder = new SetBuilder(type, dictionary);
+          builders.put(type, builder);
+        }
+      }
+      builder.add(reader);
+    }
+
+    Object[] values = dictionary.toArray();
+    Map<String, CompactAnnotationSet> entities =
+            new LinkedHashMap<String, CompactAnnotationSet>();
+    for(String type : reader.getTypes()) {
+      builder = builders.get(type);
+      if(builder == null) {
+        builder = new SetBuilder(type, dictionary);
+      }
+      entities.put(type, builder.build(values));
+    }
+    return new CompactAnnotatedDocument(reader.getText(), entities,
+            new HashMap<String, JsonNode>(reader.getOtherFeatures()));
+  }
+
+  /**
+   * Dictionary of distinct feature values in one document. Scalar
+   * values are de-duplicated; structured values (lists and maps) are
+   * added as they are, since comparing them costs more than it saves.
+   */
+  private static class Dictionary {
+    private final Map<Object, Integer> codes = new HashMap<Object, Integer>();
+
+    private final List<Object> values = new ArrayList<Object>();
+
+    int encode(Object value) {
+      if(!(value instanceof Map || value instanceof List)) {
+        // null is a legitimate value, distinct from "no feature"
+        Integer code = codes.get(value);
+        if(code != null) {
+          return code;
+        }
+        codes.put(value, values.size());
+      }
+      values.add(value);
+      return values.size() - 1;
+    }
+
+    Object[] toArray() {
+      return values.toArray();
+    }
+  }
+
+  /**
+   * Accumulates the columns for one annotation type while parsing.
+   */
+  private static class SetBuilder {
+    final String type;
+
+    final Dictionary dictionary;
+
+    int size = 0;
+
+    int[] starts = new int[16];
+
+    int[] ends = new int[16];
+
+    final Map<String, int[]> features = new LinkedHashMap<String, int[]>();
+
+    SetBuilder(String type, Dictionary dictionary) {
+      this.type = type;
+      this.dictionary = dictionary;
+    }
+
+    /**
+     * Add the reader's current annotation.
+     */
+    void add(AnnotationStreamReader reader) {
+      if(size == starts.length) {
+        grow();
+      }
+      starts[size] = (int)reader.getStartOffset();
+      ends[size] = (int)reader.getEndOffset();
+      for(int f = 0; f < reader.getFeatureCount(); f++) {
+        column(reader.getFeatureName(f))[size] =
+                dictionary.encode(reader.getFeatureValue(f));
+      }
+      size++;
+    }
+
+    /**
+     * Get the value column for the given feature, creating it (with no
+     * values for any earlier annotations) if this is the first time the
+     * feature has been seen.
+     */
+    private int[] column(String name) {
+      int[] column = features.get(name);
+      if(column == null) {
+        column = new int[starts.length];
+        Arrays.fill(column, -1);
+        features.put(name.intern(), column);
+      }
+      return column;
+    }
+
+    private void grow() {
+      int capacity = starts.length * 2;
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      for(Map.Entry<String, int[]> e : features.entrySet()) {
+        int[] column = Arrays.copyOf(e.getValue(), capacity);
+        Arrays.fill(column, size, capacity, -1);
+        e.setValue(column);
+      }
+    }
+
+    CompactAnnotationSet build(Object[] values) {
+      String[] names = new String[features.size()];
+      int[][] columns = new int[features.size()][];
+      int f = 0;
+      for(Map.Entry<String, int[]> e : features.entrySet()) {
+        names[f] = e.getKey();
+        columns[f++] = Arrays.copyOf(e.getValue(), size);
+      }
+      return new CompactAnnotationSet(type.intern(), size,
+              Arrays.copyOf(starts, size), Arrays.copyOf(ends, size),
+              names, columns, values);
+    }
+  }
+}
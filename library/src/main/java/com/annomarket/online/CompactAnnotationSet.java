@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the annotations of one type in a {@link CompactAnnotatedDocument},
+ * stored column-wise: one array of start offsets, one of end offsets,
+ * and for each feature name one array of value codes referring to the
+ * document's dictionary of feature values. Annotations are identified
+ * by their index, from 0 to {@link #size()}-1, in the order they
+ * appeared in the response.
+ * 
+ * @author Ian Roberts
+ */
+public class CompactAnnotationSet {
+
+  private final String type;
+
+  private final int size;
+
+  private final int[] starts;
+
+  private final int[] ends;
+
+  /**
+   * Interned feature names, in order of first appearance.
+   */
+  private final String[] featureNames;
+
+  /**
+   * Value codes, indexed by feature then annotation. -1 means the
+   * annotation does not have the feature.
+   */
+  private final int[][] featureValues;
+
+  /**
+   * The document's value dictionary, shared by all its sets.
+   */
+  private final Object[] dictionary;
+
+  private volatile OffsetIndex index;
+
+  CompactAnnotationSet(String type, int size, int[] starts, int[] ends,
+          String[] featureNames, int[][] featureValues, Object[] dictionary) {
+    this.type = type;
+    this.size = size;
+    this.starts = starts;
+    this.ends = ends;
+    this.featureNames = featureNames;
+    this.featureValues = featureValues;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * @return the annotation type.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @return the number of annotations in this set.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the start offset of the annotation at the given index.
+   */
+  public long getStartOffset(int i) {
+    checkIndex(i);
+    return starts[i];
+  }
+
+  /**
+   * @return the end offset of the annotation at the given index.
+   */
+  public long getEndOffset(int i) {
+    checkIndex(i);
+    return ends[i];
+  }
+
+  /**
+   * Get an offset index over this set, for overlap and containment
+   * queries. The index is built the first time it is requested;
+   * positions in the index are indexes into this set.
+   */
+  public OffsetIndex getIndex() {
+    OffsetIndex idx = index;
+    if(idx == null) {
+      long[] s = new long[size];
+      long[] e = new long[size];
+      for(int i = 0; i < size; i++) {
+        s[i] = starts[i];
+        e[i] = ends[i];
+      }
+      // racing threads may both build an index, which is harmless
+      index = idx = new OffsetIndex(s, e);
+    }
+    return idx;
+  }
+
+  /**
+   * @return the names of all features that appear on at least one
+   *         annotation in this set.
+   */
+  public List<String> getFeatureNames() {
+    return Collections.unmodifiableList(Arrays.asList(featureNames));
+  }
+
+  /**
+   * Get the value of a feature of the annotation at the given index.
+   * Structured values (lists and maps) are shared by every annotation
+   * with the same value and must not be modified.
+   * 
+   * @return the value, or <code>null</code> if the annotation does not
+   *         have this feature.
+   */
+  public Object getFeature(int i, String name) {
+    checkIndex(i);
+    for(int f = 0; f < featureNames.length; f++) {
+      // names are interned, but the argument may not be
+      if(featureNames[f].equals(name)) {
+        int code = featureValues[f][i];
+        return (code < 0) ? null : dictionary[code];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get all the features of the annotation at the given index as a new
+   * map.
+   */
+  public Map<String, Object> getFeatures(int i) {
+    checkIndex(i);
+    Map<String, Object> features = new HashMap<String, Object>();
+    for(int f = 0; f < featureNames.length; f++) {
+      int code = featureValues[f][i];
+      if(code >= 0) {
+        features.put(featureNames[f], dictionary[code]);
+      }
+    }
+    return features;
+  }
+
+  /**
+   * Create a standalone {@link Annotation} object equivalent to the
+   * annotation at the given index.
+   */
+  public Annotation get(int i) {
+    Annotation a = new Annotation(new long[] {getStartOffset(i), ends[i]});
+    a.features.putAll(getFeatures(i));
+    return a;
+  }
+
+  /**
+   * View this set as a list of {@link Annotation}s, compatible with
+   * {@link AnnotatedDocument#entities}. Each call to <code>get</code>
+   * creates a new <code>Annotation</code> object, so code that only
+   * needs offsets should use {@link #getStartOffset} and
+   * {@link #getEndOffset} instead.
+   */
+  public List<Annotation> asList() {
+    return new AbstractList<Annotation>() {
+      @Override
+      public Annotation get(int index) {
+        return CompactAnnotationSet.this.get(index);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  private void checkIndex(int i) {
+    if(i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+    }
+  }
+}
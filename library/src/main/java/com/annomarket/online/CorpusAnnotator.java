@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+
+import com.annomarket.client.DaemonThreadFactory;
+import com.annomarket.client.RestClientException;
+import com.annomarket.client.RetryPolicy;
+
+/**
+ * Annotates every document in a directory tree, ZIP file or TAR file
+ * through an {@link OnlineApi}, using a fixed number of concurrent
+ * workers, and passes the results to a {@link CorpusSink}.
+ * <p>
+ * The calling thread reads documents from the source and hands them to
+ * the workers through a bounded queue. At most
+ * {@link #getMaxDocumentsInMemory() maxDocumentsInMemory} documents
+ * (queued plus in flight) are held in memory at once - when that limit
+ * is reached the reader waits for a worker to finish, so a slow service
+ * never causes the whole corpus to be loaded. The limit should be
+ * somewhat larger than the number of workers so there is always a
+ * document ready when a worker becomes free.
+ * <p>
+ * A document that fails with a transient error (an I/O error, 429 or
+ * a 5xx response) is retried up to {@link #setMaxAttempts maxAttempts}
+ * times with an increasing delay; other failures, including a response
+ * with no document in it, are reported to the sink straight away.
+ * Progress (documents and bytes per second) can be monitored with the
+ * getter methods while a run is in progress, or reported regularly to
+ * a {@link ProgressListener}. If the sink throws an exception for a
+ * successful document, that document is counted as failed and passed
+ * to {@link CorpusSink#documentFailed}.
+ * <p>
+ * An annotator can be used for several runs one after the other, but
+ * not for more than one run at the same time.
+ * 
+ * @author Ian Roberts
+ */
+public class CorpusAnnotator {
+
+  /**
+   * Default number of attempts for each document, including the first.
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /**
+   * Callback for periodic progress reports.
+   */
+  public static interface ProgressListener {
+    /**
+     * Called from a worker thread at most once per reporting interval,
+     * and once at the end of the run. Use the annotator's getter
+     * methods to find the current progress.
+     */
+    public void progress(CorpusAnnotator annotator);
+  }
+
+  private static final long BASE_RETRY_DELAY_MILLIS = 1000L;
+
+  private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+
+  private final OnlineApi api;
+
+  private final int workers;
+
+  private final int maxDocumentsInMemory;
+
+  private volatile SupportedMimeType mimeType;
+
+  private volatile String encoding = "UTF-8";
+
+  private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+  private volatile ProgressListener progressListener;
+
+  private volatile long progressIntervalMillis;
+
+  private final AtomicLong submitted = new AtomicLong();
+
+  private final AtomicLong annotated = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong retries = new AtomicLong();
+
+  private final AtomicLong bytesCompleted = new AtomicLong();
+
+  private final AtomicLong lastReport = new AtomicLong();
+
+  private volatile long startTime;
+
+  private volatile long endTime;
+
+  /**
+   * Create an annotator with the given number of workers, holding at
+   * most twice that many documents in memory.
+   */
+  public CorpusAnnotator(OnlineApi api, int workers) {
+    this(api, workers, 2 * workers);
+  }
+
+  /**
+   * Create an annotator.
+   * 
+   * @param api the API used to annotate each document
+   * @param workers the number of documents to annotate concurrently
+   * @param maxDocumentsInMemory the maximum number of documents that
+   *          have been read but not yet annotated at any one time
+   *          (must be at least <code>workers</code>)
+   */
+  public CorpusAnnotator(OnlineApi api, int workers, int maxDocumentsInMemory) {
+    if(workers < 1 || maxDocumentsInMemory < workers) {
+      throw new IllegalArgumentException(
+              "Need at least one worker, and room in memory for a document "
+                      + "per worker");
+    }
+    this.api = api;
+    this.workers = workers;
+    this.maxDocumentsInMemory = maxDocumentsInMemory;
+  }
+
+  /**
+   * Set the MIME type of every document. If <code>null</code> (the
+   * default) the type is chosen from each file's extension:
+   * <code>.html</code> and <code>.htm</code> are treated as HTML,
+   * <code>.xml</code> as XML and anything else as plain text.
+   */
+  public void setMimeType(SupportedMimeType mimeType) {
+    this.mimeType = mimeType;
+  }
+
+  public SupportedMimeType getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Set the character encoding of the documents (default UTF-8).
+   */
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Set the number of attempts for each document, including the first.
+   * 1 means never retry.
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Set a listener to be told about progress at most once every
+   * <code>intervalMillis</code> milliseconds.
+   */
+  public void setProgressListener(ProgressListener listener,
+          long intervalMillis) {
+    this.progressListener = listener;
+    this.progressIntervalMillis = intervalMillis;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getMaxDocumentsInMemory() {
+    return maxDocumentsInMemory;
+  }
+
+  /**
+   * Annotate every file under the given directory, recursively.
+   * Returns when all the documents have been annotated (or have
+   * failed).
+   * 
+   * @throws IOException if a file cannot be read. Documents that were
+   *           already submitted are still annotated before this
+   *           exception is thrown.
+   * @throws InterruptedException if the calling thread is interrupted
+   *           while waiting for the workers, which are then stopped
+   */
+  public void annotateDirectory(File dir, CorpusSink sink)
+          throws IOException, InterruptedException {
+    Run run = new Run(sink);
+    try {
+      walk(dir, "", run);
+    } finally {
+      run.finish();
+    }
+  }
+
+  private void walk(File dir, String prefix, Run run) throws IOException,
+          InterruptedException {
+    File[] files = dir.listFiles();
+    if(files == null) {
+      throw new IOException("Cannot list directory " + dir);
+    }
+    Arrays.sort(files);
+    for(File f : files) {
+      String name = prefix + f.getName();
+      if(f.isDirectory()) {
+        walk(f, name + "/", run);
+      } else if(f.isFile()) {
+        InputStream in = new FileInputStream(f);
+        try {
+          run.submit(name, in);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Annotate every file in the given ZIP archive. See
+   * {@link #annotateDirectory} for details.
+   */
+  public void annotateZip(File zip, CorpusSink sink) throws IOException,
+          InterruptedException {
+    Run run = new Run(sink);
+    ZipInputStream in =
+            new ZipInputStream(new BufferedInputStream(new FileInputStream(
+                    zip)));
+    try {
+      ZipEntry entry;
+      while((entry = in.getNextEntry()) != null) {
+        if(!entry.isDirectory()) {
+          run.submit(entry.getName(), in);
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+      run.finish();
+    }
+  }
+
+  /**
+   * Annotate every file in the given TAR archive, which may be
+   * gzip-compressed if its name ends with <code>.gz</code> or
+   * <code>.tgz</code>. See {@link #annotateDirectory} for details.
+   */
+  public void annotateTar(File tar, CorpusSink sink) throws IOException,
+          InterruptedException {
+    Run run = new Run(sink);
+    InputStream raw = new BufferedInputStream(new FileInputStream(tar));
+    TarArchiveInputStream in = null;
+    try {
+      String lowerName = tar.getName().toLowerCase(Locale.ENGLISH);
+      if(lowerName.endsWith(".gz") || lowerName.endsWith(".tgz")) {
+        raw = new GZIPInputStream(raw);
+      }
+      in = new TarArchiveInputStream(raw);
+      TarArchiveEntry entry;
+      while((entry = in.getNextTarEntry()) != null) {
+        if(entry.isFile()) {
+          run.submit(entry.getName(), in);
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(in == null ? raw : in);
+      run.finish();
+    }
+  }
+
+  /**
+   * @return the number of documents read from the source so far in the
+   *         current (or last) run.
+   */
+  public long getDocumentsSubmitted() {
+    return submitted.get();
+  }
+
+  /**
+   * @return the number of documents annotated successfully.
+   */
+  public long getDocumentsAnnotated() {
+    return annotated.get();
+  }
+
+  /**
+   * @return the number of documents that failed after all attempts.
+   */
+  public long getDocumentsFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the number of documents that are being retried or were
+   *         retried, counting each retry separately.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return the total size in bytes of the documents that have been
+   *         completed (successfully or not).
+   */
+  public long getBytesCompleted() {
+    return bytesCompleted.get();
+  }
+
+  /**
+   * @return the time in milliseconds since the current run started, or
+   *         the duration of the last run if it has finished.
+   */
+  public long getElapsedMillis() {
+    long start = startTime;
+    if(start == 0) {
+      return 0;
+    }
+    long end = endTime;
+    return ((end == 0) ? System.currentTimeMillis() : end) - start;
+  }
+
+  /**
+   * @return the average number of documents completed per second.
+   */
+  public double getDocumentsPerSecond() {
+    return perSecond(annotated.get() + failed.get());
+  }
+
+  /**
+   * @return the average number of document bytes completed per second.
+   */
+  public double getBytesPerSecond() {
+    return perSecond(bytesCompleted.get());
+  }
+
+  private double perSecond(long count) {
+    long elapsed = getElapsedMillis();
+    return (elapsed == 0) ? 0.0 : count * 1000.0 / elapsed;
+  }
+
+  private SupportedMimeType mimeTypeFor(String name) {
+    SupportedMimeType type = mimeType;
+    if(type != null) {
+      return type;
+    }
+    String lowerName = name.toLowerCase(Locale.ENGLISH);
+    if(lowerName.endsWith(".html") || lowerName.endsWith(".htm")) {
+      return SupportedMimeType.HTML;
+    } else if(lowerName.endsWith(".xml")) {
+      return SupportedMimeType.XML_TEXT;
+    } else {
+      return SupportedMimeType.PLAINTEXT;
+    }
+  }
+
+  /**
+   * Is the given failure likely to be transient?
+   */
+  private static boolean isTransient(Exception e) {
+    Throwable cause = e.getCause();
+    if(cause instanceof RestClientException) {
+      int status = ((RestClientException)cause).getStatusCode();
+      return status == 0 || status == 429 || status >= 500;
+    }
+    return cause instanceof IOException;
+  }
+
+  private void reportProgress(boolean force) {
+    ProgressListener l = progressListener;
+    if(l == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long last = lastReport.get();
+    if(force
+            || (now - last >= progressIntervalMillis && lastReport
+                    .compareAndSet(last, now))) {
+      l.progress(this);
+    }
+  }
+
+  /**
+   * State of a single run: the worker pool and the permits that bound
+   * the number of documents in memory.
+   */
+  private class Run {
+    private final CorpusSink sink;
+
+    private final ExecutorService executor;
+
+    private final Semaphore inMemory = new Semaphore(maxDocumentsInMemory);
+
+    Run(CorpusSink sink) {
+      this.sink = sink;
+      submitted.set(0);
+      annotated.set(0);
+      failed.set(0);
+      retries.set(0);
+      bytesCompleted.set(0);
+      endTime = 0;
+      startTime = System.currentTimeMillis();
+      lastReport.set(startTime);
+      executor =
+              new ThreadPoolExecutor(workers, workers, 0L,
+                      TimeUnit.MILLISECONDS,
+                      new LinkedBlockingQueue<Runnable>(),
+                      DaemonThreadFactory.forRun("corpus-annotator"));
+    }
+
+    /**
+     * Read a document from the given stream (without closing it) and
+     * queue it for annotation, waiting first if the maximum number of
+     * documents are already in memory.
+     */
+    void submit(final String name, InputStream in) throws IOException,
+            InterruptedException {
+      inMemory.acquire();
+      final byte[] content;
+      try {
+        content = IOUtils.toByteArray(in);
+      } catch(IOException e) {
+        inMemory.release();
+        throw e;
+      }
+      submitted.incrementAndGet();
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            process(name, content);
+          } finally {
+            bytesCompleted.addAndGet(content.length);
+            inMemory.release();
+            reportProgress(false);
+          }
+        }
+      });
+    }
+
+    private void process(String name, byte[] content) {
+      Exception error = null;
+      AnnotatedDocument doc = null;
+      try {
+        String text = new String(content, encoding);
+        SupportedMimeType type = mimeTypeFor(name);
+        int attempts = maxAttempts;
+        for(int attempt = 1; attempt <= attempts; attempt++) {
+          try {
+            doc = api.annotateDocument(text, type);
+            break;
+          } catch(OnlineApiException e) {
+            if(attempt >= attempts || !isTransient(e)) {
+              throw e;
+            }
+            retries.incrementAndGet();
+            Thread.sleep(RetryPolicy.backoff(attempt,
+                    BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS));
+          }
+        }
+        if(doc == null) {
+          // e.g. an empty response - not something a retry would fix
+          throw new OnlineApiException("No annotated document returned for "
+                  + name, null);
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = e;
+      } catch(Exception e) {
+        error = e;
+      }
+      if(error == null) {
+        try {
+          sink.documentAnnotated(name, doc);
+          annotated.incrementAndGet();
+          return;
+        } catch(RuntimeException e) {
+          // the sink could not handle the result
+          error = e;
+        }
+      }
+      failed.incrementAndGet();
+      sink.documentFailed(name, error);
+    }
+
+    /**
+     * Wait for all submitted documents to be completed.
+     */
+    void finish() throws InterruptedException {
+      executor.shutdown();
+      try {
+        while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+          // keep waiting
+        }
+      } catch(InterruptedException e) {
+        executor.shutdownNow();
+        throw e;
+      } finally {
+        endTime = System.currentTimeMillis();
+      }
+      reportProgress(true);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+/**
+ * Receives the results from a {@link CorpusAnnotator}. Methods are
+ * called from the annotator's worker threads, possibly several at once,
+ * so implementations must be thread-safe. Documents are not
+ * necessarily delivered in the order they were read.
+ * 
+ * @author Ian Roberts
+ */
+public interface CorpusSink {
+
+  /**
+   * Called when a document has been annotated successfully.
+   * 
+   * @param name the name of the document - its path relative to the
+   *          corpus directory, or its entry name within the archive
+   * @param document the annotated document
+   */
+  public void documentAnnotated(String name, AnnotatedDocument document);
+
+  /**
+   * Called when a document could not be annotated, after any retries.
+   * 
+   * @param name the name of the document
+   * @param error the exception from the final attempt
+   */
+  public void documentFailed(String name, Exception error);
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Splits a long plain text document into overlapping chunks that can
+ * be annotated separately, and merges the results back into a single
+ * document.
+ * <p>
+ * Each chunk has a <em>core</em> - the cores of all the chunks
+ * partition the text - plus up to <code>overlap</code> characters of
+ * context either side, so that annotations near a boundary are found
+ * with the same surrounding text they would have in the whole
+ * document. Core boundaries are placed at paragraph breaks where
+ * possible, then at sentence ends, then between words. When merging,
+ * an annotation is kept only from the chunk whose core contains its
+ * start offset, so annotations found in the overlap between two
+ * chunks are not duplicated, and an annotation cut short at the start
+ * of a chunk's context is discarded in favour of the complete one from
+ * the previous chunk. An annotation that starts in a core but runs past
+ * the end of its chunk's context is kept, with its end truncated at the
+ * end of the chunk.
+ * 
+ * @author Ian Roberts
+ */
+class DocumentChunker {
+
+  /**
+   * One chunk of the text: the chunk spans <code>start</code> to
+   * <code>end</code>, and its core spans <code>coreStart</code> to
+   * <code>coreEnd</code>.
+   */
+  static class Chunk {
+    final int start;
+
+    final int end;
+
+    final int coreStart;
+
+    final int coreEnd;
+
+    Chunk(int start, int end, int coreStart, int coreEnd) {
+      this.start = start;
+      this.end = end;
+      this.coreStart = coreStart;
+      this.coreEnd = coreEnd;
+    }
+  }
+
+  private DocumentChunker() {
+  }
+
+  /**
+   * Split the text into chunks of at most <code>maxLength</code>
+   * characters.
+   * 
+   * @param overlap the amount of context either side of each chunk's
+   *          core. <code>maxLength - 2 * overlap</code> must be at
+   *          least 2, so that every core can hold a surrogate pair.
+   */
+  static List<Chunk> split(String text, int maxLength, int overlap) {
+    checkSettings(maxLength, overlap);
+    int n = text.length();
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    int coreStart = 0;
+    while(coreStart < n) {
+      int coreLimit = coreStart + maxLength - 2 * overlap;
+      int coreEnd =
+              (coreLimit >= n) ? n : findCut(text, coreStart, coreLimit);
+      int start =
+              (coreStart == 0) ? 0 : afterSpace(text,
+                      Math.max(0, coreStart - overlap), coreStart);
+      int end =
+              (coreEnd == n) ? n : beforeSpace(text, coreEnd,
+                      Math.min(n, coreEnd + overlap));
+      chunks.add(new Chunk(start, end, coreStart, coreEnd));
+      coreStart = coreEnd;
+    }
+    return chunks;
+  }
+
+  /**
+   * Check that a chunk length and overlap leave room for a core of at
+   * least two characters.
+   * 
+   * @throws IllegalArgumentException if they do not
+   */
+  static void checkSettings(int maxLength, int overlap) {
+    if(overlap < 0 || maxLength - 2 * overlap < 2) {
+      throw new IllegalArgumentException("Maximum chunk length "
+              + maxLength + " must exceed twice the overlap " + overlap
+              + " by at least 2");
+    }
+  }
+
+  /**
+   * Choose where to end a core that starts at <code>from</code> and
+   * may extend no further than <code>limit</code>. Looks for the last
+   * paragraph break in the second half of the range, then the last
+   * sentence end, then the last space, and failing all those cuts at
+   * the limit. The cut is always after <code>from</code>, so every
+   * core is non-empty.
+   */
+  private static int findCut(String text, int from, int limit) {
+    int earliest = from + (limit - from) / 2;
+    int cut = -1;
+    for(int i = limit; i > earliest && cut < 0; i--) {
+      // a paragraph break is a blank line
+      if(text.charAt(i - 1) == '\n' && isBlankLineEnd(text, i - 1)) {
+        cut = i;
+      }
+    }
+    for(int i = limit; i > earliest && cut < 0; i--) {
+      if(Character.isWhitespace(text.charAt(i - 1)) && i >= 2) {
+        char prev = text.charAt(i - 2);
+        if(prev == '.' || prev == '!' || prev == '?') {
+          cut = i;
+        }
+      }
+    }
+    for(int i = limit; i > earliest && cut < 0; i--) {
+      if(Character.isWhitespace(text.charAt(i - 1))) {
+        cut = i;
+      }
+    }
+    if(cut < 0) {
+      cut = limit;
+      if(Character.isHighSurrogate(text.charAt(cut - 1))) {
+        // don't split a surrogate pair
+        cut--;
+      }
+    }
+    if(cut <= from) {
+      // the only character before the limit is the first half of a
+      // surrogate pair, so take the whole pair
+      cut = Math.min(text.length(), from + 2);
+    }
+    return cut;
+  }
+
+  /**
+   * Is the newline at the given position preceded by another newline,
+   * with only whitespace in between?
+   */
+  private static boolean isBlankLineEnd(String text, int newline) {
+    for(int i = newline - 1; i >= 0; i--) {
+      char c = text.charAt(i);
+      if(c == '\n') {
+        return true;
+      } else if(!Character.isWhitespace(c)) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the position just after the first whitespace character in
+   *         the range <code>[from, to)</code>, or <code>from</code> if
+   *         there is none.
+   */
+  private static int afterSpace(String text, int from, int to) {
+    for(int i = from; i < to; i++) {
+      if(Character.isWhitespace(text.charAt(i))) {
+        return i + 1;
+      }
+    }
+    return from;
+  }
+
+  /**
+   * @return the position of the last whitespace character in the range
+   *         <code>[from, to)</code>, or <code>to</code> if there is
+   *         none.
+   */
+  private static int beforeSpace(String text, int from, int to) {
+    for(int i = to - 1; i >= from; i--) {
+      if(Character.isWhitespace(text.charAt(i))) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  /**
+   * Merge the annotated chunks into a single document over the given
+   * text.
+   * 
+   * @param text the whole document text
+   * @param chunks the chunks
+   * @param results the annotated document for each chunk, in the same
+   *          order
+   */
+  static AnnotatedDocument merge(String text, List<Chunk> chunks,
+          List<AnnotatedDocument> results) {
+    AnnotatedDocument merged = new AnnotatedDocument();
+    merged.text = text;
+    merged.entities = new LinkedHashMap<String, List<Annotation>>();
+    for(int c = 0; c < chunks.size(); c++) {
+      Chunk chunk = chunks.get(c);
+      AnnotatedDocument doc = results.get(c);
+      // a zero-length annotation at the very end belongs to the last
+      // chunk
+      int coreEnd = chunk.coreEnd + ((c == chunks.size() - 1) ? 1 : 0);
+      if(doc.entities == null) {
+        continue;
+      }
+      for(Map.Entry<String, List<Annotation>> e : doc.entities.entrySet()) {
+        List<Annotation> target = merged.entities.get(e.getKey());
+        if(target == null) {
+          target = new ArrayList<Annotation>();
+          merged.entities.put(e.getKey(), target);
+        }
+        for(Annotation a : e.getValue()) {
+          long start = a.startOffset + chunk.start;
+          if(start >= chunk.coreStart && start < coreEnd) {
+            a.startOffset = start;
+            a.endOffset += chunk.start;
+            target.add(a);
+          }
+        }
+      }
+      if(doc.otherFeatures != null) {
+        for(Map.Entry<String, JsonNode> e : doc.otherFeatures.entrySet()) {
+          if(merged.otherFeatures == null
+                  || !merged.otherFeatures.containsKey(e.getKey())) {
+            merged.addFeature(e.getKey(), e.getValue());
+          }
+        }
+      }
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Request entity for the online API that reads the document text
+ * straight from a file. The file is decoded and JSON-escaped a chunk at
+ * a time as the request is sent, so the memory used is constant no
+ * matter how large the file is - the whole document is never held in
+ * memory as a byte array or string.
+ * <p>
+ * The JSON produced is equivalent to the serialization of an
+ * {@link OnlineServiceRequest}. The length is not known in advance, so
+ * the request is sent with chunked transfer encoding.
+ * 
+ * @author Ian Roberts
+ */
+class FileDocumentEntity extends AbstractHttpEntity {
+
+  /**
+   * Number of characters decoded and written at a time.
+   */
+  private static final int CHUNK_SIZE = 8192;
+
+  private final JsonFactory jsonFactory;
+
+  private final File file;
+
+  private final Charset charset;
+
+  private final String mimeType;
+
+  private final List<String> annotationSelectors;
+
+  private final boolean memoryMap;
+
+  /**
+   * @param jsonFactory factory used to create the JSON generator
+   * @param file the document file
+   * @param charset the character encoding of the file
+   * @param mimeType the MIME type of the document
+   * @param annotationSelectors the annotation selectors, or
+   *          <code>null</code> for the pipeline's defaults
+   * @param memoryMap if <code>true</code>, the file is memory mapped
+   *          and decoded directly from the mapped buffer, rather than
+   *          read through a stream. This avoids copying the bytes
+   *          through a Java buffer, and is generally faster for large
+   *          local files.
+   */
+  FileDocumentEntity(JsonFactory jsonFactory, File file, Charset charset,
+          String mimeType, List<String> annotationSelectors,
+          boolean memoryMap) {
+    this.jsonFactory = jsonFactory;
+    this.file = file;
+    this.charset = charset;
+    this.mimeType = mimeType;
+    this.annotationSelectors = annotationSelectors;
+    this.memoryMap = memoryMap;
+    setContentType("application/json");
+    setChunked(true);
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Returns the complete JSON request body. This is not used when
+   * sending the request, and builds the whole body in memory, so
+   * should only be used for debugging.
+   */
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    writeTo(buf);
+    return new ByteArrayInputStream(buf.toByteArray());
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    JsonGenerator gen = jsonFactory.createGenerator(out);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    gen.writeStartObject();
+    gen.writeStringField("mimeType", mimeType);
+    if(annotationSelectors != null) {
+      gen.writeArrayFieldStart("annotationSelectors");
+      for(String selector : annotationSelectors) {
+        gen.writeString(selector);
+      }
+      gen.writeEndArray();
+    }
+    gen.writeFieldName("document");
+    // the generator has no way to write a string value in pieces, so
+    // we write the quotes and the escaped chunks as raw JSON
+    gen.writeRawValue("\"");
+    if(memoryMap) {
+      writeMapped(gen);
+    } else {
+      writeStreamed(gen);
+    }
+    gen.writeRaw('"');
+    gen.writeEndObject();
+    gen.flush();
+  }
+
+  /**
+   * Read the file through a stream and decoder, writing each chunk of
+   * characters as it is decoded.
+   */
+  private void writeStreamed(JsonGenerator gen) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), charset);
+    try {
+      char[] buf = new char[CHUNK_SIZE];
+      int len = 0;
+      int read;
+      while((read = reader.read(buf, len, buf.length - len)) >= 0) {
+        len = writeChunk(gen, buf, len + read);
+      }
+      finish(gen, buf, len);
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+  }
+
+  /**
+   * Memory map the file and decode directly from the mapped buffer.
+   */
+  private void writeMapped(JsonGenerator gen) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if(channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File " + file
+                + " is too large to be memory mapped");
+      }
+      MappedByteBuffer bytes =
+              channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      // same treatment of malformed input as the streamed case
+      CharsetDecoder decoder =
+              charset.newDecoder()
+                      .onMalformedInput(CodingErrorAction.REPLACE)
+                      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      char[] buf = new char[CHUNK_SIZE];
+      CharBuffer chars = CharBuffer.wrap(buf);
+      boolean flushing = false;
+      while(true) {
+        CoderResult result =
+                flushing ? decoder.flush(chars) : decoder.decode(bytes,
+                        chars, true);
+        if(result.isError()) {
+          // can't happen with REPLACE, but be safe
+          result.throwException();
+        }
+        int len = writeChunk(gen, buf, chars.position());
+        chars.clear();
+        chars.position(len);
+        if(result.isUnderflow()) {
+          if(flushing) {
+            finish(gen, buf, len);
+            break;
+          }
+          flushing = true;
+        }
+      }
+    } catch(CharacterCodingException e) {
+      throw new IOException("Could not decode " + file, e);
+    } finally {
+      IOUtils.closeQuietly(raf);
+    }
+  }
+
+  /**
+   * Write the first <code>len</code> characters of <code>buf</code>,
+   * JSON-escaped. If the last character is the first half of a
+   * surrogate pair it is held back and moved to the start of the
+   * buffer, as the generator cannot write half a pair.
+   * 
+   * @return the number of characters held back at the start of the
+   *         buffer (0 or 1).
+   */
+  private static int writeChunk(JsonGenerator gen, char[] buf, int len)
+          throws IOException {
+    int keep = (len > 0 && Character.isHighSurrogate(buf[len - 1])) ? 1 : 0;
+    if(len - keep > 0) {
+      char[] escaped =
+              JsonStringEncoder.getInstance().quoteAsString(
+                      new String(buf, 0, len - keep));
+      gen.writeRaw(escaped, 0, escaped.length);
+    }
+    if(keep > 0) {
+      buf[0] = buf[len - 1];
+    }
+    return keep;
+  }
+
+  /**
+   * Write any unpaired surrogate left over at the end of the document,
+   * as a JSON escape.
+   */
+  private static void finish(JsonGenerator gen, char[] buf, int len)
+          throws IOException {
+    if(len > 0) {
+      gen.writeRaw(String.format("\\u%04x", (int)buf[0]));
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * {@link AnnotationStreamReader} for the GATE XML format, built on a
+ * StAX stream reader so that no DOM or tree is ever constructed.
+ * <p>
+ * Feature values whose class is a string, number or boolean type are
+ * converted to the corresponding Java type, as they would be in the
+ * JSON format. Values of other classes are delivered as the string
+ * content of the <code>Value</code> element. Document-level features
+ * are made available through {@link #getOtherFeatures()}.
+ * 
+ * @author Ian Roberts
+ */
+class GateXmlAnnotationStreamReader extends AnnotationStreamReader {
+
+  private final InputStream in;
+
+  private final XMLStreamReader xml;
+
+  private final Set<String> typesSeen = new HashSet<String>();
+
+  private String currentSet;
+
+  private boolean finished = false;
+
+  GateXmlAnnotationStreamReader(InputStream in) throws IOException {
+    this.in = in;
+    try {
+      xml = InputFactoryHolder.FACTORY.createXMLStreamReader(in);
+    } catch(XMLStreamException e) {
+      in.close();
+      throw new IOException("Error reading GATE XML", e);
+    }
+  }
+
+  @Override
+  public String getAnnotationSetName() {
+    return currentSet;
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if(finished) {
+      return false;
+    }
+    try {
+      while(xml.hasNext()) {
+        if(xml.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        String element = xml.getLocalName();
+        if("Annotation".equals(element)) {
+          readAnnotation();
+          return true;
+        } else if("AnnotationSet".equals(element)) {
+          currentSet = xml.getAttributeValue(null, "Name");
+        } else if("TextWithNodes".equals(element)) {
+          readText();
+        } else if("GateDocumentFeatures".equals(element)) {
+          readDocumentFeatures();
+        }
+      }
+      finished = true;
+      return false;
+    } catch(XMLStreamException e) {
+      throw new IOException("Error reading GATE XML", e);
+    } catch(NumberFormatException e) {
+      throw new IOException("Invalid annotation offset in GATE XML", e);
+    }
+  }
+
+  /**
+   * Read an annotation, with the reader positioned at its start tag.
+   */
+  private void readAnnotation() throws XMLStreamException {
+    type = xml.getAttributeValue(null, "Type");
+    startOffset = Long.parseLong(xml.getAttributeValue(null, "StartNode"));
+    endOffset = Long.parseLong(xml.getAttributeValue(null, "EndNode"));
+    if(typesSeen.add(type)) {
+      types.add(type);
+    }
+    clearFeatures();
+    while(nextTag("Annotation")) {
+      if("Feature".equals(xml.getLocalName())) {
+        readFeature();
+      }
+    }
+  }
+
+  /**
+   * Read the document text, with the reader positioned at the start
+   * of the TextWithNodes element. The Node elements mark offsets that
+   * the annotations refer to by number, so they can be ignored.
+   */
+  private void readText() throws XMLStreamException {
+    StringBuilder buf = new StringBuilder();
+    int depth = 1;
+    while(depth > 0) {
+      switch(xml.next()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          buf.append(xml.getTextCharacters(), xml.getTextStart(),
+                  xml.getTextLength());
+          break;
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+    text = buf.toString();
+  }
+
+  private void readDocumentFeatures() throws XMLStreamException {
+    clearFeatures();
+    while(nextTag("GateDocumentFeatures")) {
+      if("Feature".equals(xml.getLocalName())) {
+        readFeature();
+      }
+    }
+    JsonNodeFactory nodes = JsonNodeFactory.instance;
+    for(int i = 0; i < featureNames.size(); i++) {
+      Object value = featureValues.get(i);
+      JsonNode node;
+      if(value instanceof Integer) {
+        node = nodes.numberNode((Integer)value);
+      } else if(value instanceof Long) {
+        node = nodes.numberNode((Long)value);
+      } else if(value instanceof Double) {
+        node = nodes.numberNode((Double)value);
+      } else if(value instanceof Boolean) {
+        node = nodes.booleanNode((Boolean)value);
+      } else if(value == null) {
+        node = nodes.nullNode();
+      } else {
+        node = nodes.textNode(value.toString());
+      }
+      otherFeatures.put(featureNames.get(i), node);
+    }
+    clearFeatures();
+  }
+
+  /**
+   * Read a Feature element (a Name and a Value), with the reader
+   * positioned at its start tag, and add it to the current features.
+   */
+  private void readFeature() throws XMLStreamException {
+    String name = null;
+    Object value = null;
+    while(nextTag("Feature")) {
+      String element = xml.getLocalName();
+      if("Name".equals(element)) {
+        name = xml.getElementText();
+      } else if("Value".equals(element)) {
+        String className = xml.getAttributeValue(null, "className");
+        value = convertValue(className, xml.getElementText());
+      }
+    }
+    if(name != null) {
+      addFeature(name, value);
+    }
+  }
+
+  /**
+   * Advance to the next start tag inside the given element.
+   * 
+   * @return <code>true</code> if positioned at a start tag,
+   *         <code>false</code> if the end of the enclosing element has
+   *         been reached.
+   */
+  private boolean nextTag(String enclosing) throws XMLStreamException {
+    while(xml.hasNext()) {
+      int event = xml.next();
+      if(event == XMLStreamConstants.START_ELEMENT) {
+        return true;
+      } else if(event == XMLStreamConstants.END_ELEMENT
+              && enclosing.equals(xml.getLocalName())) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Convert a feature value to the Java type named by its class
+   * attribute, where that is a simple type.
+   */
+  private static Object convertValue(String className, String value) {
+    try {
+      if("java.lang.Integer".equals(className)
+              || "java.lang.Short".equals(className)
+              || "java.lang.Byte".equals(className)) {
+        return Integer.valueOf(value.trim());
+      } else if("java.lang.Long".equals(className)) {
+        return Long.valueOf(value.trim());
+      } else if("java.lang.Double".equals(className)
+              || "java.lang.Float".equals(className)) {
+        return Double.valueOf(value.trim());
+      } else if("java.lang.Boolean".equals(className)) {
+        return Boolean.valueOf(value.trim());
+      }
+    } catch(NumberFormatException e) {
+      // fall through and keep the string
+    }
+    return value;
+  }
+
+  public void close() throws IOException {
+    finished = true;
+    try {
+      xml.close();
+    } catch(XMLStreamException e) {
+      // ignore, we close the underlying stream anyway
+    } finally {
+      // XMLStreamReader.close does not close the underlying stream
+      in.close();
+    }
+  }
+
+  /**
+   * Lazy holder for the shared StAX factory, which is thread-safe once
+   * configured.
+   */
+  private static class InputFactoryHolder {
+    static final XMLInputFactory FACTORY;
+    static {
+      FACTORY = XMLInputFactory.newInstance();
+      FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+              Boolean.FALSE);
+      FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.annomarket.client.JsonMappers;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * {@link AnnotationStreamReader} for the GATE JSON format, built on a
+ * Jackson streaming parser.
+ * 
+ * @author Ian Roberts
+ */
+class JsonAnnotationStreamReader extends AnnotationStreamReader {
+
+  /**
+   * Reading top-level document properties.
+   */
+  private static final int DOCUMENT = 0;
+
+  /**
+   * Inside the "entities" object, between annotation types.
+   */
+  private static final int ENTITIES = 1;
+
+  /**
+   * Inside the array of annotations of one type.
+   */
+  private static final int ANNOTATIONS = 2;
+
+  private static final int FINISHED = 3;
+
+  private final JsonParser parser;
+
+  private int state = DOCUMENT;
+
+  private String currentType;
+
+  JsonAnnotationStreamReader(InputStream in) throws IOException {
+    parser = JsonMappers.getDefault().getMapper().getFactory()
+            .createParser(in);
+    if(parser.nextToken() != JsonToken.START_OBJECT) {
+      parser.close();
+      throw new JsonParseException("Expected start of document object",
+              parser.getCurrentLocation());
+    }
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    while(true) {
+      switch(state) {
+        case ANNOTATIONS:
+          if(parser.nextToken() == JsonToken.START_OBJECT) {
+            readAnnotation();
+            return true;
+          }
+          // end of this type
+          state = ENTITIES;
+          break;
+
+        case ENTITIES:
+          if(parser.nextToken() == JsonToken.FIELD_NAME) {
+            currentType = parser.getCurrentName();
+            types.add(currentType);
+            if(parser.nextToken() == JsonToken.START_ARRAY) {
+              state = ANNOTATIONS;
+            } else {
+              parser.skipChildren();
+            }
+          } else {
+            state = DOCUMENT;
+          }
+          break;
+
+        case DOCUMENT:
+          if(parser.nextToken() != JsonToken.FIELD_NAME) {
+            state = FINISHED;
+            break;
+          }
+          String field = parser.getCurrentName();
+          JsonToken tok = parser.nextToken();
+          if("text".equals(field)) {
+            text = parser.getValueAsString();
+          } else if("entities".equals(field)
+                  && tok == JsonToken.START_OBJECT) {
+            state = ENTITIES;
+          } else {
+            JsonNode value = parser.readValueAsTree();
+            otherFeatures.put(field, value);
+          }
+          break;
+
+        default:
+          return false;
+      }
+    }
+  }
+
+  /**
+   * Read one annotation object, with the parser positioned at its
+   * START_OBJECT.
+   */
+  private void readAnnotation() throws IOException {
+    type = currentType;
+    clearFeatures();
+    boolean hasIndices = false;
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken tok = parser.nextToken();
+      if("indices".equals(name)) {
+        if(tok != JsonToken.START_ARRAY
+                || parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+          throw new JsonParseException("Malformed annotation indices",
+                  parser.getCurrentLocation());
+        }
+        startOffset = parser.getLongValue();
+        parser.nextToken();
+        endOffset = parser.getLongValue();
+        // skip to the END_ARRAY
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+          parser.skipChildren();
+        }
+        hasIndices = true;
+      } else if(tok == JsonToken.START_OBJECT
+              || tok == JsonToken.START_ARRAY) {
+        addFeature(name, parser.readValueAs(Object.class));
+      } else {
+        addFeature(name, scalarValue(tok));
+      }
+    }
+    if(!hasIndices) {
+      throw new JsonParseException("Annotation of type " + type
+              + " has no indices", parser.getCurrentLocation());
+    }
+  }
+
+  /**
+   * Convert a scalar token to the same Java object that Jackson would
+   * produce when deserializing it into an {@link Annotation} feature.
+   */
+  private Object scalarValue(JsonToken tok) throws IOException {
+    switch(tok) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_EMBEDDED_OBJECT:
+        return parser.getEmbeddedObject();
+      default:
+        return null;
+    }
+  }
+
+  public void close() throws IOException {
+    state = FINISHED;
+    parser.close();
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.util.Arrays;
+
+/**
+ * Index over the start and end offsets of a group of annotations
+ * (typically all the annotations of one type in a document), answering
+ * span queries in logarithmic time rather than by scanning every
+ * annotation.
+ * <p>
+ * Annotations are identified by their position in the list or set the
+ * index was built from, and every query returns positions in order of
+ * increasing start offset (ties in their original order). Spans follow
+ * the usual convention that the end offset is exclusive, so an
+ * annotation from <code>s</code> to <code>e</code> covers the
+ * characters <code>s</code> to <code>e-1</code> of the text.
+ * <p>
+ * Internally the annotations are sorted by start offset, with a
+ * segment tree over the maximum end offset in each range of the sorted
+ * order, so queries that constrain the end offset can skip whole
+ * ranges of annotations that end too early. Indexes are immutable and
+ * thread-safe once built.
+ * 
+ * @author Ian Roberts
+ */
+public class OffsetIndex {
+
+  private static final int[] NONE = new int[0];
+
+  private final int size;
+
+  /**
+   * Original position of each annotation, in sorted order.
+   */
+  private final int[] order;
+
+  private final long[] starts;
+
+  private final long[] ends;
+
+  /**
+   * Segment tree of maximum end offsets. The leaves start at index
+   * <code>leaves</code>; node <code>i</code> has children
+   * <code>2i</code> and <code>2i+1</code>.
+   */
+  private final long[] maxEnd;
+
+  private final int leaves;
+
+  /**
+   * Build an index over the given offsets, where the annotation at
+   * position <code>i</code> spans <code>starts[i]</code> to
+   * <code>ends[i]</code>.
+   */
+  public OffsetIndex(long[] starts, long[] ends) {
+    if(starts.length != ends.length) {
+      throw new IllegalArgumentException(
+              "starts and ends must have the same length");
+    }
+    size = starts.length;
+    // sort by start offset, with the original position breaking ties,
+    // by packing both into one long
+    long[] keys = new long[size];
+    for(int i = 0; i < size; i++) {
+      if(starts[i] < 0 || starts[i] > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Invalid start offset "
+                + starts[i]);
+      }
+      keys[i] = (starts[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+    order = new int[size];
+    this.starts = new long[size];
+    this.ends = new long[size];
+    for(int j = 0; j < size; j++) {
+      int i = (int)keys[j];
+      order[j] = i;
+      this.starts[j] = starts[i];
+      this.ends[j] = ends[i];
+    }
+
+    int n = 1;
+    while(n < size) {
+      n <<= 1;
+    }
+    leaves = n;
+    maxEnd = new long[2 * n];
+    Arrays.fill(maxEnd, Long.MIN_VALUE);
+    System.arraycopy(this.ends, 0, maxEnd, n, size);
+    for(int node = n - 1; node > 0; node--) {
+      maxEnd[node] = Math.max(maxEnd[2 * node], maxEnd[2 * node + 1]);
+    }
+  }
+
+  /**
+   * @return the number of annotations in the index.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Find the annotations that overlap the given span, i.e. that share
+   * at least one character with it (<code>a.start &lt; end</code> and
+   * <code>a.end &gt; start</code>).
+   */
+  public int[] overlapping(long start, long end) {
+    return endingAtLeast(startingBefore(end), start + 1);
+  }
+
+  /**
+   * Find the annotations that lie entirely within the given span
+   * (<code>a.start &gt;= start</code> and <code>a.end &lt;= end</code>).
+   */
+  public int[] containedIn(long start, long end) {
+    int from = startingBefore(start);
+    int to = startingBefore(end + 1);
+    IntList result = new IntList();
+    for(int j = from; j < to; j++) {
+      if(ends[j] <= end) {
+        result.add(order[j]);
+      }
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Find the annotations that cover the whole of the given span
+   * (<code>a.start &lt;= start</code> and <code>a.end &gt;= end</code>).
+   */
+  public int[] covering(long start, long end) {
+    return endingAtLeast(startingBefore(start + 1), end);
+  }
+
+  /**
+   * Find the first annotation that starts at or after the given offset.
+   * 
+   * @return the position of the annotation, or -1 if there is none.
+   */
+  public int nextAfter(long offset) {
+    int j = startingBefore(offset);
+    return (j < size) ? order[j] : -1;
+  }
+
+  /**
+   * @return the number of annotations (in sorted order) whose start
+   *         offset is less than the given offset.
+   */
+  private int startingBefore(long offset) {
+    int lo = 0;
+    int hi = size;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(starts[mid] < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Find the annotations among the first <code>limit</code> in sorted
+   * order whose end offset is at least <code>minEnd</code>.
+   */
+  private int[] endingAtLeast(int limit, long minEnd) {
+    if(limit == 0) {
+      return NONE;
+    }
+    IntList result = new IntList();
+    collect(1, 0, leaves, limit, minEnd, result);
+    return result.toArray();
+  }
+
+  private void collect(int node, int lo, int hi, int limit, long minEnd,
+          IntList result) {
+    if(lo >= limit || maxEnd[node] < minEnd) {
+      return;
+    }
+    if(node >= leaves) {
+      result.add(order[lo]);
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    collect(2 * node, lo, mid, limit, minEnd, result);
+    collect(2 * node + 1, mid, hi, limit, minEnd, result);
+  }
+
+  /**
+   * Minimal growable list of ints, to avoid boxing query results.
+   */
+  private static class IntList {
+    int[] values = new int[8];
+
+    int size = 0;
+
+    void add(int value) {
+      if(size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return (size == 0) ? NONE : Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -16,18 +16,33 @@
  */
 package com.annomarket.online;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import com.annomarket.client.AdaptiveConcurrencyLimiter;
+import com.annomarket.client.PooledHttpTransport;
+import com.annomarket.client.RateLimiter;
 import com.annomarket.client.RestClient;
 import com.annomarket.client.RestClientException;
+import com.annomarket.client.TransformingCallback;
 import com.annomarket.shop.Item;
 import com.annomarket.shop.Shop;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -42,8 +57,28 @@ import com.fasterxml.jackson.databind.JsonNode;
  */
 public class OnlineApi {
 
+  /**
+   * Default maximum number of requests in flight at once for
+   * {@link #annotateBatch(List)} - enough to use every pooled
+   * connection to the service.
+   */
+  public static final int DEFAULT_BATCH_IN_FLIGHT =
+          PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
   private RestClient client;
 
+  private volatile RateLimiter rateLimiter;
+
+  private volatile AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+  private volatile AnnotationCache cache;
+
+  private volatile RequestCoalescer coalescer;
+
+  private volatile int maxChunkLength = 0;
+
+  private volatile int chunkOverlap = 0;
+
   /**
    * Construct an <code>OnlineApi</code> accessing a specific processing
    * pipeline on the AnnoMarket.com platform using the given
@@ -79,6 +114,187 @@ public class OnlineApi {
     this.client = new RestClient(endpoint, apiKeyId, apiPassword);
   }
 
+  /**
+   * Limit the rate at which this object sends requests to the service,
+   * to stay within the service's quota. Each request takes one permit
+   * from the limiter, waiting if necessary. The same limiter can be
+   * shared by several <code>OnlineApi</code> objects that draw on the
+   * same quota.
+   * 
+   * @param rateLimiter the limiter, or <code>null</code> (the default)
+   *          for no rate limit
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Limit the number of requests this object has in flight at any one
+   * time, adapting the limit to the service's response. The limit grows
+   * while requests succeed with healthy latency, and is cut back when
+   * the service responds with 429 (too many requests) or 503 (service
+   * unavailable). Callers beyond the limit wait until a slot is free,
+   * so many threads can safely share one <code>OnlineApi</code> without
+   * overwhelming the service.
+   * 
+   * @param concurrencyLimiter the limiter, or <code>null</code> (the
+   *          default) for no limit
+   */
+  public void setConcurrencyLimiter(
+          AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * Cache responses, so that a request identical to an earlier one
+   * (same document text, MIME type, annotation selectors, response
+   * format and pipeline) is answered from the cache without contacting
+   * the service. Requests for a document URL or the contents of a file
+   * are never cached.
+   * <p>
+   * Responses are decompressed before they are stored, so the cache
+   * holds uncompressed responses whether or not the request that filled
+   * it allowed the server to compress the response.
+   * <p>
+   * While a cache is set, the streaming methods
+   * ({@link #processRequestForStream processRequestForStream},
+   * {@link #processRequestForReader processRequestForReader} and
+   * {@link #processRequestCompact processRequestCompact}) read the
+   * whole response into memory before returning it for any request
+   * with document text, so that it can be stored. Use a separate
+   * <code>OnlineApi</code> without a cache for documents whose
+   * annotations are too large to hold in memory.
+   * 
+   * @param cache the cache, or <code>null</code> (the default) for no
+   *          caching
+   */
+  public void setCache(AnnotationCache cache) {
+    this.cache = cache;
+  }
+
+  public AnnotationCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Compress request bodies larger than the given number of bytes with
+   * gzip, to reduce upload time for large documents. See
+   * {@link RestClient#setRequestCompressionThreshold}.
+   * 
+   * @param thresholdBytes bodies larger than this are compressed.
+   *          Negative (the default) disables compression.
+   */
+  public void setRequestCompressionThreshold(int thresholdBytes) {
+    client.setRequestCompressionThreshold(thresholdBytes);
+  }
+
+  public int getRequestCompressionThreshold() {
+    return client.getRequestCompressionThreshold();
+  }
+
+  /**
+   * Collapse identical requests made concurrently by several threads
+   * into a single call to the service. Requests are identical if they
+   * have the same document text or document URL, MIME type, annotation
+   * selectors and response format. The first thread sends the request,
+   * and any others that make the same request before it completes wait
+   * for its response rather than sending their own; each thread still
+   * gets its own copy of the result. Unlike the
+   * {@link #setCache cache}, this also applies to requests for a
+   * document URL, as they are only shared while in flight.
+   * <p>
+   * This applies to the synchronous and streaming methods, not to the
+   * asynchronous or batch methods. The request that is actually sent
+   * allows a compressed response if the thread that sent it asked for
+   * one, and the response is decompressed before it is shared.
+   * <p>
+   * Because the response may be shared, every request made through the
+   * streaming methods
+   * ({@link #processRequestForStream processRequestForStream},
+   * {@link #processRequestForReader processRequestForReader} and
+   * {@link #processRequestCompact processRequestCompact}) is read
+   * fully into memory before it is returned while coalescing is on,
+   * whether or not another thread is waiting for it, so they no longer
+   * run in constant memory.
+   * 
+   * @param coalescing <code>true</code> to coalesce requests,
+   *          <code>false</code> (the default) to send every request
+   */
+  public void setCoalescing(boolean coalescing) {
+    if(coalescing != isCoalescing()) {
+      this.coalescer = coalescing ? new RequestCoalescer() : null;
+    }
+  }
+
+  public boolean isCoalescing() {
+    return coalescer != null;
+  }
+
+  /**
+   * @return the number of requests that were answered with the
+   *         response to an identical concurrent request, since
+   *         coalescing was enabled.
+   */
+  public long getCoalescedRequests() {
+    RequestCoalescer c = coalescer;
+    return (c == null) ? 0 : c.getCoalesced();
+  }
+
+  /**
+   * Annotate long plain text documents in chunks. A plain text document
+   * longer than <code>maxChunkLength</code> characters is split at
+   * paragraph or sentence boundaries into chunks of at most that
+   * length. The chunks are annotated in parallel as a
+   * {@link #annotateBatch(List) batch} and the results merged into a
+   * single document, with all annotation offsets relative to the
+   * original text.
+   * <p>
+   * Each chunk includes up to <code>overlap</code> characters of
+   * context either side of the part it is responsible for, so that
+   * annotations near a chunk boundary are found with their surrounding
+   * text. Annotations found twice because they lie in the overlap
+   * between two chunks appear only once in the result. Annotations
+   * longer than the overlap that span a boundary (e.g. whole
+   * paragraphs) are kept with their end truncated at the edge of the
+   * chunk they start in, so pipelines that produce them should use a
+   * large overlap or no chunking.
+   * <p>
+   * Chunking applies to {@link #annotateDocument annotateDocument} and
+   * {@link #processRequest processRequest}, not to the asynchronous,
+   * streaming or batch methods.
+   * 
+   * @param maxChunkLength the maximum chunk length in characters, or 0
+   *          (the default) to send every document whole
+   * @param overlap the context either side of each chunk.
+   *          <code>maxChunkLength - 2 * overlap</code> must be at
+   *          least 2.
+   * @throws IllegalArgumentException if the overlap is negative or too
+   *           large for the chunk length
+   */
+  public void setChunking(int maxChunkLength, int overlap) {
+    if(maxChunkLength > 0) {
+      DocumentChunker.checkSettings(maxChunkLength, overlap);
+    }
+    this.maxChunkLength = maxChunkLength;
+    this.chunkOverlap = overlap;
+  }
+
+  public int getMaxChunkLength() {
+    return maxChunkLength;
+  }
+
+  public int getChunkOverlap() {
+    return chunkOverlap;
+  }
+
   /**
    * Annotates a single document with the specified MIME type. Returns
    * an object which allows for convenient access to the annotations in
@@ -101,7 +317,8 @@ public class OnlineApi {
   /**
    * Annotates the contents of a single file with the specified MIME
    * type. Returns an object which allows for convenient access to the
-   * annotations in the annotated document.
+   * annotations in the annotated document. The file is streamed into
+   * the request as it is sent rather than being read into memory first.
    * 
    * @param documentContent the file whose contents will be annotated
    * @param documentEncoding the encoding of the document file
@@ -114,17 +331,32 @@ public class OnlineApi {
   public AnnotatedDocument annotateFileContents(File documentContent,
           Charset documentEncoding, SupportedMimeType documentMimeType)
           throws IOException, OnlineApiException {
+    return annotateFileContents(documentContent, documentEncoding,
+            documentMimeType, false);
+  }
 
-    Path documentPath = documentContent.toPath();
-    if(!Files.isReadable(documentPath)) {
-      throw new IOException("File " + documentPath.toString()
-              + " is not readable.");
-    }
-    ByteBuffer buff;
-    buff = ByteBuffer.wrap(Files.readAllBytes(documentPath));
-    String content = documentEncoding.decode(buff).toString();
-
-    return annotateDocument(content, documentMimeType);
+  /**
+   * Annotates the contents of a single file with the specified MIME
+   * type, optionally memory mapping the file. Memory mapping is usually
+   * faster for large local files, but should be avoided for files on
+   * network file systems or files that may be modified while the
+   * request is in progress.
+   * 
+   * @param documentContent the file whose contents will be annotated
+   * @param documentEncoding the encoding of the document file
+   * @param documentMimeType the MIME type of the document to annotated
+   * @param memoryMap whether to memory map the file rather than reading
+   *          it as a stream
+   * @return an {@link AnnotatedDocument} containing the original
+   *         content as well as the annotations produced
+   * @throws IOException
+   * @throws OnlineApiException
+   */
+  public AnnotatedDocument annotateFileContents(File documentContent,
+          Charset documentEncoding, SupportedMimeType documentMimeType,
+          boolean memoryMap) throws IOException, OnlineApiException {
+    return send(fileEntity(documentContent, documentEncoding,
+            documentMimeType, memoryMap), true);
   }
 
   /**
@@ -167,23 +399,14 @@ public class OnlineApi {
 
     OnlineServiceRequest rq =
             new OnlineServiceRequest(documentText, documentMimeType, null);
-    try {
-      return client.requestForStream("", "POST", rq, "Accept",
-              serializationFormat.acceptHeader);
-    } catch(RestClientException e) {
-      JsonNode response = e.getResponse();
-      if(response == null) {
-        throw new OnlineApiException(e.getMessage(), e);
-      }
-      JsonNode msg = response.get("message");
-      throw new OnlineApiException(msg == null ? e.getMessage() : msg.asText(),
-              e);
-    }
+    return processRequestForStream(rq, serializationFormat, true);
   }
 
   /**
    * Annotates the contents of a single file returning an
-   * {@link InputStream} from which the annotated content can be read
+   * {@link InputStream} from which the annotated content can be read.
+   * The file is streamed into the request as it is sent rather than
+   * being read into memory first.
    * 
    * @param documentContent the file which will be annotated
    * @param documentEncoding the encoding of the file which will be
@@ -201,17 +424,53 @@ public class OnlineApi {
           Charset documentEncoding, SupportedMimeType documentMimeType,
           ResponseFormat serializationFormat) throws IOException,
           OnlineApiException {
+    return annotateFileContentsAsStream(documentContent, documentEncoding,
+            documentMimeType, serializationFormat, false);
+  }
 
+  /**
+   * Annotates the contents of a single file returning an
+   * {@link InputStream} from which the annotated content can be read,
+   * optionally memory mapping the file.
+   * 
+   * @param documentContent the file which will be annotated
+   * @param documentEncoding the encoding of the file which will be
+   *          annotated
+   * @param documentMimeType the MIME type of the file which will be
+   *          annotated
+   * @param serializationFormat the serialization format used for the
+   *          annotated content
+   * @param memoryMap whether to memory map the file rather than reading
+   *          it as a stream
+   * @return an {@link InputStream} from which
+   * @throws IOException if there are problems reading the contents of
+   *           the file
+   * @throws OnlineApiException
+   * @see #annotateFileContents(File, Charset, SupportedMimeType, boolean)
+   */
+  public InputStream annotateFileContentsAsStream(File documentContent,
+          Charset documentEncoding, SupportedMimeType documentMimeType,
+          ResponseFormat serializationFormat, boolean memoryMap)
+          throws IOException, OnlineApiException {
+    return sendForStream(fileEntity(documentContent, documentEncoding,
+            documentMimeType, memoryMap), serializationFormat, true);
+  }
+
+  /**
+   * Create the request entity that streams the given file into the
+   * request.
+   */
+  private FileDocumentEntity fileEntity(File documentContent,
+          Charset documentEncoding, SupportedMimeType documentMimeType,
+          boolean memoryMap) throws IOException {
     Path documentPath = documentContent.toPath();
     if(!Files.isReadable(documentPath)) {
       throw new IOException("File " + documentPath.toString()
               + " is not readable.");
     }
-    ByteBuffer buff;
-    buff = ByteBuffer.wrap(Files.readAllBytes(documentPath));
-    String content = documentEncoding.decode(buff).toString();
-    return annotateDocumentAsStream(content, documentMimeType,
-            serializationFormat);
+    return new FileDocumentEntity(client.getMappers().getMapper()
+            .getFactory(), documentContent, documentEncoding,
+            documentMimeType.value, null, memoryMap);
   }
 
   /**
@@ -233,31 +492,24 @@ public class OnlineApi {
 
     OnlineServiceRequest rq =
             new OnlineServiceRequest(documentUrl, documentMimeType, null);
-    try {
-      return client.requestForStream("", "POST", rq, "Accept",
-              serializationFormat.acceptHeader);
-    } catch(RestClientException e) {
-      JsonNode response = e.getResponse();
-      if(response == null) {
-        throw new OnlineApiException(e.getMessage(), e);
-      }
-      JsonNode msg = response.get("message");
-      throw new OnlineApiException(msg == null ? e.getMessage() : msg.asText(),
-              e);
-    }
+    return processRequestForStream(rq, serializationFormat, true);
   }
 
   /**
    * This low level method allows the user to explicitly specify all the
    * parameters sent to the service. This is done by constructing the
    * appropriate OnlineServiceRequest object. Returns the contents of
-   * the annotated document
+   * the annotated document. The stream reads directly from the
+   * response unless {@link #setCoalescing coalescing} or a
+   * {@link #setCache cache} is in use, in which case the whole response
+   * is read into memory first so that it can be shared.
    * 
    * @param rq the request which will be sent
    * @param serializationFormat the format in which to output the
    *          annotated document
-   * @param requestCompression whether to allow GZIP compression for
-   *          large documents
+   * @param requestCompression whether to allow the server to compress
+   *          the response (gzip or deflate), which is decompressed
+   *          transparently
    * @return an{@link InputStream} for the serilization of the annotated
    *         document in the specified format
    * @throws OnlineApiException
@@ -265,23 +517,33 @@ public class OnlineApi {
   public InputStream processRequestForStream(OnlineServiceRequest rq,
           ResponseFormat serializationFormat, boolean requestCompression)
           throws OnlineApiException {
+    String key = sharedKey(rq, serializationFormat);
+    if(key == null) {
+      return sendForStream(rq, serializationFormat, requestCompression);
+    }
+    byte[] response =
+            sharedResponse(rq, key, serializationFormat, requestCompression);
+    return (response == null) ? null : new ByteArrayInputStream(response);
+  }
 
+  /**
+   * Send a request body (an {@link OnlineServiceRequest} or a streaming
+   * entity) and return the response stream.
+   */
+  private InputStream sendForStream(Object rq,
+          ResponseFormat serializationFormat, boolean requestCompression)
+          throws OnlineApiException {
+    AdaptiveConcurrencyLimiter.Ticket ticket = beforeRequest();
     try {
-      if(requestCompression) {
-        return client.requestForStream("", "POST", rq, "Accept",
-                serializationFormat.acceptHeader, "Accept-Encoding", "gzip");
-      } else {
-        return client.requestForStream("", "POST", rq, "Accept",
-                serializationFormat.acceptHeader);
-      }
+      InputStream stream =
+              client.requestForStream("", "POST", rq, "Accept",
+                      serializationFormat.acceptHeader, "Accept-Encoding",
+                      acceptEncoding(requestCompression));
+      afterRequest(ticket, null);
+      return stream;
     } catch(RestClientException e) {
-      JsonNode response = e.getResponse();
-      if(response == null) {
-        throw new OnlineApiException(e.getMessage(), e);
-      }
-      JsonNode msg = response.get("message");
-      throw new OnlineApiException(msg == null ? e.getMessage() : msg.asText(),
-              e);
+      afterRequest(ticket, e);
+      throw toOnlineApiException(e);
     }
   }
 
@@ -291,34 +553,580 @@ public class OnlineApi {
    * object. Returns an object which wraps the annotated document.
    * 
    * @param rq the request which will be sent to the service
-   * @param requestCompression whether to allow GZIP compression for
-   *          large documents
+   * @param requestCompression whether to allow the server to compress
+   *          the response (gzip or deflate), which is decompressed
+   *          transparently
    * @return an {@link AnnotatedDocument} containing the original
    *         content as well as the annotations produced
    * @throws OnlineApiException
    */
   public AnnotatedDocument processRequest(OnlineServiceRequest rq,
           boolean requestCompression) throws OnlineApiException {
+    int maxLength = maxChunkLength;
+    if(maxLength > 0 && rq.getDocument() != null
+            && rq.getDocument().length() > maxLength
+            && SupportedMimeType.PLAINTEXT.value.equals(rq.getMimeType())) {
+      return processChunked(rq, maxLength, chunkOverlap, requestCompression);
+    }
+    String key = sharedKey(rq, ResponseFormat.JSON);
+    if(key == null) {
+      return send(rq, requestCompression);
+    }
+    byte[] response =
+            sharedResponse(rq, key, ResponseFormat.JSON, requestCompression);
+    return (response == null) ? null : parse(response);
+  }
+
+  /**
+   * Process a request and return the result as a
+   * {@link CompactAnnotatedDocument}, which is parsed directly from the
+   * response stream and takes much less memory than the equivalent
+   * {@link AnnotatedDocument} when there are many annotations. With
+   * {@link #setCoalescing coalescing} or a {@link #setCache cache} in
+   * use the raw response is also held in memory while it is parsed.
+   *
+   * @param rq the request which will be sent to the service
+   * @return the annotated document in compact form
+   * @throws OnlineApiException
+   */
+  public CompactAnnotatedDocument processRequestCompact(
+          OnlineServiceRequest rq) throws OnlineApiException {
+    InputStream stream =
+            processRequestForStream(rq, ResponseFormat.JSON, true);
+    if(stream == null) {
+      return null;
+    }
     try {
-      if(requestCompression) {
-        return client.request("", "POST",
-                new TypeReference<AnnotatedDocument>() {
-                }, rq, "Accept", ResponseFormat.JSON.acceptHeader,
-                "Accept-Encoding", "gzip");
-      } else {
-        return client.request("", "POST",
-                new TypeReference<AnnotatedDocument>() {
-                }, rq, "Accept", ResponseFormat.JSON.acceptHeader);
+      return CompactAnnotatedDocument.read(stream);
+    } catch(IOException e) {
+      throw new OnlineApiException("Error reading annotated document", e);
+    }
+  }
+
+  /**
+   * Process a request and return an {@link AnnotationStreamReader} that
+   * delivers the annotations one at a time as they are read from the
+   * response, so that arbitrarily large documents can be processed in
+   * constant memory, unless {@link #setCoalescing coalescing} or a
+   * {@link #setCache cache} is in use, in which case the response is
+   * read into memory first. The caller must close the reader.
+   *
+   * @param rq the request which will be sent to the service
+   * @return a reader over the annotated document
+   * @throws OnlineApiException
+   */
+  public AnnotationStreamReader processRequestForReader(
+          OnlineServiceRequest rq) throws OnlineApiException {
+    return processRequestForReader(rq, ResponseFormat.JSON);
+  }
+
+  /**
+   * Process a request and return an {@link AnnotationStreamReader} over
+   * the response in the given format. The caller must close the
+   * reader.
+   *
+   * @param rq the request which will be sent to the service
+   * @param serializationFormat the format in which the service should
+   *          return the annotated document
+   * @return a reader over the annotated document
+   * @throws OnlineApiException
+   */
+  public AnnotationStreamReader processRequestForReader(
+          OnlineServiceRequest rq, ResponseFormat serializationFormat)
+          throws OnlineApiException {
+    InputStream stream =
+            processRequestForStream(rq, serializationFormat, true);
+    if(stream == null) {
+      return null;
+    }
+    try {
+      return AnnotationStreamReader.open(stream, serializationFormat);
+    } catch(IOException e) {
+      IOUtils.closeQuietly(stream);
+      throw new OnlineApiException("Error reading annotated document", e);
+    }
+  }
+
+  /**
+   * Split a request into chunks, annotate them in parallel and merge
+   * the results.
+   */
+  private AnnotatedDocument processChunked(OnlineServiceRequest rq,
+          int maxLength, int overlap, boolean requestCompression)
+          throws OnlineApiException {
+    String text = rq.getDocument();
+    List<DocumentChunker.Chunk> chunks =
+            DocumentChunker.split(text, maxLength, overlap);
+    List<OnlineServiceRequest> requests =
+            new ArrayList<OnlineServiceRequest>(chunks.size());
+    for(DocumentChunker.Chunk chunk : chunks) {
+      requests.add(new OnlineServiceRequest(rq, text.substring(chunk.start,
+              chunk.end)));
+    }
+    List<AnnotatedDocument> docs =
+            new ArrayList<AnnotatedDocument>(chunks.size());
+    for(BatchResult result : annotateBatch(requests,
+            DEFAULT_BATCH_IN_FLIGHT, requestCompression)) {
+      if(!result.isSuccess()) {
+        throw result.getError();
       }
+      docs.add(result.getDocument());
+    }
+    return DocumentChunker.merge(text, chunks, docs);
+  }
+
+  /**
+   * Send a request body (an {@link OnlineServiceRequest} or a streaming
+   * entity) and parse the response.
+   */
+  private AnnotatedDocument send(Object rq, boolean requestCompression)
+          throws OnlineApiException {
+    AdaptiveConcurrencyLimiter.Ticket ticket = beforeRequest();
+    try {
+      AnnotatedDocument doc =
+              client.request("", "POST",
+                      new TypeReference<AnnotatedDocument>() {
+                      }, rq, "Accept", ResponseFormat.JSON.acceptHeader,
+                      "Accept-Encoding", acceptEncoding(requestCompression));
+      afterRequest(ticket, null);
+      return doc;
     } catch(RestClientException e) {
-      JsonNode response = e.getResponse();
-      if(response == null) {
-        throw new OnlineApiException(e.getMessage(), e);
+      afterRequest(ticket, e);
+      throw toOnlineApiException(e);
+    }
+  }
+
+  /**
+   * The <code>Accept-Encoding</code> header value for a request that
+   * does or does not allow a compressed response.
+   */
+  private static String acceptEncoding(boolean requestCompression) {
+    return requestCompression ? "gzip, deflate" : "identity";
+  }
+
+  /**
+   * Annotates a single document without blocking the calling thread.
+   * This allows many documents to be in flight at once from a small
+   * number of threads.
+   * 
+   * @param documentText the document content to annotate
+   * @param documentMimeType the MIME type of the document which will be
+   *          annotated
+   * @param callback callback to be notified with the annotated
+   *          document, or with an {@link OnlineApiException} if the
+   *          request fails. May be <code>null</code>.
+   * @return a {@link Future} for the annotated document
+   */
+  public Future<AnnotatedDocument> annotateDocumentAsync(String documentText,
+          SupportedMimeType documentMimeType,
+          FutureCallback<AnnotatedDocument> callback) {
+    OnlineServiceRequest rq =
+            new OnlineServiceRequest(documentText, documentMimeType, null);
+    return processRequestAsync(rq, true, callback);
+  }
+
+  /**
+   * Annotates a single document publicly available under a given URL,
+   * without blocking the calling thread.
+   * 
+   * @param documentUrl the publicly accessible URL from where the
+   *          document will be downloaded
+   * @param documentMimeType the MIME type of the document which will be
+   *          annotated
+   * @param callback callback to be notified with the annotated
+   *          document, or with an {@link OnlineApiException} if the
+   *          request fails. May be <code>null</code>.
+   * @return a {@link Future} for the annotated document
+   */
+  public Future<AnnotatedDocument> annotateDocumentFromUrlAsync(
+          URL documentUrl, SupportedMimeType documentMimeType,
+          FutureCallback<AnnotatedDocument> callback) {
+    OnlineServiceRequest rq =
+            new OnlineServiceRequest(documentUrl, documentMimeType, null);
+    return processRequestAsync(rq, true, callback);
+  }
+
+  /**
+   * Asynchronous version of {@link #processRequest processRequest},
+   * which returns immediately rather than blocking until the response
+   * is available. If a {@link #setRateLimiter rate limiter} or
+   * {@link #setConcurrencyLimiter concurrency limiter} is in use, this
+   * method may block until the request is allowed to be sent.
+   * 
+   * @param rq the request which will be sent to the service
+   * @param requestCompression whether to allow the server to compress
+   *          the response (gzip or deflate), which is decompressed
+   *          transparently
+   * @param callback callback to be notified with the annotated
+   *          document, or with an {@link OnlineApiException} if the
+   *          request fails. May be <code>null</code>.
+   * @return a {@link Future} for the annotated document
+   */
+  public Future<AnnotatedDocument> processRequestAsync(
+          OnlineServiceRequest rq, boolean requestCompression,
+          FutureCallback<AnnotatedDocument> callback) {
+    final String key = cacheKey(rq, ResponseFormat.JSON);
+    if(key != null) {
+      final AnnotationCache c = cache;
+      byte[] cached = c.get(key);
+      if(cached != null) {
+        BasicFuture<AnnotatedDocument> hit =
+                new BasicFuture<AnnotatedDocument>(callback);
+        try {
+          hit.completed(parse(cached));
+        } catch(OnlineApiException e) {
+          hit.failed(e);
+        }
+        return hit;
+      }
+      // fetch as a tree, so it can be both stored and converted
+      LimitedCallback<JsonNode> store =
+              new LimitedCallback<JsonNode>(beforeRequest(), callback) {
+                @Override
+                protected AnnotatedDocument convert(JsonNode node)
+                        throws IOException {
+                  c.put(key, client.getMappers().getWriter()
+                          .writeValueAsBytes(node));
+                  return client.readerFor(AnnotatedDocument.class)
+                          .readValue(node);
+                }
+              };
+      store.setSource(client.requestAsync("", "POST",
+              new TypeReference<JsonNode>() {
+              }, rq, store, "Accept", ResponseFormat.JSON.acceptHeader));
+      return store.getFuture();
+    }
+    LimitedCallback<AnnotatedDocument> errors =
+            new LimitedCallback<AnnotatedDocument>(beforeRequest(), callback) {
+              @Override
+              protected AnnotatedDocument convert(AnnotatedDocument doc) {
+                return doc;
+              }
+            };
+    errors.setSource(client.requestAsync("", "POST",
+            new TypeReference<AnnotatedDocument>() {
+            }, rq, errors, "Accept", ResponseFormat.JSON.acceptHeader,
+            "Accept-Encoding", acceptEncoding(requestCompression)));
+    return errors.getFuture();
+  }
+
+  /**
+   * Callback for asynchronous requests that reports the outcome to the
+   * concurrency limiter and converts failures to
+   * {@link OnlineApiException}s.
+   */
+  private abstract class LimitedCallback<S> extends
+          TransformingCallback<S, AnnotatedDocument> {
+    private final AdaptiveConcurrencyLimiter.Ticket ticket;
+
+    private boolean reported = false;
+
+    LimitedCallback(AdaptiveConcurrencyLimiter.Ticket ticket,
+            FutureCallback<AnnotatedDocument> callback) {
+      super(callback);
+      this.ticket = ticket;
+    }
+
+    protected abstract AnnotatedDocument convert(S source) throws Exception;
+
+    @Override
+    protected AnnotatedDocument transform(S source) throws Exception {
+      report(null);
+      return convert(source);
+    }
+
+    @Override
+    protected Exception transformFailure(Exception e) {
+      report(e);
+      if(e instanceof RestClientException) {
+        return toOnlineApiException((RestClientException)e);
+      } else {
+        return new OnlineApiException(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public void cancelled() {
+      report(new CancellationException());
+      super.cancelled();
+    }
+
+    /**
+     * Report the outcome to the limiter, unless already done (the
+     * request may have succeeded but its response failed to convert).
+     */
+    private void report(Exception failure) {
+      if(!reported) {
+        reported = true;
+        afterRequest(ticket, failure);
+      }
+    }
+  }
+
+  /**
+   * Annotates a batch of documents, keeping up to
+   * {@link #DEFAULT_BATCH_IN_FLIGHT} requests in flight at once over
+   * pooled connections. This is much faster than calling
+   * {@link #processRequest processRequest} for each document in turn
+   * when the documents are short (e.g. tweets), as the time taken is
+   * then dominated by network round trips rather than processing.
+   * 
+   * @param requests the requests to send
+   * @return one result for each request, in the same order as the
+   *         requests. A document that could not be annotated is
+   *         reported as a failed {@link BatchResult}, it does not
+   *         prevent the other documents from being processed.
+   * @throws OnlineApiException if the calling thread is interrupted
+   *           while waiting for the batch to complete.
+   */
+  public List<BatchResult> annotateBatch(List<OnlineServiceRequest> requests)
+          throws OnlineApiException {
+    return annotateBatch(requests, DEFAULT_BATCH_IN_FLIGHT);
+  }
+
+  /**
+   * Annotates a batch of documents, keeping up to the given number of
+   * requests in flight at once. If a
+   * {@link #setConcurrencyLimiter concurrency limiter} is in use it may
+   * reduce the number of requests in flight further.
+   * 
+   * @param requests the requests to send
+   * @param maxInFlight the maximum number of requests to have in
+   *          progress at any one time
+   * @return one result for each request, in the same order as the
+   *         requests.
+   * @throws OnlineApiException if the calling thread is interrupted
+   *           while waiting for the batch to complete.
+   * @see #annotateBatch(List)
+   */
+  public List<BatchResult> annotateBatch(
+          List<OnlineServiceRequest> requests, int maxInFlight)
+          throws OnlineApiException {
+    return annotateBatch(requests, maxInFlight, true);
+  }
+
+  private List<BatchResult> annotateBatch(
+          List<OnlineServiceRequest> requests, int maxInFlight,
+          boolean requestCompression) throws OnlineApiException {
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    FutureCallback<AnnotatedDocument> releaser =
+            new FutureCallback<AnnotatedDocument>() {
+              public void completed(AnnotatedDocument result) {
+                inFlight.release();
+              }
+
+              public void failed(Exception ex) {
+                inFlight.release();
+              }
+
+              public void cancelled() {
+                inFlight.release();
+              }
+            };
+    List<Future<AnnotatedDocument>> futures =
+            new ArrayList<Future<AnnotatedDocument>>(requests.size());
+    try {
+      for(OnlineServiceRequest rq : requests) {
+        inFlight.acquire();
+        try {
+          futures.add(processRequestAsync(rq, requestCompression, releaser));
+        } catch(OnlineApiException e) {
+          // interrupted while waiting for the concurrency limiter
+          inFlight.release();
+          throw e;
+        }
+      }
+      List<BatchResult> results =
+              new ArrayList<BatchResult>(requests.size());
+      for(int i = 0; i < futures.size(); i++) {
+        OnlineServiceRequest rq = requests.get(i);
+        try {
+          results.add(new BatchResult(rq, futures.get(i).get(), null));
+        } catch(ExecutionException e) {
+          Throwable cause = e.getCause();
+          results.add(new BatchResult(rq, null,
+                  cause instanceof OnlineApiException
+                          ? (OnlineApiException)cause
+                          : new OnlineApiException(cause.getMessage(), cause)));
+        } catch(CancellationException e) {
+          results.add(new BatchResult(rq, null, new OnlineApiException(
+                  "Request cancelled", e)));
+        }
+      }
+      return results;
+    } catch(InterruptedException e) {
+      for(Future<AnnotatedDocument> f : futures) {
+        f.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new OnlineApiException("Interrupted while processing batch", e);
+    } catch(OnlineApiException e) {
+      for(Future<AnnotatedDocument> f : futures) {
+        f.cancel(true);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Compute the cache key for a request, or return <code>null</code>
+   * if there is no cache or the request cannot be cached.
+   */
+  private String cacheKey(OnlineServiceRequest rq, ResponseFormat format) {
+    return (cache == null) ? null : AnnotationCache.key(client.getBaseUrl(),
+            rq, format);
+  }
+
+  /**
+   * Compute the key under which a synchronous request's response may be
+   * shared, through the cache or by coalescing identical requests, or
+   * return <code>null</code> if neither applies.
+   */
+  private String sharedKey(OnlineServiceRequest rq, ResponseFormat format) {
+    if(coalescer != null) {
+      return AnnotationCache.requestKey(client.getBaseUrl(), rq, format);
+    }
+    return cacheKey(rq, format);
+  }
+
+  /**
+   * Return the response for the given key from the cache if possible,
+   * otherwise send the request (or wait for an identical request that
+   * is already in flight) and cache the response.
+   */
+  private byte[] sharedResponse(final OnlineServiceRequest rq,
+          final String key, final ResponseFormat format,
+          final boolean requestCompression) throws OnlineApiException {
+    // only requests with document text are cached
+    final AnnotationCache c = (rq.getDocument() == null) ? null : cache;
+    byte[] response = (c == null) ? null : c.get(key);
+    if(response != null) {
+      return response;
+    }
+    RequestCoalescer sf = coalescer;
+    if(sf == null) {
+      return fetchResponse(rq, key, format, requestCompression, c);
+    }
+    return sf.fetch(key, new Callable<byte[]>() {
+      public byte[] call() throws OnlineApiException {
+        return fetchResponse(rq, key, format, requestCompression, c);
+      }
+    });
+  }
+
+  /**
+   * Send a request and read the whole response, storing it in the given
+   * cache if not <code>null</code>.
+   */
+  private byte[] fetchResponse(OnlineServiceRequest rq, String key,
+          ResponseFormat format, boolean requestCompression, AnnotationCache c)
+          throws OnlineApiException {
+    InputStream stream = sendForStream(rq, format, requestCompression);
+    if(stream == null) {
+      return null;
+    }
+    byte[] response;
+    try {
+      response = IOUtils.toByteArray(stream);
+    } catch(IOException e) {
+      throw new OnlineApiException("Error reading response", e);
+    } finally {
+      IOUtils.closeQuietly(stream);
+    }
+    if(c != null) {
+      c.put(key, response);
+    }
+    return response;
+  }
+
+  /**
+   * Parse a cached JSON response.
+   */
+  private AnnotatedDocument parse(byte[] response) throws OnlineApiException {
+    try {
+      return client.readerFor(AnnotatedDocument.class).readValue(response);
+    } catch(IOException e) {
+      throw new OnlineApiException("Could not parse cached response", e);
+    }
+  }
+
+  /**
+   * Wait for permission to send a request from the rate and concurrency
+   * limiters, if any.
+   * 
+   * @return the concurrency limiter ticket for this request, to be
+   *         passed to {@link #afterRequest}, or <code>null</code> if no
+   *         concurrency limiter is in use.
+   */
+  private AdaptiveConcurrencyLimiter.Ticket beforeRequest()
+          throws OnlineApiException {
+    AdaptiveConcurrencyLimiter concurrency = concurrencyLimiter;
+    RateLimiter rate = rateLimiter;
+    AdaptiveConcurrencyLimiter.Ticket ticket = null;
+    try {
+      if(concurrency != null) {
+        ticket = concurrency.acquire();
       }
-      JsonNode msg = response.get("message");
-      throw new OnlineApiException(msg == null ? e.getMessage() : msg.asText(),
+      if(rate != null) {
+        rate.acquire();
+      }
+      return ticket;
+    } catch(InterruptedException e) {
+      if(ticket != null) {
+        concurrency.onError(ticket);
+      }
+      Thread.currentThread().interrupt();
+      throw new OnlineApiException("Interrupted while waiting to send request",
               e);
     }
   }
 
+  /**
+   * Report the outcome of a request to the concurrency limiter, if any.
+   * 
+   * @param ticket the ticket returned by {@link #beforeRequest}
+   * @param failure the exception if the request failed, or
+   *          <code>null</code> if it succeeded
+   */
+  private void afterRequest(AdaptiveConcurrencyLimiter.Ticket ticket,
+          Exception failure) {
+    if(ticket == null) {
+      return;
+    }
+    // report to the limiter that issued the ticket, even if a different
+    // one has been set since
+    AdaptiveConcurrencyLimiter concurrency = ticket.getLimiter();
+    if(failure == null) {
+      concurrency.onSuccess(ticket);
+    } else if(failure instanceof RestClientException
+            && isOverload(((RestClientException)failure).getStatusCode())) {
+      concurrency.onOverload(ticket);
+    } else {
+      concurrency.onError(ticket);
+    }
+  }
+
+  /**
+   * Does the given status code mean the service is overloaded?
+   */
+  private static boolean isOverload(int statusCode) {
+    return statusCode == 429 || statusCode == 503;
+  }
+
+  /**
+   * Convert an exception from the REST client into an
+   * {@link OnlineApiException}, using the error message from the
+   * server's response where there is one.
+   */
+  private static OnlineApiException toOnlineApiException(
+          RestClientException e) {
+    JsonNode response = e.getResponse();
+    if(response == null) {
+      return new OnlineApiException(e.getMessage(), e);
+    }
+    JsonNode msg = response.get("message");
+    return new OnlineApiException(msg == null ? e.getMessage() : msg.asText(),
+            e);
+  }
+
 }
@@ -103,6 +103,17 @@ public class OnlineServiceRequest {
     }
   }
 
+  /**
+   * Construct a request with the same MIME type and annotation
+   * selectors as another, but different document text. Used to send a
+   * large document in several parts.
+   */
+  OnlineServiceRequest(OnlineServiceRequest template, String document) {
+    this.document = document;
+    this.mimeType = template.mimeType;
+    this.annotationSelectors = template.annotationSelectors;
+  }
+
   /**
    * @return the text of the document to annotate.
    */
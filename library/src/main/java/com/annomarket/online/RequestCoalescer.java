@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014 The University of Sheffield, Ontotext AD
+ *
+ * This file is part of the AnnoMarket.com REST client library, and is
+ * licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.annomarket.online;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical requests into one. The first caller
+ * for a given key performs the request on its own thread; callers that
+ * arrive with the same key while it is in progress wait for it and
+ * receive the same response bytes (or the same exception) rather than
+ * sending a request of their own. Once the request completes the key
+ * is forgotten, so later callers start a new request.
+ * 
+ * @author Ian Roberts
+ */
+class RequestCoalescer {
+
+  private final ConcurrentMap<String, FutureTask<byte[]>> inFlight =
+          new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Get the response for the given key, calling <code>fetch</code>
+   * unless an identical request is already in progress.
+   */
+  byte[] fetch(String key, Callable<byte[]> fetch) throws OnlineApiException {
+    FutureTask<byte[]> task = new FutureTask<byte[]>(fetch);
+    FutureTask<byte[]> existing = inFlight.putIfAbsent(key, task);
+    if(existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } else {
+      coalesced.incrementAndGet();
+      task = existing;
+    }
+    try {
+      return task.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OnlineApiException("Interrupted while waiting for response",
+              e);
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof OnlineApiException) {
+        throw (OnlineApiException)cause;
+      }
+      throw new OnlineApiException(cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * @return the number of requests that were answered by sharing
+   *         another caller's response.
+   */
+  long getCoalesced() {
+    return coalesced.get();
+  }
+}
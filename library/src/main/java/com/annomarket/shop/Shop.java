@@ -19,6 +19,9 @@ package com.annomarket.shop;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import com.annomarket.client.RestClient;
 import com.annomarket.client.RestClientException;
@@ -64,6 +67,29 @@ public class Shop {
    * @return a List of matching items
    */
   public List<Item> listItems(String... tags) throws RestClientException {
+    return client.get(itemsUrl(tags), new TypeReference<List<Item>>() {
+    });
+  }
+
+  /**
+   * List the available "items" without blocking the calling thread.
+   * 
+   * @param callback callback to be notified with the list of items. May
+   *          be <code>null</code>.
+   * @param tags tags to filter the list - only items with all the
+   *          specified tags will be returned
+   * @return a {@link Future} for the list of matching items
+   */
+  public Future<List<Item>> listItemsAsync(
+          FutureCallback<List<Item>> callback, String... tags) {
+    return client.getAsync(itemsUrl(tags), new TypeReference<List<Item>>() {
+    }, callback);
+  }
+
+  /**
+   * Build the URL for listing items with the given tags.
+   */
+  private String itemsUrl(String... tags) {
     StringBuilder urlBuilder = new StringBuilder("shop");
     if(tags != null && tags.length > 0) {
       try {
@@ -78,8 +104,7 @@ public class Shop {
         throw new RuntimeException("JVM claims not to support UTF-8...", e);
       }
     }
-    return client.get(urlBuilder.toString(), new TypeReference<List<Item>>() {
-    });
+    return urlBuilder.toString();
   }
 
   /**
@@ -93,6 +118,19 @@ public class Shop {
     });
   }
 
+  /**
+   * Fetch a specific item by ID without blocking the calling thread.
+   * 
+   * @param id the ID of the item
+   * @param callback callback to be notified with the item. May be
+   *          <code>null</code>.
+   * @return a {@link Future} for the requested item
+   */
+  public Future<Item> getItemAsync(long id, FutureCallback<Item> callback) {
+    return client.getAsync("shop/item/" + id, new TypeReference<Item>() {
+    }, callback);
+  }
+
   /**
    * Fetch a specific item by URL (e.g. copied from the shop web page).
    * 
@@ -0,0 +1,127 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.annomarket.client.AdaptiveConcurrencyLimiter;
+import com.annomarket.client.AdaptiveConcurrencyLimiter.Ticket;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+  @Test
+  public void testInitialLimitIsClamped() {
+    assertEquals(10, new AdaptiveConcurrencyLimiter(100, 1, 10).getLimit());
+    assertEquals(2, new AdaptiveConcurrencyLimiter(0, 2, 10).getLimit());
+  }
+
+  @Test
+  public void testAcquireWaitsAtLimit() throws Exception {
+    final AdaptiveConcurrencyLimiter limiter =
+            new AdaptiveConcurrencyLimiter(2, 1, 10);
+    Ticket first = limiter.acquire();
+    limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch(InterruptedException e) {
+          // test fails on the latch
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limiter.onSuccess(first);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    assertEquals(2, limiter.getInFlight());
+  }
+
+  @Test
+  public void testAdditiveIncrease() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+            new AdaptiveConcurrencyLimiter(2, 1, 5);
+    // don't let timing noise on the test machine stop growth
+    limiter.setLatencyTolerance(1e6);
+    for(int round = 0; round < 50; round++) {
+      for(Ticket t : acquire(limiter, limiter.getLimit())) {
+        limiter.onSuccess(t);
+      }
+    }
+    assertEquals(5, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testNoIncreaseWhenLimitUnused() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+            new AdaptiveConcurrencyLimiter(4, 1, 10);
+    limiter.setLatencyTolerance(1e6);
+    for(int i = 0; i < 50; i++) {
+      limiter.onSuccess(limiter.acquire());
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testOneDecreasePerRound() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+            new AdaptiveConcurrencyLimiter(8, 1, 10);
+    List<Ticket> round = acquire(limiter, 8);
+    limiter.onOverload(round.get(0));
+    assertEquals(4, limiter.getLimit());
+    // these started before the cut, so reflect the old limit
+    limiter.onOverload(round.get(1));
+    limiter.onOverload(round.get(2));
+    assertEquals(4, limiter.getLimit());
+    for(Ticket t : round.subList(3, 8)) {
+      limiter.onError(t);
+    }
+    Thread.sleep(1);
+    limiter.onOverload(limiter.acquire());
+    assertEquals(2, limiter.getLimit());
+    Thread.sleep(1);
+    limiter.onOverload(limiter.acquire());
+    Thread.sleep(1);
+    limiter.onOverload(limiter.acquire());
+    // never below the minimum
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void testErrorsStopIncrease() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+            new AdaptiveConcurrencyLimiter(1, 1, 10);
+    limiter.setLatencyTolerance(1e6);
+    for(int i = 0; i < 10; i++) {
+      limiter.onError(limiter.acquire());
+    }
+    assertTrue(limiter.getErrorRate() > 0.1);
+    limiter.onSuccess(limiter.acquire());
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTicketFromOtherLimiter() throws Exception {
+    AdaptiveConcurrencyLimiter a = new AdaptiveConcurrencyLimiter(2, 1, 2);
+    AdaptiveConcurrencyLimiter b = new AdaptiveConcurrencyLimiter(2, 1, 2);
+    b.onSuccess(a.acquire());
+  }
+
+  private static List<Ticket> acquire(AdaptiveConcurrencyLimiter limiter,
+          int n) throws InterruptedException {
+    List<Ticket> tickets = new ArrayList<Ticket>();
+    for(int i = 0; i < n; i++) {
+      tickets.add(limiter.acquire());
+    }
+    return tickets;
+  }
+}
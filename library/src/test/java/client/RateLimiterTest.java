@@ -0,0 +1,50 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.annomarket.client.RateLimiter;
+
+public class RateLimiterTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRateMustBePositive() {
+    new RateLimiter(0);
+  }
+
+  @Test
+  public void testBurst() {
+    RateLimiter limiter = new RateLimiter(1, 5);
+    assertEquals(1.0, limiter.getRate(), 1e-9);
+    assertTrue(limiter.tryAcquire(5));
+    assertFalse(limiter.tryAcquire(1));
+  }
+
+  @Test
+  public void testLargeRequestPutsBucketInDebt() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000, 1);
+    long start = System.nanoTime();
+    // granted at once, although it is much larger than the burst...
+    limiter.acquire(200);
+    assertTrue(millisSince(start) < 100);
+    // ...but the next caller waits for the debt to be repaid
+    limiter.acquire(1);
+    assertTrue(millisSince(start) >= 150);
+  }
+
+  @Test
+  public void testSustainedRate() throws Exception {
+    RateLimiter limiter = new RateLimiter(200, 1);
+    long start = System.nanoTime();
+    for(int i = 0; i < 41; i++) {
+      limiter.acquire();
+    }
+    long elapsed = millisSince(start);
+    assertTrue("took " + elapsed + "ms", elapsed >= 180 && elapsed < 1000);
+  }
+
+  private static long millisSince(long start) {
+    return (System.nanoTime() - start) / 1000000L;
+  }
+}
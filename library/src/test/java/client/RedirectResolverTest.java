@@ -0,0 +1,182 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.client.RedirectResolver;
+import com.annomarket.client.RestClient;
+import com.annomarket.client.RestClientException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RedirectResolverTest {
+
+  private HttpServer server;
+
+  private String base;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private RedirectResolver resolver;
+
+  /**
+   * Redirects /long/x to a URL that expires in an hour, /short/x to one
+   * that expires within the default margin, /plain/x to one with no
+   * expiry time, and /query?q to one with the query q.
+   */
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        requests.incrementAndGet();
+        String path = x.getRequestURI().getPath();
+        long now = System.currentTimeMillis() / 1000;
+        // the request count makes every target URL different
+        if(path.startsWith("/missing/")) {
+          x.sendResponseHeaders(404, -1);
+          x.close();
+          return;
+        }
+        String query = "?n=" + requests.get();
+        if(path.equals("/query")) {
+          query += "&" + x.getRequestURI().getRawQuery();
+        } else if(path.startsWith("/long/")) {
+          query += "&Expires=" + (now + 3600);
+        } else if(path.startsWith("/short/")) {
+          query += "&Expires=" + (now + 30);
+        }
+        x.getResponseHeaders().set("Location", base + "/s3" + path + query);
+        x.sendResponseHeaders(302, -1);
+        x.close();
+      }
+    });
+    server.start();
+    base = "http://localhost:" + server.getAddress().getPort();
+    resolver =
+            new RestClient(new URL(base + "/"), "key", "password")
+                    .getRedirectResolver();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  /**
+   * Resolve a URL that redirects to one with the given query twice,
+   * and check whether the second call used the cached target.
+   */
+  private void assertCached(boolean cached, String query) throws Exception {
+    URL source = new URL(base + "/query?" + query);
+    int before = requests.get();
+    resolver.resolve(source);
+    resolver.resolve(source);
+    assertEquals(query, cached ? 1 : 2, requests.get() - before);
+  }
+
+  @Test
+  public void testExpiryFromQuery() throws Exception {
+    // only URLs with a known expiry time are cached
+    resolver.setDefaultLifetimeMillis(0);
+    long now = System.currentTimeMillis();
+    SimpleDateFormat amzDate = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    amzDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String signedNow = "X-Amz-Date=" + amzDate.format(new Date(now));
+    assertCached(true, "Signature=x%3D&Expires=" + (now / 1000 + 3600));
+    assertCached(true, signedNow + "&X-Amz-Expires=3600");
+    assertCached(false, signedNow + "&X-Amz-Expires=30");
+    assertCached(false, "Expires=" + (now / 1000 - 10));
+    assertCached(false, signedNow);
+    assertCached(false, "Expires=soon");
+    assertCached(false, "X-Amz-Date=yesterday&X-Amz-Expires=3600");
+  }
+
+  @Test
+  public void testCachedUntilCloseToExpiry() throws Exception {
+    URL source = new URL(base + "/long/1");
+    URL target = resolver.resolve(source);
+    assertTrue(target.getPath().startsWith("/s3/long/1"));
+    assertEquals(target, resolver.resolve(source));
+    assertEquals(1, requests.get());
+    assertEquals(1, resolver.getHits());
+    // already within the expiry margin, so never re-used
+    URL shortLived = new URL(base + "/short/1");
+    assertFalse(resolver.resolve(shortLived).equals(
+            resolver.resolve(shortLived)));
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testDefaultLifetime() throws Exception {
+    URL source = new URL(base + "/plain/1");
+    assertEquals(resolver.resolve(source), resolver.resolve(source));
+    assertEquals(1, requests.get());
+    resolver.setDefaultLifetimeMillis(0);
+    URL other = new URL(base + "/plain/2");
+    resolver.resolve(other);
+    resolver.resolve(other);
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    URL source = new URL(base + "/long/1");
+    URL first = resolver.resolve(source);
+    resolver.invalidate(source);
+    URL second = resolver.resolve(source);
+    assertFalse(first.equals(second));
+    assertEquals(second, resolver.resolve(source));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testResolveAll() throws Exception {
+    List<URL> sources = new ArrayList<URL>();
+    for(int i = 0; i < 20; i++) {
+      sources.add(new URL(base + "/long/" + i));
+    }
+    URL cached = resolver.resolve(sources.get(5));
+    Map<URL, URL> targets = resolver.resolveAll(sources);
+    assertEquals(sources, new ArrayList<URL>(targets.keySet()));
+    assertEquals(cached, targets.get(sources.get(5)));
+    for(int i = 0; i < 20; i++) {
+      assertTrue(targets.get(sources.get(i)).getPath().endsWith("/" + i));
+    }
+    assertEquals(20, requests.get());
+    // all cached now
+    assertEquals(targets, resolver.resolveAll(sources));
+    assertEquals(20, requests.get());
+  }
+
+  @Test
+  public void testResolveAllCachesSuccessesOnFailure() throws Exception {
+    URL good = new URL(base + "/long/1");
+    URL bad = new URL(base + "/missing/1");
+    try {
+      resolver.resolveAll(Arrays.asList(good, bad));
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertEquals("1 of 2 URLs could not be resolved", e.getMessage());
+    }
+    assertEquals(2, requests.get());
+    resolver.resolve(good);
+    assertEquals(2, requests.get());
+  }
+}
@@ -0,0 +1,175 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.client.RetryPolicy;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RequestCompressionTest {
+
+  private static final TypeReference<JsonNode> JSON =
+          new TypeReference<JsonNode>() {
+          };
+
+  private HttpServer server;
+
+  private RestClient client;
+
+  /**
+   * The body of each request as the server received it, after
+   * decompression if it was sent with <code>Content-Encoding:
+   * gzip</code>.
+   */
+  private final List<byte[]> bodies = Collections
+          .synchronizedList(new ArrayList<byte[]>());
+
+  private final List<String> encodings = Collections
+          .synchronizedList(new ArrayList<String>());
+
+  /**
+   * The number of requests to refuse with a 503 before accepting one.
+   */
+  private final AtomicInteger failures = new AtomicInteger();
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        String encoding = x.getRequestHeaders().getFirst("Content-Encoding");
+        // read to the end of the chunked body before answering, or the
+        // connection may go back to the pool with the last chunk unsent
+        InputStream in =
+                new ByteArrayInputStream(IOUtils.toByteArray(x
+                        .getRequestBody()));
+        if("gzip".equals(encoding)) {
+          in = new GZIPInputStream(in);
+        }
+        bodies.add(IOUtils.toByteArray(in));
+        encodings.add(encoding);
+        if(failures.getAndDecrement() > 0) {
+          x.sendResponseHeaders(503, -1);
+        } else {
+          byte[] response = "{}".getBytes("UTF-8");
+          x.getResponseHeaders().set("Content-Type", "application/json");
+          x.sendResponseHeaders(200, response.length);
+          x.getResponseBody().write(response);
+        }
+        x.close();
+      }
+    });
+    server.start();
+    client =
+            new RestClient(new URL("http://localhost:"
+                    + server.getAddress().getPort() + "/"), "key",
+                    "password");
+    client.setRequestCompressionThreshold(1000);
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  /**
+   * Compressible, but not trivially so, and larger than the buffers.
+   */
+  private static byte[] body(int length) {
+    Random random = new Random(length);
+    byte[] body = new byte[length];
+    for(int i = 0; i < length; i++) {
+      body[i] = (byte)('a' + random.nextInt(8));
+    }
+    return body;
+  }
+
+  /**
+   * A repeatable body whose length is not known in advance.
+   */
+  private static ByteArrayEntity unknownLength(byte[] body) {
+    return new ByteArrayEntity(body) {
+      @Override
+      public long getContentLength() {
+        return -1;
+      }
+    };
+  }
+
+  private String receivedText(int request) throws IOException {
+    return new ObjectMapper().readTree(bodies.get(request)).get("text")
+            .asText();
+  }
+
+  @Test
+  public void testSmallBodyIsNotCompressed() throws Exception {
+    client.post("x", JSON, Collections.singletonMap("text", "short"));
+    assertNull(encodings.get(0));
+    assertEquals("short", receivedText(0));
+  }
+
+  @Test
+  public void testJsonBody() throws Exception {
+    String text = new String(body(100000), "US-ASCII");
+    client.post("x", JSON, Collections.singletonMap("text", text));
+    client.postAsync("x", JSON, Collections.singletonMap("text", text), null)
+            .get();
+    for(int i = 0; i < 2; i++) {
+      assertEquals("gzip", encodings.get(i));
+      assertEquals(text, receivedText(i));
+    }
+  }
+
+  @Test
+  public void testStreamingBody() throws Exception {
+    // several times the size of the buffer between the compressing
+    // thread and the I/O thread on the asynchronous path
+    byte[] body = body(2000000);
+    client.post("x", JSON, unknownLength(body));
+    client.postAsync("x", JSON, unknownLength(body), null).get();
+    for(int i = 0; i < 2; i++) {
+      assertEquals("gzip", encodings.get(i));
+      assertArrayEquals(body, bodies.get(i));
+    }
+  }
+
+  @Test
+  public void testRetrySendsWholeBody() throws Exception {
+    RetryPolicy policy = new RetryPolicy(2, 10, 100);
+    policy.setRetryPost(true);
+    client.setRetryPolicy(policy);
+    byte[] body = body(2000000);
+    failures.set(1);
+    client.post("x", JSON, new ByteArrayEntity(body));
+    failures.set(1);
+    client.postAsync("x", JSON, new ByteArrayEntity(body), null).get();
+    assertEquals(Collections.nCopies(4, "gzip"), encodings);
+    for(byte[] received : bodies) {
+      assertArrayEquals(body, received);
+    }
+    assertEquals(2, policy.getRetries());
+  }
+}
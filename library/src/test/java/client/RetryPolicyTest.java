@@ -0,0 +1,259 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.utils.DateUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.client.RestClientException;
+import com.annomarket.client.RetryListener;
+import com.annomarket.client.RetryPolicy;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RetryPolicyTest {
+
+  private static final TypeReference<JsonNode> JSON =
+          new TypeReference<JsonNode>() {
+          };
+
+  private HttpServer server;
+
+  private RestClient client;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  /**
+   * Error responses for the server to send, in order, each a status
+   * code optionally followed by a Retry-After value. Once these run
+   * out every request succeeds.
+   */
+  private final LinkedList<String[]> errors = new LinkedList<String[]>();
+
+  /**
+   * The delay and status code of each retry the listener was told of.
+   */
+  private final List<long[]> retries = Collections
+          .synchronizedList(new ArrayList<long[]>());
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        requests.incrementAndGet();
+        IOUtils.toByteArray(x.getRequestBody());
+        String[] error;
+        synchronized(errors) {
+          error = errors.poll();
+        }
+        if(error == null) {
+          byte[] body = "{}".getBytes("UTF-8");
+          x.getResponseHeaders().set("Content-Type", "application/json");
+          x.sendResponseHeaders(200, body.length);
+          x.getResponseBody().write(body);
+        } else {
+          if(error.length > 1) {
+            x.getResponseHeaders().set("Retry-After", error[1]);
+          }
+          x.sendResponseHeaders(Integer.parseInt(error[0]), -1);
+        }
+        x.close();
+      }
+    });
+    server.start();
+    client =
+            new RestClient(new URL("http://localhost:"
+                    + server.getAddress().getPort() + "/"), "key",
+                    "password");
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private RetryPolicy policy(int maxAttempts, long baseDelayMillis,
+          long maxDelayMillis) {
+    RetryPolicy policy =
+            new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis);
+    policy.setListener(new RetryListener() {
+      public void retrying(String method, String uri, int attempt,
+              int statusCode, Exception failure, long delayMillis) {
+        retries.add(new long[] {delayMillis, statusCode});
+      }
+    });
+    client.setRetryPolicy(policy);
+    return policy;
+  }
+
+  private void respond(String... error) {
+    synchronized(errors) {
+      errors.add(error);
+    }
+  }
+
+  @Test
+  public void testRetryableStatusCodes() {
+    RetryPolicy policy = new RetryPolicy();
+    for(int code : new int[] {429, 502, 503, 504}) {
+      assertTrue(policy.isRetryableStatus(code));
+    }
+    assertFalse(policy.isRetryableStatus(500));
+    assertFalse(policy.isRetryableStatus(404));
+    policy.setRetryableStatusCodes(500);
+    assertTrue(policy.isRetryableStatus(500));
+    assertFalse(policy.isRetryableStatus(503));
+  }
+
+  @Test
+  public void testRetryableExceptions() {
+    RetryPolicy policy = new RetryPolicy();
+    assertTrue(policy.isRetryableException(new IOException()));
+    assertFalse(policy.isRetryableException(new UnknownHostException()));
+    assertFalse(policy.isRetryableException(new IllegalStateException()));
+  }
+
+  @Test
+  public void testAppliesTo() {
+    RetryPolicy policy = new RetryPolicy();
+    assertTrue(policy.appliesTo("GET"));
+    assertTrue(policy.appliesTo("DELETE"));
+    assertFalse(policy.appliesTo("POST"));
+    policy.setRetryPost(true);
+    assertTrue(policy.appliesTo("POST"));
+    assertFalse(policy.appliesTo("PUT"));
+    assertFalse(RetryPolicy.NONE.appliesTo("GET"));
+  }
+
+  @Test
+  public void testTransientErrorsAreRetried() throws Exception {
+    RetryPolicy policy = policy(3, 20, 1000);
+    respond("503");
+    respond("502");
+    client.get("x", JSON);
+    assertEquals(3, requests.get());
+    assertEquals(2, policy.getRetries());
+    assertEquals(0, policy.getRetriesExhausted());
+    assertEquals(503, retries.get(0)[1]);
+    assertEquals(502, retries.get(1)[1]);
+
+    respond("504");
+    client.getAsync("x", JSON, null).get();
+    assertEquals(5, requests.get());
+    assertEquals(3, policy.getRetries());
+  }
+
+  @Test
+  public void testOtherRequestsAreNotRetried() throws Exception {
+    RetryPolicy policy = policy(3, 20, 1000);
+    respond("404");
+    try {
+      client.get("x", JSON);
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertEquals(1, requests.get());
+    }
+    respond("503");
+    try {
+      client.post("x", JSON, Collections.singletonMap("a", "b"));
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertEquals(2, requests.get());
+    }
+    assertEquals(0, policy.getRetries());
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    RetryPolicy policy = policy(3, 20, 1000);
+    for(int i = 0; i < 3; i++) {
+      respond("503");
+    }
+    try {
+      client.getAsync("x", JSON, null).get();
+      fail("expected an exception");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof RestClientException);
+    }
+    assertEquals(3, requests.get());
+    assertEquals(2, policy.getRetries());
+    assertEquals(1, policy.getRetriesExhausted());
+  }
+
+  @Test
+  public void testBackoffWithinCeiling() throws Exception {
+    policy(6, 20, 50);
+    for(int i = 0; i < 5; i++) {
+      respond("503");
+    }
+    client.get("x", JSON);
+    assertEquals(5, retries.size());
+    for(int attempt = 1; attempt <= 5; attempt++) {
+      long delay = retries.get(attempt - 1)[0];
+      assertTrue(delay >= 0);
+      assertTrue(delay < Math.min(50, 20L << (attempt - 1)));
+    }
+  }
+
+  @Test
+  public void testBackoffLargeAttempt() {
+    // the exponent must not overflow into a negative or zero ceiling
+    for(int attempt : new int[] {40, 64, 1000, Integer.MAX_VALUE}) {
+      long delay = RetryPolicy.backoff(attempt, 500, 30000);
+      assertTrue(delay >= 0);
+      assertTrue(delay < 30000);
+    }
+    assertEquals(0, RetryPolicy.backoff(3, 0, 0));
+  }
+
+  @Test
+  public void testRetryAfter() throws Exception {
+    RetryPolicy policy = policy(3, 10, 5000);
+    // wait at least as long as the server asks
+    respond("429", "1");
+    client.get("x", JSON);
+    assertTrue(retries.get(0)[0] >= 1000);
+    // but give up if that is longer than the maximum delay
+    respond("429", "60");
+    try {
+      client.get("x", JSON);
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertEquals(3, requests.get());
+    }
+    assertEquals(1, policy.getRetriesExhausted());
+  }
+
+  @Test
+  public void testRetryAfterDate() throws Exception {
+    policy(3, 10, 5000);
+    respond("503",
+            DateUtils.formatDate(new Date(System.currentTimeMillis() + 2000)));
+    // a value that is neither a number nor a date is ignored
+    respond("503", "soon");
+    client.get("x", JSON);
+    long delay = retries.get(0)[0];
+    assertTrue(delay > 500 && delay <= 2000);
+    assertTrue(retries.get(1)[0] < 20);
+  }
+}
@@ -0,0 +1,62 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.junit.Test;
+
+import com.annomarket.client.TransformingCallback;
+
+public class TransformingCallbackTest {
+
+  private static TransformingCallback<String, Integer> length() {
+    return new TransformingCallback<String, Integer>(null) {
+      @Override
+      protected Integer transform(String source) {
+        return source.length();
+      }
+    };
+  }
+
+  @Test
+  public void testCompleted() throws Exception {
+    TransformingCallback<String, Integer> cb = length();
+    BasicFuture<String> source = new BasicFuture<String>(cb);
+    cb.setSource(source);
+    source.completed("four");
+    assertEquals(Integer.valueOf(4), cb.getFuture().get());
+  }
+
+  @Test
+  public void testFailureFromTransform() throws Exception {
+    TransformingCallback<String, Integer> cb = length();
+    new BasicFuture<String>(cb).completed(null);
+    try {
+      cb.getFuture().get();
+      fail("expected an exception");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof NullPointerException);
+    }
+  }
+
+  @Test
+  public void testCancelIsForwardedToSource() throws Exception {
+    TransformingCallback<String, Integer> cb = length();
+    BasicFuture<String> source = new BasicFuture<String>(cb);
+    cb.setSource(source);
+    assertTrue(cb.getFuture().cancel(true));
+    assertTrue(source.isCancelled());
+    assertTrue(cb.getFuture().isCancelled());
+  }
+
+  @Test
+  public void testSourceCancelled() throws Exception {
+    TransformingCallback<String, Integer> cb = length();
+    BasicFuture<String> source = new BasicFuture<String>(cb);
+    cb.setSource(source);
+    source.cancel(true);
+    assertTrue(cb.getFuture().isCancelled());
+  }
+}
@@ -0,0 +1,95 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.client.NioHttpTransport;
+import com.annomarket.client.PooledHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TransportTimeoutTest {
+
+  private HttpServer server;
+
+  private String url;
+
+  /**
+   * A server that takes two seconds to send any response.
+   */
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        try {
+          Thread.sleep(2000);
+        } catch(InterruptedException e) {
+          // carry on
+        }
+        x.sendResponseHeaders(204, -1);
+        x.close();
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testDefaults() throws Exception {
+    PooledHttpTransport pooled = new PooledHttpTransport();
+    assertEquals(PooledHttpTransport.DEFAULT_SOCKET_TIMEOUT_MILLIS,
+            pooled.getSocketTimeoutMillis());
+    pooled.close();
+    NioHttpTransport nio = new NioHttpTransport();
+    assertEquals(PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            nio.getConnectTimeoutMillis());
+    nio.close();
+  }
+
+  @Test
+  public void testPooledSocketTimeout() throws Exception {
+    PooledHttpTransport transport =
+            new PooledHttpTransport(2, 2, 30000, 0, 1000, 200, 1000);
+    long start = System.currentTimeMillis();
+    try {
+      transport.execute(new HttpGet(url)).close();
+      fail("expected a timeout");
+    } catch(SocketTimeoutException e) {
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void testNioSocketTimeout() throws Exception {
+    NioHttpTransport transport = new NioHttpTransport(2, 2, 1, 1000, 200, 1000);
+    long start = System.currentTimeMillis();
+    try {
+      transport.execute(new HttpGet(url), null).get(10, TimeUnit.SECONDS);
+      fail("expected a timeout");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof SocketTimeoutException);
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    } finally {
+      transport.close();
+    }
+  }
+}
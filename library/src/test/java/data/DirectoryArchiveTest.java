@@ -0,0 +1,194 @@
+package data;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.common.InputType;
+import com.annomarket.data.DirectoryArchive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DirectoryArchiveTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final Random random = new Random(42);
+
+  private byte[] createFile(String path, int size) throws Exception {
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    FileUtils.writeByteArrayToFile(new File(tmp.getRoot(), path), data);
+    return data;
+  }
+
+  @Test
+  public void testTarLengthIsExact() throws Exception {
+    createFile("a.html", 100000);
+    createFile("empty.txt", 0);
+    createFile("exact.txt", 512);
+    StringBuilder longName = new StringBuilder("sub/");
+    for(int i = 0; i < 200; i++) {
+      longName.append('x');
+    }
+    createFile(longName.append(".txt").toString(), 513);
+    DirectoryArchive archive =
+            new DirectoryArchive(tmp.getRoot(), InputType.TAR, null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    archive.writeTo(out);
+    assertEquals(4, archive.getFileCount());
+    assertEquals(100000 + 512 + 513, archive.getContentLength());
+    assertEquals(archive.getLength(), out.size());
+  }
+
+  @Test
+  public void testZipLengthIsExact() throws Exception {
+    byte[] html = createFile("a.html", 100000);
+    createFile("empty.txt", 0);
+    byte[] accented = createFile("sub/caf\u00e9 \u4e2d\u6587.txt", 513);
+    DirectoryArchive archive =
+            new DirectoryArchive(tmp.getRoot(), InputType.ZIP, null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    archive.writeTo(out);
+    assertEquals(archive.getLength(), out.size());
+    ZipArchiveInputStream in =
+            new ZipArchiveInputStream(new ByteArrayInputStream(
+                    out.toByteArray()));
+    ZipArchiveEntry entry = in.getNextZipEntry();
+    assertEquals(ZipArchiveEntry.STORED, entry.getMethod());
+    assertArrayEquals(html, IOUtils.toByteArray(in));
+    assertEquals("empty.txt", in.getNextZipEntry().getName());
+    // as the file system stored the name
+    assertEquals("sub/" + new File(tmp.getRoot(), "sub").list()[0], in
+            .getNextZipEntry().getName());
+    assertArrayEquals(accented, IOUtils.toByteArray(in));
+    assertNull(in.getNextZipEntry());
+  }
+
+  @Test(expected = IOException.class)
+  public void testZipFileChangedBeforeUpload() throws Exception {
+    createFile("a.txt", 1000);
+    DirectoryArchive archive =
+            new DirectoryArchive(tmp.getRoot(), InputType.ZIP, null);
+    // same size, different content
+    createFile("a.txt", 1000);
+    archive.writeTo(new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        super.write(b, off, len);
+        // the checksum pass has already run, so change the file under
+        // the second pass
+        if(size() > 0 && size() < 100) {
+          try {
+            createFile("a.txt", 1000);
+          } catch(Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void testSplit() throws Exception {
+    for(int i = 0; i < 10; i++) {
+      createFile("f" + i + ".txt", 100);
+    }
+    // a file bigger than the size limit gets a part of its own
+    createFile("f5big.txt", 1000);
+    List<DirectoryArchive> parts =
+            DirectoryArchive.split(tmp.getRoot(), InputType.TAR, null, 300, 0);
+    assertEquals(5, parts.size());
+    assertEquals(3, parts.get(1).getFileCount());
+    assertEquals(1, parts.get(2).getFileCount());
+    assertEquals(1000, parts.get(2).getContentLength());
+    parts = DirectoryArchive.split(tmp.getRoot(), InputType.TAR, null,
+            Long.MAX_VALUE, 4);
+    assertEquals(3, parts.size());
+    assertEquals(3, parts.get(2).getFileCount());
+  }
+
+  @Test
+  public void testExtensionFilter() throws Exception {
+    byte[] html = createFile("dir/page.HTML", 1000);
+    byte[] txt = createFile("notes.txt", 10);
+    createFile("image.png", 1000);
+    createFile("html", 10);
+    DirectoryArchive archive =
+            new DirectoryArchive(tmp.getRoot(), InputType.TAR, "html, .txt");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    archive.writeTo(out);
+    TarArchiveInputStream in =
+            new TarArchiveInputStream(new ByteArrayInputStream(
+                    out.toByteArray()));
+    List<String> names = new ArrayList<String>();
+    List<byte[]> contents = new ArrayList<byte[]>();
+    TarArchiveEntry entry;
+    while((entry = in.getNextTarEntry()) != null) {
+      names.add(entry.getName());
+      contents.add(IOUtils.toByteArray(in));
+    }
+    assertEquals(Arrays.asList("dir/page.HTML", "notes.txt"), names);
+    assertArrayEquals(html, contents.get(0));
+    assertArrayEquals(txt, contents.get(1));
+  }
+
+  @Test
+  public void testZipPutHasContentLength() throws Exception {
+    byte[] html = createFile("dir/page.html", 100000);
+    byte[] txt = createFile("notes.txt", 10);
+    final String[] contentLength = new String[1];
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        // like a presigned object store URL, refuse chunked uploads
+        contentLength[0] = x.getRequestHeaders().getFirst("Content-Length");
+        IOUtils.copy(x.getRequestBody(), body);
+        x.sendResponseHeaders(contentLength[0] == null ? 411 : 200, -1);
+        x.close();
+      }
+    });
+    server.start();
+    try {
+      DirectoryArchive archive =
+              new DirectoryArchive(tmp.getRoot(), InputType.ZIP, null);
+      archive.put(new URL("http://localhost:"
+              + server.getAddress().getPort() + "/put"));
+    } finally {
+      server.stop(0);
+    }
+    assertEquals(String.valueOf(body.size()), contentLength[0]);
+    ZipArchiveInputStream in =
+            new ZipArchiveInputStream(new ByteArrayInputStream(
+                    body.toByteArray()));
+    ZipArchiveEntry entry = in.getNextZipEntry();
+    assertEquals("dir/page.html", entry.getName());
+    assertArrayEquals(html, IOUtils.toByteArray(in));
+    entry = in.getNextZipEntry();
+    assertEquals("notes.txt", entry.getName());
+    assertArrayEquals(txt, IOUtils.toByteArray(in));
+    assertNull(in.getNextZipEntry());
+  }
+}
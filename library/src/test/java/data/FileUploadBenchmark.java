@@ -0,0 +1,217 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+import com.annomarket.client.AsyncHttpTransport;
+import com.annomarket.client.RestClient;
+import com.annomarket.data.PartUploader;
+
+/**
+ * Compares uploading a large file with the original
+ * <code>HttpURLConnection</code> and <code>IOUtils.copy</code> path
+ * against {@link PartUploader#put(URL, File, AsyncHttpTransport)},
+ * which sends the file with <code>FileChannel.transferTo</code> over
+ * plain HTTP. The upload
+ * goes to a minimal HTTP server on the loopback interface that reads
+ * and discards the body. This is not a unit test, run it by hand with
+ * the test classpath:
+ * 
+ * <pre>
+ * java -cp ... data.FileUploadBenchmark [megabytes] [rounds]
+ * </pre>
+ * 
+ * CPU time is for the whole process, so it includes the stand-in
+ * server's (equal) share for both paths. Heap allocation is summed
+ * over all live threads.
+ */
+public class FileUploadBenchmark {
+
+  public static void main(String... args) throws Exception {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    File file = File.createTempFile("upload-benchmark", ".bin");
+    file.deleteOnExit();
+    writeFile(file, megabytes);
+
+    ServerSocket server =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    startServer(server);
+    URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/put");
+
+    // warm up both paths
+    streamUpload(url, file);
+    PartUploader.put(url, file, RestClient.getDefaultAsyncTransport());
+
+    for(int r = 0; r < rounds; r++) {
+      report("stream   ", file, url, false);
+      report("transfer ", file, url, true);
+    }
+    server.close();
+  }
+
+  private static void report(String label, File file, URL url,
+          boolean transfer) throws IOException {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    long cpuBefore = processCpuNanos(os);
+    long allocBefore = allocatedBytes();
+    long t0 = System.nanoTime();
+    if(transfer) {
+      PartUploader.put(url, file, RestClient.getDefaultAsyncTransport());
+    } else {
+      streamUpload(url, file);
+    }
+    long elapsed = System.nanoTime() - t0;
+    long cpu = processCpuNanos(os) - cpuBefore;
+    long alloc = allocatedBytes() - allocBefore;
+    System.out.printf("%s %5dms %7.1fMB/s  cpu %5dms  heap allocated %dKB%n",
+            label, elapsed / 1000000, file.length() * 1000.0
+                    / (1024 * 1024) / (elapsed / 1000000.0), cpu / 1000000,
+            alloc / 1024);
+  }
+
+  /**
+   * The upload path used by <code>DataBundle.addFile</code> and
+   * <code>Job.addUploadInput</code> before the NIO path was added.
+   */
+  private static void streamUpload(URL url, File file) throws IOException {
+    HttpURLConnection putConnection = (HttpURLConnection)url.openConnection();
+    putConnection.setDoOutput(true);
+    putConnection.setRequestMethod("PUT");
+    putConnection.setRequestProperty("Content-Type",
+            "application/octet-stream");
+    putConnection.setFixedLengthStreamingMode(file.length());
+    FileInputStream in = new FileInputStream(file);
+    OutputStream out = putConnection.getOutputStream();
+    try {
+      IOUtils.copy(in, out);
+    } finally {
+      IOUtils.closeQuietly(in);
+      IOUtils.closeQuietly(out);
+    }
+    if(putConnection.getResponseCode() != 200) {
+      throw new IOException("Upload failed");
+    }
+    IOUtils.closeQuietly(putConnection.getInputStream());
+  }
+
+  private static long processCpuNanos(OperatingSystemMXBean os) {
+    if(os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean)os)
+              .getProcessCpuTime();
+    }
+    return 0;
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)threads;
+    long total = 0;
+    for(long id : mx.getAllThreadIds()) {
+      long bytes = mx.getThreadAllocatedBytes(id);
+      if(bytes > 0) total += bytes;
+    }
+    return total;
+  }
+
+  private static void writeFile(File file, int megabytes) throws IOException {
+    byte[] block = new byte[1024 * 1024];
+    new Random(0).nextBytes(block);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      for(int i = 0; i < megabytes; i++) {
+        out.write(block);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Accept connections on a daemon thread, answering every request
+   * with an empty 200 response once its body has been read.
+   */
+  private static void startServer(final ServerSocket server) {
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while(true) {
+            final Socket socket = server.accept();
+            Thread handler = new Thread(new Runnable() {
+              public void run() {
+                serve(socket);
+              }
+            });
+            handler.setDaemon(true);
+            handler.start();
+          }
+        } catch(IOException e) {
+          // server closed
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private static void serve(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+      OutputStream out = socket.getOutputStream();
+      byte[] discard = new byte[65536];
+      while(true) {
+        long contentLength = 0;
+        String line = readLine(in);
+        if(line == null) break;
+        while((line = readLine(in)) != null && line.length() > 0) {
+          if(line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+            contentLength = Long.parseLong(line.substring(15).trim());
+          }
+        }
+        while(contentLength > 0) {
+          int n =
+                  in.read(discard, 0,
+                          (int)Math.min(discard.length, contentLength));
+          if(n < 0) return;
+          contentLength -= n;
+        }
+        out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                .getBytes("ISO-8859-1"));
+        out.flush();
+      }
+    } catch(IOException e) {
+      // connection closed
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while((b = in.read()) >= 0 && b != '\n') {
+      if(b != '\r') line.append((char)b);
+    }
+    return (b < 0 && line.length() == 0) ? null : line.toString();
+  }
+}
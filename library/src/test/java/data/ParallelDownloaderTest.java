@@ -0,0 +1,314 @@
+package data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.client.RestClientException;
+import com.annomarket.common.Downloadable;
+import com.annomarket.data.ParallelDownloader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ParallelDownloaderTest {
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private HttpServer server;
+
+  private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+
+  /**
+   * Incremented whenever a file is changed, and sent as its ETag.
+   */
+  private final AtomicInteger version = new AtomicInteger();
+
+  /**
+   * Files whose next response is cut off half way through.
+   */
+  private final Set<String> cutOnce = Collections
+          .synchronizedSet(new HashSet<String>());
+
+  private volatile boolean ignoreRange;
+
+  private volatile boolean stall;
+
+  private final List<String> ranges = new ArrayList<String>();
+
+  private final AtomicInteger invalidated = new AtomicInteger();
+
+  @Before
+  public void startServer() throws Exception {
+    Random random = new Random(5);
+    for(int i = 0; i < 6; i++) {
+      byte[] data = new byte[100000 + random.nextInt(100000)];
+      random.nextBytes(data);
+      files.put("file" + i + ".xml", data);
+    }
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        serve(x);
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange x) throws IOException {
+    String name = x.getRequestURI().getPath().substring(1);
+    byte[] data = files.get(name);
+    if(data == null) {
+      x.sendResponseHeaders(404, -1);
+      x.close();
+      return;
+    }
+    if(stall) {
+      try {
+        Thread.sleep(2000);
+      } catch(InterruptedException e) {
+        // carry on
+      }
+    }
+    String range = x.getRequestHeaders().getFirst("Range");
+    synchronized(ranges) {
+      ranges.add(range);
+    }
+    String etag = "\"v" + version.get() + "\"";
+    String ifRange = x.getRequestHeaders().getFirst("If-Range");
+    x.getResponseHeaders().set("ETag", etag);
+    int start = 0;
+    Matcher m = RANGE.matcher(String.valueOf(range));
+    if(m.matches() && !ignoreRange
+            && (ifRange == null || ifRange.equals(etag))) {
+      start = Integer.parseInt(m.group(1));
+      if(start >= data.length) {
+        x.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+        x.sendResponseHeaders(416, -1);
+        x.close();
+        return;
+      }
+      x.getResponseHeaders().set("Content-Range",
+              "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+      x.sendResponseHeaders(206, data.length - start);
+    } else {
+      x.sendResponseHeaders(200, data.length);
+    }
+    OutputStream out = x.getResponseBody();
+    if(cutOnce.remove(name)) {
+      out.write(data, start, (data.length - start) / 2);
+      out.flush();
+      // closing a fixed length body early drops the connection
+      out.close();
+      return;
+    }
+    out.write(data, start, data.length - start);
+    x.close();
+  }
+
+  private Downloadable source(final String name) {
+    return new Downloadable() {
+      public String fileName() {
+        return name;
+      }
+
+      public URL urlToDownload() {
+        try {
+          return new URL("http://localhost:"
+                  + server.getAddress().getPort() + "/" + name);
+        } catch(MalformedURLException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      public void invalidate() {
+        invalidated.incrementAndGet();
+      }
+    };
+  }
+
+  private File partial(String name, int length) throws IOException {
+    File part =
+            new File(tmp.getRoot(), name + ParallelDownloader.PARTIAL_SUFFIX);
+    FileUtils.writeByteArrayToFile(part,
+            Arrays.copyOf(files.get(name), length));
+    return part;
+  }
+
+  private void assertDownloaded(String name) throws IOException {
+    assertArrayEquals(files.get(name),
+            FileUtils.readFileToByteArray(new File(tmp.getRoot(), name)));
+    assertFalse(new File(tmp.getRoot(), name
+            + ParallelDownloader.PARTIAL_SUFFIX).exists());
+    assertFalse(new File(tmp.getRoot(), name
+            + ParallelDownloader.VALIDATOR_SUFFIX).exists());
+  }
+
+  @Test
+  public void testDownloadAll() throws Exception {
+    List<Downloadable> sources = new ArrayList<Downloadable>();
+    long total = 0;
+    for(String name : files.keySet()) {
+      sources.add(source(name));
+      total += files.get(name).length;
+    }
+    ParallelDownloader downloader = new ParallelDownloader(3);
+    List<File> result = downloader.download(sources, tmp.getRoot());
+    assertEquals(files.size(), result.size());
+    for(int i = 0; i < sources.size(); i++) {
+      assertEquals(sources.get(i).fileName(), result.get(i).getName());
+      assertDownloaded(sources.get(i).fileName());
+    }
+    assertEquals(total, downloader.getBytesDownloaded());
+    assertEquals(0, downloader.getBytesResumed());
+  }
+
+  @Test
+  public void testResumeWithRange() throws Exception {
+    partial("file0.xml", 30000);
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.download(source("file0.xml"), tmp.getRoot());
+    assertDownloaded("file0.xml");
+    assertEquals(Arrays.asList("bytes=30000-"), ranges);
+    assertEquals(30000, downloader.getBytesResumed());
+    assertEquals(files.get("file0.xml").length - 30000,
+            downloader.getBytesDownloaded());
+  }
+
+  @Test
+  public void testServerIgnoresRange() throws Exception {
+    ignoreRange = true;
+    partial("file0.xml", 30000);
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.download(source("file0.xml"), tmp.getRoot());
+    assertDownloaded("file0.xml");
+    assertEquals(0, downloader.getBytesResumed());
+    assertEquals(files.get("file0.xml").length,
+            downloader.getBytesDownloaded());
+  }
+
+  @Test
+  public void testAlreadyComplete() throws Exception {
+    int length = files.get("file1.xml").length;
+    partial("file1.xml", length);
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.download(source("file1.xml"), tmp.getRoot());
+    assertDownloaded("file1.xml");
+    assertEquals(length, downloader.getBytesResumed());
+    assertEquals(0, downloader.getBytesDownloaded());
+  }
+
+  @Test
+  public void testPartialLongerThanFile() throws Exception {
+    int length = files.get("file1.xml").length;
+    partial("file1.xml", length + 10);
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.download(source("file1.xml"), tmp.getRoot());
+    assertDownloaded("file1.xml");
+    // the 416 response shows the partial file is wrong, so it is
+    // thrown away and the next attempt starts again
+    assertEquals(Arrays.asList("bytes=" + (length + 10) + "-", null),
+            ranges);
+    assertEquals(0, downloader.getBytesResumed());
+    assertEquals(1, invalidated.get());
+  }
+
+  @Test
+  public void testInterruptedTransferIsResumed() throws Exception {
+    cutOnce.add("file2.xml");
+    int length = files.get("file2.xml").length;
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.download(source("file2.xml"), tmp.getRoot());
+    assertDownloaded("file2.xml");
+    assertEquals(2, ranges.size());
+    assertNull(ranges.get(0));
+    assertNotNull(ranges.get(1));
+    // bytes from the first attempt of the same download don't count
+    assertEquals(0, downloader.getBytesResumed());
+    assertEquals(length, downloader.getBytesDownloaded());
+    assertEquals(1, invalidated.get());
+  }
+
+  @Test
+  public void testChangedFileIsNotSpliced() throws Exception {
+    cutOnce.add("file3.xml");
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.setMaxAttempts(1);
+    try {
+      downloader.download(source("file3.xml"), tmp.getRoot());
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      // leaves half the file behind
+    }
+    byte[] changed = files.get("file3.xml").clone();
+    changed[changed.length - 1]++;
+    files.put("file3.xml", changed);
+    version.incrementAndGet();
+    downloader.download(source("file3.xml"), tmp.getRoot());
+    assertDownloaded("file3.xml");
+    assertEquals(0, downloader.getBytesResumed());
+    assertNotNull(ranges.get(1));
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.setMaxAttempts(1);
+    try {
+      downloader.download(Arrays.asList(source("file0.xml"),
+              source("missing.xml")), tmp.getRoot());
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertEquals("1 of 2 files failed to download", e.getMessage());
+    }
+    // the other file is still downloaded
+    assertDownloaded("file0.xml");
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    stall = true;
+    ParallelDownloader downloader = new ParallelDownloader();
+    downloader.setMaxAttempts(1);
+    downloader.setReadTimeout(200);
+    long start = System.currentTimeMillis();
+    try {
+      downloader.download(source("file0.xml"), tmp.getRoot());
+      fail("expected an exception");
+    } catch(RestClientException e) {
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+  }
+}
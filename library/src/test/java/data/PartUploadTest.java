@@ -0,0 +1,403 @@
+package data;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.client.RestClientException;
+import com.annomarket.data.DataBundle;
+import com.annomarket.data.DataManager;
+import com.annomarket.data.PartUploader;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PartUploadTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final Random random = new Random(11);
+
+  private HttpServer server;
+
+  private String base;
+
+  /**
+   * The type of the bundle the server describes.
+   */
+  private volatile String type = "WARC";
+
+  /**
+   * The data uploaded for each bundle entry.
+   */
+  private final Map<String, byte[]> uploads = Collections
+          .synchronizedMap(new TreeMap<String, byte[]>());
+
+  /**
+   * Entries whose uploads are refused with a 500 response.
+   */
+  private final Set<String> failing = Collections
+          .synchronizedSet(new HashSet<String>());
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        serve(x);
+      }
+    });
+    server.start();
+    base = "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange x) throws IOException {
+    String path = x.getRequestURI().getPath();
+    byte[] body = IOUtils.toByteArray(x.getRequestBody());
+    int code = 200;
+    String response = null;
+    if(path.equals("/data/bundle/1")) {
+      response =
+              "{\"id\":1,\"url\":\"" + base + "data/bundle/1\",\"type\":\""
+                      + type + "\"}";
+    } else if(path.equals("/data/bundle/1/add")) {
+      String name =
+              new String(body, "UTF-8").replaceAll(
+                      ".*\"fileName\"\\s*:\\s*\"([^\"]*)\".*", "$1");
+      response = "{\"putUrl\":\"" + base + "put/" + name + "\"}";
+    } else if(path.startsWith("/put/")) {
+      String name = path.substring(5);
+      if(failing.contains(name)) {
+        code = 500;
+      } else {
+        uploads.put(name, body);
+      }
+    } else {
+      code = 404;
+    }
+    if(response == null) {
+      x.sendResponseHeaders(code, -1);
+    } else {
+      byte[] bytes = response.getBytes("UTF-8");
+      x.getResponseHeaders().set("Content-Type", "application/json");
+      x.sendResponseHeaders(code, bytes.length);
+      x.getResponseBody().write(bytes);
+    }
+    x.close();
+  }
+
+  private List<String> upload(File file, PartUploader uploader)
+          throws Exception {
+    DataBundle bundle =
+            new DataManager(new RestClient(new URL(base), "key", "password"))
+                    .getBundle(1);
+    return bundle.addFile(file, uploader);
+  }
+
+  /**
+   * Check that the named parts were uploaded and make up the whole
+   * file, and return the offsets in the file at which they start,
+   * followed by the file length.
+   */
+  private long[] boundaries(List<String> names, File file) throws IOException {
+    long[] boundaries = new long[names.size() + 1];
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    for(int i = 0; i < names.size(); i++) {
+      byte[] part = uploads.get(names.get(i));
+      assertNotNull(names.get(i), part);
+      all.write(part);
+      boundaries[i + 1] = boundaries[i] + part.length;
+    }
+    assertArrayEquals(FileUtils.readFileToByteArray(file), all.toByteArray());
+    return boundaries;
+  }
+
+  private byte[] warcRecord(int i, int contentLength) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(("WARC/1.0\r\nWARC-Type: response\r\nWARC-Record-ID: <urn:" + i
+            + ">\r\ncontent-length: " + contentLength + "\r\n\r\n")
+            .getBytes("ISO-8859-1"));
+    for(int k = 0; k < contentLength; k++) {
+      // include line breaks in the content, which must be skipped
+      out.write(random.nextInt(10) == 0 ? '\n' : 'a' + random.nextInt(26));
+    }
+    out.write("\r\n\r\n".getBytes("ISO-8859-1"));
+    return out.toByteArray();
+  }
+
+  private File write(String name, List<byte[]> pieces, List<Long> starts)
+          throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for(byte[] piece : pieces) {
+      starts.add((long)out.size());
+      out.write(piece);
+    }
+    File file = new File(tmp.getRoot(), name);
+    FileUtils.writeByteArrayToFile(file, out.toByteArray());
+    return file;
+  }
+
+  private File crawl(List<Long> starts) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    for(int i = 0; i < 50; i++) {
+      // one record bigger than a part on its own
+      records.add(warcRecord(i, i == 20 ? 5000 : random.nextInt(800)));
+    }
+    return write("crawl.warc", records, starts);
+  }
+
+  /**
+   * Check that the boundaries fall only at allowed offsets, and that
+   * each part is within the size limit unless it is a single piece.
+   */
+  private static void assertBoundaries(long[] boundaries, List<Long> allowed,
+          long partSize) {
+    for(int i = 1; i < boundaries.length; i++) {
+      assertTrue(boundaries[i] > boundaries[i - 1]);
+      if(i < boundaries.length - 1) {
+        assertTrue(allowed.contains(boundaries[i]));
+      }
+      if(boundaries[i] - boundaries[i - 1] > partSize) {
+        // only allowed if there is no cut point inside the part
+        for(long a : allowed) {
+          assertFalse(a > boundaries[i - 1] && a < boundaries[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSmallFileIsOnePart() throws Exception {
+    List<Long> starts = new ArrayList<Long>();
+    File file =
+            write("small.warc", Arrays.asList(warcRecord(0, 100)), starts);
+    List<String> names = upload(file, new PartUploader(1000, 2));
+    assertEquals(Arrays.asList("small.warc"), names);
+    boundaries(names, file);
+  }
+
+  @Test
+  public void testUnsplittableTypes() throws Exception {
+    type = "ZIP";
+    File file = new File(tmp.getRoot(), "big.zip");
+    FileUtils.writeByteArrayToFile(file, new byte[5000]);
+    List<String> names = upload(file, new PartUploader(1000, 2));
+    assertEquals(Arrays.asList("big.zip"), names);
+    boundaries(names, file);
+  }
+
+  @Test
+  public void testWarcRecords() throws Exception {
+    List<Long> starts = new ArrayList<Long>();
+    File file = crawl(starts);
+    List<String> names = upload(file, new PartUploader(2000, 3));
+    assertTrue(names.size() > 10);
+    assertEquals("crawl-part001.warc", names.get(0));
+    assertBoundaries(boundaries(names, file), starts, 2000);
+  }
+
+  @Test
+  public void testNotWarcIsOnePart() throws Exception {
+    File file = new File(tmp.getRoot(), "bad.warc");
+    FileUtils.writeByteArrayToFile(file, new byte[5000]);
+    List<String> names = upload(file, new PartUploader(1000, 2));
+    assertEquals(Arrays.asList("bad.warc"), names);
+    boundaries(names, file);
+  }
+
+  @Test
+  public void testMultiMemberGzip() throws Exception {
+    List<byte[]> members = new ArrayList<byte[]>();
+    List<byte[]> records = new ArrayList<byte[]>();
+    for(int i = 0; i < 40; i++) {
+      byte[] record = warcRecord(i, random.nextInt(3000));
+      records.add(record);
+      // a few members have a file name in the header
+      members.add(i % 7 == 3 ? gzipWithName(record) : gzip(record));
+    }
+    List<Long> starts = new ArrayList<Long>();
+    File file = write("crawl.warc.gz", members, starts);
+    List<String> names = upload(file, new PartUploader(4000, 3));
+    assertTrue(names.size() > 3);
+    assertEquals("crawl-part001.warc.gz", names.get(0));
+    assertBoundaries(boundaries(names, file), starts, 4000);
+    // each part is a valid gzip file on its own
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    for(String name : names) {
+      all.write(IOUtils.toByteArray(new GZIPInputStream(
+              new ByteArrayInputStream(uploads.get(name)))));
+    }
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for(byte[] record : records) {
+      expected.write(record);
+    }
+    assertArrayEquals(expected.toByteArray(), all.toByteArray());
+  }
+
+  @Test
+  public void testJsonStream() throws Exception {
+    type = "TWITTER_STREAM";
+    List<byte[]> objects = new ArrayList<byte[]>();
+    for(int i = 0; i < 200; i++) {
+      objects.add(("{\"id\":" + i + ",\"text\":\"braces } { and \\\" quotes"
+              + "\",\"entities\":{\"tags\":[1,2,{\"x\":[]}]}}\n")
+              .getBytes("UTF-8"));
+    }
+    List<Long> starts = new ArrayList<Long>();
+    File file = write("stream.json", objects, starts);
+    List<String> names = upload(file, new PartUploader(1000, 3));
+    assertTrue(names.size() > 10);
+    // objects end just before the newline that starts the next one
+    List<Long> ends = new ArrayList<Long>();
+    for(long s : starts) {
+      if(s > 0) ends.add(s - 1);
+    }
+    assertBoundaries(boundaries(names, file), ends, 1000);
+    // each part is a sequence of complete objects
+    ObjectMapper mapper = new ObjectMapper();
+    int count = 0;
+    for(String name : names) {
+      MappingIterator<Object> it =
+              mapper.reader(Object.class).readValues(uploads.get(name));
+      while(it.hasNext()) {
+        it.next();
+        count++;
+      }
+    }
+    assertEquals(200, count);
+  }
+
+  @Test
+  public void testResumeUploadsOnlyFailedParts() throws Exception {
+    File journals = tmp.newFolder("journals");
+    File file = crawl(new ArrayList<Long>());
+    PartUploader uploader = new PartUploader(2000, 3);
+    uploader.setJournalDirectory(journals);
+    uploader.setMaxAttempts(1);
+    failing.add("crawl-part003.warc");
+    try {
+      upload(file, uploader);
+      fail("upload should have failed");
+    } catch(RestClientException e) {
+      // expected
+    }
+    assertFalse(uploads.containsKey("crawl-part003.warc"));
+    int uploaded = uploads.size();
+    assertTrue(uploaded > 10);
+    assertEquals(1, journals.list().length);
+
+    failing.clear();
+    uploads.clear();
+    List<String> names = upload(file, uploader);
+    assertEquals(uploaded + 1, names.size());
+    assertEquals(Collections.singleton("crawl-part003.warc"),
+            uploads.keySet());
+    long length = uploads.get("crawl-part003.warc").length;
+    assertEquals(file.length() - length, uploader.getBytesSkipped());
+    // the journal is deleted once the file is complete
+    assertEquals(0, journals.list().length);
+  }
+
+  @Test
+  public void testJournalIsSpecificToUpload() throws Exception {
+    File journals = tmp.newFolder("journals");
+    List<Long> starts = new ArrayList<Long>();
+    File file = crawl(starts);
+    PartUploader uploader = new PartUploader(2000, 3);
+    uploader.setJournalDirectory(journals);
+    uploader.setMaxAttempts(1);
+    failing.add("crawl-part003.warc");
+    try {
+      upload(file, uploader);
+      fail("upload should have failed");
+    } catch(RestClientException e) {
+      // expected
+    }
+    failing.clear();
+    uploads.clear();
+    // a different part size starts again from scratch
+    PartUploader other = new PartUploader(3000, 3);
+    other.setJournalDirectory(journals);
+    List<String> names = upload(file, other);
+    assertEquals(names.size(), uploads.size());
+    assertBoundaries(boundaries(names, file), starts, 3000);
+    assertEquals(0, other.getBytesSkipped());
+
+    // as does a file that has changed since the journal was written
+    uploads.clear();
+    FileUtils.writeByteArrayToFile(file, warcRecord(50, 100), true);
+    names = upload(file, uploader);
+    assertEquals(names.size(), uploads.size());
+    assertEquals(0, uploader.getBytesSkipped());
+    // only the journal of the interrupted upload is left
+    assertEquals(1, journals.list().length);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gz = new GZIPOutputStream(out);
+    gz.write(data);
+    gz.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * A gzip member with the FNAME flag set, which GZIPOutputStream never
+   * writes.
+   */
+  private static byte[] gzipWithName(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] {0x1f, (byte)0x8b, 8, 8, 0, 0, 0, 0, 0, (byte)0xff});
+    out.write("record.warc\0".getBytes("ISO-8859-1"));
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+    deflate.write(data);
+    deflate.finish();
+    deflater.end();
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    long[] trailer = {crc.getValue(), data.length};
+    for(long value : trailer) {
+      for(int i = 0; i < 4; i++) {
+        out.write((int)(value >>> (8 * i)));
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,154 @@
+package data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.client.RestClientException;
+import com.annomarket.common.InputType;
+import com.annomarket.data.DataBundle;
+import com.annomarket.data.DataManager;
+import com.annomarket.data.PartUploader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class UploadBundleTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private HttpServer server;
+
+  private String base;
+
+  /**
+   * Requests in the order they completed, e.g. "PUT a.zip" or "close".
+   */
+  private final List<String> events = Collections
+          .synchronizedList(new ArrayList<String>());
+
+  /**
+   * Entries whose uploads are refused with a 500 response.
+   */
+  private final Set<String> failing = Collections
+          .synchronizedSet(new HashSet<String>());
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        serve(x);
+      }
+    });
+    server.start();
+    base = "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange x) throws IOException {
+    String path = x.getRequestURI().getPath();
+    String body = IOUtils.toString(x.getRequestBody(), "UTF-8");
+    String bundle =
+            "{\"id\":1,\"url\":\"" + base + "data/bundle/1\","
+                    + "\"type\":\"ZIP\"}";
+    int code = 200;
+    String response = null;
+    if(path.equals("/data/bundle")) {
+      response = bundle;
+    } else if(path.equals("/data/bundle/1/add")) {
+      String name = body.replaceAll(".*\"fileName\"\\s*:\\s*\"([^\"]*)\".*",
+              "$1");
+      response = "{\"putUrl\":\"" + base + "put/" + name + "\"}";
+    } else if(path.startsWith("/put/")) {
+      String name = path.substring(5);
+      if(failing.contains(name)) {
+        code = 500;
+      } else {
+        events.add("PUT " + name);
+      }
+    } else if(path.equals("/data/bundle/1/close")) {
+      events.add("close");
+      response = bundle;
+    } else {
+      code = 404;
+    }
+    if(response == null) {
+      x.sendResponseHeaders(code, -1);
+    } else {
+      byte[] bytes = response.getBytes("UTF-8");
+      x.getResponseHeaders().set("Content-Type", "application/json");
+      x.sendResponseHeaders(code, bytes.length);
+      x.getResponseBody().write(bytes);
+    }
+    x.close();
+  }
+
+  private File[] createFiles(int count) throws IOException {
+    File[] files = new File[count];
+    for(int i = 0; i < count; i++) {
+      files[i] = new File(tmp.getRoot(), "file" + i + ".zip");
+      FileUtils.writeByteArrayToFile(files[i], new byte[1000 * (i + 1)]);
+    }
+    return files;
+  }
+
+  private DataManager manager() throws Exception {
+    return new DataManager(new RestClient(new URL(base), "key", "password"));
+  }
+
+  @Test
+  public void testClosedAfterEveryPart() throws Exception {
+    File[] files = createFiles(8);
+    PartUploader uploader = new PartUploader(Long.MAX_VALUE, 3);
+    DataBundle bundle =
+            manager().createArchiveBundleFromUploads("test", InputType.ZIP,
+                    null, null, null, uploader, files);
+    assertEquals(1, bundle.id);
+    assertEquals(9, events.size());
+    assertEquals("close", events.get(8));
+    for(File f : files) {
+      assertTrue(events.contains("PUT " + f.getName()));
+    }
+  }
+
+  @Test
+  public void testLeftOpenIfAPartFails() throws Exception {
+    File[] files = createFiles(6);
+    failing.add("file3.zip");
+    PartUploader uploader = new PartUploader(Long.MAX_VALUE, 3);
+    uploader.setMaxAttempts(1);
+    try {
+      manager().createArchiveBundleFromUploads("test", InputType.ZIP, null,
+              null, null, uploader, files);
+      fail("upload should have failed");
+    } catch(RestClientException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 6"));
+    }
+    // every other file is still uploaded, but the bundle is not closed
+    assertEquals(5, events.size());
+    assertFalse(events.contains("close"));
+  }
+}
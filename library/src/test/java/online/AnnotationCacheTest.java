@@ -0,0 +1,102 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.online.AnnotationCache;
+import com.annomarket.online.AnnotationSelector;
+import com.annomarket.online.OnlineServiceRequest;
+import com.annomarket.online.ResponseFormat;
+import com.annomarket.online.SupportedMimeType;
+
+public class AnnotationCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    AnnotationCache cache = new AnnotationCache(100);
+    cache.put("a", new byte[40]);
+    cache.put("b", new byte[40]);
+    assertNotNull(cache.get("a"));
+    cache.put("c", new byte[40]);
+    assertEquals(1, cache.getEvictions());
+    assertEquals(80, cache.getMemoryBytes());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertEquals(3, cache.getMemoryHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0.75, cache.getHitRatio(), 1e-9);
+  }
+
+  @Test
+  public void testReplaceAndOversizedValues() {
+    AnnotationCache cache = new AnnotationCache(100);
+    cache.put("a", new byte[40]);
+    cache.put("a", new byte[10]);
+    assertEquals(10, cache.getMemoryBytes());
+    // too big to hold in memory at all, and evicts nothing
+    cache.put("big", new byte[101]);
+    assertNull(cache.get("big"));
+    assertEquals(10, cache.getMemoryBytes());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  @Test
+  public void testDiskTier() throws Exception {
+    AnnotationCache cache = new AnnotationCache(100, tmp.getRoot());
+    byte[] value = "response".getBytes("UTF-8");
+    cache.put("abcdef", value);
+    cache.put("big", new byte[500]);
+    cache.clearMemory();
+    assertEquals(0, cache.getMemoryBytes());
+    assertArrayEquals(value, cache.get("abcdef"));
+    assertEquals(1, cache.getDiskHits());
+    // reloaded into memory
+    assertArrayEquals(value, cache.get("abcdef"));
+    assertEquals(1, cache.getMemoryHits());
+    // the disk tier is not limited by the memory size
+    assertEquals(500, cache.get("big").length);
+    // and survives a new cache instance
+    AnnotationCache reopened = new AnnotationCache(100, tmp.getRoot());
+    assertArrayEquals(value, reopened.get("abcdef"));
+  }
+
+  @Test
+  public void testKeys() throws Exception {
+    URL endpoint = new URL("http://example.com/pipeline");
+    String key =
+            AnnotationCache.key(endpoint, new OnlineServiceRequest("text",
+                    SupportedMimeType.PLAINTEXT, null), ResponseFormat.JSON);
+    assertEquals(64, key.length());
+    assertEquals(key, AnnotationCache.key(endpoint,
+            new OnlineServiceRequest("text", SupportedMimeType.PLAINTEXT,
+                    null), ResponseFormat.JSON));
+    assertFalse(key.equals(AnnotationCache.key(endpoint,
+            new OnlineServiceRequest("text", SupportedMimeType.HTML, null),
+            ResponseFormat.JSON)));
+    assertFalse(key.equals(AnnotationCache.key(endpoint,
+            new OnlineServiceRequest("text", SupportedMimeType.PLAINTEXT,
+                    null), ResponseFormat.GATE_XML)));
+    // no selectors is not the same as the pipeline's default selectors
+    assertFalse(key.equals(AnnotationCache.key(endpoint,
+            new OnlineServiceRequest("text", SupportedMimeType.PLAINTEXT,
+                    Collections.<AnnotationSelector>emptyList()),
+            ResponseFormat.JSON)));
+    assertFalse(key.equals(AnnotationCache.key(new URL(
+            "http://example.com/other"), new OnlineServiceRequest("text",
+            SupportedMimeType.PLAINTEXT, null), ResponseFormat.JSON)));
+    // documents fetched from a URL are never cached
+    assertNull(AnnotationCache.key(endpoint, new OnlineServiceRequest(
+            new URL("http://example.com/doc"), SupportedMimeType.PLAINTEXT,
+            null), ResponseFormat.JSON));
+  }
+}
@@ -0,0 +1,257 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.online.AnnotatedDocument;
+import com.annomarket.online.Annotation;
+import com.annomarket.online.AnnotationStreamReader;
+import com.annomarket.online.ResponseFormat;
+
+public class AnnotationStreamReaderTest {
+
+  private static final String JSON = "{\"text\":\"Hello big world\","
+          + "\"lang\":\"en\","
+          + "\"entities\":{"
+          + "\"Person\":[{\"indices\":[0,5],\"string\":\"Hello\","
+          + "\"score\":0.5,\"n\":3,\"flag\":true,\"list\":[1,2],"
+          + "\"obj\":{\"a\":\"b\"},\"none\":null},"
+          + "{\"indices\":[6,9]}],"
+          + "\"Empty\":[],"
+          + "\"NotAList\":{\"indices\":[1,2]},"
+          + "\"Location\":[{\"kind\":\"city\",\"indices\":[10,15]}]},"
+          + "\"after\":{\"x\":1}}";
+
+  private static final String GATE_XML = "<?xml version='1.0' "
+          + "encoding='UTF-8'?>\n"
+          + "<GateDocument version=\"3\">\n"
+          + "<GateDocumentFeatures>\n"
+          + feature("lang", "java.lang.String", "en")
+          + feature("count", "java.lang.Integer", "7")
+          + "</GateDocumentFeatures>\n"
+          + "<TextWithNodes><Node id=\"0\"/>Hello<Node id=\"5\"/> "
+          + "<Node id=\"6\"/>big<Node id=\"9\"/> <Node id=\"10\"/>world"
+          + "<Node id=\"15\"/> &amp; co</TextWithNodes>\n"
+          + "<AnnotationSet>\n"
+          + "<Annotation Id=\"1\" Type=\"Person\" StartNode=\"0\" "
+          + "EndNode=\"5\">\n"
+          + feature("score", "java.lang.Double", "0.5")
+          + feature("flag", "java.lang.Boolean", "true")
+          + feature("n", "java.lang.Long", "3")
+          + feature("list", "java.util.ArrayList", "[a, b]")
+          + "</Annotation>\n"
+          + "</AnnotationSet>\n"
+          + "<AnnotationSet Name=\"Original markups\">\n"
+          + "<Annotation Id=\"2\" Type=\"p\" StartNode=\"0\" "
+          + "EndNode=\"15\"></Annotation>\n"
+          + "<Annotation Id=\"3\" Type=\"Person\" StartNode=\"6\" "
+          + "EndNode=\"9\"/>\n"
+          + "</AnnotationSet>\n"
+          + "</GateDocument>\n";
+
+  private static String feature(String name, String className, String value) {
+    return "<Feature><Name className=\"java.lang.String\">" + name
+            + "</Name><Value className=\"" + className + "\">" + value
+            + "</Value></Feature>\n";
+  }
+
+  /**
+   * Input stream that remembers whether it has been closed.
+   */
+  private static class TrackingStream extends ByteArrayInputStream {
+    boolean closed = false;
+
+    TrackingStream(String content) throws IOException {
+      super(content.getBytes("UTF-8"));
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      super.close();
+    }
+  }
+
+  @Test
+  public void testJsonEvents() throws Exception {
+    AnnotationStreamReader reader =
+            AnnotationStreamReader.open(new TrackingStream(JSON),
+                    ResponseFormat.JSON);
+    try {
+      assertTrue(reader.next());
+      assertEquals("Person", reader.getType());
+      assertEquals(0, reader.getStartOffset());
+      assertEquals(5, reader.getEndOffset());
+      assertNull(reader.getAnnotationSetName());
+      // the text comes before the entities, the trailing feature after
+      assertEquals("Hello big world", reader.getText());
+      assertEquals("en", reader.getOtherFeatures().get("lang").asText());
+      assertFalse(reader.getOtherFeatures().containsKey("after"));
+      assertEquals(7, reader.getFeatureCount());
+      assertEquals("string", reader.getFeatureName(0));
+      assertEquals("Hello", reader.getFeatureValue(0));
+      Map<String, Object> features = reader.getFeatures();
+      assertEquals(Double.valueOf(0.5), features.get("score"));
+      assertEquals(Integer.valueOf(3), features.get("n"));
+      assertEquals(Boolean.TRUE, features.get("flag"));
+      assertEquals(Arrays.asList(1, 2), features.get("list"));
+      assertEquals("b", ((Map<?, ?>)features.get("obj")).get("a"));
+      assertTrue(features.containsKey("none"));
+      assertNull(features.get("none"));
+
+      assertTrue(reader.next());
+      assertEquals("Person", reader.getType());
+      assertEquals(6, reader.getStartOffset());
+      assertEquals(9, reader.getEndOffset());
+      assertEquals(0, reader.getFeatureCount());
+
+      // Empty has no annotations, and the value of NotAList is skipped
+      assertTrue(reader.next());
+      assertEquals("Location", reader.getType());
+      assertEquals(10, reader.getStartOffset());
+      assertEquals(15, reader.getEndOffset());
+      assertEquals("city", reader.getFeatures().get("kind"));
+
+      assertFalse(reader.next());
+      assertFalse(reader.next());
+      assertEquals(Arrays.asList("Person", "Empty", "NotAList", "Location"),
+              reader.getTypes());
+      assertEquals(1, reader.getOtherFeatures().get("after").get("x")
+              .asInt());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testJsonMatchesAnnotatedDocument() throws Exception {
+    // AnnotatedDocument cannot hold an entity value that is not a list
+    String json = JSON.replace("\"NotAList\":{\"indices\":[1,2]},", "");
+    RestClient client =
+            new RestClient(new URL("http://localhost/"), "key", "password");
+    AnnotatedDocument doc =
+            client.readerFor(AnnotatedDocument.class).readValue(json);
+    AnnotationStreamReader reader =
+            AnnotationStreamReader.forJson(new TrackingStream(json));
+    try {
+      for(String type : Arrays.asList("Person", "Location")) {
+        for(Annotation expected : doc.entities.get(type)) {
+          assertTrue(reader.next());
+          assertEquals(type, reader.getType());
+          Annotation actual = reader.getAnnotation();
+          assertEquals(expected.startOffset, actual.startOffset);
+          assertEquals(expected.endOffset, actual.endOffset);
+          assertEquals(expected.features, actual.features);
+        }
+      }
+      assertFalse(reader.next());
+      assertEquals(doc.text, reader.getText());
+      assertEquals(doc.otherFeatures, reader.getOtherFeatures());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testJsonEarlyClose() throws Exception {
+    TrackingStream in = new TrackingStream(JSON);
+    AnnotationStreamReader reader = AnnotationStreamReader.forJson(in);
+    assertTrue(reader.next());
+    reader.close();
+    assertTrue(in.closed);
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testJsonMustBeAnObject() throws Exception {
+    TrackingStream in = new TrackingStream("[1, 2]");
+    try {
+      AnnotationStreamReader.forJson(in);
+      fail("a JSON array is not a document");
+    } catch(IOException e) {
+      assertTrue(in.closed);
+    }
+  }
+
+  @Test
+  public void testGateXmlEvents() throws Exception {
+    AnnotationStreamReader reader =
+            AnnotationStreamReader.open(new TrackingStream(GATE_XML),
+                    ResponseFormat.GATE_XML);
+    try {
+      assertTrue(reader.next());
+      assertEquals("Hello big world & co", reader.getText());
+      assertEquals("en", reader.getOtherFeatures().get("lang").asText());
+      assertEquals(7, reader.getOtherFeatures().get("count").asInt());
+      assertTrue(reader.getOtherFeatures().get("count").isInt());
+      assertEquals("Person", reader.getType());
+      assertNull(reader.getAnnotationSetName());
+      assertEquals(0, reader.getStartOffset());
+      assertEquals(5, reader.getEndOffset());
+      Map<String, Object> features = reader.getFeatures();
+      assertEquals(4, features.size());
+      assertEquals(Double.valueOf(0.5), features.get("score"));
+      assertEquals(Boolean.TRUE, features.get("flag"));
+      assertEquals(Long.valueOf(3), features.get("n"));
+      // values of other classes are kept as their text
+      assertEquals("[a, b]", features.get("list"));
+
+      assertTrue(reader.next());
+      assertEquals("p", reader.getType());
+      assertEquals("Original markups", reader.getAnnotationSetName());
+      assertEquals(0, reader.getStartOffset());
+      assertEquals(15, reader.getEndOffset());
+      assertEquals(0, reader.getFeatureCount());
+
+      assertTrue(reader.next());
+      assertEquals("Person", reader.getType());
+      assertEquals("Original markups", reader.getAnnotationSetName());
+      assertEquals(6, reader.getStartOffset());
+      assertEquals(9, reader.getEndOffset());
+
+      assertFalse(reader.next());
+      assertFalse(reader.next());
+      List<String> types = reader.getTypes();
+      assertEquals(Arrays.asList("Person", "p"), types);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testGateXmlEarlyClose() throws Exception {
+    TrackingStream in = new TrackingStream(GATE_XML);
+    AnnotationStreamReader reader = AnnotationStreamReader.forGateXml(in);
+    assertTrue(reader.next());
+    reader.close();
+    assertTrue(in.closed);
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testGateXmlInvalidOffset() throws Exception {
+    InputStream in =
+            new TrackingStream("<GateDocument><AnnotationSet>"
+                    + "<Annotation Id=\"1\" Type=\"T\" StartNode=\"x\" "
+                    + "EndNode=\"1\"/></AnnotationSet></GateDocument>");
+    AnnotationStreamReader reader = AnnotationStreamReader.forGateXml(in);
+    try {
+      reader.next();
+      fail("offset should not parse");
+    } catch(IOException e) {
+      assertTrue(e.getCause() instanceof NumberFormatException);
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.annomarket.client.RestClient;
+import com.annomarket.online.AnnotatedDocument;
+import com.annomarket.online.Annotation;
+import com.annomarket.online.CompactAnnotatedDocument;
+import com.annomarket.online.CompactAnnotationSet;
+
+public class CompactAnnotatedDocumentTest {
+
+  private static final String JSON = "{\"text\":\"Alice met Bob in Paris\","
+          + "\"entities\":{"
+          + "\"Person\":["
+          + "{\"indices\":[0,5],\"class\":\"http://example.com/Person\","
+          + "\"score\":0.9,\"aliases\":[\"Al\",\"Ali\"]},"
+          + "{\"indices\":[10,13],\"class\":\"http://example.com/Person\","
+          + "\"score\":1,\"flag\":false,\"none\":null}],"
+          + "\"Empty\":[],"
+          + "\"Location\":[{\"indices\":[17,22],\"class\":"
+          + "\"http://example.com/City\",\"geo\":{\"lat\":48.9,"
+          + "\"long\":2.35}}]},"
+          + "\"id\":\"tweet-1\",\"meta\":{\"retweets\":3}}";
+
+  private static byte[] bytes(String s) throws Exception {
+    return s.getBytes("UTF-8");
+  }
+
+  @Test
+  public void testRoundTripsToAnnotatedDocument() throws Exception {
+    RestClient client =
+            new RestClient(new URL("http://localhost/"), "key", "password");
+    AnnotatedDocument expected =
+            client.readerFor(AnnotatedDocument.class).readValue(JSON);
+    CompactAnnotatedDocument compact =
+            CompactAnnotatedDocument.read(new ByteArrayInputStream(
+                    bytes(JSON)));
+    AnnotatedDocument actual = compact.toAnnotatedDocument();
+
+    assertEquals(expected.text, actual.text);
+    assertEquals(expected.otherFeatures, actual.otherFeatures);
+    assertEquals(expected.entities.keySet(), actual.entities.keySet());
+    for(String type : expected.entities.keySet()) {
+      List<Annotation> expectedList = expected.entities.get(type);
+      List<Annotation> actualList = actual.entities.get(type);
+      assertEquals(type, expectedList.size(), actualList.size());
+      for(int i = 0; i < expectedList.size(); i++) {
+        Annotation e = expectedList.get(i);
+        Annotation a = actualList.get(i);
+        assertEquals(e.startOffset, a.startOffset);
+        assertEquals(e.endOffset, a.endOffset);
+        assertEquals(type + " " + i, e.features, a.features);
+      }
+    }
+  }
+
+  @Test
+  public void testColumns() throws Exception {
+    CompactAnnotatedDocument compact =
+            CompactAnnotatedDocument.read(new ByteArrayInputStream(
+                    bytes(JSON)));
+    assertEquals("Alice met Bob in Paris", compact.getText());
+    assertEquals(Arrays.asList("Person", "Empty", "Location"),
+            compact.getTypes());
+    assertEquals(0, compact.getAnnotations("Empty").size());
+    assertNull(compact.getAnnotations("Organization"));
+
+    CompactAnnotationSet people = compact.getAnnotations("Person");
+    assertEquals(2, people.size());
+    assertEquals(10, people.getStartOffset(1));
+    assertEquals(13, people.getEndOffset(1));
+    assertEquals(Arrays.asList("Al", "Ali"), people.getFeature(0, "aliases"));
+    assertNull(people.getFeature(0, "flag"));
+    assertEquals(Boolean.FALSE, people.getFeature(1, "flag"));
+    // a repeated value is stored once
+    assertSame(people.getFeature(0, "class"), people.getFeature(1, "class"));
+    Map<String, Object> features = people.getFeatures(1);
+    assertTrue(features.containsKey("none"));
+    assertFalse(features.containsKey("aliases"));
+
+    CompactAnnotationSet places = compact.getAnnotations("Location");
+    assertEquals(48.9,
+            ((Map<?, ?>)places.getFeature(0, "geo")).get("lat"));
+    assertEquals(Arrays.asList(0), toList(places.getIndex().overlapping(
+            18, 19)));
+    assertEquals(3, compact.getOtherFeatures().get("meta").get("retweets")
+            .asInt());
+  }
+
+  private static List<Integer> toList(int[] values) {
+    Integer[] boxed = new Integer[values.length];
+    for(int i = 0; i < values.length; i++) {
+      boxed[i] = values[i];
+    }
+    return Arrays.asList(boxed);
+  }
+}
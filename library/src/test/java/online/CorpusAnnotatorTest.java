@@ -0,0 +1,233 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.client.RestClientException;
+import com.annomarket.online.AnnotatedDocument;
+import com.annomarket.online.CorpusAnnotator;
+import com.annomarket.online.CorpusSink;
+import com.annomarket.online.OnlineApi;
+import com.annomarket.online.OnlineApiException;
+import com.annomarket.online.SupportedMimeType;
+
+public class CorpusAnnotatorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Stands in for the service, recording the MIME type each document
+   * was sent with.
+   */
+  private static class StubApi extends OnlineApi {
+    final ConcurrentMap<String, SupportedMimeType> types =
+            new ConcurrentHashMap<String, SupportedMimeType>();
+
+    StubApi() throws IOException {
+      super(new URL("http://localhost/"), "key", "password");
+    }
+
+    @Override
+    public AnnotatedDocument annotateDocument(String documentText,
+            SupportedMimeType documentMimeType) throws OnlineApiException {
+      types.put(documentText, documentMimeType);
+      AnnotatedDocument doc = new AnnotatedDocument();
+      doc.text = documentText;
+      return doc;
+    }
+  }
+
+  private static class RecordingSink implements CorpusSink {
+    final Map<String, String> annotated = new TreeMap<String, String>();
+
+    final Map<String, Exception> failed = new TreeMap<String, Exception>();
+
+    public synchronized void documentAnnotated(String name,
+            AnnotatedDocument document) {
+      annotated.put(name, document.text);
+    }
+
+    public synchronized void documentFailed(String name, Exception error) {
+      failed.put(name, error);
+    }
+  }
+
+  @Test
+  public void testDocumentsInMemoryAreBounded() throws Exception {
+    for(int i = 0; i < 10; i++) {
+      FileUtils.writeStringToFile(new File(tmp.getRoot(), "doc" + i
+              + ".txt"), "document " + i, "UTF-8");
+    }
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger inFlight = new AtomicInteger();
+    OnlineApi api = new StubApi() {
+      @Override
+      public AnnotatedDocument annotateDocument(String documentText,
+              SupportedMimeType documentMimeType) throws OnlineApiException {
+        inFlight.incrementAndGet();
+        try {
+          release.await();
+        } catch(InterruptedException e) {
+          throw new OnlineApiException("interrupted", e);
+        }
+        return super.annotateDocument(documentText, documentMimeType);
+      }
+    };
+    final CorpusAnnotator annotator = new CorpusAnnotator(api, 2, 3);
+    final RecordingSink sink = new RecordingSink();
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          annotator.annotateDirectory(tmp.getRoot(), sink);
+        } catch(Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    reader.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while(inFlight.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    // two documents with the workers and one queued, and the reader
+    // waits rather than reading the fourth
+    Thread.sleep(200);
+    assertEquals(2, inFlight.get());
+    assertEquals(3, annotator.getDocumentsSubmitted());
+    release.countDown();
+    reader.join(10000);
+    assertFalse(reader.isAlive());
+    assertEquals(10, annotator.getDocumentsAnnotated());
+    assertEquals(10, sink.annotated.size());
+    assertEquals("document 7", sink.annotated.get("doc7.txt"));
+  }
+
+  @Test
+  public void testTransientFailuresAreRetried() throws Exception {
+    FileUtils.writeStringToFile(new File(tmp.getRoot(), "flaky.txt"),
+            "flaky", "UTF-8");
+    FileUtils.writeStringToFile(new File(tmp.getRoot(), "bad.txt"), "bad",
+            "UTF-8");
+    FileUtils.writeStringToFile(new File(tmp.getRoot(), "down.txt"),
+            "down", "UTF-8");
+    final ConcurrentMap<String, AtomicInteger> attempts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    OnlineApi api = new StubApi() {
+      @Override
+      public AnnotatedDocument annotateDocument(String documentText,
+              SupportedMimeType documentMimeType) throws OnlineApiException {
+        attempts.putIfAbsent(documentText, new AtomicInteger());
+        int attempt = attempts.get(documentText).incrementAndGet();
+        if(documentText.equals("flaky") && attempt == 1) {
+          throw new OnlineApiException("reset", new IOException("reset"));
+        } else if(documentText.equals("bad")) {
+          throw new OnlineApiException("bad request",
+                  new RestClientException("bad request", 400, null));
+        } else if(documentText.equals("down")) {
+          throw new OnlineApiException("unavailable",
+                  new RestClientException("unavailable", 503, null));
+        }
+        return super.annotateDocument(documentText, documentMimeType);
+      }
+    };
+    CorpusAnnotator annotator = new CorpusAnnotator(api, 3);
+    annotator.setMaxAttempts(2);
+    RecordingSink sink = new RecordingSink();
+    annotator.annotateDirectory(tmp.getRoot(), sink);
+    assertEquals(2, attempts.get("flaky").get());
+    assertEquals(1, attempts.get("bad").get());
+    assertEquals(2, attempts.get("down").get());
+    assertEquals(2, annotator.getRetries());
+    assertEquals(1, annotator.getDocumentsAnnotated());
+    assertEquals(2, annotator.getDocumentsFailed());
+    assertEquals("flaky", sink.annotated.get("flaky.txt"));
+    assertEquals(503, ((RestClientException)sink.failed.get("down.txt")
+            .getCause()).getStatusCode());
+    assertTrue(sink.failed.containsKey("bad.txt"));
+  }
+
+  @Test
+  public void testZipEntries() throws Exception {
+    File zip = tmp.newFile("corpus.zip");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.putNextEntry(new ZipEntry("sub/"));
+      out.closeEntry();
+      addZipEntry(out, "a.txt", "plain");
+      addZipEntry(out, "sub/b.html", "<p>html</p>");
+    } finally {
+      out.close();
+    }
+    StubApi api = new StubApi();
+    RecordingSink sink = new RecordingSink();
+    new CorpusAnnotator(api, 2).annotateZip(zip, sink);
+    assertEquals(2, sink.annotated.size());
+    assertEquals("plain", sink.annotated.get("a.txt"));
+    assertEquals("<p>html</p>", sink.annotated.get("sub/b.html"));
+    assertEquals(SupportedMimeType.PLAINTEXT, api.types.get("plain"));
+    assertEquals(SupportedMimeType.HTML, api.types.get("<p>html</p>"));
+  }
+
+  @Test
+  public void testGzippedTarEntries() throws Exception {
+    File tar = tmp.newFile("corpus.tgz");
+    TarArchiveOutputStream out =
+            new TarArchiveOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tar)));
+    try {
+      out.putArchiveEntry(new TarArchiveEntry("sub/"));
+      out.closeArchiveEntry();
+      addTarEntry(out, "a.xml", "<doc/>");
+      addTarEntry(out, "sub/b.txt", "plain");
+    } finally {
+      out.close();
+    }
+    StubApi api = new StubApi();
+    RecordingSink sink = new RecordingSink();
+    CorpusAnnotator annotator = new CorpusAnnotator(api, 2);
+    annotator.annotateTar(tar, sink);
+    assertEquals(2, sink.annotated.size());
+    assertEquals("<doc/>", sink.annotated.get("a.xml"));
+    assertEquals("plain", sink.annotated.get("sub/b.txt"));
+    assertEquals(SupportedMimeType.XML_TEXT, api.types.get("<doc/>"));
+    assertEquals(11, annotator.getBytesCompleted());
+  }
+
+  private static void addZipEntry(ZipOutputStream out, String name,
+          String content) throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes("UTF-8"));
+    out.closeEntry();
+  }
+
+  private static void addTarEntry(TarArchiveOutputStream out, String name,
+          String content) throws IOException {
+    byte[] data = content.getBytes("UTF-8");
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(data.length);
+    out.putArchiveEntry(entry);
+    out.write(data);
+    out.closeArchiveEntry();
+  }
+}
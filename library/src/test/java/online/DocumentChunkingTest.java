@@ -0,0 +1,221 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.online.AnnotatedDocument;
+import com.annomarket.online.Annotation;
+import com.annomarket.online.OnlineApi;
+import com.annomarket.online.SupportedMimeType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DocumentChunkingTest {
+
+  private static final Pattern WORD = Pattern.compile("\\S+");
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private HttpServer server;
+
+  private OnlineApi api;
+
+  /**
+   * The text of every document the server was sent.
+   */
+  private final List<String> received = Collections
+          .synchronizedList(new ArrayList<String>());
+
+  /**
+   * A server that annotates every word, and every code point as a
+   * "Char".
+   */
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        String text =
+                mapper.readTree(x.getRequestBody()).get("document").asText();
+        received.add(text);
+        byte[] response = mapper.writeValueAsBytes(annotate(text));
+        x.getResponseHeaders().set("Content-Type", "application/json");
+        x.sendResponseHeaders(200, response.length);
+        x.getResponseBody().write(response);
+        x.close();
+      }
+    });
+    server.start();
+    api =
+            new OnlineApi(new URL("http://localhost:"
+                    + server.getAddress().getPort() + "/"), "key",
+                    "password");
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private ObjectNode annotate(String text) {
+    ObjectNode doc = mapper.createObjectNode();
+    doc.put("text", text);
+    ObjectNode entities = doc.putObject("entities");
+    ArrayNode words = entities.putArray("Word");
+    Matcher m = WORD.matcher(text);
+    while(m.find()) {
+      words.addObject().putArray("indices").add(m.start()).add(m.end());
+    }
+    ArrayNode chars = entities.putArray("Char");
+    for(int i = 0; i < text.length(); i = text.offsetByCodePoints(i, 1)) {
+      chars.addObject().putArray("indices").add(i)
+              .add(text.offsetByCodePoints(i, 1));
+    }
+    return doc;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCoreTooSmall() {
+    api.setChunking(9, 4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeOverlap() {
+    api.setChunking(10, -1);
+  }
+
+  @Test
+  public void testShortText() throws Exception {
+    api.setChunking(100, 10);
+    AnnotatedDocument doc =
+            api.annotateDocument("short", SupportedMimeType.PLAINTEXT);
+    assertEquals(Arrays.asList("short"), received);
+    assertEquals(1, doc.entities.get("Word").size());
+  }
+
+  @Test
+  public void testPrefersParagraphBreaks() throws Exception {
+    String text = repeat("word ", 14) + "end.\n\n" + repeat("more ", 10);
+    api.setChunking(100, 0);
+    api.annotateDocument(text, SupportedMimeType.PLAINTEXT);
+    int paragraph = text.indexOf("\n\n") + 2;
+    assertEquals(2, received.size());
+    assertTrue(received.contains(text.substring(0, paragraph)));
+    assertTrue(received.contains(text.substring(paragraph)));
+  }
+
+  @Test
+  public void testRandomText() throws Exception {
+    Random random = new Random(7);
+    String text = randomText(random, 300);
+    for(int overlap : new int[] {0, 5, 50}) {
+      for(int maxLength : new int[] {2 * overlap + 2, 2 * overlap + 7, 500}) {
+        assertChunked(text, maxLength, overlap);
+      }
+    }
+  }
+
+  @Test
+  public void testSurrogatePairsAreNotSplit() throws Exception {
+    // no spaces, so every cut is forced, at both even and odd offsets
+    StringBuilder pairs = new StringBuilder();
+    for(int i = 0; i < 100; i++) {
+      pairs.appendCodePoint(0x1F600 + i);
+    }
+    for(String text : new String[] {pairs.toString(), "a" + pairs}) {
+      for(int maxLength : new int[] {2, 3, 5, 8}) {
+        assertChunked(text, maxLength, 0);
+      }
+    }
+  }
+
+  @Test
+  public void testMergeKeepsEachAnnotationOnce() throws Exception {
+    String text = randomText(new Random(3), 5000);
+    api.setChunking(200, 30);
+    AnnotatedDocument merged =
+            api.annotateDocument(text, SupportedMimeType.PLAINTEXT);
+    assertTrue(received.size() > 25);
+    List<Annotation> actual = merged.entities.get("Word");
+    Matcher m = WORD.matcher(text);
+    int i = 0;
+    while(m.find()) {
+      assertEquals(m.start(), actual.get(i).startOffset);
+      assertEquals(m.end(), actual.get(i).endOffset);
+      i++;
+    }
+    assertEquals(i, actual.size());
+    assertEquals(text, merged.text);
+  }
+
+  /**
+   * Annotate the text in chunks, and check that every chunk is within
+   * the maximum length, that no chunk starts or ends in the middle of a
+   * surrogate pair, and that the merged result has exactly one "Char"
+   * annotation for each code point, which shows that the chunks' cores
+   * partition the text.
+   */
+  private void assertChunked(String text, int maxLength, int overlap)
+          throws Exception {
+    received.clear();
+    api.setChunking(maxLength, overlap);
+    AnnotatedDocument doc =
+            api.annotateDocument(text, SupportedMimeType.PLAINTEXT);
+    String settings = maxLength + "/" + overlap;
+    for(String chunk : received) {
+      // a core may grow to a whole surrogate pair when the limit
+      // leaves room for only half of one
+      assertTrue(settings, chunk.length() <= Math.max(maxLength, 2));
+      assertFalse(settings, Character.isLowSurrogate(chunk.charAt(0)));
+      assertFalse(settings,
+              Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+    }
+    List<Annotation> chars = doc.entities.get("Char");
+    int i = 0;
+    for(Annotation a : chars) {
+      assertEquals(settings, i, a.startOffset);
+      i = text.offsetByCodePoints(i, 1);
+      assertEquals(settings, i, a.endOffset);
+    }
+    assertEquals(settings, text.length(), i);
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    while(text.length() < length) {
+      int word = 1 + random.nextInt(12);
+      for(int i = 0; i < word; i++) {
+        text.append((char)('a' + random.nextInt(26)));
+      }
+      int r = random.nextInt(20);
+      text.append(r == 0 ? ".\n\n" : r < 3 ? ". " : " ");
+    }
+    return text.toString();
+  }
+
+  private static String repeat(String s, int n) {
+    StringBuilder b = new StringBuilder();
+    for(int i = 0; i < n; i++) {
+      b.append(s);
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,125 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.annomarket.online.OnlineApi;
+import com.annomarket.online.SupportedMimeType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FileDocumentEntityTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The number of characters the entity decodes and escapes at a time.
+   */
+  private static final int CHUNK_SIZE = 8192;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private HttpServer server;
+
+  private final List<byte[]> bodies = new ArrayList<byte[]>();
+
+  private OnlineApi api;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        byte[] body = IOUtils.toByteArray(x.getRequestBody());
+        synchronized(bodies) {
+          bodies.add(body);
+        }
+        byte[] response =
+                "{\"text\":\"\",\"entities\":{}}".getBytes("UTF-8");
+        x.getResponseHeaders().set("Content-Type", "application/json");
+        x.sendResponseHeaders(200, response.length);
+        x.getResponseBody().write(response);
+        x.close();
+      }
+    });
+    server.start();
+    api =
+            new OnlineApi(new URL("http://localhost:"
+                    + server.getAddress().getPort() + "/"), "key",
+                    "password");
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  /**
+   * Build a document with a surrogate pair split across the first
+   * chunk boundary, and characters that need escaping throughout.
+   */
+  private static String document() {
+    StringBuilder text = new StringBuilder();
+    while(text.length() < CHUNK_SIZE - 1) {
+      text.append('a');
+    }
+    // U+1F600, whose high surrogate is the last char of the first chunk
+    text.appendCodePoint(0x1F600);
+    for(int i = 0; i < 3000; i++) {
+      text.append("\"quoted\" back\\slash\ttab\nline \u0001 caf\u00e9 ");
+      text.appendCodePoint(0x1D11E);
+    }
+    return text.toString();
+  }
+
+  private void assertSentAsRequest(String text, boolean memoryMap)
+          throws Exception {
+    File file = new File(tmp.getRoot(), "document-" + memoryMap + ".txt");
+    FileUtils.writeStringToFile(file, text, "UTF-8");
+    api.annotateDocument(text, SupportedMimeType.PLAINTEXT);
+    api.annotateFileContents(file, UTF8, SupportedMimeType.PLAINTEXT,
+            memoryMap);
+    assertEquals(2, bodies.size());
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode expected = mapper.readTree(bodies.get(0));
+    JsonNode actual = mapper.readTree(bodies.get(1));
+    assertEquals(text, actual.get("document").asText());
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testStreamedBodyMatchesRequest() throws Exception {
+    assertSentAsRequest(document(), false);
+  }
+
+  @Test
+  public void testMappedBodyMatchesRequest() throws Exception {
+    assertSentAsRequest(document(), true);
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    assertSentAsRequest("", true);
+    bodies.clear();
+    assertSentAsRequest("", false);
+  }
+}
@@ -0,0 +1,144 @@
+package online;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.annomarket.online.AnnotationStreamReader;
+import com.annomarket.online.CompactAnnotatedDocument;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Compares the time and memory taken to read a large GATE XML document
+ * with {@link AnnotationStreamReader} (StAX) against parsing it into a
+ * tree with {@link XmlMapper#readTree}. This is not a unit test, run it
+ * by hand with the test classpath:
+ * 
+ * <pre>
+ * java -cp ... online.GateXmlReaderBenchmark [annotations] [rounds]
+ * </pre>
+ */
+public class GateXmlReaderBenchmark {
+
+  public static void main(String... args) throws Exception {
+    int annotations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    byte[] xml = buildDocument(annotations);
+    System.out.println("Document: " + annotations + " annotations, "
+            + (xml.length / 1024) + "KB");
+
+    XmlMapper xmlMapper = new XmlMapper();
+    for(int r = 0; r < rounds; r++) {
+      long t0 = System.nanoTime();
+      int count = streamCount(xml);
+      long t1 = System.nanoTime();
+      Object compact =
+              CompactAnnotatedDocument.read(AnnotationStreamReader
+                      .forGateXml(new ByteArrayInputStream(xml)));
+      long t2 = System.nanoTime();
+      Object tree = xmlMapper.readTree(new ByteArrayInputStream(xml));
+      long t3 = System.nanoTime();
+      System.out.printf("round %d: StAX events %dms (%d annotations), "
+              + "StAX compact %dms, XmlMapper.readTree %dms%n", r,
+              (t1 - t0) / 1000000, count, (t2 - t1) / 1000000,
+              (t3 - t2) / 1000000);
+      if(compact == null || tree == null) {
+        throw new IllegalStateException();
+      }
+    }
+
+    System.out.printf("allocated: StAX events %dMB, StAX compact %dMB, "
+            + "XmlMapper.readTree %dMB%n", allocated(xml, 0, xmlMapper),
+            allocated(xml, 1, xmlMapper), allocated(xml, 2, xmlMapper));
+  }
+
+  private static int streamCount(byte[] xml) throws IOException {
+    AnnotationStreamReader reader =
+            AnnotationStreamReader.forGateXml(new ByteArrayInputStream(xml));
+    int count = 0;
+    try {
+      while(reader.next()) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    return count;
+  }
+
+  /**
+   * Megabytes allocated by the current thread while reading the
+   * document with each method, or -1 if the JVM cannot measure it. This
+   * is a fairer comparison than retained size, as Jackson's XML tree
+   * keeps only the last of several elements with the same name.
+   */
+  private static long allocated(byte[] xml, int method, XmlMapper xmlMapper)
+          throws IOException {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)threads;
+    long id = Thread.currentThread().getId();
+    long before = mx.getThreadAllocatedBytes(id);
+    Object result;
+    switch(method) {
+      case 0:
+        result = streamCount(xml);
+        break;
+      case 1:
+        result =
+                CompactAnnotatedDocument.read(AnnotationStreamReader
+                        .forGateXml(new ByteArrayInputStream(xml)));
+        break;
+      default:
+        result = xmlMapper.readTree(new ByteArrayInputStream(xml));
+    }
+    long after = mx.getThreadAllocatedBytes(id);
+    if(result == null) {
+      throw new IllegalStateException();
+    }
+    return (after - before) / (1024 * 1024);
+  }
+
+  /**
+   * Build a synthetic GATE XML document with the given number of Token
+   * annotations, each with two features.
+   */
+  private static byte[] buildDocument(int annotations) throws IOException {
+    StringBuilder text = new StringBuilder();
+    StringBuilder annots = new StringBuilder();
+    StringBuilder nodes = new StringBuilder();
+    for(int i = 0; i < annotations; i++) {
+      int start = text.length();
+      String word = "word" + (i % 100);
+      text.append(word).append(' ');
+      nodes.append("<Node id=\"").append(start).append("\"/>").append(word)
+              .append("<Node id=\"").append(start + word.length())
+              .append("\"/> ");
+      annots.append("<Annotation Id=\"").append(i)
+              .append("\" Type=\"Token\" StartNode=\"").append(start)
+              .append("\" EndNode=\"").append(start + word.length())
+              .append("\">\n<Feature>\n  <Name className=\"java.lang.String\">"
+                      + "string</Name>\n  <Value className=\"java.lang.String\">")
+              .append(word)
+              .append("</Value>\n</Feature>\n<Feature>\n  <Name className="
+                      + "\"java.lang.String\">length</Name>\n  <Value "
+                      + "className=\"java.lang.Integer\">")
+              .append(word.length())
+              .append("</Value>\n</Feature>\n</Annotation>\n");
+    }
+    String doc =
+            "<?xml version='1.0' encoding='UTF-8'?>\n"
+                    + "<GateDocument version=\"3\">\n<GateDocumentFeatures>\n"
+                    + "<Feature>\n  <Name className=\"java.lang.String\">"
+                    + "MimeType</Name>\n  <Value className=\"java.lang.String\">"
+                    + "text/plain</Value>\n</Feature>\n</GateDocumentFeatures>\n"
+                    + "<TextWithNodes>" + nodes + "</TextWithNodes>\n"
+                    + "<AnnotationSet>\n" + annots + "</AnnotationSet>\n"
+                    + "</GateDocument>\n";
+    return doc.getBytes("UTF-8");
+  }
+}
@@ -0,0 +1,105 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.annomarket.online.OffsetIndex;
+
+public class OffsetIndexTest {
+
+  private static final long[] STARTS = {10, 0, 5, 5, 20, 12, 30};
+
+  private static final long[] ENDS = {15, 40, 12, 5, 25, 13, 30};
+
+  private final OffsetIndex index = new OffsetIndex(STARTS, ENDS);
+
+  @Test
+  public void testOverlapping() {
+    assertArrayEquals(new int[] {1, 2, 0, 5}, index.overlapping(11, 13));
+    // end offsets are exclusive
+    assertArrayEquals(new int[] {1}, index.overlapping(15, 20));
+    assertArrayEquals(new int[0], index.overlapping(40, 50));
+  }
+
+  @Test
+  public void testContainedIn() {
+    assertArrayEquals(new int[] {2, 3, 0, 5}, index.containedIn(5, 15));
+    assertArrayEquals(new int[] {6}, index.containedIn(30, 30));
+  }
+
+  @Test
+  public void testCovering() {
+    assertArrayEquals(new int[] {1, 0}, index.covering(12, 15));
+    assertArrayEquals(new int[] {1, 2, 3}, index.covering(5, 5));
+  }
+
+  @Test
+  public void testNextAfter() {
+    assertEquals(2, index.nextAfter(1));
+    assertEquals(0, index.nextAfter(10));
+    assertEquals(6, index.nextAfter(26));
+    assertEquals(-1, index.nextAfter(31));
+  }
+
+  @Test
+  public void testEmpty() {
+    OffsetIndex empty = new OffsetIndex(new long[0], new long[0]);
+    assertEquals(0, empty.overlapping(0, 10).length);
+    assertEquals(0, empty.containedIn(0, 10).length);
+    assertEquals(0, empty.covering(0, 10).length);
+    assertEquals(-1, empty.nextAfter(0));
+  }
+
+  /**
+   * Compare every query against a linear scan over random annotations.
+   */
+  @Test
+  public void testAgainstLinearScan() {
+    Random r = new Random(42);
+    int n = 1000;
+    long[] starts = new long[n];
+    long[] ends = new long[n];
+    for(int i = 0; i < n; i++) {
+      starts[i] = r.nextInt(5000);
+      ends[i] = starts[i] + r.nextInt(r.nextBoolean() ? 10 : 500);
+    }
+    OffsetIndex idx = new OffsetIndex(starts, ends);
+    for(int q = 0; q < 500; q++) {
+      long s = r.nextInt(5500);
+      long e = s + r.nextInt(300);
+      List<Integer> overlap = new ArrayList<Integer>();
+      List<Integer> contained = new ArrayList<Integer>();
+      List<Integer> cover = new ArrayList<Integer>();
+      for(int i = 0; i < n; i++) {
+        if(starts[i] < e && ends[i] > s) overlap.add(i);
+        if(starts[i] >= s && ends[i] <= e) contained.add(i);
+        if(starts[i] <= s && ends[i] >= e) cover.add(i);
+      }
+      assertEquals(overlap, sorted(idx.overlapping(s, e)));
+      assertEquals(contained, sorted(idx.containedIn(s, e)));
+      assertEquals(cover, sorted(idx.covering(s, e)));
+      int next = idx.nextAfter(s);
+      for(int i = 0; i < n; i++) {
+        if(starts[i] >= s) {
+          assertTrue(next >= 0 && starts[next] <= starts[i]);
+        }
+      }
+    }
+  }
+
+  private static List<Integer> sorted(int[] positions) {
+    int[] copy = positions.clone();
+    Arrays.sort(copy);
+    List<Integer> list = new ArrayList<Integer>();
+    for(int i : copy) {
+      list.add(i);
+    }
+    return list;
+  }
+}
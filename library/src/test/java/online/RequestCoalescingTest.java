@@ -0,0 +1,166 @@
+package online;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.annomarket.online.AnnotatedDocument;
+import com.annomarket.online.OnlineApi;
+import com.annomarket.online.OnlineApiException;
+import com.annomarket.online.SupportedMimeType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RequestCoalescingTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  /**
+   * The server holds each request until this is released.
+   */
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private volatile boolean failing = false;
+
+  private HttpServer server;
+
+  private OnlineApi api;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        requests.incrementAndGet();
+        IOUtils.toByteArray(x.getRequestBody());
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+          // answer now
+        }
+        if(failing) {
+          x.sendResponseHeaders(500, -1);
+        } else {
+          byte[] response =
+                  "{\"text\":\"annotated\",\"entities\":{}}".getBytes("UTF-8");
+          x.getResponseHeaders().set("Content-Type", "application/json");
+          x.sendResponseHeaders(200, response.length);
+          x.getResponseBody().write(response);
+        }
+        x.close();
+      }
+    });
+    server.start();
+    api =
+            new OnlineApi(new URL("http://localhost:"
+                    + server.getAddress().getPort() + "/"), "key",
+                    "password");
+    api.setCoalescing(true);
+  }
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+    server.stop(0);
+  }
+
+  private Future<AnnotatedDocument> annotateLater(final String text) {
+    return executor.submit(new Callable<AnnotatedDocument>() {
+      public AnnotatedDocument call() throws Exception {
+        return api.annotateDocument(text, SupportedMimeType.PLAINTEXT);
+      }
+    });
+  }
+
+  /**
+   * Wait for the given number of callers to join the first.
+   */
+  private void awaitCoalesced(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while(api.getCoalescedRequests() < count
+            && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testConcurrentCallsShareOneRequest() throws Exception {
+    List<Future<AnnotatedDocument>> results =
+            new ArrayList<Future<AnnotatedDocument>>();
+    for(int i = 0; i < 5; i++) {
+      results.add(annotateLater("document"));
+    }
+    awaitCoalesced(4);
+    release.countDown();
+    List<AnnotatedDocument> docs = new ArrayList<AnnotatedDocument>();
+    for(Future<AnnotatedDocument> f : results) {
+      AnnotatedDocument doc = f.get(5, TimeUnit.SECONDS);
+      assertEquals("annotated", doc.text);
+      // each caller gets its own copy
+      for(AnnotatedDocument other : docs) {
+        assertNotSame(other, doc);
+      }
+      docs.add(doc);
+    }
+    assertEquals(1, requests.get());
+    assertEquals(4, api.getCoalescedRequests());
+  }
+
+  @Test
+  public void testFailureIsShared() throws Exception {
+    failing = true;
+    List<Future<AnnotatedDocument>> results =
+            new ArrayList<Future<AnnotatedDocument>>();
+    for(int i = 0; i < 3; i++) {
+      results.add(annotateLater("document"));
+    }
+    awaitCoalesced(2);
+    release.countDown();
+    for(Future<AnnotatedDocument> f : results) {
+      try {
+        f.get(5, TimeUnit.SECONDS);
+        fail("expected an exception");
+      } catch(ExecutionException e) {
+        assertTrue(e.getCause() instanceof OnlineApiException);
+      }
+    }
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testCompletedRequestsAreForgotten() throws Exception {
+    release.countDown();
+    api.annotateDocument("document", SupportedMimeType.PLAINTEXT);
+    api.annotateDocument("document", SupportedMimeType.PLAINTEXT);
+    api.annotateDocument("other", SupportedMimeType.PLAINTEXT);
+    assertEquals(3, requests.get());
+    assertEquals(0, api.getCoalescedRequests());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    api.setCoalescing(false);
+    assertFalse(api.isCoalescing());
+    assertEquals(0, api.getCoalescedRequests());
+  }
+}